@@ -0,0 +1,25 @@
+package jetbrains.buildServer.artifacts.s3.download.benchmark;
+
+import java.io.File;
+import java.util.Map;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import org.jetbrains.annotations.NotNull;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Running builds that provide the transport configuration parameters to the benchmarked code.
+ */
+final class BenchmarkBuilds {
+  @NotNull
+  static AgentRunningBuild createRunningBuild(@NotNull Map<String, String> configurationParameters, @NotNull File buildTempDirectory) {
+    AgentRunningBuild runningBuild = mock(AgentRunningBuild.class);
+    when(runningBuild.getSharedConfigParameters()).thenReturn(configurationParameters);
+    when(runningBuild.getBuildTempDirectory()).thenReturn(buildTempDirectory);
+    return runningBuild;
+  }
+
+  private BenchmarkBuilds() {
+  }
+}
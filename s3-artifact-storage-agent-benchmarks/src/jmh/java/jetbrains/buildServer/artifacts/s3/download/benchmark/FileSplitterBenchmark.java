@@ -0,0 +1,47 @@
+package jetbrains.buildServer.artifacts.s3.download.benchmark;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.artifacts.s3.download.S3DownloadConfiguration;
+import jetbrains.buildServer.artifacts.s3.download.parallel.FilePart;
+import jetbrains.buildServer.artifacts.s3.download.parallel.splitter.impl.FileSplitterImpl;
+import org.openjdk.jmh.annotations.*;
+
+import static jetbrains.buildServer.artifacts.s3.S3Constants.S3_PARALLEL_DOWNLOAD_MAX_THREADS;
+import static jetbrains.buildServer.artifacts.s3.S3Constants.S3_PARALLEL_DOWNLOAD_MIN_PART_SIZE_MB;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileSplitterBenchmark {
+  @Param({"5", "50", "500"})
+  public int maxThreads;
+
+  @Param({"1", "10", "100"})
+  public int minPartSizeMb;
+
+  @Param({"150", "10240"})
+  public long fileSizeMb;
+
+  private FileSplitterImpl mySplitter;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    Map<String, String> parameters = new HashMap<>();
+    parameters.put(S3_PARALLEL_DOWNLOAD_MAX_THREADS, Integer.toString(maxThreads));
+    parameters.put(S3_PARALLEL_DOWNLOAD_MIN_PART_SIZE_MB, Integer.toString(minPartSizeMb));
+    S3DownloadConfiguration configuration = new S3DownloadConfiguration(BenchmarkBuilds.createRunningBuild(parameters, new File(System.getProperty("java.io.tmpdir"))));
+    mySplitter = new FileSplitterImpl(configuration);
+  }
+
+  @Benchmark
+  public List<FilePart> split() {
+    return mySplitter.split(fileSizeMb * 1024 * 1024);
+  }
+}
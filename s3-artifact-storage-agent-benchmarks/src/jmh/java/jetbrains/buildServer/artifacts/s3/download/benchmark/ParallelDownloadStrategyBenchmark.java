@@ -0,0 +1,157 @@
+package jetbrains.buildServer.artifacts.s3.download.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.artifacts.FileProgress;
+import jetbrains.buildServer.artifacts.impl.DependencyHttpHelper;
+import jetbrains.buildServer.artifacts.s3.download.S3DownloadConfiguration;
+import jetbrains.buildServer.artifacts.s3.download.S3HttpClient;
+import jetbrains.buildServer.artifacts.s3.download.parallel.ParallelDownloadContext;
+import jetbrains.buildServer.artifacts.s3.download.parallel.UnfinishedDownloads;
+import jetbrains.buildServer.artifacts.s3.download.parallel.splitter.impl.FileSplitterImpl;
+import jetbrains.buildServer.artifacts.s3.download.parallel.strategy.ParallelDownloadStrategy;
+import jetbrains.buildServer.artifacts.s3.download.parallel.strategy.impl.AdaptiveParallelDownloadStrategy;
+import jetbrains.buildServer.artifacts.s3.download.parallel.strategy.impl.InplaceParallelDownloadStrategy;
+import jetbrains.buildServer.artifacts.s3.download.parallel.strategy.impl.MappedParallelDownloadStrategy;
+import jetbrains.buildServer.artifacts.s3.download.parallel.strategy.impl.SeparatePartFilesParallelDownloadStrategy;
+import jetbrains.buildServer.util.FileUtil;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+
+import static jetbrains.buildServer.artifacts.s3.S3Constants.*;
+import static jetbrains.buildServer.artifacts.s3.download.S3DownloadConstants.S3_PARALLEL_DOWNLOAD_FREE_SPACE_CHECK_ENABLED;
+import static jetbrains.buildServer.artifacts.s3.download.S3DownloadConstants.S3_PARALLEL_DOWNLOAD_RESUMABLE;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Time to download a file with the parallel strategies from a local range server with the configured latency and per-connection bandwidth.
+ * The journaling and free space check flags are parameters too, so that the results don't depend on the defaults of the agent.
+ * <p>
+ * By default every strategy is measured once with the agent defaults, except for 10 MB parts so that the file is split, over a 20 ms, 50 MB/s per connection link.
+ * Other values are passed with {@code -Pjmh.params}, e.g. {@code -Pjmh.params="maxThreads=2,5,10;latencyMs=0,20;bandwidthMbPerSecond=0,50"},
+ * each listed value multiplies the number of runs.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParallelDownloadStrategyBenchmark {
+  @Param({InplaceParallelDownloadStrategy.NAME, SeparatePartFilesParallelDownloadStrategy.NAME, AdaptiveParallelDownloadStrategy.NAME, MappedParallelDownloadStrategy.NAME})
+  public String strategy;
+
+  @Param({"true"})
+  public boolean resumable;
+
+  @Param({"true"})
+  public boolean freeSpaceCheck;
+
+  @Param({"5"})
+  public int maxThreads;
+
+  @Param({"10"})
+  public int minPartSizeMb;
+
+  @Param({"10"})
+  public int bufferSizeKb;
+
+  @Param({"20"})
+  public long latencyMs;
+
+  @Param({"50"})
+  public long bandwidthMbPerSecond; // per connection, 0 when unlimited
+
+  @Param({"64"})
+  public int fileSizeMb;
+
+  private RangeHttpServer myServer;
+  private ExecutorService myExecutor;
+  private ExecutorService myJournalExecutor;
+  private MultiThreadedHttpConnectionManager myConnectionManager;
+  private Path myTempDirectory;
+  private Path myTargetFile;
+  private ParallelDownloadStrategy myStrategy;
+  private S3DownloadConfiguration myConfiguration;
+  private AgentRunningBuild myRunningBuild;
+  private S3HttpClient myHttpClient;
+  private UnfinishedDownloads myUnfinishedDownloads;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    byte[] content = new byte[fileSizeMb * 1024 * 1024];
+    new Random(42).nextBytes(content);
+    myServer = new RangeHttpServer(content, latencyMs, bandwidthMbPerSecond * 1024 * 1024);
+    myExecutor = Executors.newFixedThreadPool(maxThreads);
+    myJournalExecutor = Executors.newSingleThreadExecutor();
+    myTempDirectory = Files.createTempDirectory("s3-parallel-download-benchmark");
+    myTargetFile = myTempDirectory.resolve("target");
+
+    myConnectionManager = new MultiThreadedHttpConnectionManager();
+    myConnectionManager.getParams().setDefaultMaxConnectionsPerHost(maxThreads);
+    myConnectionManager.getParams().setMaxTotalConnections(maxThreads);
+    myHttpClient = new S3HttpClient(new HttpClient(myConnectionManager), mock(DependencyHttpHelper.class), "http://i-am-teamcity-server");
+
+    Map<String, String> parameters = new HashMap<>();
+    parameters.put(S3_PARALLEL_DOWNLOAD_MAX_THREADS, Integer.toString(maxThreads));
+    parameters.put(S3_PARALLEL_DOWNLOAD_MIN_PART_SIZE_MB, Integer.toString(minPartSizeMb));
+    parameters.put(S3_PARALLEL_DOWNLOAD_BUFFER_SIZE_KB, Integer.toString(bufferSizeKb));
+    parameters.put(S3_PARALLEL_DOWNLOAD_RESUMABLE, Boolean.toString(resumable));
+    parameters.put(S3_PARALLEL_DOWNLOAD_FREE_SPACE_CHECK_ENABLED, Boolean.toString(freeSpaceCheck));
+    myRunningBuild = BenchmarkBuilds.createRunningBuild(parameters, myTempDirectory.resolve("buildTmp").toFile());
+    myConfiguration = new S3DownloadConfiguration(myRunningBuild);
+    myUnfinishedDownloads = resumable ? new UnfinishedDownloads(myJournalExecutor) : null; // the transport factory does the same for a build
+    myStrategy = createStrategy(strategy);
+  }
+
+  @NotNull
+  private static ParallelDownloadStrategy createStrategy(@NotNull String name) {
+    switch (name) {
+      case InplaceParallelDownloadStrategy.NAME:
+        return new InplaceParallelDownloadStrategy();
+      case SeparatePartFilesParallelDownloadStrategy.NAME:
+        return new SeparatePartFilesParallelDownloadStrategy();
+      case AdaptiveParallelDownloadStrategy.NAME:
+        return new AdaptiveParallelDownloadStrategy();
+      case MappedParallelDownloadStrategy.NAME:
+        return new MappedParallelDownloadStrategy();
+      default:
+        throw new IllegalArgumentException(String.format("Unknown parallel download strategy %s", name));
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    myServer.close();
+    myExecutor.shutdownNow();
+    myJournalExecutor.shutdownNow();
+    myConnectionManager.shutdown();
+    FileUtil.delete(myTempDirectory.toFile());
+  }
+
+  @TearDown(Level.Invocation)
+  public void deleteTargetFile() throws IOException {
+    Files.deleteIfExists(myTargetFile);
+    if (myUnfinishedDownloads != null) myUnfinishedDownloads.deleteAll();
+  }
+
+  @Benchmark
+  public void download() throws IOException {
+    ParallelDownloadContext downloadContext = ParallelDownloadContext.builder(myConfiguration, myRunningBuild, new FileSplitterImpl(myConfiguration), myHttpClient, myExecutor,
+                                                                              new AtomicBoolean(false))
+      .unfinishedDownloads(myUnfinishedDownloads)
+      .build();
+    myStrategy.download(myServer.getUrl(), myTargetFile, fileSizeMb * 1024L * 1024L, null, new FileProgress.Adapter(), downloadContext);
+  }
+}
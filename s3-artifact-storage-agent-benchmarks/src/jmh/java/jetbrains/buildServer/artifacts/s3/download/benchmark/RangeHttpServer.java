@@ -0,0 +1,116 @@
+package jetbrains.buildServer.artifacts.s3.download.benchmark;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Local HTTP server that serves a file from memory with byte range support, like a storage behind a presigned URL.
+ * Every response is delayed by the configured latency, and every connection is throttled to the configured bandwidth.
+ */
+final class RangeHttpServer implements AutoCloseable {
+  private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d+)");
+  private static final int CHUNK_SIZE_BYTES = 16 * 1024;
+
+  @NotNull
+  private final byte[] myContent;
+  private final long myLatencyMs;
+  private final long myBytesPerSecond; // 0 when unlimited
+  @NotNull
+  private final HttpServer myServer;
+  @NotNull
+  private final ExecutorService myExecutor;
+
+  RangeHttpServer(@NotNull byte[] content, long latencyMs, long bytesPerSecond) throws IOException {
+    myContent = content;
+    myLatencyMs = latencyMs;
+    myBytesPerSecond = bytesPerSecond;
+    myServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    myExecutor = Executors.newCachedThreadPool();
+    myServer.setExecutor(myExecutor);
+    myServer.createContext("/", exchange -> {
+      try {
+        handle(exchange);
+      } finally {
+        exchange.close();
+      }
+    });
+    myServer.start();
+  }
+
+  @NotNull
+  String getUrl() {
+    InetSocketAddress address = myServer.getAddress();
+    return String.format("http://%s:%s/file", address.getHostString(), address.getPort());
+  }
+
+  private void handle(@NotNull HttpExchange exchange) throws IOException {
+    sleep(myLatencyMs);
+
+    long startByte = 0;
+    long endByte = myContent.length - 1;
+    int status = 200;
+    Headers responseHeaders = exchange.getResponseHeaders();
+    responseHeaders.add("Accept-Ranges", "bytes");
+    String range = exchange.getRequestHeaders().getFirst("Range");
+    if (range != null) {
+      Matcher matcher = RANGE_PATTERN.matcher(range);
+      if (!matcher.matches()) {
+        exchange.sendResponseHeaders(416, -1);
+        return;
+      }
+      startByte = Long.parseLong(matcher.group(1));
+      endByte = Math.min(Long.parseLong(matcher.group(2)), myContent.length - 1);
+      status = 206;
+      responseHeaders.add("Content-Range", String.format("bytes %s-%s/%s", startByte, endByte, myContent.length));
+    }
+
+    long length = endByte - startByte + 1;
+    exchange.sendResponseHeaders(status, length);
+    if ("HEAD".equals(exchange.getRequestMethod())) return;
+
+    long startNanos = System.nanoTime();
+    long written = 0;
+    try (OutputStream responseBody = exchange.getResponseBody()) {
+      while (written < length) {
+        int chunkSize = (int)Math.min(CHUNK_SIZE_BYTES, length - written);
+        responseBody.write(myContent, (int)(startByte + written), chunkSize);
+        written += chunkSize;
+        throttle(written, startNanos);
+      }
+    }
+  }
+
+  private void throttle(long writtenBytes, long startNanos) {
+    if (myBytesPerSecond <= 0) return;
+
+    long expectedElapsedNanos = TimeUnit.SECONDS.toNanos(writtenBytes) / myBytesPerSecond;
+    long aheadNanos = expectedElapsedNanos - (System.nanoTime() - startNanos);
+    if (aheadNanos > 0) sleep(TimeUnit.NANOSECONDS.toMillis(aheadNanos));
+  }
+
+  private static void sleep(long millis) {
+    if (millis <= 0) return;
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void close() {
+    myServer.stop(0);
+    myExecutor.shutdownNow();
+  }
+}
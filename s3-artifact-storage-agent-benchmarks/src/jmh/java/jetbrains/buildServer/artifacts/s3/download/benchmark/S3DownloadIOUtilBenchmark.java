@@ -0,0 +1,72 @@
+package jetbrains.buildServer.artifacts.s3.download.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.artifacts.s3.download.S3DownloadIOUtil;
+import jetbrains.buildServer.util.FileUtil;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Throughput of the channel transfers that write every downloaded byte to disk.
+ * The default buffer size of the agent is compared with a larger one, other sizes are passed with {@code -Pjmh.params="bufferSizeKb=256,1024"}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class S3DownloadIOUtilBenchmark {
+  @Param({"10", "64"})
+  public int bufferSizeKb;
+
+  @Param({"64"})
+  public int dataSizeMb;
+
+  private byte[] myData;
+  private Path myTempDirectory;
+  private Path mySourceFile;
+  private Path myTargetFile;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    myData = new byte[dataSizeMb * 1024 * 1024];
+    new Random(42).nextBytes(myData);
+    myTempDirectory = Files.createTempDirectory("s3-download-io-benchmark");
+    mySourceFile = myTempDirectory.resolve("source");
+    myTargetFile = myTempDirectory.resolve("target");
+    Files.write(mySourceFile, myData);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    FileUtil.delete(myTempDirectory.toFile());
+  }
+
+  @Benchmark
+  public void transferExpectedBytes(Blackhole blackhole) throws IOException {
+    // the response body of the HTTP client is a stream, so the source is a stream-backed channel here as well
+    try (ReadableByteChannel sourceChannel = Channels.newChannel(new ByteArrayInputStream(myData));
+         FileChannel targetChannel = FileChannel.open(myTargetFile, CREATE, WRITE, TRUNCATE_EXISTING)) {
+      S3DownloadIOUtil.transferExpectedBytes(sourceChannel, targetChannel, myData.length, bufferSizeKb * 1024, () -> {}, blackhole::consume);
+    }
+  }
+
+  @Benchmark
+  public void transferExpectedFileBytes(Blackhole blackhole) throws IOException {
+    try (FileChannel sourceChannel = FileChannel.open(mySourceFile, READ);
+         FileChannel targetChannel = FileChannel.open(myTargetFile, CREATE, WRITE, TRUNCATE_EXISTING)) {
+      S3DownloadIOUtil.transferExpectedFileBytes(sourceChannel, targetChannel, myData.length, () -> {}, blackhole::consume);
+    }
+  }
+}
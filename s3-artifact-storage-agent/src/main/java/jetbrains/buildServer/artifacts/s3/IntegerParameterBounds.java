@@ -0,0 +1,64 @@
+package jetbrains.buildServer.artifacts.s3;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Bounds of an integer configuration parameter, the values that can't be parsed or are out of the bounds are replaced by the default value
+ */
+public final class IntegerParameterBounds {
+  private static final Logger LOGGER = Logger.getInstance(IntegerParameterBounds.class);
+
+  private final int lower;
+  private final int upper;
+
+  private IntegerParameterBounds(int lower, int upper) {
+    this.lower = lower;
+    this.upper = upper;
+  }
+
+  public static IntegerParameterBounds lower(int lower) {
+    return new IntegerParameterBounds(lower, Integer.MAX_VALUE);
+  }
+
+  public static IntegerParameterBounds upper(int upper) {
+    return new IntegerParameterBounds(Integer.MIN_VALUE, upper);
+  }
+
+  public static IntegerParameterBounds lowerAndUpper(int lower, int upper) {
+    return new IntegerParameterBounds(lower, upper);
+  }
+
+  public static IntegerParameterBounds unbound() {
+    return new IntegerParameterBounds(Integer.MIN_VALUE, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @param stringValue value of the parameter, null if it is not set
+   * @return the parsed value, or the default value if the parameter is not set, can't be parsed or is out of the bounds
+   */
+  public int getValueOrDefault(@Nullable String stringValue, @NotNull String paramName, int defaultValue) {
+    if (stringValue == null) return defaultValue;
+
+    int value;
+    try {
+      value = Integer.parseInt(stringValue);
+    } catch (NumberFormatException e) {
+      LOGGER.warn(
+        String.format("Failed to parse integer configuration parameter %s from value %s: %s; using the default value %s", paramName, stringValue, e.getMessage(), defaultValue));
+      return defaultValue;
+    }
+
+    if (value < lower || value > upper) {
+      LOGGER.warn(String.format("Value %s of configuration parameter %s is out of bounds %s, using the default value %s", value, paramName, this, defaultValue));
+      return defaultValue;
+    }
+    return value;
+  }
+
+  @Override
+  public String toString() {
+    return "[" + lower + ", " + upper + "]";
+  }
+}
@@ -0,0 +1,230 @@
+package jetbrains.buildServer.artifacts.s3.download;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.artifacts.RecoverableIOException;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Speculatively downloads the artifact dependencies of a build into the download cache as soon as the build starts,
+ * so that they are downloaded while the sources are checked out. The artifacts are not known at the build start,
+ * so the prefetcher remembers the artifacts downloaded by the previous build of the same build configuration on this agent
+ * and prefetches them from the builds of the same chain, whose IDs the build parameters already have.
+ * A dependency download of the build waits for the prefetch of the same URL if it is in progress and then takes the file from the cache,
+ * a URL whose prefetch didn't start yet is removed from the queue and downloaded by the build right away.
+ */
+public final class S3ArtifactPrefetcher {
+  private static final Logger LOGGER = Logger.getInstance(S3ArtifactPrefetcher.class);
+  private static final Pattern ARTIFACT_URL_PATTERN = Pattern.compile("^(.+/repository/download/)([^/?#]+)/(\\d+):id/([^?#]+)$");
+  private static final String PREFETCH_DIRECTORY_NAME = "s3-artifact-prefetch";
+  private static final int MAX_BUILD_TYPES = 100;
+  private static final int MAX_ARTIFACTS_PER_BUILD_TYPE = 1000;
+  private static final long AWAIT_CHECK_INTERVAL_MS = 1000;
+
+  // state fields, access should be synchronized by this
+  @NotNull
+  private final Map<String, Set<ArtifactReference>> myArtifactsByBuildType = new LinkedHashMap<String, Set<ArtifactReference>>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Set<ArtifactReference>> eldest) {
+      return size() > MAX_BUILD_TYPES; // least recently built configuration is forgotten
+    }
+  };
+  @NotNull
+  private final Set<String> myQueuedSrcUrls = new LinkedHashSet<>(); // prefetches of the current build that didn't start yet
+  @Nullable
+  private String myCurrentSrcUrl; // prefetch in progress
+  @NotNull
+  private CompletableFuture<Void> myCurrentPrefetch = CompletableFuture.completedFuture(null);
+  @Nullable
+  private S3ArtifactTransport myPrefetchTransport;
+
+  /**
+   * Remembers the artifact downloaded by the build, the next build of the same configuration prefetches it
+   */
+  public synchronized void downloaded(@NotNull AgentRunningBuild build, @NotNull String srcUrl) {
+    ArtifactReference artifact = ArtifactReference.parse(srcUrl);
+    if (artifact == null) return;
+
+    Set<ArtifactReference> artifacts = myArtifactsByBuildType.computeIfAbsent(build.getBuildTypeExternalId(), id -> new LinkedHashSet<>());
+    if (artifacts.size() < MAX_ARTIFACTS_PER_BUILD_TYPE) artifacts.add(artifact);
+  }
+
+  /**
+   * @return URLs of the remembered artifacts of the build configuration in the builds of the same chain
+   */
+  @NotNull
+  public synchronized List<String> getPrefetchUrls(@NotNull AgentRunningBuild build, int maxFiles) {
+    Set<ArtifactReference> artifacts = myArtifactsByBuildType.get(build.getBuildTypeExternalId());
+    if (artifacts == null) return Collections.emptyList();
+
+    Map<String, String> parameters = build.getSharedConfigParameters();
+    List<String> urls = new ArrayList<>();
+    for (ArtifactReference artifact : artifacts) {
+      if (urls.size() >= maxFiles) break;
+      String sourceBuildId = parameters.get("dep." + artifact.mySourceBuildTypeId + ".teamcity.build.id");
+      if (sourceBuildId != null) urls.add(artifact.toUrl(sourceBuildId)); // otherwise the source build is resolved later, e.g. by "last successful build"
+    }
+    return urls;
+  }
+
+  /**
+   * Starts downloading the files by the transport on the executor, the files are removed after they are stored in the cache
+   *
+   * @param onFinish called after all the files are prefetched or the prefetch is cancelled
+   */
+  public void start(@NotNull AgentRunningBuild build,
+                    @NotNull List<String> srcUrls,
+                    @NotNull S3ArtifactTransport transport,
+                    @NotNull Executor executor,
+                    @NotNull Runnable onFinish) {
+    synchronized (this) {
+      cancel();
+      myQueuedSrcUrls.addAll(srcUrls);
+      myPrefetchTransport = transport;
+    }
+
+    File prefetchDirectory = new File(build.getBuildTempDirectory(), PREFETCH_DIRECTORY_NAME);
+    LOGGER.debug(String.format("Prefetching %s artifacts of build %s", srcUrls.size(), build.getBuildId()));
+    try {
+      executor.execute(() -> {
+        try {
+          int fileIndex = 0;
+          for (String srcUrl = startNext(transport); srcUrl != null; srcUrl = startNext(transport)) {
+            prefetch(srcUrl, new File(prefetchDirectory, String.valueOf(fileIndex++)), transport);
+          }
+        } finally {
+          finish(transport);
+          FileUtil.delete(prefetchDirectory);
+          onFinish.run();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      finish(transport);
+      onFinish.run();
+    }
+  }
+
+  /**
+   * Finishes the current prefetch of the transport and starts the next queued one
+   *
+   * @return URL of the started prefetch, or null if the queue is empty or the prefetch of the transport is cancelled
+   */
+  @Nullable
+  private synchronized String startNext(@NotNull S3ArtifactTransport transport) {
+    if (myPrefetchTransport != transport) return null; // cancelled, the current prefetch is already completed
+
+    myCurrentPrefetch.complete(null);
+    myCurrentSrcUrl = null;
+    Iterator<String> queuedSrcUrls = myQueuedSrcUrls.iterator();
+    if (!queuedSrcUrls.hasNext()) return null;
+
+    String srcUrl = queuedSrcUrls.next();
+    queuedSrcUrls.remove();
+    myCurrentSrcUrl = srcUrl;
+    myCurrentPrefetch = new CompletableFuture<>();
+    return srcUrl;
+  }
+
+  private synchronized void finish(@NotNull S3ArtifactTransport transport) {
+    if (myPrefetchTransport != transport) return; // cancelled or replaced by the prefetch of the next build
+
+    myQueuedSrcUrls.clear();
+    myCurrentPrefetch.complete(null);
+    myCurrentSrcUrl = null;
+    myPrefetchTransport = null;
+  }
+
+  private static void prefetch(@NotNull String srcUrl, @NotNull File targetFile, @NotNull S3ArtifactTransport transport) {
+    try {
+      transport.downloadUrlTo(srcUrl, targetFile); // stored in the cache when downloaded
+      LOGGER.debug(String.format("Prefetched %s", srcUrl));
+    } catch (IOException | RuntimeException e) {
+      LOGGER.debug(String.format("Failed to prefetch %s, it will be downloaded when the build needs it: %s", srcUrl, e.getMessage()));
+    } finally {
+      FileUtil.delete(targetFile);
+    }
+  }
+
+  /**
+   * Waits until the prefetch of the URL finishes if it is in progress, removes the URL from the queue if its prefetch didn't start yet
+   */
+  public void awaitPrefetch(@NotNull String srcUrl, @NotNull IORunnable interruptedCheck) throws IOException {
+    CompletableFuture<Void> prefetch;
+    synchronized (this) {
+      if (myQueuedSrcUrls.remove(srcUrl) || !srcUrl.equals(myCurrentSrcUrl)) return; // the build downloads the file itself
+      prefetch = myCurrentPrefetch;
+    }
+
+    while (!prefetch.isDone()) {
+      interruptedCheck.run();
+      try {
+        prefetch.get(AWAIT_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException | ExecutionException e) {
+        // checked by the loop
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RecoverableIOException("Interrupted while waiting for the artifact prefetch");
+      }
+    }
+  }
+
+  /**
+   * Interrupts the prefetch of the current build, the waiting downloads continue without it
+   */
+  public synchronized void cancel() {
+    S3ArtifactTransport prefetchTransport = myPrefetchTransport;
+    if (prefetchTransport != null) prefetchTransport.interrupt();
+    myPrefetchTransport = null;
+    myQueuedSrcUrls.clear();
+    myCurrentPrefetch.complete(null);
+    myCurrentSrcUrl = null;
+  }
+
+  private static final class ArtifactReference {
+    @NotNull
+    private final String myUrlPrefix; // server URL with the download path
+    @NotNull
+    private final String mySourceBuildTypeId;
+    @NotNull
+    private final String myPath;
+
+    private ArtifactReference(@NotNull String urlPrefix, @NotNull String sourceBuildTypeId, @NotNull String path) {
+      myUrlPrefix = urlPrefix;
+      mySourceBuildTypeId = sourceBuildTypeId;
+      myPath = path;
+    }
+
+    @Nullable
+    private static ArtifactReference parse(@NotNull String srcUrl) {
+      Matcher matcher = ARTIFACT_URL_PATTERN.matcher(srcUrl);
+      if (!matcher.matches()) return null;
+      return new ArtifactReference(matcher.group(1), matcher.group(2), matcher.group(4));
+    }
+
+    @NotNull
+    private String toUrl(@NotNull String sourceBuildId) {
+      return myUrlPrefix + mySourceBuildTypeId + "/" + sourceBuildId + ":id/" + myPath;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      ArtifactReference that = (ArtifactReference)o;
+      return myUrlPrefix.equals(that.myUrlPrefix) && mySourceBuildTypeId.equals(that.mySourceBuildTypeId) && myPath.equals(that.myPath);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(myUrlPrefix, mySourceBuildTypeId, myPath);
+    }
+  }
+}
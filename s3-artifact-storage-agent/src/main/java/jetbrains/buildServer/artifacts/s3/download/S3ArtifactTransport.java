@@ -16,15 +16,19 @@ import jetbrains.buildServer.artifacts.ProgressTrackingURLContentRetriever;
 import jetbrains.buildServer.artifacts.RecoverableIOException;
 import jetbrains.buildServer.artifacts.URLContentRetriever;
 import jetbrains.buildServer.artifacts.impl.DependencyHttpHelper;
+import jetbrains.buildServer.artifacts.s3.download.S3DownloadStatistics.FileStatistics;
+import jetbrains.buildServer.artifacts.s3.download.cache.S3ArtifactDownloadCache;
 import jetbrains.buildServer.artifacts.s3.download.parallel.*;
 import jetbrains.buildServer.artifacts.s3.download.parallel.splitter.FileSplitter;
 import jetbrains.buildServer.artifacts.s3.download.parallel.splitter.SplitabilityReport;
 import jetbrains.buildServer.artifacts.s3.download.parallel.splitter.impl.FileSplitterImpl;
 import jetbrains.buildServer.artifacts.s3.download.parallel.strategy.ParallelDownloadStrategy;
+import jetbrains.buildServer.util.StringUtil;
 import org.apache.commons.httpclient.*;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.HeadMethod;
 import org.apache.commons.httpclient.params.HttpClientParams;
+import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -43,25 +47,44 @@ public class S3ArtifactTransport implements URLContentRetriever, ProgressTrackin
   @NotNull private final AgentRunningBuild myRunningBuild;
   @NotNull private final Map<String, ParallelDownloadStrategy> myParallelDownloadStrategiesByName;
   @NotNull private final FileSplitter myFileSplitter;
+  @Nullable private final S3ArtifactDownloadCache myDownloadCache;
+  @Nullable private final S3RedirectCache myRedirectCache;
+  @Nullable private final S3BandwidthLimiter myBandwidthLimiter;
+  @NotNull private final S3DownloadStatistics myDownloadStatistics;
+  @Nullable private final S3ArtifactPrefetcher myPrefetcher;
+  @Nullable private final UnfinishedDownloads myUnfinishedDownloads;
+  private final boolean myIsStoreInCacheInBackground;
   @NotNull private final ConcurrentHashMap<UUID, HttpMethod> myPendingRequestsById = new ConcurrentHashMap<>();
   @NotNull private final AtomicBoolean myIsInterrupted = new AtomicBoolean(false);
   private final int myMaxRedirects;
 
-  public S3ArtifactTransport(@NotNull String serverUrl,
-                             @NotNull HttpClient httpClient,
-                             @NotNull ExecutorService executorService,
-                             @NotNull DependencyHttpHelper dependencyHttpHelper,
-                             @NotNull S3DownloadConfiguration configuration,
-                             @NotNull AgentRunningBuild runningBuild,
-                             @NotNull Map<String, ParallelDownloadStrategy> parallelDownloadStrategiesByName) {
-    myhttpClient = new S3HttpClient(httpClient, dependencyHttpHelper, serverUrl);
-    myExecutorService = executorService;
-    myDependencyHttpHelper = dependencyHttpHelper;
-    myConfiguration = configuration;
-    myRunningBuild = runningBuild;
-    myParallelDownloadStrategiesByName = parallelDownloadStrategiesByName;
-    myFileSplitter = new FileSplitterImpl(configuration);
-    myMaxRedirects = httpClient.getParams().getIntParameter(HttpClientParams.MAX_REDIRECTS, 10);
+  private S3ArtifactTransport(@NotNull Builder builder) {
+    myhttpClient = new S3HttpClient(builder.myHttpClient, builder.myStorageHttpClient, builder.myDependencyHttpHelper, builder.myServerUrl);
+    myExecutorService = builder.myExecutorService;
+    myDependencyHttpHelper = builder.myDependencyHttpHelper;
+    myConfiguration = builder.myConfiguration;
+    myRunningBuild = builder.myRunningBuild;
+    myParallelDownloadStrategiesByName = builder.myParallelDownloadStrategiesByName;
+    myFileSplitter = new FileSplitterImpl(builder.myConfiguration);
+    myDownloadCache = builder.myDownloadCache;
+    myRedirectCache = builder.myRedirectCache;
+    myBandwidthLimiter = builder.myBandwidthLimiter;
+    myDownloadStatistics = builder.myDownloadStatistics != null ? builder.myDownloadStatistics : new S3DownloadStatistics(); // collected but not published
+    myPrefetcher = builder.myPrefetcher;
+    myUnfinishedDownloads = builder.myUnfinishedDownloads;
+    myIsStoreInCacheInBackground = builder.myIsStoreInCacheInBackground;
+    myMaxRedirects = builder.myHttpClient.getParams().getIntParameter(HttpClientParams.MAX_REDIRECTS, 10);
+  }
+
+  @NotNull
+  public static Builder builder(@NotNull String serverUrl,
+                                @NotNull HttpClient httpClient,
+                                @NotNull ExecutorService executorService,
+                                @NotNull DependencyHttpHelper dependencyHttpHelper,
+                                @NotNull S3DownloadConfiguration configuration,
+                                @NotNull AgentRunningBuild runningBuild,
+                                @NotNull Map<String, ParallelDownloadStrategy> parallelDownloadStrategiesByName) {
+    return new Builder(serverUrl, httpClient, executorService, dependencyHttpHelper, configuration, runningBuild, parallelDownloadStrategiesByName);
   }
 
   @Override
@@ -78,34 +101,97 @@ public class S3ArtifactTransport implements URLContentRetriever, ProgressTrackin
 
   @NotNull
   private String doDownload(@NotNull String srcUrl, @NotNull File targetFile, @NotNull FileProgress downloadProgress) throws IOException {
+    awaitPrefetch(srcUrl);
     LOGGER.debug(String.format("Start downloading file %s from %s", targetFile, srcUrl));
+    FileStatistics fileStatistics = myDownloadStatistics.startFile(srcUrl, targetFile.toPath());
+    RedirectFollowingResult result = null;
     try {
       checkIfInterrupted();
       Path targetFilePath = getAbsoluteNormalizedPath(targetFile.toPath());
       LOGGER.debug(String.format("File path was normalized from %s to %s", targetFile, targetFilePath));
-      RedirectFollowingResult result = followRedirects(srcUrl, targetFilePath, downloadProgress, 0);
+      result = followRedirects(srcUrl, targetFilePath, downloadProgress, fileStatistics);
       if (result.isShouldDownloadInParallel()) {
         checkIfInterrupted();
         ParallelDownloadStrategy parallelStrategy = getParallelStrategy();
         LOGGER.debug(String.format("File %s will be downloaded in parallel using startegy %s", targetFilePath, parallelStrategy.getName()));
+        fileStatistics.setMethod(parallelStrategy.getName());
         Long contentLength = result.getContentLength();
         Objects.requireNonNull(contentLength, "Content length must not be null");
-        ParallelDownloadContext parallelDownloadContext = new ParallelDownloadContext(myConfiguration, myRunningBuild, myFileSplitter, myhttpClient, myExecutorService, myIsInterrupted);
-        parallelStrategy.download(result.getDirectUrl(), targetFilePath, contentLength, downloadProgress, parallelDownloadContext);
+        ParallelDownloadContext parallelDownloadContext = ParallelDownloadContext.builder(myConfiguration, myRunningBuild, myFileSplitter, myhttpClient, myExecutorService, myIsInterrupted)
+          .probeRequest(result.getProbeRequest())
+          .bandwidthLimiter(myBandwidthLimiter)
+          .fileStatistics(fileStatistics)
+          .unfinishedDownloads(myUnfinishedDownloads)
+          .build();
+        parallelStrategy.download(result.getDirectUrl(), targetFilePath, contentLength, result.getObjectFingerprint(), downloadProgress, parallelDownloadContext);
+      }
+
+      if (result.isDownloaded()) {
+        storeInCache(result.getDigest(), result.getContentLength(), targetFilePath);
+        rememberCachedContent(srcUrl, result);
       }
 
       LOGGER.debug(String.format("Finished downloading file %s from %s", targetFile, srcUrl));
+      fileStatistics.finished(result.getContentLength(), false);
+      if (myPrefetcher != null) myPrefetcher.downloaded(myRunningBuild, srcUrl);
       return result.getDigest();
     } catch (IOException | RuntimeException e) {
+      fileStatistics.finished(null, true);
       LOGGER.warn(String.format("Failed to download file %s from %s: %s", targetFile, srcUrl, e.getMessage()), e);
       throw new IOException(String.format("Failed to download file %s from %s", targetFile, srcUrl), e);
+    } finally {
+      HttpMethod probeRequest = result != null ? result.getProbeRequest() : null;
+      if (probeRequest != null) {
+        // no-op when the strategy has already finished with it
+        probeRequest.abort();
+        releaseConnectionIfNotNull(probeRequest);
+        myPendingRequestsById.values().remove(probeRequest);
+      }
     }
   }
 
+
   @NotNull
-  private RedirectFollowingResult followRedirects(@NotNull String srcUrl, @NotNull Path targetFile, @NotNull FileProgress downloadProgress, int redirectLevel) throws IOException {
+  private RedirectFollowingResult followRedirects(@NotNull String srcUrl,
+                                                  @NotNull Path targetFile,
+                                                  @NotNull FileProgress downloadProgress,
+                                                  @NotNull FileStatistics fileStatistics) throws IOException {
+    S3RedirectCache redirectCache = myRedirectCache;
+    String cachedDirectUrl = redirectCache != null ? redirectCache.get(srcUrl) : null;
+    if (cachedDirectUrl != null) {
+      S3RedirectCache.CachedContent cachedContent = redirectCache.getContent(srcUrl);
+      if (cachedContent != null && tryRetrieveFromCache(cachedContent.getDigest(), cachedContent.getContentLength(), targetFile, downloadProgress)) {
+        // the object behind the cached redirect is already in the download cache, neither the server nor the storage is asked
+        fileStatistics.setMethod(S3DownloadStatistics.METHOD_CACHE);
+        return new RedirectFollowingResult(false, false, cachedDirectUrl, cachedContent.getContentLength(), cachedContent.getDigest(), null);
+      }
+
+      try {
+        LOGGER.debug(String.format("Using cached redirect from %s to %s", srcUrl, cachedDirectUrl));
+        return followRedirects(cachedDirectUrl, targetFile, downloadProgress, fileStatistics, 1, null, true);
+      } catch (ExpiredRedirectException e) {
+        LOGGER.debug(String.format("Cached redirect from %s was rejected, asking the server for a new one: %s", srcUrl, e.getMessage()));
+        redirectCache.invalidate(srcUrl);
+      }
+    }
+    return followRedirects(srcUrl, targetFile, downloadProgress, fileStatistics, 0, redirectCache, false);
+  }
+
+  /**
+   * @param redirectCache cache to put the first redirect to, null if it should not be cached
+   * @param isCachedRedirect whether srcUrl was taken from the redirect cache, so that it can be rejected as expired
+   */
+  @NotNull
+  private RedirectFollowingResult followRedirects(@NotNull String srcUrl,
+                                                  @NotNull Path targetFile,
+                                                  @NotNull FileProgress downloadProgress,
+                                                  @NotNull FileStatistics fileStatistics,
+                                                  int redirectLevel,
+                                                  @Nullable S3RedirectCache redirectCache,
+                                                  boolean isCachedRedirect) throws IOException {
     GetMethod request = new GetMethod(srcUrl);
     UUID requestId = UUID.randomUUID();
+    boolean isRequestKept = false;
 
     try {
       checkIfInterrupted();
@@ -119,6 +205,7 @@ public class S3ArtifactTransport implements URLContentRetriever, ProgressTrackin
       });
 
       checkIfInterrupted();
+      long requestStartNanos = fileStatistics.now();
       int statusCode = myhttpClient.execute(request);
 
       if (isRedirectStatus(statusCode)) {
@@ -128,32 +215,110 @@ public class S3ArtifactTransport implements URLContentRetriever, ProgressTrackin
         Header location = request.getResponseHeader("Location");
         if (location == null) throw new IOException(String.format("Status code %s requires redirect, but no \"Location\" header provided", statusCode));
 
+        String normalizedLocation = getNormalizedLocation(request, location);
+        Long maxAgeSeconds = getMaxAgeSeconds(request);
+        if (redirectCache != null && maxAgeSeconds != null) {
+          redirectCache.put(srcUrl, normalizedLocation, maxAgeSeconds);
+        }
+
         releaseConnectionIfNotNull(request);
-        return followRedirects(getNormalizedLocation(request, location), targetFile, downloadProgress, redirectLevel + 1);
+        return followRedirects(normalizedLocation, targetFile, downloadProgress, fileStatistics, redirectLevel + 1, null, false);
       }
 
+      fileStatistics.directUrlResponded(requestStartNanos);
+      if (isCachedRedirect && isExpiredRedirectStatus(statusCode)) {
+        throw new ExpiredRedirectException(String.format("Status code %s received from %s", statusCode, srcUrl));
+      }
       checkResponseStatus(statusCode, HttpStatus.SC_OK);
       LOGGER.debug(String.format("Found direct URL for downloading file %s: %s", targetFile, srcUrl));
 
       Long contentLength = getContentLength(request);
       String fileDigest = myDependencyHttpHelper.fetchDigest(request);
+      if (tryRetrieveFromCache(fileDigest, contentLength, targetFile, downloadProgress)) {
+        // the response body is not needed, abort request not to wait until it arrives
+        request.abort();
+        fileStatistics.setMethod(S3DownloadStatistics.METHOD_CACHE);
+        return new RedirectFollowingResult(false, false, srcUrl, contentLength, fileDigest, null);
+      }
+
       if (isParallelisationPossible(srcUrl, targetFile, contentLength, canAcceptByteRanges(request))) {
+        String objectFingerprint = getObjectFingerprint(request, fileDigest);
+        if (myConfiguration.isProbeRequestReused()) {
+          // keep the response body open, the parallel strategy streams it into the first part instead of requesting the part again
+          isRequestKept = true;
+          return new RedirectFollowingResult(true, true, srcUrl, contentLength, fileDigest, objectFingerprint, request);
+        }
+
         // abort request not to wait until full response body arrives
         // this closes the associated connection, but this is fine because it happens only once per large file that will be downloaded in parallel
         request.abort();
-        return new RedirectFollowingResult(true, srcUrl, contentLength, fileDigest);
+        return new RedirectFollowingResult(true, true, srcUrl, contentLength, fileDigest, objectFingerprint, null);
       }
 
       // perform sequential download right away
       LOGGER.debug(String.format("Start downloading file %s from %s sequentially", targetFile, srcUrl));
+      fileStatistics.setMethod(S3DownloadStatistics.METHOD_SEQUENTIAL);
       downloadSequentially(request, targetFile, contentLength, downloadProgress);
-      return new RedirectFollowingResult(false, srcUrl, contentLength, fileDigest);
+      return new RedirectFollowingResult(false, true, srcUrl, contentLength, fileDigest, null);
     } finally {
-      releaseConnectionIfNotNull(request);
-      myPendingRequestsById.remove(requestId);
+      if (!isRequestKept) {
+        releaseConnectionIfNotNull(request);
+        myPendingRequestsById.remove(requestId);
+      }
+      // a kept request stays pending so that interrupt() can abort it, it is removed when the download is finished
+    }
+  }
+
+  private boolean tryRetrieveFromCache(@Nullable String fileDigest, @Nullable Long contentLength, @NotNull Path targetFile, @NotNull FileProgress downloadProgress) {
+    S3ArtifactDownloadCache downloadCache = myDownloadCache;
+    if (downloadCache == null || !isCacheable(fileDigest, contentLength)) return false;
+
+    if (!downloadCache.retrieve(fileDigest, contentLength, targetFile, myConfiguration.isDownloadCacheHardLinksEnabled())) return false;
+
+    LOGGER.debug(String.format("File %s with digest %s was taken from %s", targetFile, fileDigest, downloadCache));
+    downloadProgress.setExpectedLength(contentLength);
+    downloadProgress.transferred(contentLength);
+    return true;
+  }
+
+  private void storeInCache(@Nullable String fileDigest, @Nullable Long contentLength, @NotNull Path targetFile) {
+    S3ArtifactDownloadCache downloadCache = myDownloadCache;
+    if (downloadCache == null || !isCacheable(fileDigest, contentLength)) return;
+
+    if (myIsStoreInCacheInBackground) {
+      downloadCache.storeInBackground(fileDigest, contentLength, targetFile, myConfiguration.getDownloadCacheMaxSizeBytes(), myConfiguration.isDownloadCacheHardLinksEnabled());
+    } else {
+      downloadCache.store(fileDigest, contentLength, targetFile, myConfiguration.getDownloadCacheMaxSizeBytes(), myConfiguration.isDownloadCacheHardLinksEnabled());
     }
   }
 
+  private void rememberCachedContent(@NotNull String srcUrl, @NotNull RedirectFollowingResult result) {
+    S3RedirectCache redirectCache = myRedirectCache;
+    if (redirectCache == null || myDownloadCache == null || !isCacheable(result.getDigest(), result.getContentLength())) return;
+
+    redirectCache.putContent(srcUrl, result.getDigest(), result.getContentLength());
+  }
+
+  @Contract("null, _ -> false; _, null -> false")
+  private boolean isCacheable(@Nullable String fileDigest, @Nullable Long contentLength) {
+    // small files are not worth the disk space and the extra copy
+    return StringUtil.isNotEmpty(fileDigest) && contentLength != null && contentLength >= myConfiguration.getDownloadCacheMinFileSizeBytes();
+  }
+
+  @Nullable
+  private static String getObjectFingerprint(@NotNull HttpMethod request, @Nullable String fileDigest) {
+    // ETag changes whenever the object in the storage changes, the artifact digest is used when the storage doesn't provide it
+    String eTag = getETag(request);
+    if (eTag != null) return "etag:" + eTag;
+    if (fileDigest != null && !fileDigest.isEmpty()) return "digest:" + fileDigest;
+    return null;
+  }
+
+  private static boolean isExpiredRedirectStatus(int statusCode) {
+    // the storage rejects expired or revoked presigned URLs with 403, 404 means the object was removed or replaced since the redirect was cached
+    return statusCode == HttpStatus.SC_FORBIDDEN || statusCode == HttpStatus.SC_NOT_FOUND;
+  }
+
   @NotNull
   private String getNormalizedLocation(@NotNull final GetMethod request, @NotNull final Header location) throws URIException {
     String locationValue = location.getValue();
@@ -216,7 +381,9 @@ public class S3ArtifactTransport implements URLContentRetriever, ProgressTrackin
 
   private void writeFile(@NotNull HttpMethod ongoingRequest, @NotNull Path targetFile, @Nullable Long fileSize, @NotNull FileProgress downloadProgress) throws IOException {
     checkIfInterrupted();
-    try (ReadableByteChannel responseBodyChannel = Channels.newChannel(ongoingRequest.getResponseBodyAsStream());
+    InputStream responseBody = ongoingRequest.getResponseBodyAsStream();
+    if (myBandwidthLimiter != null) responseBody = myBandwidthLimiter.limit(responseBody);
+    try (ReadableByteChannel responseBodyChannel = Channels.newChannel(responseBody);
          WritableByteChannel targetFileChannel = Files.newByteChannel(targetFile, CREATE, WRITE, TRUNCATE_EXISTING)) {
       if (fileSize != null && fileSize >= 0) {
         transferExpectedBytes(
@@ -294,6 +461,13 @@ public class S3ArtifactTransport implements URLContentRetriever, ProgressTrackin
     }
   }
 
+  /**
+   * Waits for the prefetch of the file, so the file is taken from the cache instead of being downloaded twice at once
+   */
+  private void awaitPrefetch(@NotNull String srcUrl) throws IOException {
+    if (myPrefetcher != null) myPrefetcher.awaitPrefetch(srcUrl, this::checkIfInterrupted);
+  }
+
   private void checkIfInterrupted() throws RecoverableIOException {
     if (myIsInterrupted.get()) throw new RecoverableIOException("Download was interrupted");
   }
@@ -311,26 +485,59 @@ public class S3ArtifactTransport implements URLContentRetriever, ProgressTrackin
     return getClass().getSimpleName();
   }
 
+  private static final class ExpiredRedirectException extends IOException {
+    private ExpiredRedirectException(@NotNull String message) {
+      super(message);
+    }
+  }
+
   private final class RedirectFollowingResult {
     boolean shouldDownloadInParallel;
+    boolean downloaded; // false when the file was taken from the download cache
     @NotNull
     private final String directUrl;
     @Nullable
     private final Long contentLength;
     @NotNull
     private final String digest;
+    @Nullable
+    private final String objectFingerprint;
+    @Nullable
+    private final HttpMethod probeRequest; // request with the unread response body of the file that should be downloaded in parallel
+
+    public RedirectFollowingResult(boolean shouldDownloadInParallel,
+                                   boolean downloaded,
+                                   @NotNull String directUrl,
+                                   @Nullable Long contentLength,
+                                   @NotNull String digest,
+                                   @Nullable String objectFingerprint) {
+      this(shouldDownloadInParallel, downloaded, directUrl, contentLength, digest, objectFingerprint, null);
+    }
 
-    public RedirectFollowingResult(boolean shouldDownloadInParallel, @NotNull String directUrl, @Nullable Long contentLength, @NotNull String digest) {
+    public RedirectFollowingResult(boolean shouldDownloadInParallel,
+                                   boolean downloaded,
+                                   @NotNull String directUrl,
+                                   @Nullable Long contentLength,
+                                   @NotNull String digest,
+                                   @Nullable String objectFingerprint,
+                                   @Nullable HttpMethod probeRequest) {
       this.shouldDownloadInParallel = shouldDownloadInParallel;
+      this.downloaded = downloaded;
       this.directUrl = directUrl;
       this.contentLength = contentLength;
       this.digest = digest;
+      this.objectFingerprint = objectFingerprint;
+      this.probeRequest = probeRequest;
     }
 
     public boolean isShouldDownloadInParallel() {
       return shouldDownloadInParallel;
     }
 
+    public boolean isDownloaded() {
+      return downloaded;
+    }
+
     @NotNull
     public String getDirectUrl() {
       return directUrl;
@@ -345,5 +552,127 @@ public class S3ArtifactTransport implements URLContentRetriever, ProgressTrackin
     public String getDigest() {
       return digest;
     }
+
+    @Nullable
+    public String getObjectFingerprint() {
+      return objectFingerprint;
+    }
+
+    @Nullable
+    public HttpMethod getProbeRequest() {
+      return probeRequest;
+    }
+  }
+
+  public static final class Builder {
+    @NotNull private final String myServerUrl;
+    @NotNull private final HttpClient myHttpClient;
+    @NotNull private final ExecutorService myExecutorService;
+    @NotNull private final DependencyHttpHelper myDependencyHttpHelper;
+    @NotNull private final S3DownloadConfiguration myConfiguration;
+    @NotNull private final AgentRunningBuild myRunningBuild;
+    @NotNull private final Map<String, ParallelDownloadStrategy> myParallelDownloadStrategiesByName;
+    @Nullable private S3ArtifactDownloadCache myDownloadCache;
+    @Nullable private S3RedirectCache myRedirectCache;
+    @Nullable private S3BandwidthLimiter myBandwidthLimiter;
+    @Nullable private HttpClient myStorageHttpClient;
+    @Nullable private S3DownloadStatistics myDownloadStatistics;
+    @Nullable private S3ArtifactPrefetcher myPrefetcher;
+    @Nullable private UnfinishedDownloads myUnfinishedDownloads;
+    private boolean myIsStoreInCacheInBackground;
+
+    private Builder(@NotNull String serverUrl,
+                    @NotNull HttpClient httpClient,
+                    @NotNull ExecutorService executorService,
+                    @NotNull DependencyHttpHelper dependencyHttpHelper,
+                    @NotNull S3DownloadConfiguration configuration,
+                    @NotNull AgentRunningBuild runningBuild,
+                    @NotNull Map<String, ParallelDownloadStrategy> parallelDownloadStrategiesByName) {
+      myServerUrl = serverUrl;
+      myHttpClient = httpClient;
+      myExecutorService = executorService;
+      myDependencyHttpHelper = dependencyHttpHelper;
+      myConfiguration = configuration;
+      myRunningBuild = runningBuild;
+      myParallelDownloadStrategiesByName = parallelDownloadStrategiesByName;
+    }
+
+    /**
+     * @param downloadCache cache of the downloaded files by their digests, null if disabled
+     */
+    @NotNull
+    public Builder downloadCache(@Nullable S3ArtifactDownloadCache downloadCache) {
+      myDownloadCache = downloadCache;
+      return this;
+    }
+
+    /**
+     * @param redirectCache cache of the redirects to the direct URLs, null if disabled
+     */
+    @NotNull
+    public Builder redirectCache(@Nullable S3RedirectCache redirectCache) {
+      myRedirectCache = redirectCache;
+      return this;
+    }
+
+    /**
+     * @param bandwidthLimiter limiter of the downloaded bytes, null if the bandwidth is not limited
+     */
+    @NotNull
+    public Builder bandwidthLimiter(@Nullable S3BandwidthLimiter bandwidthLimiter) {
+      myBandwidthLimiter = bandwidthLimiter;
+      return this;
+    }
+
+    /**
+     * @param storageHttpClient client for the requests to the storage, null if they are sent with the server client
+     */
+    @NotNull
+    public Builder storageHttpClient(@Nullable HttpClient storageHttpClient) {
+      myStorageHttpClient = storageHttpClient;
+      return this;
+    }
+
+    /**
+     * @param downloadStatistics statistics to publish, null if they are collected but not published
+     */
+    @NotNull
+    public Builder downloadStatistics(@Nullable S3DownloadStatistics downloadStatistics) {
+      myDownloadStatistics = downloadStatistics;
+      return this;
+    }
+
+    /**
+     * @param prefetcher prefetcher that learns the downloaded files and is waited for, null if the transport is used by the prefetcher itself
+     */
+    @NotNull
+    public Builder prefetcher(@Nullable S3ArtifactPrefetcher prefetcher) {
+      myPrefetcher = prefetcher;
+      return this;
+    }
+
+    /**
+     * @param unfinishedDownloads unfinished downloads of the build that are deleted when it finishes, null if the downloads are not resumed
+     */
+    @NotNull
+    public Builder unfinishedDownloads(@Nullable UnfinishedDownloads unfinishedDownloads) {
+      myUnfinishedDownloads = unfinishedDownloads;
+      return this;
+    }
+
+    /**
+     * @param storeInCacheInBackground whether the downloaded files are stored in the download cache in background,
+     *                                 false if the caller needs them in the cache when the download returns (e.g. it deletes them right away)
+     */
+    @NotNull
+    public Builder storeInCacheInBackground(boolean storeInCacheInBackground) {
+      myIsStoreInCacheInBackground = storeInCacheInBackground;
+      return this;
+    }
+
+    @NotNull
+    public S3ArtifactTransport build() {
+      return new S3ArtifactTransport(this);
+    }
   }
 }
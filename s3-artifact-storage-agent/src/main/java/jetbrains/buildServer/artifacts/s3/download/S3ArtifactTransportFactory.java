@@ -1,8 +1,12 @@
 package jetbrains.buildServer.artifacts.s3.download;
 
 import com.intellij.openapi.diagnostic.Logger;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import jetbrains.buildServer.agent.*;
@@ -10,6 +14,8 @@ import jetbrains.buildServer.artifacts.TransportFactoryExtension;
 import jetbrains.buildServer.artifacts.URLContentRetriever;
 import jetbrains.buildServer.artifacts.impl.DependencyHttpHelper;
 import jetbrains.buildServer.artifacts.impl.HttpArtifactTransportFactory;
+import jetbrains.buildServer.artifacts.s3.download.cache.S3ArtifactDownloadCache;
+import jetbrains.buildServer.artifacts.s3.download.parallel.UnfinishedDownloads;
 import jetbrains.buildServer.artifacts.s3.download.parallel.strategy.ParallelDownloadStrategy;
 import jetbrains.buildServer.http.HttpUtil;
 import jetbrains.buildServer.util.EventDispatcher;
@@ -21,6 +27,8 @@ import jetbrains.buildServer.util.positioning.PositionConstraint;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpConnectionManager;
 import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.springframework.beans.factory.DisposableBean;
@@ -29,6 +37,10 @@ import org.springframework.beans.factory.InitializingBean;
 public class S3ArtifactTransportFactory extends AgentLifeCycleAdapter implements TransportFactoryExtension, PositionAware, InitializingBean, DisposableBean {
   private static final Logger LOGGER = Logger.getInstance(S3ArtifactTransportFactory.class);
   private static final String EXECUTOR_NAME = "S3 artifact transport executor";
+  private static final String DOWNLOAD_CACHE_DIRECTORY_NAME = "s3-artifact-download-cache";
+  private static final String PREFETCH_EXECUTOR_NAME = "S3 artifact prefetch executor";
+  private static final String CACHE_STORE_EXECUTOR_NAME = "S3 artifact download cache store executor";
+  private static final String JOURNAL_EXECUTOR_NAME = "S3 artifact download journal executor";
 
   @NotNull
   private final DependencyHttpHelper myDependencyHttpHelper;
@@ -40,15 +52,39 @@ public class S3ArtifactTransportFactory extends AgentLifeCycleAdapter implements
   private final EventDispatcher<AgentLifeCycleListener> myAgentLifecycleDispatcher;
   @NotNull
   private final Map<String, ParallelDownloadStrategy> myParallelDownloadStrategiesByName;
+  @NotNull
+  private final S3ArtifactPrefetcher myPrefetcher = new S3ArtifactPrefetcher(); // learns the dependencies of the builds on this agent, kept between builds
 
   // state fields, access should be synchronized by this
   @Nullable
   private volatile S3DownloadConfiguration myCurrentBuildConfiguration;
+  @Nullable
+  private volatile S3RedirectCache myCurrentBuildRedirectCache; // redirects are resolved with the build credentials, so they are not shared between builds
   @NotNull
   private final Map<Map<String, String>, HttpClient> myCurrentBuildClients = new HashMap<>(); // clients pool to reuse clients diring a build
   @Nullable
   private volatile ExecutorService myExecutor; // executor to reuse between builds
   private volatile int myExecutorParallelism;
+  private volatile boolean myIsExecutorVirtual;
+  @Nullable
+  private volatile MultiThreadedHttpConnectionManager myStorageConnectionManager; // keeps connections to the storage alive between builds, null if disabled
+  private volatile long myStorageConnectionsIdleTimeoutMs;
+  @Nullable
+  private volatile S3ArtifactDownloadCache myDownloadCache; // cache to reuse between builds, null if disabled
+  @Nullable
+  private volatile S3BandwidthLimiter myAgentBandwidthLimiter; // limiter to reuse between builds, null if unlimited
+  @Nullable
+  private volatile S3DownloadStatistics myCurrentBuildStatistics; // published when the build finishes, null if disabled
+  @Nullable
+  private volatile S3BandwidthLimiter myCurrentBuildBandwidthLimiter; // takes the bytes from the agent limiter as well, null if unlimited
+  @Nullable
+  private volatile UnfinishedDownloads myCurrentBuildUnfinishedDownloads; // deleted when the build finishes, null if the downloads are not resumed
+  @Nullable
+  private volatile ExecutorService myPrefetchExecutor; // downloads the prefetched files one by one, their parts run on the transport executor
+  @Nullable
+  private volatile ExecutorService myCacheStoreExecutor; // copies the downloaded files to the download cache one by one, off the download path
+  @Nullable
+  private volatile ExecutorService myJournalExecutor; // records the written ranges of the resumable downloads, off the download threads
   private volatile boolean myIsFactoryShutdown = false;
 
   public S3ArtifactTransportFactory(@NotNull DependencyHttpHelper dependencyHttpHelper,
@@ -77,15 +113,21 @@ public class S3ArtifactTransportFactory extends AgentLifeCycleAdapter implements
 
   private synchronized void shutdown() {
     if (myIsFactoryShutdown) return;
+    myPrefetcher.cancel();
+    disposePrefetchExecutor();
+    disposeCacheStoreExecutor();
+    disposeJournalExecutor();
     disposeExecutor(true);
     disposeClients(true);
+    disposeStorageConnectionManager(true);
     myIsFactoryShutdown = true;
   }
 
   @Override
   public synchronized void buildStarted(@NotNull AgentRunningBuild runningBuild) {
     if (myIsFactoryShutdown) return;
-    ensurePreparedToBuild(runningBuild);
+    S3DownloadConfiguration configuration = ensurePreparedToBuild(runningBuild);
+    startPrefetch(configuration, runningBuild);
   }
 
   private synchronized S3DownloadConfiguration ensurePreparedToBuild(@NotNull AgentRunningBuild runningBuild) {
@@ -97,25 +139,206 @@ public class S3ArtifactTransportFactory extends AgentLifeCycleAdapter implements
     S3DownloadConfiguration newConfiguration = new S3DownloadConfiguration(runningBuild);
     myCurrentBuildConfiguration = newConfiguration;
     ensureExecutorReady(newConfiguration);
+    ensureStorageConnectionManagerReady(newConfiguration, runningBuild);
+    ensureDownloadCacheReady(newConfiguration, runningBuild);
+    ensureBandwidthLimitersReady(newConfiguration);
+    myCurrentBuildRedirectCache = newConfiguration.isRedirectCacheEnabled()
+                                  ? new S3RedirectCache(newConfiguration.getRedirectCacheMaxEntries(), newConfiguration.getRedirectCacheSafetyMarginMs())
+                                  : null;
+    myCurrentBuildStatistics = newConfiguration.isDownloadStatisticsEnabled() ? new S3DownloadStatistics() : null;
+    myCurrentBuildUnfinishedDownloads = newConfiguration.isParallelDownloadResumable() ? new UnfinishedDownloads(ensureJournalExecutorReady()) : null;
     disposeClients(false);
     return newConfiguration;
   }
 
   private synchronized void ensureExecutorReady(@NotNull S3DownloadConfiguration configuration) {
-    // reinit executor if parallelism changed since the previous build
-    int parallelism = configuration.getMaxThreads();
-    if (myExecutor != null) {
-      if (myExecutorParallelism == parallelism) {
-        return; // can reuse executor from the previous build
+    boolean virtual = configuration.isVirtualThreadsEnabled() && S3VirtualThreadExecutor.isSupported();
+    if (configuration.isVirtualThreadsEnabled() && !virtual) {
+      LOGGER.warn(String.format("Virtual threads are not supported by Java %s, %s uses platform threads", System.getProperty("java.version"), EXECUTOR_NAME));
+    }
+
+    // resize executor if parallelism changed since the previous build
+    int parallelism = virtual ? configuration.getVirtualThreadsMaxConcurrency() : configuration.getMaxThreads();
+    ExecutorService executor = myExecutor;
+    if (executor != null) {
+      if (myIsExecutorVirtual == virtual) {
+        if (myExecutorParallelism == parallelism) {
+          return; // can reuse executor from the previous build
+        }
+
+        if (executor instanceof S3VirtualThreadExecutor) {
+          ((S3VirtualThreadExecutor)executor).setMaxConcurrency(parallelism);
+          myExecutorParallelism = parallelism;
+          return;
+        }
+
+        if (executor instanceof ThreadPoolExecutor) {
+          resizeExecutor((ThreadPoolExecutor)executor, parallelism);
+          myExecutorParallelism = parallelism;
+          return;
+        }
       }
 
       disposeExecutor(false);
     }
 
-    myExecutor = ExecutorsFactory.newFixedDaemonExecutor(EXECUTOR_NAME, parallelism);
+    ExecutorService virtualExecutor = virtual ? S3VirtualThreadExecutor.create(EXECUTOR_NAME, parallelism) : null;
+    if (virtualExecutor != null) {
+      myExecutor = virtualExecutor;
+      myIsExecutorVirtual = true;
+    } else {
+      parallelism = configuration.getMaxThreads();
+      myExecutor = ExecutorsFactory.newFixedDaemonExecutor(EXECUTOR_NAME, parallelism);
+      myIsExecutorVirtual = false;
+    }
     myExecutorParallelism = parallelism;
   }
 
+  private static void resizeExecutor(@NotNull ThreadPoolExecutor executor, int parallelism) {
+    // core size can't exceed max size at any moment, excess threads finish when they become idle
+    if (parallelism > executor.getMaximumPoolSize()) {
+      executor.setMaximumPoolSize(parallelism);
+      executor.setCorePoolSize(parallelism);
+    } else {
+      executor.setCorePoolSize(parallelism);
+      executor.setMaximumPoolSize(parallelism);
+    }
+    LOGGER.debug(String.format("Resized %s to %s threads", EXECUTOR_NAME, parallelism));
+  }
+
+  private synchronized void ensureStorageConnectionManagerReady(@NotNull S3DownloadConfiguration configuration, @NotNull AgentRunningBuild runningBuild) {
+    if (!configuration.isSharedStorageConnectionsEnabled()) {
+      disposeStorageConnectionManager(false);
+      return;
+    }
+
+    MultiThreadedHttpConnectionManager connectionManager = myStorageConnectionManager;
+    if (connectionManager == null) {
+      connectionManager = new MultiThreadedHttpConnectionManager();
+      // timeouts are agent-wide and set once, the pool is shared by the clients of all the builds
+      int timeoutMs = (int)TimeUnit.SECONDS.toMillis(runningBuild.getAgentConfiguration().getServerConnectionTimeout());
+      connectionManager.getParams().setConnectionTimeout(timeoutMs);
+      connectionManager.getParams().setSoTimeout(timeoutMs);
+      myStorageConnectionManager = connectionManager;
+    } else {
+      connectionManager.closeIdleConnections(configuration.getSharedStorageConnectionsIdleTimeoutMs()); // the storage has likely closed them already
+    }
+
+    // limits are changed in place, the pooled connections are kept
+    connectionManager.getParams().setDefaultMaxConnectionsPerHost(configuration.getMaxConnectionsPerHost());
+    connectionManager.getParams().setMaxTotalConnections(configuration.getMaxConnectionsTotal());
+    connectionManager.getParams().setStaleCheckingEnabled(true);
+    myStorageConnectionsIdleTimeoutMs = configuration.getSharedStorageConnectionsIdleTimeoutMs();
+  }
+
+  private synchronized void ensureDownloadCacheReady(@NotNull S3DownloadConfiguration configuration, @NotNull AgentRunningBuild runningBuild) {
+    if (!configuration.isDownloadCacheEnabled()) {
+      myDownloadCache = null;
+      return;
+    }
+
+    // the cache directory can be shared by several agents on the same host
+    String configuredDirectory = configuration.getDownloadCacheDirectory();
+    Path cacheDirectory = configuredDirectory != null
+                          ? Paths.get(configuredDirectory)
+                          : runningBuild.getAgentConfiguration().getCacheDirectory(DOWNLOAD_CACHE_DIRECTORY_NAME).toPath();
+    S3ArtifactDownloadCache downloadCache = myDownloadCache;
+    if (downloadCache != null && downloadCache.getCacheDirectory().equals(cacheDirectory)) {
+      return; // can reuse cache from the previous build, it keeps the counters
+    }
+
+    ExecutorService cacheStoreExecutor = myCacheStoreExecutor;
+    if (cacheStoreExecutor == null) {
+      cacheStoreExecutor = ExecutorsFactory.newFixedDaemonExecutor(CACHE_STORE_EXECUTOR_NAME, 1);
+      myCacheStoreExecutor = cacheStoreExecutor;
+    }
+    myDownloadCache = new S3ArtifactDownloadCache(cacheDirectory, cacheStoreExecutor);
+  }
+
+  @NotNull
+  private synchronized ExecutorService ensureJournalExecutorReady() {
+    ExecutorService journalExecutor = myJournalExecutor;
+    if (journalExecutor == null) {
+      journalExecutor = ExecutorsFactory.newFixedDaemonExecutor(JOURNAL_EXECUTOR_NAME, 1);
+      myJournalExecutor = journalExecutor;
+    }
+    return journalExecutor;
+  }
+
+  private synchronized void ensureBandwidthLimitersReady(@NotNull S3DownloadConfiguration configuration) {
+    long burstMs = configuration.getBandwidthBurstMs();
+    long agentLimit = configuration.getAgentBandwidthLimitBytesPerSecond();
+    S3BandwidthLimiter agentLimiter = myAgentBandwidthLimiter;
+    if (agentLimit <= 0) {
+      agentLimiter = null;
+    } else if (agentLimiter == null || agentLimiter.getBytesPerSecond() != agentLimit || agentLimiter.getBurstBytes() != getBurstBytes(agentLimit, burstMs)) {
+      agentLimiter = new S3BandwidthLimiter(agentLimit, getBurstBytes(agentLimit, burstMs), null); // otherwise reuse the limiter of the previous build, it keeps the debt
+    }
+    myAgentBandwidthLimiter = agentLimiter;
+
+    long buildLimit = configuration.getBuildBandwidthLimitBytesPerSecond();
+    myCurrentBuildBandwidthLimiter = buildLimit > 0 ? new S3BandwidthLimiter(buildLimit, getBurstBytes(buildLimit, burstMs), agentLimiter) : agentLimiter;
+    if (myCurrentBuildBandwidthLimiter != null) {
+      LOGGER.debug(String.format("Downloads of build %s are limited by %s", configuration.getBuildId(), myCurrentBuildBandwidthLimiter));
+    }
+  }
+
+  /**
+   * Starts prefetching the artifacts the previous build of the configuration downloaded, so that they are in the download cache
+   * by the time the build resolves its dependencies. The prefetched files are useless without the cache, so it must be enabled.
+   */
+  private synchronized void startPrefetch(@NotNull S3DownloadConfiguration configuration, @NotNull AgentRunningBuild runningBuild) {
+    if (!configuration.isPrefetchEnabled()) return;
+    if (!isTransportEnabled(configuration) || myDownloadCache == null) {
+      LOGGER.debug(String.format("Will not prefetch artifacts of build %s, S3 artifact transport and download cache must be enabled", configuration.getBuildId()));
+      return;
+    }
+
+    String serverUrl = runningBuild.getAgentConfiguration().getServerUrl();
+    List<String> srcUrls = myPrefetcher.getPrefetchUrls(runningBuild, configuration.getPrefetchMaxFiles()).stream()
+      .filter(srcUrl -> srcUrl.startsWith(serverUrl)) // the build credentials are sent to the server only
+      .collect(Collectors.toList());
+    if (srcUrls.isEmpty()) return;
+
+    ExecutorService executor = myExecutor;
+    Objects.requireNonNull(executor, "Executor is null");
+    ExecutorService prefetchExecutor = myPrefetchExecutor;
+    if (prefetchExecutor == null) {
+      prefetchExecutor = ExecutorsFactory.newFixedDaemonExecutor(PREFETCH_EXECUTOR_NAME, 1);
+      myPrefetchExecutor = prefetchExecutor;
+    }
+
+    HttpClient client = createPrefetchClient(configuration, runningBuild);
+    S3ArtifactTransport transport = S3ArtifactTransport.builder(serverUrl, client, executor, myDependencyHttpHelper, configuration, runningBuild, myParallelDownloadStrategiesByName)
+      .downloadCache(myDownloadCache)
+      .redirectCache(myCurrentBuildRedirectCache)
+      .bandwidthLimiter(myCurrentBuildBandwidthLimiter)
+      .storageHttpClient(createStorageClient(client))
+      .unfinishedDownloads(myCurrentBuildUnfinishedDownloads)
+      .build();
+    myPrefetcher.start(runningBuild, srcUrls, transport, prefetchExecutor, () -> ((MultiThreadedHttpConnectionManager)client.getHttpConnectionManager()).shutdown());
+  }
+
+  /**
+   * @return client that authenticates on the server as the build, like the clients of the dependency downloads
+   */
+  @NotNull
+  private static HttpClient createPrefetchClient(@NotNull S3DownloadConfiguration configuration, @NotNull AgentRunningBuild runningBuild) {
+    int timeoutSeconds = runningBuild.getAgentConfiguration().getServerConnectionTimeout();
+    HttpClient httpClient = HttpUtil.createHttpClient(timeoutSeconds);
+    HttpConnectionManager connectionManager = HttpUtil.createMultiThreadedHttpConnectionManager(timeoutSeconds);
+    connectionManager.getParams().setDefaultMaxConnectionsPerHost(configuration.getMaxConnectionsPerHost());
+    connectionManager.getParams().setMaxTotalConnections(configuration.getMaxConnectionsTotal());
+    httpClient.setHttpConnectionManager(connectionManager);
+    httpClient.getParams().setAuthenticationPreemptive(true);
+    httpClient.getState().setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(runningBuild.getAccessUser(), runningBuild.getAccessCode()));
+    return httpClient;
+  }
+
+  private static long getBurstBytes(long bytesPerSecond, long burstMs) {
+    return Math.max(1, bytesPerSecond * burstMs / 1000);
+  }
+
   private synchronized void disposeExecutor(boolean silently) {
     try {
       ExecutorService executor = this.myExecutor;
@@ -126,6 +349,7 @@ public class S3ArtifactTransportFactory extends AgentLifeCycleAdapter implements
       ThreadUtil.shutdownGracefully(executor, EXECUTOR_NAME);
       this.myExecutor = null;
       myExecutorParallelism = 0;
+      myIsExecutorVirtual = false;
     } catch (RuntimeException e) {
       LOGGER.error(String.format("Error while shutting down %s", EXECUTOR_NAME), e);
       if (!silently) {
@@ -134,6 +358,66 @@ public class S3ArtifactTransportFactory extends AgentLifeCycleAdapter implements
     }
   }
 
+  private synchronized void disposePrefetchExecutor() {
+    ExecutorService prefetchExecutor = myPrefetchExecutor;
+    if (prefetchExecutor == null) {
+      return;
+    }
+
+    myPrefetchExecutor = null;
+    try {
+      ThreadUtil.shutdownGracefully(prefetchExecutor, PREFETCH_EXECUTOR_NAME);
+    } catch (RuntimeException e) {
+      LOGGER.error(String.format("Error while shutting down %s", PREFETCH_EXECUTOR_NAME), e);
+    }
+  }
+
+  private synchronized void disposeCacheStoreExecutor() {
+    ExecutorService cacheStoreExecutor = myCacheStoreExecutor;
+    if (cacheStoreExecutor == null) {
+      return;
+    }
+
+    myCacheStoreExecutor = null;
+    try {
+      ThreadUtil.shutdownGracefully(cacheStoreExecutor, CACHE_STORE_EXECUTOR_NAME);
+    } catch (RuntimeException e) {
+      LOGGER.error(String.format("Error while shutting down %s", CACHE_STORE_EXECUTOR_NAME), e);
+    }
+  }
+
+  private synchronized void disposeJournalExecutor() {
+    ExecutorService journalExecutor = myJournalExecutor;
+    if (journalExecutor == null) {
+      return;
+    }
+
+    myJournalExecutor = null;
+    try {
+      ThreadUtil.shutdownGracefully(journalExecutor, JOURNAL_EXECUTOR_NAME);
+    } catch (RuntimeException e) {
+      LOGGER.error(String.format("Error while shutting down %s", JOURNAL_EXECUTOR_NAME), e);
+    }
+  }
+
+  private synchronized void disposeStorageConnectionManager(boolean silently) {
+    MultiThreadedHttpConnectionManager connectionManager = myStorageConnectionManager;
+    if (connectionManager == null) {
+      return;
+    }
+
+    myStorageConnectionManager = null;
+    try {
+      connectionManager.shutdown();
+    } catch (RuntimeException e) {
+      String message = "Error while shutting down storage HTTP connection manager";
+      LOGGER.error(message, e);
+      if (!silently) {
+        throw new RuntimeException(message, e);
+      }
+    }
+  }
+
   private synchronized void disposeClients(boolean silently) {
     Collection<HttpClient> clients = myCurrentBuildClients.values();
     clients.forEach(client -> {
@@ -153,15 +437,51 @@ public class S3ArtifactTransportFactory extends AgentLifeCycleAdapter implements
 
   @Override
   public void beforeBuildFinish(@NotNull AgentRunningBuild build, @NotNull BuildFinishedStatus buildStatus) {
-    cleanupBeforeBuildFinish();
+    cleanupBeforeBuildFinish(build);
   }
 
-  private synchronized void cleanupBeforeBuildFinish() {
+  private synchronized void cleanupBeforeBuildFinish(@NotNull AgentRunningBuild build) {
     if (myIsFactoryShutdown) return;
+    myPrefetcher.cancel(); // the files that are not prefetched yet are no longer needed
     disposeClients(false); // the next build will not be able to reuse any client because it will have the other user for authentication on server
+    MultiThreadedHttpConnectionManager storageConnectionManager = myStorageConnectionManager;
+    if (storageConnectionManager != null) {
+      storageConnectionManager.closeIdleConnections(myStorageConnectionsIdleTimeoutMs); // the rest are kept for the next build, they carry no credentials
+    }
+    S3ArtifactDownloadCache downloadCache = myDownloadCache;
+    if (downloadCache != null) {
+      LOGGER.info(downloadCache.toString());
+    }
+    S3RedirectCache redirectCache = myCurrentBuildRedirectCache;
+    if (redirectCache != null) {
+      LOGGER.debug(redirectCache.toString());
+      myCurrentBuildRedirectCache = null;
+    }
+    S3DownloadStatistics downloadStatistics = myCurrentBuildStatistics;
+    if (downloadStatistics != null) {
+      publishDownloadStatistics(downloadStatistics, build);
+      myCurrentBuildStatistics = null;
+    }
+    UnfinishedDownloads unfinishedDownloads = myCurrentBuildUnfinishedDownloads;
+    if (unfinishedDownloads != null) {
+      unfinishedDownloads.deleteAll(); // a download can't be retried once the build finishes
+      myCurrentBuildUnfinishedDownloads = null;
+    }
+    myCurrentBuildBandwidthLimiter = null;
     myCurrentBuildConfiguration = null;
   }
 
+  private static void publishDownloadStatistics(@NotNull S3DownloadStatistics downloadStatistics, @NotNull AgentRunningBuild build) {
+    if (downloadStatistics.getFiles() == 0) return;
+
+    LOGGER.info(String.format("Build %s: %s", build.getBuildId(), downloadStatistics));
+    try {
+      downloadStatistics.publish(build.getBuildLogger());
+    } catch (RuntimeException e) {
+      LOGGER.warn(String.format("Failed to publish S3 artifact download statistics of build %s", build.getBuildId()), e);
+    }
+  }
+
   @Override
   @Nullable
   public synchronized URLContentRetriever getTransport(@NotNull Map<String, String> parameters) {
@@ -179,24 +499,49 @@ public class S3ArtifactTransportFactory extends AgentLifeCycleAdapter implements
     }
 
     S3DownloadConfiguration configuration = ensurePreparedToBuild(runningBuild); // configuration, executor and clients map are prepared until we hold the lock
-    boolean parallelDownloadEnabled = configuration.isParallelDownloadEnabled();
-    boolean storageS3Compatible = configuration.isS3CompatibleStorage();
-    boolean parallelDownloadForced = configuration.isParallelDownloadForced();
-    long buildId = runningBuild.getBuildId();
-    if (!parallelDownloadEnabled || !(storageS3Compatible || parallelDownloadForced)) {
+    if (!isTransportEnabled(configuration)) {
       LOGGER.debug(String.format(
         "Will not create S3 artifact transport, build ID = %s, parallel download enabled = %s, storage is S3 compatible = %s, parallel download forced = %s",
-        buildId, parallelDownloadEnabled, storageS3Compatible, parallelDownloadForced
+        configuration.getBuildId(), configuration.isParallelDownloadEnabled(), configuration.isS3CompatibleStorage(), configuration.isParallelDownloadForced()
       ));
       return null;
     }
 
-    LOGGER.debug(String.format("Creating S3 artifact transport, build ID = %s", buildId));
+    LOGGER.debug(String.format("Creating S3 artifact transport, build ID = %s", runningBuild.getBuildId()));
     HttpClient client = findOrCreateClient(parameters, configuration);
     String serverUrl = parameters.get(DependencyHttpHelper.SERVER_URL_PARAM);
     ExecutorService executor = this.myExecutor;
     Objects.requireNonNull(executor, "Executor is null");
-    return new S3ArtifactTransport(serverUrl, client, executor, myDependencyHttpHelper, configuration, runningBuild, myParallelDownloadStrategiesByName);
+    return S3ArtifactTransport.builder(serverUrl, client, executor, myDependencyHttpHelper, configuration, runningBuild, myParallelDownloadStrategiesByName)
+      .downloadCache(myDownloadCache)
+      .redirectCache(myCurrentBuildRedirectCache)
+      .bandwidthLimiter(myCurrentBuildBandwidthLimiter)
+      .storageHttpClient(createStorageClient(client))
+      .downloadStatistics(myCurrentBuildStatistics)
+      .prefetcher(myPrefetcher)
+      .unfinishedDownloads(myCurrentBuildUnfinishedDownloads)
+      .storeInCacheInBackground(true)
+      .build();
+  }
+
+  private static boolean isTransportEnabled(@NotNull S3DownloadConfiguration configuration) {
+    return configuration.isParallelDownloadEnabled() && (configuration.isS3CompatibleStorage() || configuration.isParallelDownloadForced());
+  }
+
+  /**
+   * @return client that has the settings of the server client (e.g. proxy) but takes the connections from the agent-wide storage pool
+   * with the agent-wide timeouts, null if the pool is disabled
+   */
+  @Nullable
+  private HttpClient createStorageClient(@NotNull HttpClient serverClient) {
+    MultiThreadedHttpConnectionManager connectionManager = myStorageConnectionManager;
+    if (connectionManager == null) {
+      return null;
+    }
+
+    HttpClient storageClient = new HttpClient(serverClient.getParams(), connectionManager);
+    storageClient.setHostConfiguration(serverClient.getHostConfiguration()); // proxy is a part of the pool key, so builds with different proxies don't share connections
+    return storageClient;
   }
 
   @NotNull
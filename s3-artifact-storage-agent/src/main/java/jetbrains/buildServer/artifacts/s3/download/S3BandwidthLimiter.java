@@ -0,0 +1,112 @@
+package jetbrains.buildServer.artifacts.s3.download;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.artifacts.RecoverableIOException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Token bucket that limits the rate of the downloaded bytes. The bucket holds up to the burst number of bytes,
+ * readers take the bytes they have read and wait while the bucket is in debt.
+ * Transfers take the bytes in small grants in the order they come, and a reader waits for its own debt only,
+ * so concurrent transfers share the rate evenly instead of the fastest connection taking most of it.
+ * The limiter of a build can have the parent limiter of the agent, then the bytes are taken from both.
+ */
+public final class S3BandwidthLimiter {
+  private static final int MAX_GRANT_BYTES = 64 * 1024;
+
+  private final long myBytesPerSecond;
+  private final long myBurstBytes;
+  @Nullable
+  private final S3BandwidthLimiter myParent;
+
+  // state fields, access should be synchronized by this
+  private double myAvailableBytes;
+  private long myLastRefillNanos;
+
+  public S3BandwidthLimiter(long bytesPerSecond, long burstBytes, @Nullable S3BandwidthLimiter parent) {
+    if (bytesPerSecond <= 0) throw new IllegalArgumentException(String.format("Bandwidth is not positive: %s", bytesPerSecond));
+    if (burstBytes <= 0) throw new IllegalArgumentException(String.format("Burst size is not positive: %s", burstBytes));
+    myBytesPerSecond = bytesPerSecond;
+    myBurstBytes = burstBytes;
+    myParent = parent;
+    myAvailableBytes = burstBytes;
+    myLastRefillNanos = System.nanoTime();
+  }
+
+  public long getBytesPerSecond() {
+    return myBytesPerSecond;
+  }
+
+  public long getBurstBytes() {
+    return myBurstBytes;
+  }
+
+  /**
+   * Takes the bytes from the bucket, waiting until the debt of the bucket is paid off.
+   */
+  public void acquire(long bytes) throws IOException {
+    if (bytes <= 0) return;
+
+    long waitNanos = reserve(bytes);
+    if (myParent != null) waitNanos = Math.max(waitNanos, myParent.reserve(bytes));
+    if (waitNanos <= 0) return;
+
+    try {
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RecoverableIOException("Interrupted while waiting for download bandwidth");
+    }
+  }
+
+  /**
+   * @return nanoseconds until the bucket has the taken bytes
+   */
+  private synchronized long reserve(long bytes) {
+    long nowNanos = System.nanoTime();
+    double refilledBytes = (nowNanos - myLastRefillNanos) * (double)myBytesPerSecond / TimeUnit.SECONDS.toNanos(1);
+    myAvailableBytes = Math.min(myBurstBytes, myAvailableBytes + refilledBytes);
+    myLastRefillNanos = nowNanos;
+    myAvailableBytes -= bytes;
+    if (myAvailableBytes >= 0) return 0;
+    return (long)(-myAvailableBytes * TimeUnit.SECONDS.toNanos(1) / myBytesPerSecond);
+  }
+
+  /**
+   * @return the stream that reads at most one grant at once and takes the read bytes from this limiter
+   */
+  @NotNull
+  public InputStream limit(@NotNull InputStream inputStream) {
+    return new FilterInputStream(inputStream) {
+      @Override
+      public int read() throws IOException {
+        int value = super.read();
+        if (value >= 0) acquire(1);
+        return value;
+      }
+
+      @Override
+      public int read(@NotNull byte[] buffer, int offset, int length) throws IOException {
+        int read = super.read(buffer, offset, Math.min(length, MAX_GRANT_BYTES));
+        if (read > 0) acquire(read);
+        return read;
+      }
+
+      @Override
+      public long skip(long bytes) throws IOException {
+        long skipped = super.skip(Math.min(bytes, MAX_GRANT_BYTES));
+        if (skipped > 0) acquire(skipped);
+        return skipped;
+      }
+    };
+  }
+
+  @Override
+  public String toString() {
+    return String.format("S3BandwidthLimiter{bytesPerSecond=%s, burstBytes=%s, parent=%s}", myBytesPerSecond, myBurstBytes, myParent);
+  }
+}
@@ -3,14 +3,19 @@ package jetbrains.buildServer.artifacts.s3.download;
 import com.intellij.openapi.diagnostic.Logger;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.artifacts.s3.IntegerParameterBounds;
 import jetbrains.buildServer.artifacts.s3.download.parallel.strategy.impl.InplaceParallelDownloadStrategy;
+import jetbrains.buildServer.artifacts.s3.download.parallel.strategy.impl.MappedParallelDownloadStrategy;
 import jetbrains.buildServer.util.StringUtil;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import static jetbrains.buildServer.artifacts.s3.IntegerParameterBounds.*;
 import static jetbrains.buildServer.artifacts.s3.S3Constants.*;
-import static jetbrains.buildServer.artifacts.s3.download.S3DownloadConfiguration.IntegerParameterBounds.*;
+import static jetbrains.buildServer.artifacts.s3.download.S3DownloadConstants.*;
 
 public class S3DownloadConfiguration {
   private static final Logger LOGGER = Logger.getInstance(S3DownloadConfiguration.class);
@@ -25,6 +30,35 @@ public class S3DownloadConfiguration {
   private static final int DEFAULT_MAX_CONNECTIONS = 100;
   private static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 100;
   private static final String DEFAULT_PARALLEL_STRATEGY = InplaceParallelDownloadStrategy.NAME;
+  private static final boolean DEFAULT_PARALLEL_DOWNLOAD_RESUMABLE = true;
+  private static final boolean DEFAULT_REUSE_PROBE_REQUEST = true;
+  private static final boolean DEFAULT_FREE_SPACE_CHECK_ENABLED = true;
+  private static final boolean DEFAULT_VIRTUAL_THREADS_ENABLED = false;
+  private static final int DEFAULT_PART_MAX_RETRIES = 3;
+  private static final int DEFAULT_PART_RETRY_INITIAL_DELAY_MS = 500;
+  private static final int DEFAULT_PART_RETRY_MAX_DELAY_MS = 10_000;
+  private static final boolean DEFAULT_REDIRECT_CACHE_ENABLED = true;
+  private static final int DEFAULT_REDIRECT_CACHE_MAX_ENTRIES = 10_000;
+  private static final int DEFAULT_REDIRECT_CACHE_SAFETY_MARGIN_SECONDS = 60;
+  private static final boolean DEFAULT_HEDGING_ENABLED = false;
+  private static final int DEFAULT_HEDGING_SLOW_PART_THROUGHPUT_PERCENT = 25;
+  private static final int DEFAULT_HEDGING_MIN_PART_DURATION_MS = 3000;
+  private static final int DEFAULT_ADAPTIVE_MIN_PART_SIZE_KB = 1024;
+  private static final int DEFAULT_ADAPTIVE_MAX_PART_SIZE_MB = 64;
+  private static final int DEFAULT_ADAPTIVE_TARGET_PART_DURATION_MS = 2000;
+  private static final int DEFAULT_MAPPED_WINDOW_SIZE_MB = 64;
+  private static final MappedParallelDownloadStrategy.FlushPolicy DEFAULT_MAPPED_FLUSH_POLICY = MappedParallelDownloadStrategy.FlushPolicy.NONE;
+  private static final boolean DEFAULT_DOWNLOAD_CACHE_ENABLED = false;
+  private static final int DEFAULT_DOWNLOAD_CACHE_MAX_SIZE_MB = 10 * 1024;
+  private static final int DEFAULT_DOWNLOAD_CACHE_MIN_FILE_SIZE_KB = 1024;
+  private static final boolean DEFAULT_DOWNLOAD_CACHE_HARD_LINKS_ENABLED = false; // a hard-linked file modified by a build would corrupt the cache entry
+  private static final int DEFAULT_BANDWIDTH_LIMIT_KB_PER_SECOND = 0; // unlimited
+  private static final int DEFAULT_BANDWIDTH_BURST_MS = 100;
+  private static final boolean DEFAULT_SHARED_STORAGE_CONNECTIONS_ENABLED = true;
+  private static final int DEFAULT_SHARED_STORAGE_CONNECTIONS_IDLE_TIMEOUT_SECONDS = 60;
+  private static final boolean DEFAULT_DOWNLOAD_STATISTICS_ENABLED = true;
+  private static final boolean DEFAULT_PREFETCH_ENABLED = false;
+  private static final int DEFAULT_PREFETCH_MAX_FILES = 100;
 
   // int parameter bounds: some sane numbers for lower and upper bounds
   private static final IntegerParameterBounds BOUNDS_MAX_THREADS = lowerAndUpper(1, 1000);
@@ -33,6 +67,23 @@ public class S3DownloadConfiguration {
   private static final IntegerParameterBounds BOUNDS_BUFFER_SIZE_KB = lowerAndUpper(1, 1024 * 1024);
   private static final IntegerParameterBounds BOUNDS_MAX_CONNECTIONS = lowerAndUpper(1, 100_000);
   private static final IntegerParameterBounds BOUNDS_MAX_CONNECTIONS_PER_HOST = lowerAndUpper(1, 100_000);
+  private static final IntegerParameterBounds BOUNDS_PART_MAX_RETRIES = lowerAndUpper(0, 100);
+  private static final IntegerParameterBounds BOUNDS_PART_RETRY_INITIAL_DELAY_MS = lowerAndUpper(0, 60_000);
+  private static final IntegerParameterBounds BOUNDS_PART_RETRY_MAX_DELAY_MS = lowerAndUpper(0, 600_000);
+  private static final IntegerParameterBounds BOUNDS_REDIRECT_CACHE_MAX_ENTRIES = lowerAndUpper(1, 1_000_000);
+  private static final IntegerParameterBounds BOUNDS_REDIRECT_CACHE_SAFETY_MARGIN_SECONDS = lowerAndUpper(0, 24 * 60 * 60);
+  private static final IntegerParameterBounds BOUNDS_HEDGING_SLOW_PART_THROUGHPUT_PERCENT = lowerAndUpper(1, 100);
+  private static final IntegerParameterBounds BOUNDS_HEDGING_MIN_PART_DURATION_MS = lowerAndUpper(100, 600_000);
+  private static final IntegerParameterBounds BOUNDS_ADAPTIVE_MIN_PART_SIZE_KB = lowerAndUpper(64, 1024 * 1024);
+  private static final IntegerParameterBounds BOUNDS_ADAPTIVE_MAX_PART_SIZE_MB = lowerAndUpper(1, 1024 * 1024);
+  private static final IntegerParameterBounds BOUNDS_ADAPTIVE_TARGET_PART_DURATION_MS = lowerAndUpper(100, 600_000);
+  private static final IntegerParameterBounds BOUNDS_MAPPED_WINDOW_SIZE_MB = lowerAndUpper(1, 1024);
+  private static final IntegerParameterBounds BOUNDS_DOWNLOAD_CACHE_MAX_SIZE_MB = lower(1);
+  private static final IntegerParameterBounds BOUNDS_DOWNLOAD_CACHE_MIN_FILE_SIZE_KB = lower(0);
+  private static final IntegerParameterBounds BOUNDS_BANDWIDTH_LIMIT_KB_PER_SECOND = lower(0);
+  private static final IntegerParameterBounds BOUNDS_BANDWIDTH_BURST_MS = lowerAndUpper(10, 10_000);
+  private static final IntegerParameterBounds BOUNDS_SHARED_STORAGE_CONNECTIONS_IDLE_TIMEOUT_SECONDS = lowerAndUpper(1, 3600);
+  private static final IntegerParameterBounds BOUNDS_PREFETCH_MAX_FILES = lowerAndUpper(1, 10_000);
 
   private final long myBuildId;
   @NotNull
@@ -63,6 +114,29 @@ public class S3DownloadConfiguration {
     return getBooleanParameterOrDefault(S3_PARALLEL_DOWNLOAD_FORCED, DEFAULT_PARALLEL_DOWNLOAD_FORCED);
   }
 
+  public boolean isParallelDownloadResumable() {
+    return getBooleanParameterOrDefault(S3_PARALLEL_DOWNLOAD_RESUMABLE, DEFAULT_PARALLEL_DOWNLOAD_RESUMABLE);
+  }
+
+  public boolean isProbeRequestReused() {
+    return getBooleanParameterOrDefault(S3_PARALLEL_DOWNLOAD_REUSE_PROBE_REQUEST, DEFAULT_REUSE_PROBE_REQUEST);
+  }
+
+  public boolean isFreeSpaceCheckEnabled() {
+    return getBooleanParameterOrDefault(S3_PARALLEL_DOWNLOAD_FREE_SPACE_CHECK_ENABLED, DEFAULT_FREE_SPACE_CHECK_ENABLED);
+  }
+
+  public boolean isVirtualThreadsEnabled() {
+    return getBooleanParameterOrDefault(S3_DOWNLOAD_VIRTUAL_THREADS_ENABLED, DEFAULT_VIRTUAL_THREADS_ENABLED);
+  }
+
+  /**
+   * @return number of download tasks that run at once in virtual threads, each of them holds a connection
+   */
+  public int getVirtualThreadsMaxConcurrency() {
+    return Math.min(getMaxConnectionsPerHost(), getMaxConnectionsTotal());
+  }
+
   public int getMaxThreads() {
     return getBoundIntegerParameterOrDefault(S3_PARALLEL_DOWNLOAD_MAX_THREADS, DEFAULT_MAX_THREADS, BOUNDS_MAX_THREADS);
   }
@@ -91,6 +165,135 @@ public class S3DownloadConfiguration {
     return getBoundIntegerParameterOrDefault(S3_PARALLEL_DOWNLOAD_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS, BOUNDS_MAX_CONNECTIONS);
   }
 
+  public int getPartMaxRetries() {
+    return getBoundIntegerParameterOrDefault(S3_PARALLEL_DOWNLOAD_PART_MAX_RETRIES, DEFAULT_PART_MAX_RETRIES, BOUNDS_PART_MAX_RETRIES);
+  }
+
+  public long getPartRetryInitialDelayMs() {
+    return getBoundIntegerParameterOrDefault(S3_PARALLEL_DOWNLOAD_PART_RETRY_INITIAL_DELAY_MS, DEFAULT_PART_RETRY_INITIAL_DELAY_MS, BOUNDS_PART_RETRY_INITIAL_DELAY_MS);
+  }
+
+  public long getPartRetryMaxDelayMs() {
+    return getBoundIntegerParameterOrDefault(S3_PARALLEL_DOWNLOAD_PART_RETRY_MAX_DELAY_MS, DEFAULT_PART_RETRY_MAX_DELAY_MS, BOUNDS_PART_RETRY_MAX_DELAY_MS);
+  }
+
+  public boolean isRedirectCacheEnabled() {
+    return getBooleanParameterOrDefault(S3_DOWNLOAD_REDIRECT_CACHE_ENABLED, DEFAULT_REDIRECT_CACHE_ENABLED);
+  }
+
+  public int getRedirectCacheMaxEntries() {
+    return getBoundIntegerParameterOrDefault(S3_DOWNLOAD_REDIRECT_CACHE_MAX_ENTRIES, DEFAULT_REDIRECT_CACHE_MAX_ENTRIES, BOUNDS_REDIRECT_CACHE_MAX_ENTRIES);
+  }
+
+  public long getRedirectCacheSafetyMarginMs() {
+    return TimeUnit.SECONDS.toMillis(
+      getBoundIntegerParameterOrDefault(S3_DOWNLOAD_REDIRECT_CACHE_SAFETY_MARGIN_SECONDS, DEFAULT_REDIRECT_CACHE_SAFETY_MARGIN_SECONDS, BOUNDS_REDIRECT_CACHE_SAFETY_MARGIN_SECONDS));
+  }
+
+  public boolean isHedgingEnabled() {
+    return getBooleanParameterOrDefault(S3_PARALLEL_DOWNLOAD_HEDGING_ENABLED, DEFAULT_HEDGING_ENABLED);
+  }
+
+  public int getHedgingSlowPartThroughputPercent() {
+    return getBoundIntegerParameterOrDefault(S3_PARALLEL_DOWNLOAD_HEDGING_SLOW_PART_THROUGHPUT_PERCENT, DEFAULT_HEDGING_SLOW_PART_THROUGHPUT_PERCENT, BOUNDS_HEDGING_SLOW_PART_THROUGHPUT_PERCENT);
+  }
+
+  public long getHedgingMinPartDurationMs() {
+    return getBoundIntegerParameterOrDefault(S3_PARALLEL_DOWNLOAD_HEDGING_MIN_PART_DURATION_MS, DEFAULT_HEDGING_MIN_PART_DURATION_MS, BOUNDS_HEDGING_MIN_PART_DURATION_MS);
+  }
+
+  public long getAdaptiveMinPartSizeBytes() {
+    return (long)getBoundIntegerParameterOrDefault(S3_PARALLEL_DOWNLOAD_ADAPTIVE_MIN_PART_SIZE_KB, DEFAULT_ADAPTIVE_MIN_PART_SIZE_KB, BOUNDS_ADAPTIVE_MIN_PART_SIZE_KB) * 1024;
+  }
+
+  public long getAdaptiveMaxPartSizeBytes() {
+    long maxPartSize = (long)getBoundIntegerParameterOrDefault(S3_PARALLEL_DOWNLOAD_ADAPTIVE_MAX_PART_SIZE_MB, DEFAULT_ADAPTIVE_MAX_PART_SIZE_MB, BOUNDS_ADAPTIVE_MAX_PART_SIZE_MB) * 1024 * 1024;
+    return Math.max(maxPartSize, getAdaptiveMinPartSizeBytes());
+  }
+
+  public long getAdaptiveTargetPartDurationMs() {
+    return getBoundIntegerParameterOrDefault(S3_PARALLEL_DOWNLOAD_ADAPTIVE_TARGET_PART_DURATION_MS, DEFAULT_ADAPTIVE_TARGET_PART_DURATION_MS, BOUNDS_ADAPTIVE_TARGET_PART_DURATION_MS);
+  }
+
+  public int getMappedWindowSizeBytes() {
+    return getBoundIntegerParameterOrDefault(S3_PARALLEL_DOWNLOAD_MAPPED_WINDOW_SIZE_MB, DEFAULT_MAPPED_WINDOW_SIZE_MB, BOUNDS_MAPPED_WINDOW_SIZE_MB) * 1024 * 1024;
+  }
+
+  @NotNull
+  public MappedParallelDownloadStrategy.FlushPolicy getMappedFlushPolicy() {
+    String policyName = myBuildConfigurationParameters.get(S3_PARALLEL_DOWNLOAD_MAPPED_FLUSH_POLICY);
+    if (StringUtil.isEmpty(policyName)) return DEFAULT_MAPPED_FLUSH_POLICY;
+
+    try {
+      return MappedParallelDownloadStrategy.FlushPolicy.valueOf(policyName.trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      LOGGER.warn(String.format("Unknown value %s of configuration parameter %s, using the default value %s", policyName, S3_PARALLEL_DOWNLOAD_MAPPED_FLUSH_POLICY, DEFAULT_MAPPED_FLUSH_POLICY));
+      return DEFAULT_MAPPED_FLUSH_POLICY;
+    }
+  }
+
+  public boolean isDownloadCacheEnabled() {
+    return getBooleanParameterOrDefault(S3_DOWNLOAD_CACHE_ENABLED, DEFAULT_DOWNLOAD_CACHE_ENABLED);
+  }
+
+  @Nullable
+  public String getDownloadCacheDirectory() {
+    return Optional.ofNullable(myBuildConfigurationParameters.get(S3_DOWNLOAD_CACHE_DIRECTORY))
+      .filter(StringUtil::isNotEmpty)
+      .orElse(null);
+  }
+
+  public long getDownloadCacheMaxSizeBytes() {
+    return (long)getBoundIntegerParameterOrDefault(S3_DOWNLOAD_CACHE_MAX_SIZE_MB, DEFAULT_DOWNLOAD_CACHE_MAX_SIZE_MB, BOUNDS_DOWNLOAD_CACHE_MAX_SIZE_MB) * 1024 * 1024;
+  }
+
+  public long getDownloadCacheMinFileSizeBytes() {
+    return (long)getBoundIntegerParameterOrDefault(S3_DOWNLOAD_CACHE_MIN_FILE_SIZE_KB, DEFAULT_DOWNLOAD_CACHE_MIN_FILE_SIZE_KB, BOUNDS_DOWNLOAD_CACHE_MIN_FILE_SIZE_KB) * 1024;
+  }
+
+  public boolean isDownloadCacheHardLinksEnabled() {
+    return getBooleanParameterOrDefault(S3_DOWNLOAD_CACHE_HARD_LINKS_ENABLED, DEFAULT_DOWNLOAD_CACHE_HARD_LINKS_ENABLED);
+  }
+
+  /**
+   * @return limit of all the downloads of the agent in bytes per second, 0 if unlimited
+   */
+  public long getAgentBandwidthLimitBytesPerSecond() {
+    return (long)getBoundIntegerParameterOrDefault(S3_DOWNLOAD_BANDWIDTH_AGENT_LIMIT_KB_PER_SECOND, DEFAULT_BANDWIDTH_LIMIT_KB_PER_SECOND, BOUNDS_BANDWIDTH_LIMIT_KB_PER_SECOND) * 1024;
+  }
+
+  /**
+   * @return limit of the downloads of the build in bytes per second, 0 if unlimited
+   */
+  public long getBuildBandwidthLimitBytesPerSecond() {
+    return (long)getBoundIntegerParameterOrDefault(S3_DOWNLOAD_BANDWIDTH_BUILD_LIMIT_KB_PER_SECOND, DEFAULT_BANDWIDTH_LIMIT_KB_PER_SECOND, BOUNDS_BANDWIDTH_LIMIT_KB_PER_SECOND) * 1024;
+  }
+
+  public long getBandwidthBurstMs() {
+    return getBoundIntegerParameterOrDefault(S3_DOWNLOAD_BANDWIDTH_BURST_MS, DEFAULT_BANDWIDTH_BURST_MS, BOUNDS_BANDWIDTH_BURST_MS);
+  }
+
+  public boolean isSharedStorageConnectionsEnabled() {
+    return getBooleanParameterOrDefault(S3_DOWNLOAD_SHARED_STORAGE_CONNECTIONS_ENABLED, DEFAULT_SHARED_STORAGE_CONNECTIONS_ENABLED);
+  }
+
+  public long getSharedStorageConnectionsIdleTimeoutMs() {
+    return TimeUnit.SECONDS.toMillis(getBoundIntegerParameterOrDefault(S3_DOWNLOAD_SHARED_STORAGE_CONNECTIONS_IDLE_TIMEOUT_SECONDS, DEFAULT_SHARED_STORAGE_CONNECTIONS_IDLE_TIMEOUT_SECONDS,
+                                                                       BOUNDS_SHARED_STORAGE_CONNECTIONS_IDLE_TIMEOUT_SECONDS));
+  }
+
+  public boolean isDownloadStatisticsEnabled() {
+    return getBooleanParameterOrDefault(S3_DOWNLOAD_STATISTICS_ENABLED, DEFAULT_DOWNLOAD_STATISTICS_ENABLED);
+  }
+
+  public boolean isPrefetchEnabled() {
+    return getBooleanParameterOrDefault(S3_DOWNLOAD_PREFETCH_ENABLED, DEFAULT_PREFETCH_ENABLED);
+  }
+
+  public int getPrefetchMaxFiles() {
+    return getBoundIntegerParameterOrDefault(S3_DOWNLOAD_PREFETCH_MAX_FILES, DEFAULT_PREFETCH_MAX_FILES, BOUNDS_PREFETCH_MAX_FILES);
+  }
+
   public boolean isS3CompatibleStorage() {
     String storageType = myArtifactStorageSettings.get(TEAMCITY_STORAGE_TYPE_KEY);
     return StringUtil.areEqual(storageType, S3_STORAGE_TYPE) || StringUtil.areEqual(storageType, S3_COMPATIBLE_STORAGE_TYPE);
@@ -111,32 +314,7 @@ public class S3DownloadConfiguration {
   }
 
   private int getBoundIntegerParameterOrDefault(@NotNull String paramName, int defaultValue, @NotNull IntegerParameterBounds bounds) {
-    return myMemoizedIntegerParameters.computeIfAbsent(paramName, name -> {
-      return Optional.ofNullable(myBuildConfigurationParameters.get(paramName))
-        .map(stringValue -> safeParseInteger(stringValue, paramName, defaultValue))
-        .map(value -> applyBounds(value, paramName, defaultValue, bounds))
-        .orElse(defaultValue);
-    });
-  }
-
-  @NotNull
-  private static Integer safeParseInteger(@NotNull String stringValue, @NotNull String paramName, int defaultValue) {
-    try {
-      return Integer.parseInt(stringValue);
-    } catch (NumberFormatException e) {
-      LOGGER.warn(
-        String.format("Failed to parse integer configuration parameter %s from value %s: %s; using the default value %s", paramName, stringValue, e.getMessage(), defaultValue));
-      return defaultValue;
-    }
-  }
-
-  @NotNull
-  private static Integer applyBounds(@NotNull Integer value, @NotNull String paramName, int defaultValue, @NotNull IntegerParameterBounds bounds) {
-    if (value < bounds.lower || value > bounds.upper) {
-      LOGGER.warn(String.format("Value %s of configuration parameter %s is out of bounds %s, using the default value %s", value, paramName, bounds, defaultValue));
-      return defaultValue;
-    }
-    return value;
+    return myMemoizedIntegerParameters.computeIfAbsent(paramName, name -> bounds.getValueOrDefault(myBuildConfigurationParameters.get(paramName), paramName, defaultValue));
   }
 
   @Override
@@ -151,35 +329,4 @@ public class S3DownloadConfiguration {
   public int hashCode() {
     return Objects.hash(myBuildId);
   }
-
-  static final class IntegerParameterBounds {
-    private final int lower;
-    private final int upper;
-
-    private IntegerParameterBounds(int lower, int upper) {
-      this.lower = lower;
-      this.upper = upper;
-    }
-
-    public static IntegerParameterBounds lower(int lower) {
-      return new IntegerParameterBounds(lower, Integer.MAX_VALUE);
-    }
-
-    public static IntegerParameterBounds upper(int upper) {
-      return new IntegerParameterBounds(Integer.MIN_VALUE, upper);
-    }
-
-    public static IntegerParameterBounds lowerAndUpper(int lower, int upper) {
-      return new IntegerParameterBounds(lower, upper);
-    }
-
-    public static IntegerParameterBounds unbound() {
-      return new IntegerParameterBounds(Integer.MIN_VALUE, Integer.MAX_VALUE);
-    }
-
-    @Override
-    public String toString() {
-      return "[" + lower + ", " + upper + "]";
-    }
-  }
 }
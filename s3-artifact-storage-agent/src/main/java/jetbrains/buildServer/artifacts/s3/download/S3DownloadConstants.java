@@ -0,0 +1,68 @@
+package jetbrains.buildServer.artifacts.s3.download;
+
+/**
+ * Configuration parameters of the S3 artifact transport that are specific to the agent side of the plugin.
+ */
+public final class S3DownloadConstants {
+  // resuming parallel downloads from the journal of downloaded ranges
+  public static final String S3_PARALLEL_DOWNLOAD_RESUMABLE = "teamcity.internal.storage.s3.download.parallel.resumable.enabled";
+
+  // streaming the first part of parallel downloads from the request that probed the file
+  public static final String S3_PARALLEL_DOWNLOAD_REUSE_PROBE_REQUEST = "teamcity.internal.storage.s3.download.parallel.reuseProbeRequest.enabled";
+
+  // failing parallel downloads up front when the file store doesn't have space for the downloaded file
+  public static final String S3_PARALLEL_DOWNLOAD_FREE_SPACE_CHECK_ENABLED = "teamcity.internal.storage.s3.download.parallel.freeSpaceCheck.enabled";
+
+  // running every download task in its own virtual thread on Java 21+, the number of running tasks is limited by the connection limits
+  public static final String S3_DOWNLOAD_VIRTUAL_THREADS_ENABLED = "teamcity.internal.storage.s3.download.virtualThreads.enabled";
+
+  // retrying failed parts of parallel downloads
+  public static final String S3_PARALLEL_DOWNLOAD_PART_MAX_RETRIES = "teamcity.internal.storage.s3.download.parallel.part.maxRetries";
+  public static final String S3_PARALLEL_DOWNLOAD_PART_RETRY_INITIAL_DELAY_MS = "teamcity.internal.storage.s3.download.parallel.part.retryInitialDelayMs";
+  public static final String S3_PARALLEL_DOWNLOAD_PART_RETRY_MAX_DELAY_MS = "teamcity.internal.storage.s3.download.parallel.part.retryMaxDelayMs";
+
+  // hedged requests for slow parts of parallel downloads
+  public static final String S3_PARALLEL_DOWNLOAD_HEDGING_ENABLED = "teamcity.internal.storage.s3.download.parallel.hedging.enabled";
+  public static final String S3_PARALLEL_DOWNLOAD_HEDGING_SLOW_PART_THROUGHPUT_PERCENT = "teamcity.internal.storage.s3.download.parallel.hedging.slowPartThroughputPercent";
+  public static final String S3_PARALLEL_DOWNLOAD_HEDGING_MIN_PART_DURATION_MS = "teamcity.internal.storage.s3.download.parallel.hedging.minPartDurationMs";
+
+  // adaptive parallel download strategy
+  public static final String S3_PARALLEL_DOWNLOAD_ADAPTIVE_MIN_PART_SIZE_KB = "teamcity.internal.storage.s3.download.parallel.adaptive.minPartSizeKb";
+  public static final String S3_PARALLEL_DOWNLOAD_ADAPTIVE_MAX_PART_SIZE_MB = "teamcity.internal.storage.s3.download.parallel.adaptive.maxPartSizeMb";
+  public static final String S3_PARALLEL_DOWNLOAD_ADAPTIVE_TARGET_PART_DURATION_MS = "teamcity.internal.storage.s3.download.parallel.adaptive.targetPartDurationMs";
+
+  // memory-mapped parallel download strategy
+  public static final String S3_PARALLEL_DOWNLOAD_MAPPED_WINDOW_SIZE_MB = "teamcity.internal.storage.s3.download.parallel.mapped.windowSizeMb";
+  public static final String S3_PARALLEL_DOWNLOAD_MAPPED_FLUSH_POLICY = "teamcity.internal.storage.s3.download.parallel.mapped.flushPolicy";
+
+  // agent-local cache of downloaded artifacts keyed by digest
+  public static final String S3_DOWNLOAD_CACHE_ENABLED = "teamcity.internal.storage.s3.download.cache.enabled";
+  public static final String S3_DOWNLOAD_CACHE_DIRECTORY = "teamcity.internal.storage.s3.download.cache.directory";
+  public static final String S3_DOWNLOAD_CACHE_MAX_SIZE_MB = "teamcity.internal.storage.s3.download.cache.maxSizeMb";
+  public static final String S3_DOWNLOAD_CACHE_MIN_FILE_SIZE_KB = "teamcity.internal.storage.s3.download.cache.minFileSizeKb";
+  public static final String S3_DOWNLOAD_CACHE_HARD_LINKS_ENABLED = "teamcity.internal.storage.s3.download.cache.hardLinks.enabled";
+
+  // cache of direct URLs the server redirects to
+  public static final String S3_DOWNLOAD_REDIRECT_CACHE_ENABLED = "teamcity.internal.storage.s3.download.redirectCache.enabled";
+  public static final String S3_DOWNLOAD_REDIRECT_CACHE_MAX_ENTRIES = "teamcity.internal.storage.s3.download.redirectCache.maxEntries";
+  public static final String S3_DOWNLOAD_REDIRECT_CACHE_SAFETY_MARGIN_SECONDS = "teamcity.internal.storage.s3.download.redirectCache.safetyMarginSeconds";
+
+  // limiting the bandwidth of all the downloads of the agent and of the build, 0 is unlimited
+  public static final String S3_DOWNLOAD_BANDWIDTH_AGENT_LIMIT_KB_PER_SECOND = "teamcity.internal.storage.s3.download.bandwidth.agentLimitKbPerSecond";
+  public static final String S3_DOWNLOAD_BANDWIDTH_BUILD_LIMIT_KB_PER_SECOND = "teamcity.internal.storage.s3.download.bandwidth.buildLimitKbPerSecond";
+  public static final String S3_DOWNLOAD_BANDWIDTH_BURST_MS = "teamcity.internal.storage.s3.download.bandwidth.burstMs";
+
+  // connections to the storage are pooled by the agent and kept alive between builds, the connections to the server are still pooled by the build
+  public static final String S3_DOWNLOAD_SHARED_STORAGE_CONNECTIONS_ENABLED = "teamcity.internal.storage.s3.download.sharedStorageConnections.enabled";
+  public static final String S3_DOWNLOAD_SHARED_STORAGE_CONNECTIONS_IDLE_TIMEOUT_SECONDS = "teamcity.internal.storage.s3.download.sharedStorageConnections.idleTimeoutSeconds";
+
+  // publishing download metrics of the build as build statistic values and summarizing them in the build log
+  public static final String S3_DOWNLOAD_STATISTICS_ENABLED = "teamcity.internal.storage.s3.download.statistics.enabled";
+
+  // prefetching the artifacts the previous build of the configuration downloaded from the same chain into the download cache when the build starts
+  public static final String S3_DOWNLOAD_PREFETCH_ENABLED = "teamcity.internal.storage.s3.download.prefetch.enabled";
+  public static final String S3_DOWNLOAD_PREFETCH_MAX_FILES = "teamcity.internal.storage.s3.download.prefetch.maxFiles";
+
+  private S3DownloadConstants() {
+  }
+}
@@ -1,7 +1,10 @@
 package jetbrains.buildServer.artifacts.s3.download;
 
 import com.intellij.openapi.diagnostic.Logger;
+import java.io.EOFException;
 import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.util.Optional;
 import jetbrains.buildServer.artifacts.RecoverableIOException;
 import org.apache.commons.httpclient.*;
@@ -26,6 +29,38 @@ public final class S3DownloadHttpUtil {
     }
   }
 
+  @Nullable
+  public static String getETag(@NotNull HttpMethod request) {
+    return Optional.ofNullable(request.getResponseHeader(HttpHeaders.ETAG))
+                   .map(Header::getValue)
+                   .filter(value -> !value.isEmpty())
+                   .orElse(null);
+  }
+
+  /**
+   * @return max-age of the Cache-Control response header, or null if the response must not be cached
+   */
+  @Nullable
+  public static Long getMaxAgeSeconds(@NotNull HttpMethod request) {
+    Header cacheControl = request.getResponseHeader(HttpHeaders.CACHE_CONTROL);
+    if (cacheControl == null) return null;
+
+    Long maxAgeSeconds = null;
+    for (String directive : cacheControl.getValue().split(",")) {
+      String trimmedDirective = directive.trim().toLowerCase();
+      if (trimmedDirective.equals("no-cache") || trimmedDirective.equals("no-store")) return null;
+      if (trimmedDirective.startsWith("max-age=")) {
+        try {
+          maxAgeSeconds = Long.parseLong(trimmedDirective.substring("max-age=".length()));
+        } catch (NumberFormatException e) {
+          LOGGER.debug(String.format("Failed to parse the %s response header %s", HttpHeaders.CACHE_CONTROL, cacheControl.getValue()), e);
+          return null;
+        }
+      }
+    }
+    return maxAgeSeconds;
+  }
+
   public static boolean canAcceptByteRanges(@NotNull HttpMethod request) {
     return Optional.ofNullable(request.getResponseHeader(HttpHeaders.ACCEPT_RANGES))
                    .map(Header::getValue)
@@ -68,6 +103,25 @@ public final class S3DownloadHttpUtil {
     }
   }
 
+  /**
+   * @return true if the exception or any of its causes is a network or storage failure that may not happen again on retry
+   */
+  public static boolean isTransientFailure(@NotNull Throwable exception) {
+    for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+      // recoverable statuses (e.g. 503 SlowDown) and short reads are reported as RecoverableIOException
+      if (cause instanceof RecoverableIOException ||
+          cause instanceof SocketException || // includes connection reset
+          cause instanceof SocketTimeoutException ||
+          cause instanceof NoHttpResponseException ||
+          cause instanceof ConnectTimeoutException ||
+          cause instanceof EOFException) {
+        return true;
+      }
+      if (cause.getCause() == cause) break;
+    }
+    return false;
+  }
+
   public static void checkResponseStatus(int statusCode, int expectedStatusCode) throws IOException {
     if (statusCode == expectedStatusCode) return;
 
@@ -81,6 +135,6 @@ public final class S3DownloadHttpUtil {
 
   @NotNull
   public static Header createRangeHeader(long startByte, long endByte) {
-    return new Header("Range", "bytes=" + startByte + "-" + endByte);
+    return new Header(HttpHeaders.RANGE, "bytes=" + startByte + "-" + endByte);
   }
 }
@@ -2,10 +2,12 @@ package jetbrains.buildServer.artifacts.s3.download;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileStore;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.EnumSet;
@@ -18,6 +20,9 @@ import static java.nio.file.StandardOpenOption.*;
 import static java.nio.file.StandardOpenOption.SPARSE;
 
 public final class S3DownloadIOUtil {
+  // progress is reported and interruption is checked once per this number of bytes instead of once per write
+  private static final long PROGRESS_REPORT_THRESHOLD_BYTES = 64 * 1024;
+
   @NotNull
   public static Path getAbsoluteNormalizedPath(@NotNull Path path) {
     return path.toAbsolutePath().normalize();
@@ -33,6 +38,12 @@ public final class S3DownloadIOUtil {
     return parentDirectoryPath.resolve(fileNamePath + ".unfinished");
   }
 
+  @NotNull
+  public static Path getJournalFilePath(@NotNull Path file) {
+    Path unfinishedFilePath = getUnfinishedFilePath(file);
+    return unfinishedFilePath.resolveSibling(unfinishedFilePath.getFileName() + ".journal");
+  }
+
   @NotNull
   public static Path getFilePartPath(@NotNull Path file, int partNumber, @NotNull Path tempPartsDirectory) {
     Path absoluteNormalizedFilePath = getAbsoluteNormalizedPath(file);
@@ -56,6 +67,19 @@ public final class S3DownloadIOUtil {
     }
   }
 
+  /**
+   * @throws IOException if the directory doesn't exist, or the usable space of its file store is less than the required number of bytes
+   */
+  public static void checkFreeSpace(@NotNull Path directory, long requiredBytes) throws IOException {
+    if (requiredBytes <= 0) return;
+
+    FileStore fileStore = Files.getFileStore(directory);
+    long usableBytes = fileStore.getUsableSpace();
+    if (usableBytes < requiredBytes) {
+      throw new IOException(String.format("Not enough free disk space in %s: %s bytes are required, only %s bytes are available on %s", directory, requiredBytes, usableBytes, fileStore));
+    }
+  }
+
   public static void createFile(@NotNull Path file, boolean isSparse) throws IOException {
     if (Files.isDirectory(file)) throw new IOException(String.format("%s is a directory", file));
 
@@ -102,22 +126,33 @@ public final class S3DownloadIOUtil {
     if (expectedCheck && expectedBytes < 0) throw new IllegalArgumentException(String.format("Expecting negative number of bytes (%s)", expectedBytes));
     if (bufferSize <= 0) throw new IllegalArgumentException(String.format("Buffer size is not positive (%s)", bufferSize));
 
-    ByteBuffer byteBuffer = ByteBuffer.allocate(expectedCheck && expectedBytes > 0 ? (int)Math.min(expectedBytes, bufferSize) : bufferSize);
+    int transferBufferSize = expectedCheck && expectedBytes > 0 ? (int)Math.min(expectedBytes, bufferSize) : bufferSize;
+    ByteBuffer byteBuffer = ByteBuffer.allocate(transferBufferSize);
     long transferred = 0;
-    while (sourceChannel.read(byteBuffer) >= 0) {
-      byteBuffer.flip();
-      while (byteBuffer.hasRemaining()) {
-        long toBeTransferred = byteBuffer.remaining() + transferred;
-        if (expectedCheck && toBeTransferred > expectedBytes) {
-          throw new RecoverableIOException(String.format("Received more bytes from source channel (at least %s) than expected (%s)", toBeTransferred, expectedBytes));
+    long unreportedBytes = 0;
+    try {
+      while (sourceChannel.read(byteBuffer) >= 0) {
+        byteBuffer.flip();
+        while (byteBuffer.hasRemaining()) {
+          long toBeTransferred = byteBuffer.remaining() + transferred;
+          if (expectedCheck && toBeTransferred > expectedBytes) {
+            throw new RecoverableIOException(String.format("Received more bytes from source channel (at least %s) than expected (%s)", toBeTransferred, expectedBytes));
+          }
+
+          int written = targetChannel.write(byteBuffer);
+          transferred += written;
+          unreportedBytes += written;
+          if (unreportedBytes >= PROGRESS_REPORT_THRESHOLD_BYTES) {
+            progressTracker.accept(unreportedBytes);
+            unreportedBytes = 0;
+            interruptedCheck.run();
+          }
         }
-
-        interruptedCheck.run();
-        int written = targetChannel.write(byteBuffer);
-        transferred += written;
-        progressTracker.accept(written);
+        byteBuffer.clear();
       }
-      byteBuffer.clear();
+    } finally {
+      // the written bytes are reported even if the transfer fails, retries rely on them
+      if (unreportedBytes > 0) progressTracker.accept(unreportedBytes);
     }
 
     if (expectedCheck && transferred < expectedBytes) {
@@ -152,4 +187,60 @@ public final class S3DownloadIOUtil {
       progressTracker.accept(transferred);
     }
   }
+
+  /**
+   * Reads the bytes into memory-mapped windows of the target file, so that no write calls are needed.
+   * A stream-backed source channel (see {@link java.nio.channels.Channels#newChannel(java.io.InputStream)}) still copies the bytes through its own buffer,
+   * only the copy from the transfer buffer to the file is saved.
+   * The target file must be at least targetPosition + expectedBytes long.
+   *
+   * @param forceWindows whether every window is written to the storage device as soon as it is filled
+   */
+  public static void transferExpectedBytesToMappedFile(@NotNull ReadableByteChannel sourceChannel,
+                                                       @NotNull FileChannel targetFileChannel,
+                                                       long targetPosition,
+                                                       long expectedBytes,
+                                                       int windowSize,
+                                                       boolean forceWindows,
+                                                       @NotNull IORunnable interruptedCheck,
+                                                       @NotNull LongConsumer progressTracker
+  ) throws IOException {
+    interruptedCheck.run();
+    if (expectedBytes < 0) throw new IllegalArgumentException(String.format("Expecting negative number of bytes (%s)", expectedBytes));
+    if (windowSize <= 0) throw new IllegalArgumentException(String.format("Window size is not positive (%s)", windowSize));
+    if (targetFileChannel.size() < targetPosition + expectedBytes) {
+      throw new IOException(String.format("Target file (size: %s) is too small to map %s bytes from position %s", targetFileChannel.size(), expectedBytes, targetPosition));
+    }
+
+    long transferred = 0;
+    long unreportedBytes = 0;
+    try {
+      while (transferred < expectedBytes) {
+        int windowBytes = (int)Math.min(windowSize, expectedBytes - transferred);
+        MappedByteBuffer window = targetFileChannel.map(FileChannel.MapMode.READ_WRITE, targetPosition + transferred, windowBytes);
+        while (window.hasRemaining()) {
+          int read = sourceChannel.read(window);
+          if (read < 0) {
+            throw new RecoverableIOException(String.format("Received less bytes from source channel (%s) than expected (%s)", transferred + window.position(), expectedBytes));
+          }
+
+          unreportedBytes += read;
+          if (unreportedBytes >= PROGRESS_REPORT_THRESHOLD_BYTES) {
+            progressTracker.accept(unreportedBytes);
+            unreportedBytes = 0;
+            interruptedCheck.run();
+          }
+        }
+
+        if (forceWindows) window.force();
+        transferred += windowBytes;
+      }
+    } finally {
+      if (unreportedBytes > 0) progressTracker.accept(unreportedBytes);
+    }
+
+    if (sourceChannel.read(ByteBuffer.allocate(1)) > 0) {
+      throw new RecoverableIOException(String.format("Received more bytes from source channel (at least %s) than expected (%s)", transferred + 1, expectedBytes));
+    }
+  }
 }
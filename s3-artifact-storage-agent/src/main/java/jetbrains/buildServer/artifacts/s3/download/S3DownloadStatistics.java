@@ -0,0 +1,254 @@
+package jetbrains.buildServer.artifacts.s3.download;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+import jetbrains.buildServer.agent.BuildProgressLogger;
+import jetbrains.buildServer.messages.serviceMessages.ServiceMessage;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Download metrics of the S3 artifact transport collected during a build: time to resolve redirects, time to first byte,
+ * throughput of the files and of the parts, retries and the way the files were downloaded.
+ * They are published as build statistic values, so slow buckets and regions can be found across builds, and summarized in the build log.
+ */
+public final class S3DownloadStatistics {
+  public static final String STATISTIC_KEY_PREFIX = "teamcity.s3.download.";
+  public static final String METHOD_CACHE = "cache";
+  public static final String METHOD_SEQUENTIAL = "sequential";
+  private static final int MAX_LOGGED_FILES = 10;
+
+  @NotNull
+  private final LongSupplier myClockNanos;
+
+  // state fields, access should be synchronized by this
+  @NotNull
+  private final List<FileStatistics> myLoggedFiles = new ArrayList<>(); // the first files only, the rest are counted
+  @NotNull
+  private final Map<String, Integer> myFilesByMethod = new TreeMap<>();
+  private int myFiles;
+  private int myFailedFiles;
+  private long myBytes;
+  private long myFirstStartNanos = Long.MAX_VALUE;
+  private long myLastFinishNanos = Long.MIN_VALUE;
+  private long myTimeToFirstByteNanos;
+  private long myRedirectNanos;
+  private int myRespondedFiles;
+  private int myParts;
+  private int myPartRetries;
+  private long myPartBytes;
+  private long myPartNanos;
+  private long mySlowestPartBytesPerSecond = Long.MAX_VALUE;
+
+  public S3DownloadStatistics() {
+    this(System::nanoTime);
+  }
+
+  S3DownloadStatistics(@NotNull LongSupplier clockNanos) {
+    myClockNanos = clockNanos;
+  }
+
+  /**
+   * @return statistics of the file that is added to the build statistics when the file download finishes
+   */
+  @NotNull
+  public FileStatistics startFile(@NotNull String srcUrl, @NotNull Path targetFile) {
+    return new FileStatistics(srcUrl, targetFile, myClockNanos.getAsLong());
+  }
+
+  private synchronized void fileFinished(@NotNull FileStatistics file) {
+    myFiles++;
+    if (file.myIsFailed) myFailedFiles++;
+    if (myLoggedFiles.size() < MAX_LOGGED_FILES) myLoggedFiles.add(file);
+    if (file.myMethod != null) myFilesByMethod.merge(file.myMethod, 1, Integer::sum);
+    myBytes += file.myBytes;
+    myFirstStartNanos = Math.min(myFirstStartNanos, file.myStartNanos);
+    myLastFinishNanos = Math.max(myLastFinishNanos, file.myFinishNanos);
+    if (file.myTimeToFirstByteNanos >= 0) {
+      myRespondedFiles++;
+      myTimeToFirstByteNanos += file.myTimeToFirstByteNanos;
+      myRedirectNanos += file.myRedirectNanos;
+    }
+    synchronized (file) {
+      myParts += file.myParts;
+      myPartRetries += file.myPartRetries;
+      myPartBytes += file.myPartBytes;
+      myPartNanos += file.myPartNanos;
+      mySlowestPartBytesPerSecond = Math.min(mySlowestPartBytesPerSecond, file.mySlowestPartBytesPerSecond);
+    }
+  }
+
+  public synchronized int getFiles() {
+    return myFiles;
+  }
+
+  /**
+   * @return build statistic values by their keys, empty if no files were downloaded
+   */
+  @NotNull
+  public synchronized Map<String, Long> getStatisticValues() {
+    Map<String, Long> values = new LinkedHashMap<>();
+    if (myFiles == 0) return values;
+
+    long durationNanos = Math.max(1, myLastFinishNanos - myFirstStartNanos); // files are downloaded concurrently, so it's the wall time
+    values.put(STATISTIC_KEY_PREFIX + "files", (long)myFiles);
+    values.put(STATISTIC_KEY_PREFIX + "failedFiles", (long)myFailedFiles);
+    values.put(STATISTIC_KEY_PREFIX + "bytes", myBytes);
+    values.put(STATISTIC_KEY_PREFIX + "durationMs", TimeUnit.NANOSECONDS.toMillis(durationNanos));
+    values.put(STATISTIC_KEY_PREFIX + "bytesPerSecond", getBytesPerSecond(myBytes, durationNanos));
+    if (myRespondedFiles > 0) {
+      values.put(STATISTIC_KEY_PREFIX + "redirectMs", TimeUnit.NANOSECONDS.toMillis(myRedirectNanos / myRespondedFiles));
+      values.put(STATISTIC_KEY_PREFIX + "timeToFirstByteMs", TimeUnit.NANOSECONDS.toMillis(myTimeToFirstByteNanos / myRespondedFiles));
+    }
+    if (myParts > 0) {
+      values.put(STATISTIC_KEY_PREFIX + "parts", (long)myParts);
+      values.put(STATISTIC_KEY_PREFIX + "partBytesPerSecond", getBytesPerSecond(myPartBytes, myPartNanos));
+      values.put(STATISTIC_KEY_PREFIX + "slowestPartBytesPerSecond", mySlowestPartBytesPerSecond);
+    }
+    values.put(STATISTIC_KEY_PREFIX + "partRetries", (long)myPartRetries);
+    myFilesByMethod.forEach((method, files) -> values.put(STATISTIC_KEY_PREFIX + "files." + method, (long)files));
+    return values;
+  }
+
+  /**
+   * Publishes the statistic values and logs the summary with the details of the first files to the build log
+   */
+  public void publish(@NotNull BuildProgressLogger logger) {
+    List<FileStatistics> loggedFiles;
+    int files;
+    synchronized (this) {
+      loggedFiles = new ArrayList<>(myLoggedFiles);
+      files = myFiles;
+    }
+    if (files == 0) return;
+
+    getStatisticValues().forEach((key, value) -> logger.message(ServiceMessage.asString("buildStatisticValue", createStatisticAttributes(key, value))));
+    logger.message(toString());
+    if (files > loggedFiles.size()) {
+      logger.debug(String.format("Logging information for the first %d of %d downloaded files", loggedFiles.size(), files));
+    }
+    loggedFiles.forEach(file -> logger.debug(file.toString()));
+  }
+
+  @NotNull
+  private static Map<String, String> createStatisticAttributes(@NotNull String key, long value) {
+    Map<String, String> attributes = new LinkedHashMap<>();
+    attributes.put("key", key);
+    attributes.put("value", String.valueOf(value));
+    return attributes;
+  }
+
+  private static long getBytesPerSecond(long bytes, long nanos) {
+    return nanos > 0 ? (long)(bytes * (double)TimeUnit.SECONDS.toNanos(1) / nanos) : 0;
+  }
+
+  @Override
+  public synchronized String toString() {
+    Map<String, Long> values = getStatisticValues();
+    if (values.isEmpty()) return "S3 artifact downloads: no files";
+
+    return String.format("S3 artifact downloads: %s files (%s failed) of %s in %s ms, %s/s, average redirect %s ms, average time to first byte %s ms, %s parts, %s part retries, by method %s",
+                         myFiles, myFailedFiles, StringUtil.formatFileSize(myBytes), values.get(STATISTIC_KEY_PREFIX + "durationMs"),
+                         StringUtil.formatFileSize(values.get(STATISTIC_KEY_PREFIX + "bytesPerSecond")),
+                         values.getOrDefault(STATISTIC_KEY_PREFIX + "redirectMs", 0L), values.getOrDefault(STATISTIC_KEY_PREFIX + "timeToFirstByteMs", 0L),
+                         myParts, myPartRetries, myFilesByMethod);
+  }
+
+  /**
+   * Metrics of a single file download, parts of the file can report them concurrently
+   */
+  public final class FileStatistics {
+    @NotNull
+    private final String mySrcUrl;
+    @NotNull
+    private final Path myTargetFile;
+    private final long myStartNanos;
+    @NotNull
+    private final AtomicBoolean myIsFinished = new AtomicBoolean(false);
+
+    // written by the thread that resolves the redirects or finishes the download
+    private volatile long myRedirectNanos = -1;
+    private volatile long myTimeToFirstByteNanos = -1;
+    @Nullable
+    private volatile String myMethod;
+    private volatile long myBytes;
+    private volatile long myFinishNanos;
+    private volatile boolean myIsFailed;
+
+    // part fields, access should be synchronized by this
+    private int myParts;
+    private int myPartRetries;
+    private long myPartBytes;
+    private long myPartNanos;
+    private long mySlowestPartBytesPerSecond = Long.MAX_VALUE;
+
+    private FileStatistics(@NotNull String srcUrl, @NotNull Path targetFile, long startNanos) {
+      mySrcUrl = srcUrl;
+      myTargetFile = targetFile;
+      myStartNanos = startNanos;
+    }
+
+    /**
+     * @return current time of the statistics clock, to measure the duration of a request or a part
+     */
+    public long now() {
+      return myClockNanos.getAsLong();
+    }
+
+    /**
+     * Records the response of the direct URL, the time before the request is spent on the redirects.
+     * A later response replaces the earlier one, e.g. when a cached redirect has expired.
+     */
+    public void directUrlResponded(long requestStartNanos) {
+      myRedirectNanos = requestStartNanos - myStartNanos;
+      myTimeToFirstByteNanos = now() - requestStartNanos;
+    }
+
+    /**
+     * @param method {@link #METHOD_CACHE}, {@link #METHOD_SEQUENTIAL} or the name of the parallel download strategy
+     */
+    public void setMethod(@NotNull String method) {
+      myMethod = method;
+    }
+
+    public synchronized void partDownloaded(long bytes, long startNanos) {
+      long nanos = Math.max(1, now() - startNanos);
+      myParts++;
+      myPartBytes += bytes;
+      myPartNanos += nanos;
+      mySlowestPartBytesPerSecond = Math.min(mySlowestPartBytesPerSecond, getBytesPerSecond(bytes, nanos));
+    }
+
+    public synchronized void partRetried() {
+      myPartRetries++;
+    }
+
+    /**
+     * Adds the file to the build statistics, only the first call counts
+     *
+     * @param bytes size of the file if it was downloaded
+     */
+    public void finished(@Nullable Long bytes, boolean failed) {
+      if (!myIsFinished.compareAndSet(false, true)) return;
+
+      myBytes = bytes != null && !failed ? bytes : 0;
+      myIsFailed = failed;
+      myFinishNanos = now();
+      fileFinished(this);
+    }
+
+    @Override
+    public synchronized String toString() {
+      long durationNanos = Math.max(1, myFinishNanos - myStartNanos);
+      return String.format("%s %s from %s (%s): %s in %s ms, %s/s, redirect %s ms, time to first byte %s ms, %s parts, slowest part %s/s, %s part retries",
+                           myIsFailed ? "Failed to download" : "Downloaded", myTargetFile.getFileName(), mySrcUrl, myMethod,
+                           StringUtil.formatFileSize(myBytes), TimeUnit.NANOSECONDS.toMillis(durationNanos), StringUtil.formatFileSize(getBytesPerSecond(myBytes, durationNanos)),
+                           TimeUnit.NANOSECONDS.toMillis(myRedirectNanos), TimeUnit.NANOSECONDS.toMillis(myTimeToFirstByteNanos), myParts,
+                           myParts > 0 ? StringUtil.formatFileSize(mySlowestPartBytesPerSecond) : "-", myPartRetries);
+    }
+  }
+}
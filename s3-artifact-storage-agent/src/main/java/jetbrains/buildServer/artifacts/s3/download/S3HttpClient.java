@@ -7,17 +7,38 @@ import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.HttpState;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+/**
+ * Executes the requests of the transport with the blocking commons-httpclient, without following redirects
+ * and without the server credentials for anything but the server.
+ * Every request in flight holds the calling thread until its body is read, so the number of requests in flight is bounded
+ * by the executor: run the transport on virtual threads (see {@link S3VirtualThreadExecutor}) to have hundreds of them
+ * without as many OS threads.
+ */
 public final class S3HttpClient {
   @NotNull
   private final HttpClient myHttpClient;
   @NotNull
+  private final HttpClient myStorageHttpClient;
+  @NotNull
   private final DependencyHttpHelper myDependencyHttpHelper;
   @NotNull
   private final String myServerUrl;
 
   public S3HttpClient(@NotNull HttpClient httpClient, @NotNull DependencyHttpHelper dependencyHttpHelper, @NotNull String serverUrl) {
+    this(httpClient, null, dependencyHttpHelper, serverUrl);
+  }
+
+  /**
+   * @param storageHttpClient client for the requests to the storage, its connections outlive the build, null to use the server client for them as well
+   */
+  public S3HttpClient(@NotNull HttpClient httpClient,
+                      @Nullable HttpClient storageHttpClient,
+                      @NotNull DependencyHttpHelper dependencyHttpHelper,
+                      @NotNull String serverUrl) {
     myHttpClient = httpClient;
+    myStorageHttpClient = storageHttpClient != null ? storageHttpClient : httpClient;
     myDependencyHttpHelper = dependencyHttpHelper;
     myServerUrl = serverUrl;
   }
@@ -29,7 +50,7 @@ public final class S3HttpClient {
     // we need to clear the state because the HttpClient is configured to provide credentials for TC server in the Authorization header
     // we don't want to provide them to untrusted parties (see jetbrains.buildServer.artifacts.impl.HttpTransport)
     return !request.getURI().getURI().startsWith(myServerUrl)
-           ? myHttpClient.executeMethod(null, request, new HttpState())
+           ? myStorageHttpClient.executeMethod(null, request, new HttpState())
            : myHttpClient.executeMethod(request);
   }
 }
@@ -0,0 +1,124 @@
+package jetbrains.buildServer.artifacts.s3.download;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Bounded cache of direct (presigned) URLs the TeamCity server redirects artifact downloads to, so that repeated downloads skip the server.
+ * Entries expire a safety margin before the direct URL does, according to the max-age the server sends with the redirect.
+ * Once a file is downloaded, its entry also keeps the digest and the size of the object, so that a file in the download cache is taken
+ * without any request at all while the entry lives.
+ */
+public final class S3RedirectCache {
+  @NotNull
+  private final LongSupplier myClockMs;
+  private final long mySafetyMarginMs;
+
+  // state fields, access should be synchronized by this
+  @NotNull
+  private final Map<String, CachedRedirect> myRedirectsBySrcUrl;
+  private long myHits;
+  private long myMisses;
+
+  public S3RedirectCache(int maxEntries, long safetyMarginMs) {
+    this(maxEntries, safetyMarginMs, System::currentTimeMillis);
+  }
+
+  S3RedirectCache(int maxEntries, long safetyMarginMs, @NotNull LongSupplier clockMs) {
+    myClockMs = clockMs;
+    mySafetyMarginMs = safetyMarginMs;
+    myRedirectsBySrcUrl = new LinkedHashMap<String, CachedRedirect>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedRedirect> eldest) {
+        return size() > maxEntries; // least recently used entry is evicted
+      }
+    };
+  }
+
+  /**
+   * @return the direct URL or null if it's not cached or expires soon
+   */
+  @Nullable
+  public synchronized String get(@NotNull String srcUrl) {
+    CachedRedirect redirect = myRedirectsBySrcUrl.get(srcUrl);
+    if (redirect == null || redirect.myExpiresAtMs <= myClockMs.getAsLong()) {
+      if (redirect != null) myRedirectsBySrcUrl.remove(srcUrl);
+      myMisses++;
+      return null;
+    }
+
+    myHits++;
+    return redirect.myDirectUrl;
+  }
+
+  public synchronized void put(@NotNull String srcUrl, @NotNull String directUrl, long maxAgeSeconds) {
+    long ttlMs = TimeUnit.SECONDS.toMillis(maxAgeSeconds) - mySafetyMarginMs;
+    if (ttlMs <= 0) return; // would expire before it's used
+
+    myRedirectsBySrcUrl.put(srcUrl, new CachedRedirect(directUrl, myClockMs.getAsLong() + ttlMs));
+  }
+
+  /**
+   * @return digest and size of the object the cached direct URL points to, null if the redirect is not cached, expires soon or its object is not known yet
+   */
+  @Nullable
+  public synchronized CachedContent getContent(@NotNull String srcUrl) {
+    CachedRedirect redirect = myRedirectsBySrcUrl.get(srcUrl);
+    if (redirect == null || redirect.myExpiresAtMs <= myClockMs.getAsLong()) return null;
+    return redirect.myContent;
+  }
+
+  /**
+   * Remembers the object the cached direct URL points to, does nothing if the redirect is not cached
+   */
+  public synchronized void putContent(@NotNull String srcUrl, @NotNull String digest, long contentLength) {
+    CachedRedirect redirect = myRedirectsBySrcUrl.get(srcUrl);
+    if (redirect != null) redirect.myContent = new CachedContent(digest, contentLength);
+  }
+
+  public synchronized void invalidate(@NotNull String srcUrl) {
+    myRedirectsBySrcUrl.remove(srcUrl);
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("S3 redirect cache (entries: %s, hits: %s, misses: %s)", myRedirectsBySrcUrl.size(), myHits, myMisses);
+  }
+
+  private static final class CachedRedirect {
+    @NotNull
+    private final String myDirectUrl;
+    private final long myExpiresAtMs;
+    @Nullable
+    private CachedContent myContent;
+
+    private CachedRedirect(@NotNull String directUrl, long expiresAtMs) {
+      myDirectUrl = directUrl;
+      myExpiresAtMs = expiresAtMs;
+    }
+  }
+
+  public static final class CachedContent {
+    @NotNull
+    private final String myDigest;
+    private final long myContentLength;
+
+    private CachedContent(@NotNull String digest, long contentLength) {
+      myDigest = digest;
+      myContentLength = contentLength;
+    }
+
+    @NotNull
+    public String getDigest() {
+      return myDigest;
+    }
+
+    public long getContentLength() {
+      return myContentLength;
+    }
+  }
+}
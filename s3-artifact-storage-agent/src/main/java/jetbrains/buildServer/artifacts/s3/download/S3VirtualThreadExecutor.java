@@ -0,0 +1,185 @@
+package jetbrains.buildServer.artifacts.s3.download;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Runs every task in its own virtual thread, so the tasks blocked on the network don't hold OS threads.
+ * The number of tasks running at once is limited by the number of connections rather than by the number of threads,
+ * the rest of the tasks wait in the queue: started tasks would only wait for a connection in the HTTP connection pool and time out there.
+ * Virtual threads are available since Java 21, the agent can run an older one, so they are accessed by reflection.
+ */
+public final class S3VirtualThreadExecutor extends AbstractExecutorService {
+  private static final Logger LOGGER = Logger.getInstance(S3VirtualThreadExecutor.class);
+  @Nullable
+  private static final Method IS_VIRTUAL_METHOD = findIsVirtualMethod();
+
+  @NotNull
+  private final ExecutorService myThreadPerTaskExecutor;
+
+  // state fields, access should be synchronized by this
+  @NotNull
+  private final ArrayDeque<Runnable> myQueuedTasks = new ArrayDeque<>();
+  private int myMaxConcurrency;
+  private int myRunningTasks = 0;
+  private boolean myIsShutdown = false;
+
+  private S3VirtualThreadExecutor(@NotNull ExecutorService threadPerTaskExecutor, int maxConcurrency) {
+    myThreadPerTaskExecutor = threadPerTaskExecutor;
+    myMaxConcurrency = maxConcurrency;
+  }
+
+  /**
+   * @return the executor, or null if the JVM doesn't support virtual threads
+   */
+  @Nullable
+  public static S3VirtualThreadExecutor create(@NotNull String name, int maxConcurrency) {
+    if (maxConcurrency <= 0) throw new IllegalArgumentException(String.format("Max concurrency is not positive: %s", maxConcurrency));
+    if (IS_VIRTUAL_METHOD == null) return null;
+
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = Class.forName("java.lang.Thread$Builder").getMethod("name", String.class, long.class).invoke(builder, name + " ", 0L);
+      ThreadFactory threadFactory = (ThreadFactory)Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+      ExecutorService threadPerTaskExecutor = (ExecutorService)Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, threadFactory);
+      return new S3VirtualThreadExecutor(threadPerTaskExecutor, maxConcurrency);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      LOGGER.warn(String.format("Failed to create virtual thread executor %s: %s", name, e));
+      return null;
+    }
+  }
+
+  public static boolean isSupported() {
+    return IS_VIRTUAL_METHOD != null;
+  }
+
+  public static boolean isCurrentThreadVirtual() {
+    if (IS_VIRTUAL_METHOD == null) return false;
+    try {
+      return (Boolean)IS_VIRTUAL_METHOD.invoke(Thread.currentThread());
+    } catch (ReflectiveOperationException e) {
+      return false;
+    }
+  }
+
+  @Nullable
+  private static Method findIsVirtualMethod() {
+    try {
+      return Thread.class.getMethod("isVirtual");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  public synchronized int getMaxConcurrency() {
+    return myMaxConcurrency;
+  }
+
+  /**
+   * Changes the limit in place, the running tasks above the new limit are not interrupted
+   */
+  public void setMaxConcurrency(int maxConcurrency) {
+    if (maxConcurrency <= 0) throw new IllegalArgumentException(String.format("Max concurrency is not positive: %s", maxConcurrency));
+    synchronized (this) {
+      myMaxConcurrency = maxConcurrency;
+    }
+    startQueuedTasks();
+  }
+
+  @Override
+  public void execute(@NotNull Runnable task) {
+    synchronized (this) {
+      if (myIsShutdown) throw new RejectedExecutionException("Executor is shut down");
+      myQueuedTasks.add(task);
+    }
+    startQueuedTasks();
+  }
+
+  private void startQueuedTasks() {
+    while (true) {
+      Runnable task;
+      synchronized (this) {
+        if (myQueuedTasks.isEmpty()) {
+          if (myIsShutdown) myThreadPerTaskExecutor.shutdown(); // all the tasks are started, the running ones finish
+          return;
+        }
+        if (myRunningTasks >= myMaxConcurrency) return;
+
+        task = myQueuedTasks.poll();
+        myRunningTasks++;
+      }
+
+      try {
+        myThreadPerTaskExecutor.execute(() -> {
+          try {
+            task.run();
+          } finally {
+            taskFinished();
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        taskFinished();
+        throw e;
+      }
+    }
+  }
+
+  private void taskFinished() {
+    synchronized (this) {
+      myRunningTasks--;
+    }
+    startQueuedTasks();
+  }
+
+  @Override
+  public void shutdown() {
+    synchronized (this) {
+      myIsShutdown = true;
+    }
+    startQueuedTasks();
+  }
+
+  @NotNull
+  @Override
+  public List<Runnable> shutdownNow() {
+    List<Runnable> queuedTasks;
+    synchronized (this) {
+      myIsShutdown = true;
+      queuedTasks = new ArrayList<>(myQueuedTasks);
+      myQueuedTasks.clear();
+    }
+    myThreadPerTaskExecutor.shutdownNow();
+    return queuedTasks;
+  }
+
+  @Override
+  public synchronized boolean isShutdown() {
+    return myIsShutdown;
+  }
+
+  @Override
+  public boolean isTerminated() {
+    return myThreadPerTaskExecutor.isTerminated();
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+    return myThreadPerTaskExecutor.awaitTermination(timeout, unit);
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("S3VirtualThreadExecutor{maxConcurrency=%s, running=%s, queued=%s}", myMaxConcurrency, myRunningTasks, myQueuedTasks.size());
+  }
+}
@@ -0,0 +1,391 @@
+package jetbrains.buildServer.artifacts.s3.download.cache;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import org.jetbrains.annotations.NotNull;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static jetbrains.buildServer.artifacts.s3.download.S3DownloadIOUtil.ensureDirectoryExists;
+import static jetbrains.buildServer.artifacts.s3.download.S3DownloadIOUtil.getUnfinishedFilePath;
+
+/**
+ * Agent-local cache of downloaded artifacts keyed by their digest, bounded by size with least recently used eviction.
+ * The cache directory may be shared by several agents on the same host: entries are published by atomic moves,
+ * served entries are copied (or hard-linked) before use, and eviction is serialized by a file lock.
+ * Every entry has a checksum file with the SHA-256 of its content, an entry is served only if its content still has this checksum,
+ * so an entry that was changed through a hard link or damaged on disk is evicted instead of being served.
+ */
+public final class S3ArtifactDownloadCache {
+  private static final Logger LOGGER = Logger.getInstance(S3ArtifactDownloadCache.class);
+  private static final String ENTRIES_DIRECTORY_NAME = "entries";
+  private static final String TEMP_DIRECTORY_NAME = "tmp";
+  private static final String LOCK_FILE_NAME = ".lock";
+  private static final String CHECKSUM_FILE_SUFFIX = ".sha256";
+  private static final long STALE_TEMP_FILE_AGE_MS = TimeUnit.DAYS.toMillis(1);
+
+  @NotNull
+  private final Path myCacheDirectory;
+  @NotNull
+  private final Path myEntriesDirectory;
+  @NotNull
+  private final Path myTempDirectory;
+  @NotNull
+  private final Executor myStoreExecutor;
+  @NotNull
+  private final Object myEvictionLock = new Object(); // file locks are held on behalf of the whole JVM, threads have to be serialized separately
+
+  @NotNull
+  private final AtomicLong myHits = new AtomicLong();
+  @NotNull
+  private final AtomicLong myMisses = new AtomicLong();
+  @NotNull
+  private final AtomicLong myStores = new AtomicLong();
+  @NotNull
+  private final AtomicLong myEvictions = new AtomicLong();
+
+  /**
+   * @param storeExecutor executor of the stores in background
+   */
+  public S3ArtifactDownloadCache(@NotNull Path cacheDirectory, @NotNull Executor storeExecutor) {
+    myCacheDirectory = cacheDirectory;
+    myStoreExecutor = storeExecutor;
+    myEntriesDirectory = cacheDirectory.resolve(ENTRIES_DIRECTORY_NAME);
+    myTempDirectory = cacheDirectory.resolve(TEMP_DIRECTORY_NAME);
+  }
+
+  @NotNull
+  public Path getCacheDirectory() {
+    return myCacheDirectory;
+  }
+
+  /**
+   * Puts the cached file with the given digest to the target file.
+   *
+   * @return true if the cache had the file with the given digest and size and its content was intact, false otherwise
+   */
+  public boolean retrieve(@NotNull String digest, long fileSize, @NotNull Path targetFile, boolean useHardLink) {
+    Path entry = getEntryPath(digest);
+    Path checksumFile = getChecksumFilePath(entry);
+    try {
+      if (!Files.isRegularFile(entry) || Files.size(entry) != fileSize || !Files.isRegularFile(checksumFile)) {
+        myMisses.incrementAndGet();
+        return false;
+      }
+
+      String expectedChecksum = new String(Files.readAllBytes(checksumFile), StandardCharsets.US_ASCII).trim();
+      ensureDirectoryExists(targetFile.getParent());
+      Files.deleteIfExists(targetFile);
+      boolean isIntact = useHardLink && tryCreateHardLink(targetFile, entry)
+                         ? expectedChecksum.equals(computeChecksum(entry))
+                         : copyAtomically(entry, targetFile, expectedChecksum);
+      if (!isIntact) {
+        LOGGER.warn(String.format("Entry %s with digest %s in download cache %s doesn't match its checksum, evicting it", entry.getFileName(), digest, myCacheDirectory));
+        Files.deleteIfExists(targetFile);
+        deleteEntry(entry);
+        myMisses.incrementAndGet();
+        return false;
+      }
+
+      Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis())); // marks the entry as recently used
+      myHits.incrementAndGet();
+      return true;
+    } catch (IOException | RuntimeException e) {
+      // the entry might have been evicted by another agent in the meantime, the file will be downloaded
+      LOGGER.warnAndDebugDetails(String.format("Failed to retrieve file %s with digest %s from download cache %s: %s", targetFile, digest, myCacheDirectory, e.getMessage()), e);
+      myMisses.incrementAndGet();
+      return false;
+    }
+  }
+
+  /**
+   * Stores the downloaded file in the cache and evicts the least recently used entries if the cache exceeds the maximum size.
+   * Failures are not propagated, a file that is not stored will just be downloaded next time.
+   */
+  public void store(@NotNull String digest, long fileSize, @NotNull Path sourceFile, long maxCacheSizeBytes, boolean useHardLink) {
+    try {
+      doStore(digest, fileSize, sourceFile, Files.getLastModifiedTime(sourceFile), maxCacheSizeBytes, useHardLink);
+    } catch (IOException e) {
+      LOGGER.warnAndDebugDetails(String.format("Failed to store file %s with digest %s in download cache %s: %s", sourceFile, digest, myCacheDirectory, e.getMessage()), e);
+    }
+  }
+
+  /**
+   * Same as {@link #store(String, long, Path, long, boolean)}, but the file is copied and hashed on the store executor, so the download doesn't wait for it.
+   * The file is not stored if it is changed in the meantime, e.g. by the build that downloaded it.
+   */
+  public void storeInBackground(@NotNull String digest, long fileSize, @NotNull Path sourceFile, long maxCacheSizeBytes, boolean useHardLink) {
+    try {
+      FileTime lastModifiedTime = Files.getLastModifiedTime(sourceFile);
+      myStoreExecutor.execute(() -> {
+        try {
+          doStore(digest, fileSize, sourceFile, lastModifiedTime, maxCacheSizeBytes, useHardLink);
+        } catch (IOException e) {
+          LOGGER.debug(String.format("File %s with digest %s was not stored in download cache %s: %s", sourceFile, digest, myCacheDirectory, e.getMessage()));
+        }
+      });
+    } catch (IOException | RejectedExecutionException e) {
+      LOGGER.warnAndDebugDetails(String.format("Failed to store file %s with digest %s in download cache %s: %s", sourceFile, digest, myCacheDirectory, e.getMessage()), e);
+    }
+  }
+
+  /**
+   * @param lastModifiedTime last modification time of the downloaded file, the file is not stored if it was changed since then
+   * @throws IOException if the file was changed
+   */
+  private void doStore(@NotNull String digest, long fileSize, @NotNull Path sourceFile, @NotNull FileTime lastModifiedTime, long maxCacheSizeBytes, boolean useHardLink)
+    throws IOException {
+    if (fileSize > maxCacheSizeBytes) {
+      LOGGER.debug(String.format("File %s of size %s will not be stored in download cache %s: maximum cache size is %s", sourceFile, fileSize, myCacheDirectory, maxCacheSizeBytes));
+      return;
+    }
+
+    Path entry = getEntryPath(digest);
+    if (Files.isRegularFile(entry)) return; // already stored by a concurrent build
+
+    checkUnchanged(sourceFile, fileSize, lastModifiedTime);
+    Path tempFile = myTempDirectory.resolve(UUID.randomUUID() + ".tmp");
+    Path tempChecksumFile = myTempDirectory.resolve(UUID.randomUUID() + CHECKSUM_FILE_SUFFIX);
+    try {
+      ensureDirectoryExists(myEntriesDirectory);
+      ensureDirectoryExists(myTempDirectory);
+      String checksum;
+      if (useHardLink && tryCreateHardLink(tempFile, sourceFile)) {
+        checksum = computeChecksum(tempFile);
+      } else {
+        try (DigestInputStream source = new DigestInputStream(Files.newInputStream(sourceFile), createMessageDigest())) {
+          Files.copy(source, tempFile);
+          checksum = toHex(source.getMessageDigest().digest());
+        }
+      }
+      if (Files.size(tempFile) != fileSize) {
+        throw new IOException(String.format("File %s has size %s, expected %s", sourceFile, Files.size(tempFile), fileSize));
+      }
+      checkUnchanged(sourceFile, fileSize, lastModifiedTime); // the file could be written to while it was copied
+
+      // the checksum is published first, an entry without it is never served
+      Files.write(tempChecksumFile, checksum.getBytes(StandardCharsets.US_ASCII));
+      Files.move(tempChecksumFile, getChecksumFilePath(entry), StandardCopyOption.ATOMIC_MOVE);
+      Files.move(tempFile, entry, StandardCopyOption.ATOMIC_MOVE);
+      myStores.incrementAndGet();
+      LOGGER.debug(String.format("Stored file %s with digest %s in download cache %s", sourceFile, digest, myCacheDirectory));
+    } catch (IOException | RuntimeException e) {
+      LOGGER.warnAndDebugDetails(String.format("Failed to store file %s with digest %s in download cache %s: %s", sourceFile, digest, myCacheDirectory, e.getMessage()), e);
+      deleteQuietly(tempFile);
+      deleteQuietly(tempChecksumFile);
+      return;
+    }
+
+    evictIfNeeded(maxCacheSizeBytes);
+  }
+
+  private static void checkUnchanged(@NotNull Path file, long fileSize, @NotNull FileTime lastModifiedTime) throws IOException {
+    if (Files.size(file) != fileSize || !Files.getLastModifiedTime(file).equals(lastModifiedTime)) {
+      throw new IOException(String.format("File %s was changed after it was downloaded", file));
+    }
+  }
+
+  private void evictIfNeeded(long maxCacheSizeBytes) {
+    synchronized (myEvictionLock) {
+      try (FileChannel lockChannel = FileChannel.open(myCacheDirectory.resolve(LOCK_FILE_NAME), CREATE, WRITE);
+           FileLock ignored = lockChannel.lock()) {
+        deleteStaleTempFiles();
+
+        List<CacheEntry> entries = listEntries();
+        long totalSize = entries.stream().mapToLong(entry -> entry.mySize).sum();
+        if (totalSize <= maxCacheSizeBytes) return;
+
+        entries.sort(Comparator.comparingLong(entry -> entry.myLastUsedMs));
+        for (CacheEntry entry : entries) {
+          if (totalSize <= maxCacheSizeBytes) break;
+          if (deleteEntry(entry.myPath)) {
+            totalSize -= entry.mySize;
+            myEvictions.incrementAndGet();
+            LOGGER.debug(String.format("Evicted %s of size %s from download cache %s", entry.myPath.getFileName(), entry.mySize, myCacheDirectory));
+          }
+        }
+      } catch (IOException | RuntimeException e) {
+        LOGGER.warnAndDebugDetails(String.format("Failed to evict entries from download cache %s: %s", myCacheDirectory, e.getMessage()), e);
+      }
+    }
+  }
+
+  @NotNull
+  private List<CacheEntry> listEntries() throws IOException {
+    List<CacheEntry> entries = new ArrayList<>();
+    try (Stream<Path> paths = Files.list(myEntriesDirectory)) {
+      paths.forEach(path -> {
+        try {
+          BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+          if (attributes.isRegularFile() && !path.getFileName().toString().endsWith(CHECKSUM_FILE_SUFFIX)) {
+            entries.add(new CacheEntry(path, attributes.size(), attributes.lastModifiedTime().toMillis()));
+          }
+        } catch (IOException e) {
+          // evicted by another agent in the meantime
+        }
+      });
+    }
+    return entries;
+  }
+
+  private void deleteStaleTempFiles() throws IOException {
+    if (!Files.isDirectory(myTempDirectory)) return;
+
+    long staleBeforeMs = System.currentTimeMillis() - STALE_TEMP_FILE_AGE_MS;
+    try (Stream<Path> paths = Files.list(myTempDirectory)) {
+      paths.forEach(path -> {
+        try {
+          if (Files.getLastModifiedTime(path).toMillis() < staleBeforeMs) deleteQuietly(path);
+        } catch (IOException e) {
+          // deleted in the meantime
+        }
+      });
+    }
+  }
+
+  @NotNull
+  private Path getEntryPath(@NotNull String digest) {
+    // digest is hashed once again to get a file name that is valid on any file system
+    return myEntriesDirectory.resolve(toHex(createMessageDigest().digest(digest.getBytes(StandardCharsets.UTF_8))));
+  }
+
+  @NotNull
+  private static Path getChecksumFilePath(@NotNull Path entry) {
+    return entry.resolveSibling(entry.getFileName() + CHECKSUM_FILE_SUFFIX);
+  }
+
+  private static boolean deleteEntry(@NotNull Path entry) {
+    boolean isDeleted = deleteQuietly(entry);
+    deleteQuietly(getChecksumFilePath(entry));
+    return isDeleted;
+  }
+
+  @NotNull
+  private static String computeChecksum(@NotNull Path file) throws IOException {
+    MessageDigest messageDigest = createMessageDigest();
+    byte[] buffer = new byte[64 * 1024];
+    try (InputStream input = Files.newInputStream(file)) {
+      int read;
+      while ((read = input.read(buffer)) >= 0) {
+        messageDigest.update(buffer, 0, read);
+      }
+    }
+    return toHex(messageDigest.digest());
+  }
+
+  @NotNull
+  private static MessageDigest createMessageDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not supported", e);
+    }
+  }
+
+  @NotNull
+  private static String toHex(@NotNull byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+  private static boolean tryCreateHardLink(@NotNull Path link, @NotNull Path existingFile) {
+    try {
+      Files.createLink(link, existingFile);
+      return true;
+    } catch (IOException | UnsupportedOperationException e) {
+      LOGGER.debug(String.format("Failed to create hard link %s to %s, falling back to copying: %s", link, existingFile, e.getMessage()));
+      return false;
+    }
+  }
+
+  /**
+   * Copies the file hashing it on the way, the target file appears only if the copied content has the expected checksum.
+   *
+   * @return true if the file was copied, false if its content doesn't have the expected checksum
+   */
+  private static boolean copyAtomically(@NotNull Path sourceFile, @NotNull Path targetFile, @NotNull String expectedChecksum) throws IOException {
+    Path unfinishedTargetFile = getUnfinishedFilePath(targetFile);
+    try {
+      String checksum;
+      try (DigestInputStream source = new DigestInputStream(Files.newInputStream(sourceFile), createMessageDigest())) {
+        Files.copy(source, unfinishedTargetFile, StandardCopyOption.REPLACE_EXISTING);
+        checksum = toHex(source.getMessageDigest().digest());
+      }
+      if (!expectedChecksum.equals(checksum)) {
+        deleteQuietly(unfinishedTargetFile);
+        return false;
+      }
+      Files.move(unfinishedTargetFile, targetFile, StandardCopyOption.REPLACE_EXISTING);
+      return true;
+    } catch (IOException | RuntimeException e) {
+      deleteQuietly(unfinishedTargetFile);
+      throw e;
+    }
+  }
+
+  private static boolean deleteQuietly(@NotNull Path file) {
+    try {
+      return Files.deleteIfExists(file);
+    } catch (IOException e) {
+      LOGGER.debug(String.format("Failed to delete %s: %s", file, e.getMessage()));
+      return false;
+    }
+  }
+
+  public long getHits() {
+    return myHits.get();
+  }
+
+  public long getMisses() {
+    return myMisses.get();
+  }
+
+  public long getStores() {
+    return myStores.get();
+  }
+
+  public long getEvictions() {
+    return myEvictions.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("S3 artifact download cache %s (hits: %s, misses: %s, stores: %s, evictions: %s)",
+                         myCacheDirectory, getHits(), getMisses(), getStores(), getEvictions());
+  }
+
+  private static final class CacheEntry {
+    @NotNull
+    private final Path myPath;
+    private final long mySize;
+    private final long myLastUsedMs;
+
+    private CacheEntry(@NotNull Path path, long size, long lastUsedMs) {
+      myPath = path;
+      mySize = size;
+      myLastUsedMs = lastUsedMs;
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package jetbrains.buildServer.artifacts.s3.download.parallel;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Thread-safe queue of file parts that are cut from the given byte regions on demand.
+ * The size of the next part is chosen so that downloading it takes about the target duration with the throughput measured on the previously downloaded parts.
+ * Parts shrink towards the end of the file so that the tail is spread among all workers.
+ */
+public final class AdaptiveFilePartQueue {
+  // weight of the latest throughput sample in the moving average
+  private static final double THROUGHPUT_SMOOTHING_FACTOR = 0.3;
+  // initial part size is chosen to give every worker several parts before the throughput is known
+  private static final int INITIAL_PARTS_PER_WORKER = 8;
+
+  @NotNull
+  private final Deque<long[]> myRegions = new ArrayDeque<>(); // {startByte, endByte} pairs of bytes that are not taken yet
+  private final int myWorkers;
+  private final long myMinPartSize;
+  private final long myMaxPartSize;
+  private final long myTargetPartDurationNanos;
+  private final long myInitialPartSize;
+
+  // state fields, access should be synchronized by this
+  private long myRemainingBytes;
+  private int myNextPartNumber = 0;
+  private double myBytesPerNanoEstimate = -1; // negative until the first part is downloaded
+
+  public AdaptiveFilePartQueue(@NotNull List<FilePart> regions, int workers, long minPartSize, long maxPartSize, long targetPartDurationNanos) {
+    if (workers <= 0) throw new IllegalArgumentException(String.format("Number of workers is not positive (%s)", workers));
+    if (minPartSize <= 0) throw new IllegalArgumentException(String.format("Minimum part size is not positive (%s)", minPartSize));
+    if (maxPartSize < minPartSize) throw new IllegalArgumentException(String.format("Maximum part size (%s) is less than minimum part size (%s)", maxPartSize, minPartSize));
+    if (targetPartDurationNanos <= 0) throw new IllegalArgumentException(String.format("Target part duration is not positive (%s)", targetPartDurationNanos));
+
+    for (FilePart region : regions) {
+      myRegions.addLast(new long[]{region.getStartByte(), region.getEndByte()});
+      myRemainingBytes += region.getSizeBytes();
+    }
+    myWorkers = workers;
+    myMinPartSize = minPartSize;
+    myMaxPartSize = maxPartSize;
+    myTargetPartDurationNanos = targetPartDurationNanos;
+    myInitialPartSize = clampPartSize(myRemainingBytes / ((long)workers * INITIAL_PARTS_PER_WORKER));
+  }
+
+  /**
+   * @return the next part to download or null if all the bytes are already taken
+   */
+  @Nullable
+  public synchronized FilePart next() {
+    long[] region = myRegions.peekFirst();
+    if (region == null) return null;
+
+    long regionStartByte = region[0];
+    long regionSize = region[1] - regionStartByte + 1;
+    long partSize = Math.min(getNextPartSize(), regionSize);
+    if (regionSize - partSize < myMinPartSize) {
+      partSize = regionSize; // don't leave too few bytes for a separate part, take them all
+    }
+
+    FilePart part = new FilePart(myNextPartNumber++, regionStartByte, regionStartByte + partSize - 1);
+    if (partSize == regionSize) {
+      myRegions.pollFirst();
+    } else {
+      region[0] = regionStartByte + partSize;
+    }
+    myRemainingBytes -= partSize;
+    return part;
+  }
+
+  /**
+   * Records the throughput of a downloaded part, it's used to choose the size of the next parts.
+   */
+  public synchronized void partDownloaded(long bytes, long elapsedNanos) {
+    if (bytes <= 0 || elapsedNanos <= 0) return;
+
+    double bytesPerNano = (double)bytes / elapsedNanos;
+    myBytesPerNanoEstimate = myBytesPerNanoEstimate < 0
+                             ? bytesPerNano
+                             : THROUGHPUT_SMOOTHING_FACTOR * bytesPerNano + (1 - THROUGHPUT_SMOOTHING_FACTOR) * myBytesPerNanoEstimate;
+  }
+
+  public synchronized long getNextPartSize() {
+    long partSize = myBytesPerNanoEstimate < 0 ? myInitialPartSize : (long)(myBytesPerNanoEstimate * myTargetPartDurationNanos);
+    long fairShare = (myRemainingBytes + myWorkers - 1) / myWorkers;
+    return clampPartSize(Math.min(partSize, fairShare));
+  }
+
+  public synchronized long getRemainingBytes() {
+    return myRemainingBytes;
+  }
+
+  private long clampPartSize(long partSize) {
+    return Math.max(myMinPartSize, Math.min(myMaxPartSize, partSize));
+  }
+}
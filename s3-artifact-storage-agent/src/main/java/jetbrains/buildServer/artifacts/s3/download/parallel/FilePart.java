@@ -6,11 +6,17 @@ public final class FilePart {
   private final int myPartNumber;
   private final long myStartByte;
   private final long myEndByte;
+  private final long myPartOffset; // number of bytes of the original part before this one, positive for remainders of the retried parts
 
   public FilePart(int partNumber, long startByte, long endByte) {
+    this(partNumber, startByte, endByte, 0);
+  }
+
+  private FilePart(int partNumber, long startByte, long endByte, long partOffset) {
     myPartNumber = partNumber;
     myStartByte = startByte;
     myEndByte = endByte;
+    myPartOffset = partOffset;
   }
 
   public int getPartNumber() {
@@ -29,6 +35,29 @@ public final class FilePart {
     return myEndByte - myStartByte + 1;
   }
 
+  public long getPartOffset() {
+    return myPartOffset;
+  }
+
+  /**
+   * @return the part with the same number that covers the bytes of this part left after the given number of bytes
+   */
+  @NotNull
+  public FilePart getRemainder(long transferredBytes) {
+    if (transferredBytes <= 0 || transferredBytes >= getSizeBytes()) {
+      throw new IllegalArgumentException(String.format("Number of transferred bytes %s is out of bounds of part %s", transferredBytes, getDescription()));
+    }
+    return new FilePart(myPartNumber, myStartByte + transferredBytes, myEndByte, myPartOffset + transferredBytes);
+  }
+
+  /**
+   * @return the part with the same bytes that is tracked separately from this one, parts are tracked by identity
+   */
+  @NotNull
+  public FilePart duplicate() {
+    return new FilePart(myPartNumber, myStartByte, myEndByte, myPartOffset);
+  }
+
   @NotNull
   public String getDescription() {
     return String.format("%s (bytes %s-%s)", myPartNumber, myStartByte, myEndByte);
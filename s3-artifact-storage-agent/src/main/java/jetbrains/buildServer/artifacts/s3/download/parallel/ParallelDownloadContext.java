@@ -2,11 +2,16 @@ package jetbrains.buildServer.artifacts.s3.download.parallel;
 
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.artifacts.s3.download.S3BandwidthLimiter;
 import jetbrains.buildServer.artifacts.s3.download.S3DownloadConfiguration;
+import jetbrains.buildServer.artifacts.s3.download.S3DownloadStatistics.FileStatistics;
 import jetbrains.buildServer.artifacts.s3.download.S3HttpClient;
 import jetbrains.buildServer.artifacts.s3.download.parallel.splitter.FileSplitter;
+import org.apache.commons.httpclient.HttpMethod;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public final class ParallelDownloadContext {
   @NotNull
@@ -21,19 +26,36 @@ public final class ParallelDownloadContext {
   private final Executor myExecutor;
   @NotNull
   private final AtomicBoolean myInterruptedFlag;
+  @NotNull
+  private final AtomicReference<HttpMethod> myProbeRequest;
+  @Nullable
+  private final S3BandwidthLimiter myBandwidthLimiter;
+  @Nullable
+  private final FileStatistics myFileStatistics;
+  @Nullable
+  private final UnfinishedDownloads myUnfinishedDownloads;
 
-  public ParallelDownloadContext(@NotNull S3DownloadConfiguration configuration,
-                                 @NotNull AgentRunningBuild runningBuild,
-                                 @NotNull FileSplitter fileSplitter,
-                                 @NotNull S3HttpClient httpClient,
-                                 @NotNull Executor executor,
-                                 @NotNull AtomicBoolean interruptedFlag) {
-    myConfiguration = configuration;
-    myRunningBuild = runningBuild;
-    myFileSplitter = fileSplitter;
-    myHttpClient = httpClient;
-    myExecutor = executor;
-    myInterruptedFlag = interruptedFlag;
+  private ParallelDownloadContext(@NotNull Builder builder) {
+    myConfiguration = builder.myConfiguration;
+    myRunningBuild = builder.myRunningBuild;
+    myFileSplitter = builder.myFileSplitter;
+    myHttpClient = builder.myHttpClient;
+    myExecutor = builder.myExecutor;
+    myInterruptedFlag = builder.myInterruptedFlag;
+    myProbeRequest = new AtomicReference<>(builder.myProbeRequest);
+    myBandwidthLimiter = builder.myBandwidthLimiter;
+    myFileStatistics = builder.myFileStatistics;
+    myUnfinishedDownloads = builder.myUnfinishedDownloads;
+  }
+
+  @NotNull
+  public static Builder builder(@NotNull S3DownloadConfiguration configuration,
+                                @NotNull AgentRunningBuild runningBuild,
+                                @NotNull FileSplitter fileSplitter,
+                                @NotNull S3HttpClient httpClient,
+                                @NotNull Executor executor,
+                                @NotNull AtomicBoolean interruptedFlag) {
+    return new Builder(configuration, runningBuild, fileSplitter, httpClient, executor, interruptedFlag);
   }
 
   @NotNull
@@ -65,4 +87,105 @@ public final class ParallelDownloadContext {
   public AtomicBoolean getInterruptedFlag() {
     return myInterruptedFlag;
   }
+
+  @Nullable
+  public S3BandwidthLimiter getBandwidthLimiter() {
+    return myBandwidthLimiter;
+  }
+
+  @Nullable
+  public FileStatistics getFileStatistics() {
+    return myFileStatistics;
+  }
+
+  @Nullable
+  public UnfinishedDownloads getUnfinishedDownloads() {
+    return myUnfinishedDownloads;
+  }
+
+  /**
+   * @return the probing request if it was not taken yet, the caller is responsible for releasing its connection
+   */
+  @Nullable
+  public HttpMethod takeProbeRequest() {
+    return myProbeRequest.getAndSet(null);
+  }
+
+  public static final class Builder {
+    @NotNull
+    private final S3DownloadConfiguration myConfiguration;
+    @NotNull
+    private final AgentRunningBuild myRunningBuild;
+    @NotNull
+    private final FileSplitter myFileSplitter;
+    @NotNull
+    private final S3HttpClient myHttpClient;
+    @NotNull
+    private final Executor myExecutor;
+    @NotNull
+    private final AtomicBoolean myInterruptedFlag;
+    @Nullable
+    private HttpMethod myProbeRequest;
+    @Nullable
+    private S3BandwidthLimiter myBandwidthLimiter;
+    @Nullable
+    private FileStatistics myFileStatistics;
+    @Nullable
+    private UnfinishedDownloads myUnfinishedDownloads;
+
+    private Builder(@NotNull S3DownloadConfiguration configuration,
+                    @NotNull AgentRunningBuild runningBuild,
+                    @NotNull FileSplitter fileSplitter,
+                    @NotNull S3HttpClient httpClient,
+                    @NotNull Executor executor,
+                    @NotNull AtomicBoolean interruptedFlag) {
+      myConfiguration = configuration;
+      myRunningBuild = runningBuild;
+      myFileSplitter = fileSplitter;
+      myHttpClient = httpClient;
+      myExecutor = executor;
+      myInterruptedFlag = interruptedFlag;
+    }
+
+    /**
+     * @param probeRequest request to the direct URL with the response headers received and the body not read yet, its body is streamed into the first part
+     */
+    @NotNull
+    public Builder probeRequest(@Nullable HttpMethod probeRequest) {
+      myProbeRequest = probeRequest;
+      return this;
+    }
+
+    /**
+     * @param bandwidthLimiter limiter that all the parts of the download take the read bytes from, null if the bandwidth is not limited
+     */
+    @NotNull
+    public Builder bandwidthLimiter(@Nullable S3BandwidthLimiter bandwidthLimiter) {
+      myBandwidthLimiter = bandwidthLimiter;
+      return this;
+    }
+
+    /**
+     * @param fileStatistics statistics of the download that the parts report their throughput and retries to, null if they are not collected
+     */
+    @NotNull
+    public Builder fileStatistics(@Nullable FileStatistics fileStatistics) {
+      myFileStatistics = fileStatistics;
+      return this;
+    }
+
+    /**
+     * @param unfinishedDownloads unfinished downloads of the build that are deleted when it finishes, null if the downloads are not resumed
+     */
+    @NotNull
+    public Builder unfinishedDownloads(@Nullable UnfinishedDownloads unfinishedDownloads) {
+      myUnfinishedDownloads = unfinishedDownloads;
+      return this;
+    }
+
+    @NotNull
+    public ParallelDownloadContext build() {
+      return new ParallelDownloadContext(this);
+    }
+  }
 }
@@ -0,0 +1,301 @@
+package jetbrains.buildServer.artifacts.s3.download.parallel;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Append-only journal of byte ranges that were already written to the unfinished file during a parallel download.
+ * Allows a retried download to fetch only the missing ranges, as long as the object in the storage has the same fingerprint (e.g. ETag).
+ * Ranges are recorded only after their bytes are written and forced to the storage device, and a truncated last line either can't be parsed
+ * or describes a shorter range, so the recorded ranges are always a subset of the bytes that survive a crash.
+ * The download threads only count the written bytes, the ranges are recorded by a flusher that forces the file once for all the parts.
+ */
+public final class ParallelDownloadJournal {
+  private static final Logger LOGGER = Logger.getInstance(ParallelDownloadJournal.class);
+  private static final String HEADER = "S3 parallel download journal v1";
+  private static final String SIZE_PREFIX = "size ";
+  private static final String FINGERPRINT_PREFIX = "fingerprint ";
+  private static final String RANGE_PREFIX = "range ";
+  private static final long CHECKPOINT_BYTES = 16L * 1024 * 1024;
+
+  @NotNull
+  private final Path myJournalFile;
+  @NotNull
+  private final Path myDataFile;
+  private final long myFileSize;
+  @NotNull
+  private final String myObjectFingerprint;
+  @NotNull
+  private final Executor myFlusher;
+  @NotNull
+  private final Object myFlushLock = new Object(); // only one flush writes to the journal file at a time
+  @NotNull
+  private final AtomicBoolean myIsFlushScheduled = new AtomicBoolean();
+  private boolean myIsClosed = false; // guarded by myFlushLock
+
+  // state fields, access should be synchronized by this
+  @NotNull
+  private final TreeMap<Long, Long> myCompletedRanges = new TreeMap<>(); // start byte -> end byte, ranges don't overlap and are not adjacent
+  @NotNull
+  private final Map<FilePart, long[]> myPartProgress = new IdentityHashMap<>(); // part -> {bytes taken by a flush, transferred bytes}
+  @NotNull
+  private final List<long[]> myFinishedRanges = new ArrayList<>(); // ranges of the finished parts that are not taken by a flush yet
+
+  private ParallelDownloadJournal(@NotNull Path journalFile, @NotNull Path dataFile, long fileSize, @NotNull String objectFingerprint, @NotNull Executor flusher) {
+    myJournalFile = journalFile;
+    myDataFile = dataFile;
+    myFileSize = fileSize;
+    myObjectFingerprint = objectFingerprint;
+    myFlusher = flusher;
+  }
+
+  /**
+   * @param dataFile unfinished file the downloaded bytes are written to, it is forced before a range is recorded
+   * @param flusher executor that records the ranges, it should run one task at a time off the download threads
+   */
+  @NotNull
+  public static ParallelDownloadJournal create(@NotNull Path journalFile,
+                                               @NotNull Path dataFile,
+                                               long fileSize,
+                                               @NotNull String objectFingerprint,
+                                               @NotNull Executor flusher) throws IOException {
+    if (objectFingerprint.contains("\n")) throw new IllegalArgumentException("Object fingerprint must be a single line");
+
+    String header = HEADER + "\n" + SIZE_PREFIX + fileSize + "\n" + FINGERPRINT_PREFIX + objectFingerprint + "\n";
+    Files.write(journalFile, header.getBytes(StandardCharsets.UTF_8), CREATE, WRITE, TRUNCATE_EXISTING);
+    return new ParallelDownloadJournal(journalFile, dataFile, fileSize, objectFingerprint, flusher);
+  }
+
+  /**
+   * @return the journal or null if the journal file doesn't exist or is corrupted
+   */
+  @Nullable
+  public static ParallelDownloadJournal load(@NotNull Path journalFile, @NotNull Path dataFile, @NotNull Executor flusher) {
+    if (!Files.isRegularFile(journalFile)) return null;
+
+    try {
+      List<String> lines = Files.readAllLines(journalFile, StandardCharsets.UTF_8);
+      if (lines.size() < 3 || !HEADER.equals(lines.get(0)) || !lines.get(1).startsWith(SIZE_PREFIX) || !lines.get(2).startsWith(FINGERPRINT_PREFIX)) {
+        LOGGER.debug(String.format("Ignoring download journal %s with unexpected header", journalFile));
+        return null;
+      }
+
+      long fileSize = Long.parseLong(lines.get(1).substring(SIZE_PREFIX.length()));
+      String objectFingerprint = lines.get(2).substring(FINGERPRINT_PREFIX.length());
+      ParallelDownloadJournal journal = new ParallelDownloadJournal(journalFile, dataFile, fileSize, objectFingerprint, flusher);
+      for (String line : lines.subList(3, lines.size())) {
+        long[] range = parseRange(line, fileSize);
+        if (range == null) {
+          LOGGER.debug(String.format("Ignoring malformed line \"%s\" of download journal %s", line, journalFile));
+          continue;
+        }
+        journal.addCompletedRange(range[0], range[1]);
+      }
+      return journal;
+    } catch (IOException | RuntimeException e) {
+      LOGGER.warnAndDebugDetails(String.format("Failed to read download journal %s: %s", journalFile, e.getMessage()), e);
+      return null;
+    }
+  }
+
+  @Nullable
+  private static long[] parseRange(@NotNull String line, long fileSize) {
+    if (!line.startsWith(RANGE_PREFIX)) return null;
+
+    String[] bytes = line.substring(RANGE_PREFIX.length()).split(" ");
+    if (bytes.length != 2) return null;
+    try {
+      long startByte = Long.parseLong(bytes[0]);
+      long endByte = Long.parseLong(bytes[1]);
+      if (startByte < 0 || startByte > endByte || endByte >= fileSize) return null;
+      return new long[]{startByte, endByte};
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  public boolean matches(long fileSize, @NotNull String objectFingerprint) {
+    return myFileSize == fileSize && myObjectFingerprint.equals(objectFingerprint);
+  }
+
+  @NotNull
+  public Path getJournalFile() {
+    return myJournalFile;
+  }
+
+  public synchronized long getCompletedBytes() {
+    long completedBytes = 0;
+    for (Map.Entry<Long, Long> range : myCompletedRanges.entrySet()) {
+      completedBytes += range.getValue() - range.getKey() + 1;
+    }
+    return completedBytes;
+  }
+
+  /**
+   * @return parts (keeping their part numbers) that cover the bytes of the given parts that are not completed yet
+   */
+  @NotNull
+  public synchronized List<FilePart> getMissingParts(@NotNull List<FilePart> fileParts) {
+    List<FilePart> missingParts = new ArrayList<>();
+    for (FilePart filePart : fileParts) {
+      long position = filePart.getStartByte();
+      Map.Entry<Long, Long> range = myCompletedRanges.floorEntry(position);
+      if (range == null || range.getValue() < position) {
+        range = myCompletedRanges.higherEntry(position);
+      }
+
+      while (position <= filePart.getEndByte()) {
+        if (range == null || range.getKey() > filePart.getEndByte()) {
+          missingParts.add(new FilePart(filePart.getPartNumber(), position, filePart.getEndByte()));
+          break;
+        }
+
+        if (range.getKey() > position) {
+          missingParts.add(new FilePart(filePart.getPartNumber(), position, range.getKey() - 1));
+        }
+        position = Math.max(position, range.getValue() + 1);
+        range = myCompletedRanges.higherEntry(range.getKey());
+      }
+    }
+    return missingParts;
+  }
+
+  /**
+   * Should be called after the bytes of the part were written to the unfinished file, schedules a flush once in a while.
+   */
+  public void partBytesTransferred(@NotNull FilePart filePart, long bytes) {
+    boolean isCheckpointDue;
+    synchronized (this) {
+      long[] progress = myPartProgress.computeIfAbsent(filePart, part -> new long[2]);
+      progress[1] += bytes;
+      isCheckpointDue = progress[1] - progress[0] >= CHECKPOINT_BYTES;
+    }
+    if (isCheckpointDue) scheduleFlush();
+  }
+
+  /**
+   * Should be called after all the bytes of the part were written to the unfinished file.
+   */
+  public void partDownloaded(@NotNull FilePart filePart) {
+    synchronized (this) {
+      long[] progress = myPartProgress.remove(filePart);
+      long takenBytes = progress != null ? progress[0] : 0;
+      if (takenBytes < filePart.getSizeBytes()) {
+        myFinishedRanges.add(new long[]{filePart.getStartByte() + takenBytes, filePart.getEndByte()});
+      }
+    }
+    scheduleFlush();
+  }
+
+  /**
+   * Should be called when the download of the part fails, the bytes that were written before the failure are recorded by the next flush.
+   */
+  public void partInterrupted(@NotNull FilePart filePart) {
+    synchronized (this) {
+      long[] progress = myPartProgress.remove(filePart);
+      if (progress != null && progress[1] > progress[0]) {
+        myFinishedRanges.add(new long[]{filePart.getStartByte() + progress[0], filePart.getStartByte() + progress[1] - 1});
+      }
+    }
+    scheduleFlush();
+  }
+
+  private void scheduleFlush() {
+    if (!myIsFlushScheduled.compareAndSet(false, true)) return; // the scheduled flush takes the bytes transferred until it starts
+
+    try {
+      myFlusher.execute(() -> {
+        myIsFlushScheduled.set(false);
+        flush();
+      });
+    } catch (RejectedExecutionException e) {
+      myIsFlushScheduled.set(false);
+      LOGGER.debug(String.format("Failed to schedule flush of download journal %s: %s", myJournalFile, e.getMessage()));
+    }
+  }
+
+  /**
+   * Records the ranges written so far, the unfinished file is forced once for all of them.
+   * Called by the flusher, and before the unfinished file is kept for a retry, so that the retry doesn't wait for the flusher.
+   */
+  public void flush() {
+    synchronized (myFlushLock) {
+      if (myIsClosed) return;
+
+      List<long[]> ranges = takeUnrecordedRanges();
+      if (ranges.isEmpty()) return;
+      try {
+        // the bytes are written through other channels, forcing any channel of the file makes them durable before the ranges are recorded
+        try (FileChannel dataChannel = FileChannel.open(myDataFile, WRITE)) {
+          dataChannel.force(false);
+        }
+        StringBuilder lines = new StringBuilder();
+        for (long[] range : ranges) {
+          lines.append(RANGE_PREFIX).append(range[0]).append(" ").append(range[1]).append("\n");
+        }
+        Files.write(myJournalFile, lines.toString().getBytes(StandardCharsets.UTF_8), WRITE, APPEND);
+        synchronized (this) {
+          for (long[] range : ranges) {
+            addCompletedRange(range[0], range[1]);
+          }
+        }
+      } catch (IOException e) {
+        // not fatal: the ranges will be downloaded again if the download is resumed
+        LOGGER.warnAndDebugDetails(String.format("Failed to record %s ranges in download journal %s: %s", ranges.size(), myJournalFile, e.getMessage()), e);
+      }
+    }
+  }
+
+  /**
+   * Stops recording the ranges, should be called before the unfinished file and the journal are renamed or deleted. Waits for the running flush.
+   */
+  public void close() {
+    synchronized (myFlushLock) {
+      myIsClosed = true;
+    }
+  }
+
+  @NotNull
+  private synchronized List<long[]> takeUnrecordedRanges() {
+    List<long[]> ranges = new ArrayList<>(myFinishedRanges);
+    myFinishedRanges.clear();
+    for (Map.Entry<FilePart, long[]> partProgress : myPartProgress.entrySet()) {
+      long[] progress = partProgress.getValue();
+      if (progress[1] > progress[0]) {
+        long startByte = partProgress.getKey().getStartByte();
+        ranges.add(new long[]{startByte + progress[0], startByte + progress[1] - 1});
+        progress[0] = progress[1];
+      }
+    }
+    return ranges;
+  }
+
+  private void addCompletedRange(long startByte, long endByte) {
+    Map.Entry<Long, Long> previous = myCompletedRanges.floorEntry(startByte);
+    if (previous != null && previous.getValue() >= startByte - 1) {
+      startByte = previous.getKey();
+      endByte = Math.max(endByte, previous.getValue());
+      myCompletedRanges.remove(previous.getKey());
+    }
+
+    Map.Entry<Long, Long> next = myCompletedRanges.ceilingEntry(startByte);
+    while (next != null && next.getKey() <= endByte + 1) {
+      endByte = Math.max(endByte, next.getValue());
+      myCompletedRanges.remove(next.getKey());
+      next = myCompletedRanges.ceilingEntry(startByte);
+    }
+    myCompletedRanges.put(startByte, endByte);
+  }
+}
@@ -2,9 +2,16 @@ package jetbrains.buildServer.artifacts.s3.download.parallel;
 
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import jetbrains.buildServer.artifacts.FileProgress;
+import org.apache.commons.httpclient.HttpMethod;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -15,11 +22,30 @@ public final class ParallelDownloadState {
   private final AtomicBoolean myInterruptedFlag;
   @NotNull
   private final AtomicReference<PartFailure> myFirstPartFailure;
+  @Nullable
+  private final String myObjectFingerprint;
+  @Nullable
+  private volatile ParallelDownloadJournal myJournal;
+  @Nullable
+  private volatile PipelinedPartMerger myPartMerger;
+  @NotNull
+  private final Map<FilePart, PartDownloadAttempt> myActiveAttempts = new ConcurrentHashMap<>(); // parts are compared by identity
+  @NotNull
+  private final Map<FilePart, PartHedge> myUnstartedHedges = new ConcurrentHashMap<>(); // hedged part -> race
+  @NotNull
+  private final List<Double> myFinishedPartThroughputs = Collections.synchronizedList(new ArrayList<>());
+  @NotNull
+  private final AtomicLong myHedgedRequests = new AtomicLong();
+  @NotNull
+  private final AtomicLong myHedgeWins = new AtomicLong();
+  @NotNull
+  private final AtomicLong myHedgeWastedBytes = new AtomicLong();
 
-  public ParallelDownloadState(@NotNull FileProgress downloadProgress, @NotNull AtomicBoolean interruptedFlag) {
+  public ParallelDownloadState(@NotNull FileProgress downloadProgress, @NotNull AtomicBoolean interruptedFlag, @Nullable String objectFingerprint) {
     myDownloadProgress = downloadProgress;
     myInterruptedFlag = interruptedFlag;
     myFirstPartFailure = new AtomicReference<>(null);
+    myObjectFingerprint = objectFingerprint;
   }
 
   public void partFailed(@NotNull FilePart filePart, @NotNull IOException exception) {
@@ -43,6 +69,132 @@ public final class ParallelDownloadState {
     myDownloadProgress.transferred(bytes);
   }
 
+  @NotNull
+  public PartDownloadAttempt partAttemptStarted(@NotNull FilePart filePart, @NotNull HttpMethod request) {
+    PartHedge hedgeOf = myUnstartedHedges.remove(filePart);
+    PartDownloadAttempt attempt = new PartDownloadAttempt(filePart, request, hedgeOf);
+    myActiveAttempts.put(filePart, attempt);
+    if (hedgeOf != null) hedgeOf.hedgeRequestStarted(request);
+    return attempt;
+  }
+
+  public void addDownloadedBytes(@NotNull FilePart filePart, long bytes) {
+    PartDownloadAttempt attempt = myActiveAttempts.get(filePart);
+    long newBytes = attempt != null ? attempt.bytesWritten(bytes) : bytes;
+    if (newBytes > 0) myDownloadProgress.transferred(newBytes);
+    if (newBytes < bytes) myHedgeWastedBytes.addAndGet(bytes - newBytes);
+    ParallelDownloadJournal journal = myJournal;
+    if (journal != null) journal.partBytesTransferred(filePart, bytes);
+  }
+
+  public void partDownloaded(@NotNull FilePart filePart) {
+    PartDownloadAttempt attempt = myActiveAttempts.remove(filePart);
+    if (attempt != null) {
+      attempt.finish(true);
+      PartHedge hedgeOf = attempt.getHedgeOf();
+      if (hedgeOf == null) {
+        myFinishedPartThroughputs.add(attempt.getThroughput(System.nanoTime()));
+      } else if (hedgeOf.isWonByHedge()) {
+        myHedgeWins.incrementAndGet();
+      }
+    }
+    ParallelDownloadJournal journal = myJournal;
+    if (journal != null) journal.partDownloaded(filePart);
+  }
+
+  /**
+   * @return number of bytes from the start of the part that were written before the failure, including the bytes written by the hedged request
+   */
+  public long partAttemptFailed(@NotNull FilePart filePart) {
+    PartDownloadAttempt attempt = myActiveAttempts.remove(filePart);
+    myUnstartedHedges.remove(filePart);
+    long writtenBytes = attempt != null ? attempt.finish(false) : 0;
+    ParallelDownloadJournal journal = myJournal;
+    if (journal != null) journal.partInterrupted(filePart);
+    return writtenBytes;
+  }
+
+  /**
+   * @return active regular attempts that have been running for at least the given time with throughput below the given fraction of the median part throughput
+   */
+  @NotNull
+  public List<PartDownloadAttempt> getSlowPartAttempts(double slowThroughputFraction, long minElapsedNanos) {
+    long nowNanos = System.nanoTime();
+    List<Double> throughputs;
+    synchronized (myFinishedPartThroughputs) {
+      throughputs = new ArrayList<>(myFinishedPartThroughputs);
+    }
+
+    List<PartDownloadAttempt> measuredAttempts = new ArrayList<>();
+    for (PartDownloadAttempt attempt : myActiveAttempts.values()) {
+      if (attempt.isHedge() || attempt.getElapsedNanos(nowNanos) < minElapsedNanos) continue;
+      measuredAttempts.add(attempt);
+      throughputs.add(attempt.getThroughput(nowNanos));
+    }
+    if (throughputs.size() < 2) return Collections.emptyList(); // nothing to compare with
+
+    Collections.sort(throughputs);
+    double medianThroughput = throughputs.get(throughputs.size() / 2);
+    List<PartDownloadAttempt> slowAttempts = new ArrayList<>();
+    for (PartDownloadAttempt attempt : measuredAttempts) {
+      if (!attempt.isHedged() && attempt.getThroughput(nowNanos) < medianThroughput * slowThroughputFraction) {
+        slowAttempts.add(attempt);
+      }
+    }
+    return slowAttempts;
+  }
+
+  /**
+   * @return the race with the hedged request for the rest of the attempt's part, or null if the attempt can't be hedged
+   */
+  @Nullable
+  public PartHedge hedge(@NotNull PartDownloadAttempt attempt, long minHedgedBytes) {
+    PartHedge hedge = attempt.startHedge(minHedgedBytes);
+    if (hedge == null) return null;
+
+    myUnstartedHedges.put(hedge.getHedgedPart(), hedge);
+    myHedgedRequests.incrementAndGet();
+    return hedge;
+  }
+
+  public long getHedgedRequests() {
+    return myHedgedRequests.get();
+  }
+
+  public long getHedgeWins() {
+    return myHedgeWins.get();
+  }
+
+  /**
+   * @return number of bytes that were downloaded by both requests of hedged parts or by the aborted request
+   */
+  public long getHedgeWastedBytes() {
+    return myHedgeWastedBytes.get();
+  }
+
+  @Nullable
+  public String getObjectFingerprint() {
+    return myObjectFingerprint;
+  }
+
+  @Nullable
+  public ParallelDownloadJournal getJournal() {
+    return myJournal;
+  }
+
+  public void setJournal(@Nullable ParallelDownloadJournal journal) {
+    myJournal = journal;
+  }
+
+  @Nullable
+  public PipelinedPartMerger getPartMerger() {
+    return myPartMerger;
+  }
+
+  public void setPartMerger(@Nullable PipelinedPartMerger partMerger) {
+    myPartMerger = partMerger;
+  }
+
   public boolean isInterrupted() {
     return myInterruptedFlag.get();
   }
@@ -0,0 +1,107 @@
+package jetbrains.buildServer.artifacts.s3.download.parallel;
+
+import org.apache.commons.httpclient.HttpMethod;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Single request that downloads a part (or the rest of a part), tracked to detect slow parts and to hedge them.
+ */
+public final class PartDownloadAttempt {
+  @NotNull
+  private final FilePart myFilePart;
+  @NotNull
+  private final HttpMethod myRequest;
+  private final long myStartNanos;
+  @Nullable
+  private final PartHedge myHedgeOf; // the race in which this attempt is the hedged request, null for regular attempts
+
+  // state fields, access should be synchronized by this
+  private long myTransferredBytes;
+  @Nullable
+  private PartHedge myHedge;
+  private boolean myIsFinished;
+
+  PartDownloadAttempt(@NotNull FilePart filePart, @NotNull HttpMethod request, @Nullable PartHedge hedgeOf) {
+    myFilePart = filePart;
+    myRequest = request;
+    myStartNanos = System.nanoTime();
+    myHedgeOf = hedgeOf;
+  }
+
+  @NotNull
+  public FilePart getFilePart() {
+    return myFilePart;
+  }
+
+  @NotNull
+  public HttpMethod getRequest() {
+    return myRequest;
+  }
+
+  public boolean isHedge() {
+    return myHedgeOf != null;
+  }
+
+  @Nullable
+  PartHedge getHedgeOf() {
+    return myHedgeOf;
+  }
+
+  public synchronized boolean isHedged() {
+    return myHedge != null;
+  }
+
+  public synchronized long getElapsedNanos(long nowNanos) {
+    return nowNanos - myStartNanos;
+  }
+
+  /**
+   * @return bytes per second transferred by this attempt
+   */
+  public synchronized double getThroughput(long nowNanos) {
+    long elapsedNanos = Math.max(1, nowNanos - myStartNanos);
+    return myTransferredBytes * 1e9 / elapsedNanos;
+  }
+
+  /**
+   * @return number of written bytes that are new for the download progress, less than the given bytes when the other request of a race already wrote them
+   */
+  synchronized long bytesWritten(long bytes) {
+    myTransferredBytes += bytes;
+    if (myHedgeOf != null) return myHedgeOf.bytesWritten(true, bytes);
+    if (myHedge != null) return myHedge.bytesWritten(false, bytes);
+    return bytes;
+  }
+
+  /**
+   * Starts a race with a hedged request for the rest of the part.
+   *
+   * @return the race or null if this attempt is already finished, hedged, is a hedge itself or has less than the given number of bytes left
+   */
+  @Nullable
+  synchronized PartHedge startHedge(long minHedgedBytes) {
+    if (myIsFinished || myHedge != null || myHedgeOf != null) return null;
+    if (myFilePart.getSizeBytes() - myTransferredBytes < minHedgedBytes) return null;
+
+    FilePart hedgedPart = myTransferredBytes > 0 ? myFilePart.getRemainder(myTransferredBytes) : myFilePart.duplicate();
+    myHedge = new PartHedge(this, hedgedPart, myTransferredBytes);
+    return myHedge;
+  }
+
+  /**
+   * @return number of bytes from the start of the part that are written to the target by this attempt or by the other request of its race
+   */
+  synchronized long finish(boolean succeeded) {
+    myIsFinished = true;
+    if (myHedgeOf != null) {
+      myHedgeOf.hedgeFinished(succeeded);
+      return myTransferredBytes;
+    }
+    if (myHedge != null) {
+      myHedge.attemptFinished(succeeded);
+      return myHedge.getCoveredBytes();
+    }
+    return myTransferredBytes;
+  }
+}
@@ -0,0 +1,90 @@
+package jetbrains.buildServer.artifacts.s3.download.parallel;
+
+import org.apache.commons.httpclient.HttpMethod;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Race between a slow part download attempt and the hedged request that downloads the rest of the same part.
+ * Both requests write the same bytes to the same positions, the one that finishes first wins and aborts the other.
+ * Only the bytes of the hedged range that neither request has written yet are reported to the download progress.
+ */
+public final class PartHedge {
+  private enum Outcome {PENDING, ATTEMPT_WON, HEDGE_WON, ATTEMPT_FAILED, HEDGE_FAILED}
+
+  @NotNull
+  private final PartDownloadAttempt myAttempt;
+  @NotNull
+  private final FilePart myHedgedPart;
+  private final long myAttemptBytesBeforeHedge;
+
+  // state fields, access should be synchronized by this
+  @NotNull
+  private Outcome myOutcome = Outcome.PENDING;
+  @Nullable
+  private HttpMethod myHedgeRequest;
+  private long myAttemptBytes; // bytes of the hedged range written by the attempt
+  private long myHedgeBytes; // bytes of the hedged range written by the hedged request
+  private long myCoveredBytes; // bytes of the hedged range written by any of them, both write the range from its start
+
+  PartHedge(@NotNull PartDownloadAttempt attempt, @NotNull FilePart hedgedPart, long attemptBytesBeforeHedge) {
+    myAttempt = attempt;
+    myHedgedPart = hedgedPart;
+    myAttemptBytesBeforeHedge = attemptBytesBeforeHedge;
+  }
+
+  @NotNull
+  public FilePart getHedgedPart() {
+    return myHedgedPart;
+  }
+
+  public synchronized boolean isResolved() {
+    return myOutcome != Outcome.PENDING;
+  }
+
+  public synchronized boolean isWonByHedge() {
+    return myOutcome == Outcome.HEDGE_WON;
+  }
+
+  synchronized void hedgeRequestStarted(@NotNull HttpMethod request) {
+    myHedgeRequest = request;
+    if (myOutcome != Outcome.PENDING) request.abort(); // the race is over before the hedged request started
+  }
+
+  synchronized long bytesWritten(boolean byHedge, long bytes) {
+    // bytes of the aborted or failed request are not counted, the attempt keeps counting if only the hedged request failed
+    boolean isCounted = myOutcome == Outcome.PENDING || (!byHedge && myOutcome == Outcome.HEDGE_FAILED);
+    if (!isCounted) return 0;
+
+    if (byHedge) {
+      myHedgeBytes += bytes;
+    } else {
+      myAttemptBytes += bytes;
+    }
+    long coveredBytes = Math.min(Math.max(myAttemptBytes, myHedgeBytes), myHedgedPart.getSizeBytes());
+    long newBytes = coveredBytes - myCoveredBytes;
+    myCoveredBytes = coveredBytes;
+    return newBytes;
+  }
+
+  synchronized void attemptFinished(boolean succeeded) {
+    if (myOutcome != Outcome.PENDING) return;
+
+    myOutcome = succeeded ? Outcome.ATTEMPT_WON : Outcome.ATTEMPT_FAILED;
+    if (myHedgeRequest != null) myHedgeRequest.abort();
+  }
+
+  synchronized void hedgeFinished(boolean succeeded) {
+    if (myOutcome != Outcome.PENDING) return;
+
+    myOutcome = succeeded ? Outcome.HEDGE_WON : Outcome.HEDGE_FAILED;
+    if (succeeded) myAttempt.getRequest().abort();
+  }
+
+  /**
+   * @return number of bytes from the start of the attempt's part that are written by the attempt or by the hedged request
+   */
+  synchronized long getCoveredBytes() {
+    return myAttemptBytesBeforeHedge + myCoveredBytes;
+  }
+}
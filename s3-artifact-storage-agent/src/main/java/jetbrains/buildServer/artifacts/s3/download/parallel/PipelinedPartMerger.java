@@ -0,0 +1,106 @@
+package jetbrains.buildServer.artifacts.s3.download.parallel;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.Function;
+import jetbrains.buildServer.artifacts.s3.download.IORunnable;
+import org.jetbrains.annotations.NotNull;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static jetbrains.buildServer.artifacts.s3.download.S3DownloadIOUtil.transferExpectedFileBytes;
+
+/**
+ * Appends downloaded part files to the target file in the order of the parts while the other parts are still downloading.
+ * A part is merged as soon as it and all the parts before it are downloaded, and its file is deleted right after that.
+ * Only one thread merges at a time: the thread that completes a part merges all the parts that became mergeable,
+ * including the ones completed by the other threads in the meantime, while the other threads continue downloading.
+ */
+public final class PipelinedPartMerger {
+  private static final Logger LOGGER = Logger.getInstance(PipelinedPartMerger.class);
+
+  @NotNull
+  private final Path myTargetFile;
+  @NotNull
+  private final List<FilePart> myFileParts; // ordered by part number, which is the index in the list
+  @NotNull
+  private final Function<FilePart, Path> myPartFiles;
+
+  // state fields, access should be synchronized by this
+  private final boolean[] myDownloadedParts;
+  private int myNextPartToMerge = 0;
+  private boolean myIsMerging = false;
+
+  private volatile long myMergedBytes = 0;
+
+  public PipelinedPartMerger(@NotNull Path targetFile, @NotNull List<FilePart> fileParts, @NotNull Function<FilePart, Path> partFiles) {
+    myTargetFile = targetFile;
+    myFileParts = fileParts;
+    myPartFiles = partFiles;
+    myDownloadedParts = new boolean[fileParts.size()];
+  }
+
+  /**
+   * Marks the part as downloaded and merges it together with the following downloaded parts if all the parts before it are merged.
+   * Returns right away if another thread is merging, that thread merges the part as well.
+   */
+  public void partDownloaded(@NotNull FilePart filePart, @NotNull IORunnable interruptedCheck) throws IOException {
+    synchronized (this) {
+      myDownloadedParts[filePart.getPartNumber()] = true;
+      if (myIsMerging) return;
+      myIsMerging = true;
+    }
+
+    FilePart nextPart = takeNextMergeablePart();
+    try {
+      while (nextPart != null) {
+        mergePart(nextPart, interruptedCheck);
+        nextPart = takeNextMergeablePart();
+      }
+    } finally {
+      if (nextPart != null) {
+        // merging failed, the download fails as well
+        synchronized (this) {
+          myIsMerging = false;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the next part if it is downloaded, otherwise stops merging and returns null
+   */
+  private synchronized FilePart takeNextMergeablePart() {
+    if (myNextPartToMerge < myFileParts.size() && myDownloadedParts[myNextPartToMerge]) {
+      return myFileParts.get(myNextPartToMerge++);
+    }
+    myIsMerging = false;
+    return null;
+  }
+
+  private void mergePart(@NotNull FilePart filePart, @NotNull IORunnable interruptedCheck) throws IOException {
+    Path partFile = myPartFiles.apply(filePart);
+    try (FileChannel partFileChannel = FileChannel.open(partFile, READ);
+         FileChannel targetFileChannel = FileChannel.open(myTargetFile, WRITE)) {
+      targetFileChannel.position(filePart.getStartByte());
+      transferExpectedFileBytes(partFileChannel, targetFileChannel, filePart.getSizeBytes(), interruptedCheck, (transferred) -> {});
+    } catch (IOException | RuntimeException e) {
+      throw new IOException(String.format("Failed to merge part %s from %s into %s", filePart.getDescription(), partFile, myTargetFile), e);
+    }
+
+    myMergedBytes += filePart.getSizeBytes(); // only the merging thread writes
+    Files.deleteIfExists(partFile);
+    LOGGER.debug(String.format("Merged part %s into %s", filePart.getDescription(), myTargetFile));
+  }
+
+  /**
+   * @return number of bytes of the parts merged into the target file so far
+   */
+  public long getMergedBytes() {
+    return myMergedBytes;
+  }
+}
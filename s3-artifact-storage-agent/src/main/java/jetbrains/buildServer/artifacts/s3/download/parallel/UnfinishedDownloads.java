@@ -0,0 +1,60 @@
+package jetbrains.buildServer.artifacts.s3.download.parallel;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import org.jetbrains.annotations.NotNull;
+
+import static jetbrains.buildServer.artifacts.s3.download.S3DownloadIOUtil.getJournalFilePath;
+import static jetbrains.buildServer.artifacts.s3.download.S3DownloadIOUtil.getUnfinishedFilePath;
+
+/**
+ * Thread-safe set of the target files of a build whose unfinished file and journal are kept next to them, so that a retry resumes the download.
+ * A retry is not possible after the build finishes, so whatever is left is deleted then and doesn't stay in the checkout directory.
+ * The journals of the build are flushed by the same single-threaded executor, off the download threads.
+ */
+public final class UnfinishedDownloads {
+  private static final Logger LOGGER = Logger.getInstance(UnfinishedDownloads.class);
+
+  @NotNull
+  private final Set<Path> myTargetFiles = ConcurrentHashMap.newKeySet();
+  @NotNull
+  private final Executor myJournalFlusher;
+
+  public UnfinishedDownloads(@NotNull Executor journalFlusher) {
+    myJournalFlusher = journalFlusher;
+  }
+
+  @NotNull
+  public Executor getJournalFlusher() {
+    return myJournalFlusher;
+  }
+
+  public void kept(@NotNull Path targetFile) {
+    myTargetFiles.add(targetFile);
+  }
+
+  /**
+   * Should be called when the unfinished file and the journal of the target file are renamed or deleted.
+   */
+  public void removed(@NotNull Path targetFile) {
+    myTargetFiles.remove(targetFile);
+  }
+
+  public void deleteAll() {
+    for (Path targetFile : myTargetFiles) {
+      try {
+        Files.deleteIfExists(getUnfinishedFilePath(targetFile));
+        Files.deleteIfExists(getJournalFilePath(targetFile));
+        LOGGER.debug(String.format("Deleted unfinished download of file %s", targetFile));
+      } catch (IOException e) {
+        LOGGER.warnAndDebugDetails(String.format("Failed to delete unfinished download of file %s: %s", targetFile, e.getMessage()), e);
+      }
+    }
+    myTargetFiles.clear();
+  }
+}
@@ -5,11 +5,13 @@ import java.nio.file.Path;
 import jetbrains.buildServer.artifacts.FileProgress;
 import jetbrains.buildServer.artifacts.s3.download.parallel.ParallelDownloadContext;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public interface ParallelDownloadStrategy {
   void download(@NotNull String srcUrl,
                 @NotNull Path targetFile,
                 long fileSize,
+                @Nullable String objectFingerprint,
                 @NotNull FileProgress downloadProgress,
                 @NotNull ParallelDownloadContext downloadContext) throws IOException;
 
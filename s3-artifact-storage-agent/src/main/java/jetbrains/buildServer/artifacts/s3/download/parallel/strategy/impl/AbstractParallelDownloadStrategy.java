@@ -1,30 +1,40 @@
 package jetbrains.buildServer.artifacts.s3.download.parallel.strategy.impl;
 
 import com.intellij.openapi.diagnostic.Logger;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.CompletionException;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.*;
 import jetbrains.buildServer.artifacts.FileProgress;
 import jetbrains.buildServer.artifacts.RecoverableIOException;
+import jetbrains.buildServer.artifacts.s3.download.S3BandwidthLimiter;
 import jetbrains.buildServer.artifacts.s3.download.S3DownloadConfiguration;
+import jetbrains.buildServer.artifacts.s3.download.S3DownloadIOUtil;
+import jetbrains.buildServer.artifacts.s3.download.S3DownloadStatistics.FileStatistics;
 import jetbrains.buildServer.artifacts.s3.download.parallel.*;
 import jetbrains.buildServer.artifacts.s3.download.parallel.splitter.FileSplitter;
 import jetbrains.buildServer.artifacts.s3.download.parallel.strategy.ParallelDownloadStrategy;
 import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.http.HttpHeaders;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import static jetbrains.buildServer.artifacts.s3.download.S3DownloadHttpUtil.checkResponseStatus;
 import static jetbrains.buildServer.artifacts.s3.download.S3DownloadHttpUtil.createRangeHeader;
+import static jetbrains.buildServer.artifacts.s3.download.S3DownloadHttpUtil.isTransientFailure;
 
 /**
  * Abstract strategy that downloads a file in parts.
  */
 public abstract class AbstractParallelDownloadStrategy implements ParallelDownloadStrategy {
+  private static final long RETRY_WAIT_CHECK_INTERVAL_MS = 100;
+  private static final long HEDGING_CHECK_INTERVAL_MS = 500;
+  private static final long MIN_HEDGED_PART_SIZE_BYTES = 1024 * 1024; // hedging the last bytes of a part is not worth a new request
+
   @NotNull
   protected final Logger LOGGER = Logger.getInstance(getClass());
 
@@ -32,23 +42,12 @@ public abstract class AbstractParallelDownloadStrategy implements ParallelDownlo
   public void download(@NotNull String srcUrl,
                        @NotNull Path targetFile,
                        long fileSize,
+                       @Nullable String objectFingerprint,
                        @NotNull FileProgress downloadProgress,
                        @NotNull ParallelDownloadContext downloadContext) throws IOException {
     if (fileSize <= 0) throw new IllegalArgumentException(String.format("File size is not positive (%s)", fileSize));
-    S3DownloadConfiguration configuration = downloadContext.getConfiguration();
-    FileSplitter fileSplitter = downloadContext.getFileSplitter();
-
-    List<FilePart> fileParts = fileSplitter.split(fileSize);
-    if (fileParts.size() == 1) {
-      LOGGER.warn(String.format("File %s of size %s should be downloaded in parallel, but was split into only 1 part %s. S3 artifact transport misconfigured?",
-                                targetFile, fileSize, fileParts.get(0).getDescription()));
-    }
-
-    LOGGER.debug(String.format(
-      "Start downloading file %s of size %s from %s in %s parts of min %s MB each (except, possibly, the last) by max %s threads", // MB in logs because not less than 1 MB
-      targetFile, fileSize, srcUrl, fileParts.size(), configuration.getMinPartSizeBytes() / (1024 * 1024), Math.min(configuration.getMaxThreads(), fileParts.size())
-    ));
-    ParallelDownloadState downloadState = new ParallelDownloadState(downloadProgress, downloadContext.getInterruptedFlag());
+    List<FilePart> fileParts = splitFile(srcUrl, targetFile, fileSize, downloadContext);
+    ParallelDownloadState downloadState = new ParallelDownloadState(downloadProgress, downloadContext.getInterruptedFlag(), objectFingerprint);
     try {
       try {
         checkDownloadInterrupted(downloadState);
@@ -60,8 +59,13 @@ public abstract class AbstractParallelDownloadStrategy implements ParallelDownlo
 
       try {
         checkDownloadInterrupted(downloadState);
-        downloadParts(srcUrl, fileParts, targetFile, fileSize, downloadState, downloadContext);
+        List<FilePart> missingFileParts = getMissingFileParts(fileParts, fileSize, downloadState);
+        downloadParts(srcUrl, missingFileParts, targetFile, fileSize, downloadState, downloadContext);
         LOGGER.debug("Finished downloading parts of file " + targetFile);
+        if (downloadState.getHedgedRequests() > 0) {
+          LOGGER.debug(String.format("Sent %s hedged requests while downloading file %s, %s of them finished first, %s bytes were downloaded twice",
+                                     downloadState.getHedgedRequests(), targetFile, downloadState.getHedgeWins(), downloadState.getHedgeWastedBytes()));
+        }
       } catch (Exception e) {
         throw new IOException("Failed to download file parts", e);
       }
@@ -81,9 +85,37 @@ public abstract class AbstractParallelDownloadStrategy implements ParallelDownlo
       }
 
       throw downloadException;
+    } finally {
+      // the probing request is not taken when the first part was downloaded before resuming or the download failed before it started
+      HttpMethod unusedProbeRequest = downloadContext.takeProbeRequest();
+      if (unusedProbeRequest != null) unusedProbeRequest.abort();
     }
   }
 
+  /**
+   * Splits the file into the parts that are passed to all the other steps of the download.
+   */
+  @NotNull
+  protected List<FilePart> splitFile(@NotNull String srcUrl,
+                                     @NotNull Path targetFile,
+                                     long fileSize,
+                                     @NotNull ParallelDownloadContext downloadContext) {
+    S3DownloadConfiguration configuration = downloadContext.getConfiguration();
+    FileSplitter fileSplitter = downloadContext.getFileSplitter();
+
+    List<FilePart> fileParts = fileSplitter.split(fileSize);
+    if (fileParts.size() == 1) {
+      LOGGER.warn(String.format("File %s of size %s should be downloaded in parallel, but was split into only 1 part %s. S3 artifact transport misconfigured?",
+                                targetFile, fileSize, fileParts.get(0).getDescription()));
+    }
+
+    LOGGER.debug(String.format(
+      "Start downloading file %s of size %s from %s in %s parts of min %s MB each (except, possibly, the last) by max %s threads", // MB in logs because not less than 1 MB
+      targetFile, fileSize, srcUrl, fileParts.size(), configuration.getMinPartSizeBytes() / (1024 * 1024), Math.min(configuration.getMaxThreads(), fileParts.size())
+    ));
+    return fileParts;
+  }
+
   protected void beforeDownloadingParts(@NotNull Path targetFile,
                                         @NotNull List<FilePart> fileParts,
                                         long fileSize,
@@ -91,13 +123,28 @@ public abstract class AbstractParallelDownloadStrategy implements ParallelDownlo
                                         @NotNull ParallelDownloadContext downloadContext) throws IOException {
   }
 
-  private void downloadParts(@NotNull String srcUrl,
-                             @NotNull List<FilePart> fileParts,
-                             @NotNull Path targetFile,
-                             long fileSize,
-                             @NotNull ParallelDownloadState downloadState,
-                             @NotNull ParallelDownloadContext downloadContext) throws IOException {
+  @NotNull
+  private List<FilePart> getMissingFileParts(@NotNull List<FilePart> fileParts, long fileSize, @NotNull ParallelDownloadState downloadState) {
     downloadState.expectDownloadedBytes(fileSize);
+    ParallelDownloadJournal journal = downloadState.getJournal();
+    if (journal == null) {
+      return fileParts;
+    }
+
+    long completedBytes = journal.getCompletedBytes();
+    List<FilePart> missingFileParts = journal.getMissingParts(fileParts);
+    LOGGER.debug(String.format("Resuming download from journal %s: %s of %s bytes are already downloaded, %s parts left",
+                               journal.getJournalFile(), completedBytes, fileSize, missingFileParts.size()));
+    downloadState.addDownloadedBytes(completedBytes);
+    return missingFileParts;
+  }
+
+  protected void downloadParts(@NotNull String srcUrl,
+                               @NotNull List<FilePart> fileParts,
+                               @NotNull Path targetFile,
+                               long fileSize,
+                               @NotNull ParallelDownloadState downloadState,
+                               @NotNull ParallelDownloadContext downloadContext) throws IOException {
     List<CompletableFuture<Void>> partDownloadFutures = new CopyOnWriteArrayList<>();
     fileParts.stream()
       .map(filePart -> {
@@ -108,6 +155,7 @@ public abstract class AbstractParallelDownloadStrategy implements ParallelDownlo
             LOGGER.debug(String.format("Start downloading part %s", partDescription));
             downloadPart(srcUrl, filePart, targetFile, downloadState, downloadContext);
             LOGGER.debug(String.format("Part %s downloaded", partDescription));
+            afterDownloadingPart(filePart, targetFile, downloadState, downloadContext);
           } catch (Exception e) {
             LOGGER.debug(String.format("Failed to download part %s: %s", filePart.getDescription(), e.getMessage()), e);
             downloadState.partFailed(filePart, new IOException("Failed to download part " + filePart.getDescription(), e));
@@ -118,10 +166,34 @@ public abstract class AbstractParallelDownloadStrategy implements ParallelDownlo
       .filter(Objects::nonNull) // null when interrupted or detected failure
       .forEach(partDownloadFuture -> partDownloadFutures.add(partDownloadFuture));
 
-    // wait until part downloads finish and check for uncaught errors and executor level exceptions
+    awaitPartDownloads(srcUrl, partDownloadFutures, targetFile, downloadState, downloadContext);
+  }
+
+  /**
+   * Called by the thread that downloaded the part, right after the whole part is written, while the other parts are still downloading.
+   */
+  protected void afterDownloadingPart(@NotNull FilePart filePart,
+                                      @NotNull Path targetFile,
+                                      @NotNull ParallelDownloadState downloadState,
+                                      @NotNull ParallelDownloadContext downloadContext) throws IOException {
+  }
+
+  /**
+   * Waits until part downloads finish and checks for uncaught errors, executor level exceptions and caught part download exceptions.
+   * Sends hedged requests for the slow parts while waiting, if hedging is enabled and supported by the strategy.
+   */
+  protected final void awaitPartDownloads(@NotNull String srcUrl,
+                                          @NotNull List<CompletableFuture<Void>> partDownloadFutures,
+                                          @NotNull Path targetFile,
+                                          @NotNull ParallelDownloadState downloadState,
+                                          @NotNull ParallelDownloadContext downloadContext) throws IOException {
     CompletableFuture<Void> allPartsDownloadFuture = CompletableFuture.allOf(partDownloadFutures.toArray(new CompletableFuture[]{}));
     checkDownloadInterrupted(downloadState);
+    List<CompletableFuture<Void>> hedgeFutures = new ArrayList<>();
     try {
+      if (isHedgingSupported() && downloadContext.getConfiguration().isHedgingEnabled()) {
+        hedgeSlowPartsUntilDone(srcUrl, allPartsDownloadFuture, hedgeFutures, targetFile, downloadState, downloadContext);
+      }
       allPartsDownloadFuture.join();
     } catch (CompletionException allPartsDownloadException) {
       // rethrow Error from executor or downloadPart method
@@ -136,28 +208,175 @@ public abstract class AbstractParallelDownloadStrategy implements ParallelDownlo
 
       // this happens when executor fails to run any of the part tasks (e.g. executor shut down)
       throw new IOException("Failed to start all part downloads", somePartException);
+    } finally {
+      awaitHedgedRequests(hedgeFutures);
     }
 
     // check for caught part download exceptions
     rethrowPartExceptionIfDownloadFailed(downloadState);
   }
 
-  private void downloadPart(@NotNull String srcUrl,
-                            @NotNull FilePart filePart,
-                            @NotNull Path targetFile,
-                            @NotNull ParallelDownloadState downloadState,
-                            @NotNull ParallelDownloadContext downloadContext) throws IOException {
-    GetMethod request = null;
+  /**
+   * Whether parts can be written by two requests at once, which is required to hedge them.
+   */
+  protected boolean isHedgingSupported() {
+    return false;
+  }
+
+  private void hedgeSlowPartsUntilDone(@NotNull String srcUrl,
+                                       @NotNull CompletableFuture<Void> allPartsDownloadFuture,
+                                       @NotNull List<CompletableFuture<Void>> hedgeFutures,
+                                       @NotNull Path targetFile,
+                                       @NotNull ParallelDownloadState downloadState,
+                                       @NotNull ParallelDownloadContext downloadContext) {
+    S3DownloadConfiguration configuration = downloadContext.getConfiguration();
+    double slowThroughputFraction = configuration.getHedgingSlowPartThroughputPercent() / 100.0;
+    long minElapsedNanos = TimeUnit.MILLISECONDS.toNanos(configuration.getHedgingMinPartDurationMs());
+    while (!allPartsDownloadFuture.isDone()) {
+      try {
+        allPartsDownloadFuture.get(HEDGING_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        return;
+      } catch (TimeoutException e) {
+        if (downloadState.isInterrupted() || downloadState.hasFailedParts()) continue;
+
+        for (PartDownloadAttempt slowAttempt : downloadState.getSlowPartAttempts(slowThroughputFraction, minElapsedNanos)) {
+          PartHedge hedge = downloadState.hedge(slowAttempt, MIN_HEDGED_PART_SIZE_BYTES);
+          if (hedge == null) continue;
+
+          LOGGER.debug(String.format("Part %s is slow, sending hedged request for %s", slowAttempt.getFilePart().getDescription(), hedge.getHedgedPart().getDescription()));
+          try {
+            hedgeFutures.add(CompletableFuture.runAsync(() -> downloadHedgedPart(srcUrl, hedge, targetFile, downloadState, downloadContext), downloadContext.getExecutor()));
+          } catch (RejectedExecutionException rejectedException) {
+            downloadState.partAttemptFailed(hedge.getHedgedPart());
+          }
+        }
+      } catch (ExecutionException | CancellationException e) {
+        return; // rethrown by the caller
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private void downloadHedgedPart(@NotNull String srcUrl,
+                                  @NotNull PartHedge hedge,
+                                  @NotNull Path targetFile,
+                                  @NotNull ParallelDownloadState downloadState,
+                                  @NotNull ParallelDownloadContext downloadContext) {
+    FilePart hedgedPart = hedge.getHedgedPart();
     try {
-      request = new GetMethod(srcUrl);
-      request.addRequestHeader(createRangeHeader(filePart.getStartByte(), filePart.getEndByte()));
+      if (hedge.isResolved()) {
+        downloadState.partAttemptFailed(hedgedPart); // the slow part finished while the hedged request was waiting for a thread
+        return;
+      }
+
+      downloadPartAttempt(srcUrl, hedgedPart, targetFile, downloadState, downloadContext);
+      LOGGER.debug(String.format("Hedged request for part %s finished %s", hedgedPart.getDescription(), hedge.isWonByHedge() ? "first" : "last"));
+    } catch (Exception e) {
+      // the hedged request is aborted when the slow one finishes first, its failure never fails the download
+      downloadState.partAttemptFailed(hedgedPart);
+      LOGGER.debug(String.format("Hedged request for part %s didn't finish: %s", hedgedPart.getDescription(), e.getMessage()));
+    }
+  }
+
+  /**
+   * The losing requests are aborted when their parts finish, and the ones still waiting for a thread return right away,
+   * waiting for them makes sure they don't write to the file after the download.
+   */
+  private void awaitHedgedRequests(@NotNull List<CompletableFuture<Void>> hedgeFutures) {
+    for (CompletableFuture<Void> hedgeFuture : hedgeFutures) {
+      try {
+        hedgeFuture.join();
+      } catch (CancellationException | CompletionException e) {
+        // hedged request failures are handled in the task
+      }
+    }
+  }
+
+  /**
+   * Downloads the part, retrying transient failures with jittered exponential backoff.
+   * Retries request only the bytes of the part that were not written by the failed attempt.
+   */
+  protected final void downloadPart(@NotNull String srcUrl,
+                                    @NotNull FilePart filePart,
+                                    @NotNull Path targetFile,
+                                    @NotNull ParallelDownloadState downloadState,
+                                    @NotNull ParallelDownloadContext downloadContext) throws IOException {
+    S3DownloadConfiguration configuration = downloadContext.getConfiguration();
+    int maxRetries = configuration.getPartMaxRetries();
+    FileStatistics fileStatistics = downloadContext.getFileStatistics();
+    FilePart remainingPart = filePart;
+    for (int retry = 1; ; retry++) {
+      long attemptStartNanos = fileStatistics != null ? fileStatistics.now() : 0;
+      try {
+        downloadPartAttempt(srcUrl, remainingPart, targetFile, downloadState, downloadContext);
+        if (fileStatistics != null) fileStatistics.partDownloaded(remainingPart.getSizeBytes(), attemptStartNanos); // throughput of the successful attempt
+        return;
+      } catch (IOException | RuntimeException e) {
+        long transferredBytes = downloadState.partAttemptFailed(remainingPart);
+        if (transferredBytes >= remainingPart.getSizeBytes()) return; // the rest of the part was written by the hedged request that finished first
+        if (retry > maxRetries || !isTransientFailure(e) || downloadState.isInterrupted() || downloadState.hasFailedParts()) throw e;
+
+        if (transferredBytes > 0 && transferredBytes < remainingPart.getSizeBytes()) {
+          remainingPart = remainingPart.getRemainder(transferredBytes);
+        }
+        if (fileStatistics != null) fileStatistics.partRetried();
+        long delayMs = getRetryDelayMs(retry, configuration);
+        LOGGER.debug(String.format("Transient failure while downloading part %s, retry %s of %s in %s ms: %s",
+                                   remainingPart.getDescription(), retry, maxRetries, delayMs, e.getMessage()));
+        waitBeforeRetry(delayMs, downloadState);
+      }
+    }
+  }
+
+  static long getRetryDelayMs(int retry, @NotNull S3DownloadConfiguration configuration) {
+    // equal jitter: half of the exponential delay is fixed, the other half is random, so that parts failed at once don't retry at once
+    long exponentialDelayMs = configuration.getPartRetryInitialDelayMs() << Math.min(retry - 1, 30);
+    long delayMs = Math.min(configuration.getPartRetryMaxDelayMs(), exponentialDelayMs);
+    return delayMs / 2 + ThreadLocalRandom.current().nextLong(delayMs / 2 + 1);
+  }
 
+  private void waitBeforeRetry(long delayMs, @NotNull ParallelDownloadState downloadState) throws IOException {
+    long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+    long remainingMs;
+    while ((remainingMs = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime())) > 0) {
       checkDownloadInterruptedOrFailed(downloadState);
-      int statusCode = downloadContext.getHttpClient().execute(request);
+      try {
+        Thread.sleep(Math.min(remainingMs, RETRY_WAIT_CHECK_INTERVAL_MS));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RecoverableIOException("Interrupted while waiting to retry part download");
+      }
+    }
+    checkDownloadInterruptedOrFailed(downloadState);
+  }
+
+  private void downloadPartAttempt(@NotNull String srcUrl,
+                                   @NotNull FilePart filePart,
+                                   @NotNull Path targetFile,
+                                   @NotNull ParallelDownloadState downloadState,
+                                   @NotNull ParallelDownloadContext downloadContext) throws IOException {
+    HttpMethod request = null;
+    try {
+      request = filePart.getStartByte() == 0 ? downloadContext.takeProbeRequest() : null;
+      if (request != null) {
+        // the probing request already streams the file from the first byte, its body is read up to the end of the part
+        LOGGER.debug(String.format("Downloading part %s from the probing request", filePart.getDescription()));
+        downloadState.partAttemptStarted(filePart, request);
+      } else {
+        request = new GetMethod(srcUrl);
+        request.addRequestHeader(createRangeHeader(filePart.getStartByte(), filePart.getEndByte()));
+        downloadState.partAttemptStarted(filePart, request);
+
+        checkDownloadInterruptedOrFailed(downloadState);
+        int statusCode = downloadContext.getHttpClient().execute(request);
 
-      checkResponseStatus(statusCode, HttpStatus.SC_PARTIAL_CONTENT);
+        checkResponseStatus(statusCode, HttpStatus.SC_PARTIAL_CONTENT);
+      }
       checkDownloadInterruptedOrFailed(downloadState);
       writePart(request, filePart, targetFile, downloadState, downloadContext);
+      downloadState.partDownloaded(filePart);
     } catch (IOException | RuntimeException e) {
       if (request != null) request.abort();
       throw e;
@@ -166,6 +385,66 @@ public abstract class AbstractParallelDownloadStrategy implements ParallelDownlo
     }
   }
 
+  /**
+   * Opens the response body of the part request, limited by the bandwidth limiter of the download if there is one.
+   */
+  @NotNull
+  protected final InputStream openPartBody(@NotNull HttpMethod ongoingRequest,
+                                           @NotNull FilePart filePart,
+                                           @NotNull ParallelDownloadContext downloadContext) throws IOException {
+    InputStream partBody = openResponseBody(ongoingRequest, filePart);
+    S3BandwidthLimiter bandwidthLimiter = downloadContext.getBandwidthLimiter();
+    return bandwidthLimiter != null ? bandwidthLimiter.limit(partBody) : partBody;
+  }
+
+  /**
+   * The body of the probing request continues past the part,
+   * so it is cut at the end of the part, and closing it aborts the request instead of reading the rest of the file.
+   */
+  @NotNull
+  private static InputStream openResponseBody(@NotNull HttpMethod ongoingRequest, @NotNull FilePart filePart) throws IOException {
+    InputStream responseBody = ongoingRequest.getResponseBodyAsStream();
+    if (responseBody == null) throw new IOException("Response has no body");
+    if (ongoingRequest.getRequestHeader(HttpHeaders.RANGE) != null) return responseBody;
+
+    return new FilterInputStream(responseBody) {
+      private long myRemainingBytes = filePart.getSizeBytes();
+
+      @Override
+      public int read() throws IOException {
+        if (myRemainingBytes <= 0) return -1;
+        int result = super.read();
+        if (result >= 0) myRemainingBytes--;
+        return result;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if (myRemainingBytes <= 0) return -1;
+        int result = super.read(b, off, (int)Math.min(len, myRemainingBytes));
+        if (result > 0) myRemainingBytes -= result;
+        return result;
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+        long skipped = super.skip(Math.min(n, myRemainingBytes));
+        myRemainingBytes -= skipped;
+        return skipped;
+      }
+
+      @Override
+      public int available() throws IOException {
+        return (int)Math.min(super.available(), myRemainingBytes);
+      }
+
+      @Override
+      public void close() {
+        ongoingRequest.abort();
+      }
+    };
+  }
+
   protected abstract void writePart(@NotNull HttpMethod ongoingRequest,
                                     @NotNull FilePart filePart,
                                     @NotNull Path targetFile,
@@ -0,0 +1,95 @@
+package jetbrains.buildServer.artifacts.s3.download.parallel.strategy.impl;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.artifacts.s3.download.S3DownloadConfiguration;
+import jetbrains.buildServer.artifacts.s3.download.parallel.AdaptiveFilePartQueue;
+import jetbrains.buildServer.artifacts.s3.download.parallel.FilePart;
+import jetbrains.buildServer.artifacts.s3.download.parallel.ParallelDownloadContext;
+import jetbrains.buildServer.artifacts.s3.download.parallel.ParallelDownloadState;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Parallel strategy that downloads parts into the target file sectors directly, like {@link InplaceParallelDownloadStrategy},
+ * but instead of splitting the file into max threads parts up front, lets the threads take small parts one by one from a shared queue.
+ * Part size is tuned on the fly from the measured throughput, so a slow connection holds up only the small part it is downloading.
+ */
+public class AdaptiveParallelDownloadStrategy extends InplaceParallelDownloadStrategy {
+  public static final String NAME = "ADAPTIVE_PARALLEL";
+
+  @NotNull
+  @Override
+  protected List<FilePart> splitFile(@NotNull String srcUrl,
+                                     @NotNull Path targetFile,
+                                     long fileSize,
+                                     @NotNull ParallelDownloadContext downloadContext) {
+    // actual parts are taken from the queue while downloading, the other steps don't depend on them
+    return Collections.singletonList(new FilePart(0, 0, fileSize - 1));
+  }
+
+  @Override
+  protected void downloadParts(@NotNull String srcUrl,
+                               @NotNull List<FilePart> fileParts,
+                               @NotNull Path targetFile,
+                               long fileSize,
+                               @NotNull ParallelDownloadState downloadState,
+                               @NotNull ParallelDownloadContext downloadContext) throws IOException {
+    S3DownloadConfiguration configuration = downloadContext.getConfiguration();
+    long minPartSize = configuration.getAdaptiveMinPartSizeBytes();
+    long remainingBytes = fileParts.stream().mapToLong(FilePart::getSizeBytes).sum();
+    int workers = (int)Math.max(1, Math.min(configuration.getMaxThreads(), (remainingBytes + minPartSize - 1) / minPartSize));
+    AdaptiveFilePartQueue partQueue = new AdaptiveFilePartQueue(
+      fileParts,
+      workers,
+      minPartSize,
+      configuration.getAdaptiveMaxPartSizeBytes(),
+      TimeUnit.MILLISECONDS.toNanos(configuration.getAdaptiveTargetPartDurationMs())
+    );
+
+    LOGGER.debug(String.format("Start downloading %s of %s bytes of file %s from %s by %s threads in parts of %s to %s bytes, initial part size is %s bytes",
+                               remainingBytes, fileSize, targetFile, srcUrl, workers, minPartSize, configuration.getAdaptiveMaxPartSizeBytes(), partQueue.getNextPartSize()));
+    List<CompletableFuture<Void>> workerFutures = new ArrayList<>();
+    for (int worker = 0; worker < workers; worker++) {
+      if (downloadState.isInterrupted() || downloadState.hasFailedParts()) break;
+      workerFutures.add(CompletableFuture.runAsync(() -> downloadQueuedParts(srcUrl, partQueue, targetFile, downloadState, downloadContext), downloadContext.getExecutor()));
+    }
+
+    awaitPartDownloads(srcUrl, workerFutures, targetFile, downloadState, downloadContext);
+  }
+
+  private void downloadQueuedParts(@NotNull String srcUrl,
+                                   @NotNull AdaptiveFilePartQueue partQueue,
+                                   @NotNull Path targetFile,
+                                   @NotNull ParallelDownloadState downloadState,
+                                   @NotNull ParallelDownloadContext downloadContext) {
+    while (!downloadState.isInterrupted() && !downloadState.hasFailedParts()) {
+      FilePart filePart = partQueue.next();
+      if (filePart == null) return; // nothing left to steal
+
+      try {
+        String partDescription = filePart.getDescription();
+        LOGGER.debug(String.format("Start downloading part %s", partDescription));
+        long startNanos = System.nanoTime();
+        downloadPart(srcUrl, filePart, targetFile, downloadState, downloadContext);
+        partQueue.partDownloaded(filePart.getSizeBytes(), System.nanoTime() - startNanos);
+        LOGGER.debug(String.format("Part %s downloaded, next part size is %s bytes", partDescription, partQueue.getNextPartSize()));
+        afterDownloadingPart(filePart, targetFile, downloadState, downloadContext);
+      } catch (Exception e) {
+        LOGGER.debug(String.format("Failed to download part %s: %s", filePart.getDescription(), e.getMessage()), e);
+        downloadState.partFailed(filePart, new IOException("Failed to download part " + filePart.getDescription(), e));
+        return;
+      }
+    }
+  }
+
+  @NotNull
+  @Override
+  public String getName() {
+    return NAME;
+  }
+}
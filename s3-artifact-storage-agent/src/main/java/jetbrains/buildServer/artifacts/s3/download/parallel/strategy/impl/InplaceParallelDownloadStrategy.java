@@ -10,7 +10,9 @@ import java.nio.file.Path;
 import java.util.List;
 import jetbrains.buildServer.artifacts.s3.download.parallel.FilePart;
 import jetbrains.buildServer.artifacts.s3.download.parallel.ParallelDownloadContext;
+import jetbrains.buildServer.artifacts.s3.download.parallel.ParallelDownloadJournal;
 import jetbrains.buildServer.artifacts.s3.download.parallel.ParallelDownloadState;
+import jetbrains.buildServer.artifacts.s3.download.parallel.UnfinishedDownloads;
 import jetbrains.buildServer.util.FileUtil;
 import org.apache.commons.httpclient.HttpMethod;
 import org.jetbrains.annotations.NotNull;
@@ -33,9 +35,33 @@ public class InplaceParallelDownloadStrategy extends AbstractParallelDownloadStr
     Path unfinishedTargetFile = getUnfinishedFilePath(targetFile);
     ensureDirectoryExists(unfinishedTargetFile.getParent());
 
+    String objectFingerprint = downloadState.getObjectFingerprint();
+    // the kept files are deleted when the build finishes, without someone to delete them the download is not resumable
+    UnfinishedDownloads unfinishedDownloads = downloadContext.getUnfinishedDownloads();
+    boolean isResumable = downloadContext.getConfiguration().isParallelDownloadResumable() && objectFingerprint != null && unfinishedDownloads != null;
+    Path journalFile = getJournalFilePath(targetFile);
+    if (isResumable) {
+      ParallelDownloadJournal journal = ParallelDownloadJournal.load(journalFile, unfinishedTargetFile, unfinishedDownloads.getJournalFlusher());
+      if (journal != null && journal.matches(fileSize, objectFingerprint) && Files.isRegularFile(unfinishedTargetFile) && Files.size(unfinishedTargetFile) == fileSize) {
+        LOGGER.debug(String.format("Found journal %s of unfinished download of file %s, the download will be resumed", journalFile, targetFile));
+        downloadState.setJournal(journal);
+        return;
+      }
+    }
+
+    Files.deleteIfExists(journalFile);
+    if (downloadContext.getConfiguration().isFreeSpaceCheckEnabled()) {
+      checkFreeSpace(unfinishedTargetFile.getParent(), fileSize - (Files.isRegularFile(unfinishedTargetFile) ? Files.size(unfinishedTargetFile) : 0));
+    }
     // we need the file to be sparse on Windows, because writes to far positions of an empty regular file
     // block for a long period of time which leads to connection reset by the server on large files
     createFile(unfinishedTargetFile, TCSystemInfo.isWindows);
+    if (isResumable) {
+      reserveFileBytes(unfinishedTargetFile, fileSize); // resumed download relies on the unfinished file size
+    }
+    if (isResumable) {
+      downloadState.setJournal(ParallelDownloadJournal.create(journalFile, unfinishedTargetFile, fileSize, objectFingerprint, unfinishedDownloads.getJournalFlusher()));
+    }
   }
 
   @Override
@@ -46,7 +72,7 @@ public class InplaceParallelDownloadStrategy extends AbstractParallelDownloadStr
                            @NotNull ParallelDownloadContext downloadContext) throws IOException {
     Path partTargetFile = getUnfinishedFilePath(targetFile);
     checkDownloadInterruptedOrFailed(downloadState);
-    try (ReadableByteChannel responseBodyChannel = Channels.newChannel(ongoingRequest.getResponseBodyAsStream());
+    try (ReadableByteChannel responseBodyChannel = Channels.newChannel(openPartBody(ongoingRequest, filePart, downloadContext));
          SeekableByteChannel targetFileChannel = Files.newByteChannel(partTargetFile, WRITE)) {
       targetFileChannel.position(filePart.getStartByte());
       transferExpectedBytes(
@@ -55,7 +81,7 @@ public class InplaceParallelDownloadStrategy extends AbstractParallelDownloadStr
         filePart.getSizeBytes(),
         downloadContext.getConfiguration().getBufferSizeBytes(),
         () -> checkDownloadInterruptedOrFailed(downloadState),
-        (transferred) -> downloadState.addDownloadedBytes(transferred)
+        (transferred) -> downloadState.addDownloadedBytes(filePart, transferred)
       );
     } catch (IOException | RuntimeException e) {
       // aborting the request allows not to wait until full body arrives, this needs to be done before closing the response body stream
@@ -64,6 +90,11 @@ public class InplaceParallelDownloadStrategy extends AbstractParallelDownloadStr
     }
   }
 
+  @Override
+  protected boolean isHedgingSupported() {
+    return true; // the hedged request writes the same bytes to the same positions of the file
+  }
+
   @Override
   protected void afterDownloadingParts(@NotNull Path targetFile,
                                        @NotNull List<FilePart> fileParts,
@@ -71,7 +102,11 @@ public class InplaceParallelDownloadStrategy extends AbstractParallelDownloadStr
                                        @NotNull ParallelDownloadState downloadState,
                                        @NotNull ParallelDownloadContext downloadContext) throws IOException {
     Path unfinishedTargetFile = getUnfinishedFilePath(targetFile);
+    ParallelDownloadJournal journal = downloadState.getJournal();
+    if (journal != null) journal.close();
+    Files.deleteIfExists(getJournalFilePath(targetFile));
     FileUtil.atomicRename(unfinishedTargetFile.toFile(), targetFile.toFile(), 10);
+    forgetUnfinishedDownload(targetFile, downloadContext);
   }
 
   @Override
@@ -79,9 +114,29 @@ public class InplaceParallelDownloadStrategy extends AbstractParallelDownloadStr
                                            @NotNull List<FilePart> fileParts,
                                            @NotNull ParallelDownloadState downloadState,
                                            @NotNull ParallelDownloadContext downloadContext) throws IOException {
+    UnfinishedDownloads unfinishedDownloads = downloadContext.getUnfinishedDownloads();
+    ParallelDownloadJournal journal = downloadState.getJournal();
+    if (journal != null && !downloadState.isInterrupted() && unfinishedDownloads != null) {
+      // keep the unfinished file and the journal, so that a retry downloads only the missing ranges
+      LOGGER.debug(String.format("Keeping unfinished download of file %s to resume it on retry", targetFile));
+      journal.flush(); // the retry may start before the flusher gets to the last ranges
+      journal.close();
+      unfinishedDownloads.kept(targetFile);
+      Files.deleteIfExists(targetFile);
+      return;
+    }
+
+    if (journal != null) journal.close();
     Path unfinishedTargetFile = getUnfinishedFilePath(targetFile);
     Files.deleteIfExists(unfinishedTargetFile);
+    Files.deleteIfExists(getJournalFilePath(targetFile));
     Files.deleteIfExists(targetFile);
+    forgetUnfinishedDownload(targetFile, downloadContext);
+  }
+
+  private static void forgetUnfinishedDownload(@NotNull Path targetFile, @NotNull ParallelDownloadContext downloadContext) {
+    UnfinishedDownloads unfinishedDownloads = downloadContext.getUnfinishedDownloads();
+    if (unfinishedDownloads != null) unfinishedDownloads.removed(targetFile);
   }
 
   @NotNull
@@ -0,0 +1,99 @@
+package jetbrains.buildServer.artifacts.s3.download.parallel.strategy.impl;
+
+import com.intellij.openapi.util.TCSystemInfo;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import jetbrains.buildServer.artifacts.s3.download.S3DownloadConfiguration;
+import jetbrains.buildServer.artifacts.s3.download.parallel.FilePart;
+import jetbrains.buildServer.artifacts.s3.download.parallel.ParallelDownloadContext;
+import jetbrains.buildServer.artifacts.s3.download.parallel.ParallelDownloadState;
+import org.apache.commons.httpclient.HttpMethod;
+import org.jetbrains.annotations.NotNull;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static jetbrains.buildServer.artifacts.s3.download.S3DownloadIOUtil.*;
+
+/**
+ * Parallel strategy that downloads parts into the target file sectors directly, like {@link InplaceParallelDownloadStrategy},
+ * but the file is extended to its full size up front and every part is read into memory-mapped windows of it, which saves the write calls.
+ * The response body is still copied through the buffer of its channel.
+ * Windows are not unmapped until they are garbage collected, and a mapped file can't be renamed on Windows, so there parts are written like in {@link InplaceParallelDownloadStrategy}.
+ */
+public class MappedParallelDownloadStrategy extends InplaceParallelDownloadStrategy {
+  public static final String NAME = "MAPPED_PARALLEL";
+
+  /**
+   * When the bytes written to the mapped windows are forced to the storage device.
+   */
+  public enum FlushPolicy {
+    /**
+     * The operating system writes the pages back when it decides to.
+     */
+    NONE,
+    /**
+     * Every window is forced as soon as it is filled, this limits the amount of dirty pages per download.
+     */
+    WINDOW
+  }
+
+  @Override
+  protected void beforeDownloadingParts(@NotNull Path targetFile,
+                                        @NotNull List<FilePart> fileParts,
+                                        long fileSize,
+                                        @NotNull ParallelDownloadState downloadState,
+                                        @NotNull ParallelDownloadContext downloadContext) throws IOException {
+    super.beforeDownloadingParts(targetFile, fileParts, fileSize, downloadState, downloadContext);
+    if (TCSystemInfo.isWindows) return;
+
+    // all the windows are mapped within the file, so the file gets its full size up front rather than being extended by concurrent mappings
+    Path unfinishedTargetFile = getUnfinishedFilePath(targetFile);
+    if (Files.size(unfinishedTargetFile) != fileSize) {
+      reserveFileBytes(unfinishedTargetFile, fileSize);
+    }
+  }
+
+  @Override
+  protected void writePart(@NotNull HttpMethod ongoingRequest,
+                           @NotNull FilePart filePart,
+                           @NotNull Path targetFile,
+                           @NotNull ParallelDownloadState downloadState,
+                           @NotNull ParallelDownloadContext downloadContext) throws IOException {
+    if (TCSystemInfo.isWindows) {
+      super.writePart(ongoingRequest, filePart, targetFile, downloadState, downloadContext);
+      return;
+    }
+
+    S3DownloadConfiguration configuration = downloadContext.getConfiguration();
+    Path partTargetFile = getUnfinishedFilePath(targetFile);
+    checkDownloadInterruptedOrFailed(downloadState);
+    try (ReadableByteChannel responseBodyChannel = Channels.newChannel(openPartBody(ongoingRequest, filePart, downloadContext));
+         FileChannel targetFileChannel = FileChannel.open(partTargetFile, READ, WRITE)) { // mapping for writing requires a channel open for reading as well
+      transferExpectedBytesToMappedFile(
+        responseBodyChannel,
+        targetFileChannel,
+        filePart.getStartByte(),
+        filePart.getSizeBytes(),
+        configuration.getMappedWindowSizeBytes(),
+        configuration.getMappedFlushPolicy() == FlushPolicy.WINDOW,
+        () -> checkDownloadInterruptedOrFailed(downloadState),
+        (transferred) -> downloadState.addDownloadedBytes(filePart, transferred)
+      );
+    } catch (IOException | RuntimeException e) {
+      // aborting the request allows not to wait until full body arrives, this needs to be done before closing the response body stream
+      ongoingRequest.abort();
+      throw e;
+    }
+  }
+
+  @NotNull
+  @Override
+  public String getName() {
+    return NAME;
+  }
+}
@@ -5,12 +5,13 @@ import java.nio.channels.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Objects;
 import jetbrains.buildServer.agent.AgentRunningBuild;
 import jetbrains.buildServer.artifacts.s3.download.S3DownloadIOUtil;
 import jetbrains.buildServer.artifacts.s3.download.parallel.FilePart;
 import jetbrains.buildServer.artifacts.s3.download.parallel.ParallelDownloadContext;
 import jetbrains.buildServer.artifacts.s3.download.parallel.ParallelDownloadState;
+import jetbrains.buildServer.artifacts.s3.download.parallel.PipelinedPartMerger;
 import jetbrains.buildServer.util.FileUtil;
 import org.apache.commons.httpclient.HttpMethod;
 import org.jetbrains.annotations.NotNull;
@@ -19,7 +20,8 @@ import static java.nio.file.StandardOpenOption.*;
 import static jetbrains.buildServer.artifacts.s3.download.S3DownloadIOUtil.*;
 
 /**
- * Parallel strategy that downloads parts into separate files in the build temp directory first, and then merges them into the target file.
+ * Parallel strategy that downloads parts into separate files in the build temp directory first, and merges them into the target file in order
+ * while the later parts are still downloading. Every part file is deleted as soon as it is merged.
  */
 public class SeparatePartFilesParallelDownloadStrategy extends AbstractParallelDownloadStrategy {
   public static final String NAME = "SEPARATE_PART_FILES_PARALLEL";
@@ -34,6 +36,25 @@ public class SeparatePartFilesParallelDownloadStrategy extends AbstractParallelD
     Path tempPartsDirectory = getTempPartsDirectory(downloadContext.getRunningBuild());
     checkDownloadInterruptedOrFailed(downloadState);
     ensureDirectoryExists(tempPartsDirectory);
+
+    if (downloadContext.getConfiguration().isFreeSpaceCheckEnabled()) {
+      // a slow first part holds back merging of all the others, so in the worst case the file takes twice its size when the parts are on the same file store
+      Path targetDirectory = getAbsoluteNormalizedPath(targetFile).getParent();
+      Objects.requireNonNull(targetDirectory, String.format("Parent directory must not be null, file=%s", targetFile));
+      ensureDirectoryExists(targetDirectory);
+      if (Files.getFileStore(tempPartsDirectory).equals(Files.getFileStore(targetDirectory))) {
+        checkFreeSpace(tempPartsDirectory, 2 * fileSize);
+      } else {
+        checkFreeSpace(tempPartsDirectory, fileSize);
+        checkFreeSpace(targetDirectory, fileSize);
+      }
+    }
+
+    Path unfinishedTargetFile = getUnfinishedFilePath(targetFile);
+    checkDownloadInterruptedOrFailed(downloadState);
+    createFile(unfinishedTargetFile, false);
+    reserveFileBytes(unfinishedTargetFile, fileSize);
+    downloadState.setPartMerger(new PipelinedPartMerger(unfinishedTargetFile, fileParts, part -> getPartTargetFile(part, targetFile, downloadContext)));
   }
 
   @Override
@@ -44,17 +65,19 @@ public class SeparatePartFilesParallelDownloadStrategy extends AbstractParallelD
                            @NotNull ParallelDownloadContext downloadContext) throws IOException {
     Path partTargetFile = getPartTargetFile(filePart, targetFile, downloadContext);
     long partSizeBytes = filePart.getSizeBytes();
+    long partOffset = filePart.getPartOffset(); // positive when the rest of a part is downloaded on retry
     checkDownloadInterruptedOrFailed(downloadState);
-    reserveFileBytes(partTargetFile, partSizeBytes);
-    try (ReadableByteChannel responseBodyChannel = Channels.newChannel(ongoingRequest.getResponseBodyAsStream());
-         WritableByteChannel partFileChannel = Files.newByteChannel(partTargetFile, WRITE)) {
+    reserveFileBytes(partTargetFile, partOffset + partSizeBytes);
+    try (ReadableByteChannel responseBodyChannel = Channels.newChannel(openPartBody(ongoingRequest, filePart, downloadContext));
+         SeekableByteChannel partFileChannel = Files.newByteChannel(partTargetFile, WRITE)) {
+      partFileChannel.position(partOffset);
       transferExpectedBytes(
         responseBodyChannel,
         partFileChannel,
         partSizeBytes,
         downloadContext.getConfiguration().getBufferSizeBytes(),
         () -> checkDownloadInterruptedOrFailed(downloadState),
-        (transferred) -> downloadState.addDownloadedBytes(transferred)
+        (transferred) -> downloadState.addDownloadedBytes(filePart, transferred)
       );
     } catch (IOException | RuntimeException e) {
       // aborting the request allows not to wait until full body arrives, this needs to be done before closing the response body stream
@@ -63,69 +86,31 @@ public class SeparatePartFilesParallelDownloadStrategy extends AbstractParallelD
     }
   }
 
+  @Override
+  protected void afterDownloadingPart(@NotNull FilePart filePart,
+                                      @NotNull Path targetFile,
+                                      @NotNull ParallelDownloadState downloadState,
+                                      @NotNull ParallelDownloadContext downloadContext) throws IOException {
+    PipelinedPartMerger partMerger = downloadState.getPartMerger();
+    Objects.requireNonNull(partMerger, "Part merger is not created before downloading parts");
+    partMerger.partDownloaded(filePart, () -> checkDownloadInterruptedOrFailed(downloadState));
+  }
+
   @Override
   protected void afterDownloadingParts(@NotNull Path targetFile,
                                        @NotNull List<FilePart> fileParts,
                                        long fileSize,
                                        @NotNull ParallelDownloadState downloadState,
                                        @NotNull ParallelDownloadContext downloadContext) throws IOException {
-    try {
-      LOGGER.debug(String.format("Restoring file %s from parts", targetFile));
-      Path unfinishedTargetFile = getUnfinishedFilePath(targetFile);
-      List<Path> partTargetFiles = fileParts.stream()
-        .map(part -> getPartTargetFile(part, targetFile, downloadContext))
-        .collect(Collectors.toList());
-
-      checkDownloadInterrupted(downloadState);
-      ensureDirectoryExists(unfinishedTargetFile.getParent());
-      reserveFileBytes(unfinishedTargetFile, fileSize);
-
-      checkDownloadInterrupted(downloadState);
-      try (FileChannel targetFileChannel = FileChannel.open(unfinishedTargetFile, WRITE)) {
-        long totalCopied = 0L;
-        for (FilePart filePart : fileParts) {
-          Path partTargetFile = partTargetFiles.get(filePart.getPartNumber());
-          copyPart(filePart, partTargetFile, targetFileChannel, unfinishedTargetFile, downloadState);
-          totalCopied += filePart.getSizeBytes();
-        }
-
-        if (totalCopied < fileSize) throw new IOException(String.format("Merged parts contain less bytes (%s) than expected (%s)", totalCopied, fileParts));
-      }
-
-      // rename file and delete parts
-      checkDownloadInterrupted(downloadState);
-      FileUtil.atomicRename(unfinishedTargetFile.toFile(), targetFile.toFile(), 10);
-      for (FilePart filePart : fileParts) {
-        checkDownloadInterrupted(downloadState);
-        Path partTargetFile = partTargetFiles.get(filePart.getPartNumber());
-        Files.deleteIfExists(partTargetFile);
-      }
-
-      LOGGER.debug(String.format("Restored file %s from parts", targetFile));
-    } catch (IOException | RuntimeException e) {
-      LOGGER.debug(String.format("Failed to restore file %s from parts", targetFile), e);
-      throw e;
-    }
-  }
+    // all the parts are merged by the threads that downloaded them
+    PipelinedPartMerger partMerger = downloadState.getPartMerger();
+    Objects.requireNonNull(partMerger, "Part merger is not created before downloading parts");
+    long mergedBytes = partMerger.getMergedBytes();
+    if (mergedBytes != fileSize) throw new IOException(String.format("Merged parts contain %s bytes instead of expected %s", mergedBytes, fileSize));
 
-  private void copyPart(@NotNull FilePart filePart,
-                        @NotNull Path partTargetFile,
-                        @NotNull FileChannel targetFileChannel,
-                        @NotNull Path targetFile,
-                        @NotNull ParallelDownloadState downloadState) throws IOException {
     checkDownloadInterrupted(downloadState);
-    try (FileChannel partFileChannel = FileChannel.open(partTargetFile, READ)) {
-      targetFileChannel.position(filePart.getStartByte());
-      transferExpectedFileBytes(
-        partFileChannel,
-        targetFileChannel,
-        filePart.getSizeBytes(),
-        () -> checkDownloadInterrupted(downloadState),
-        (transferred) -> {}
-      );
-    } catch (IOException | RuntimeException e) {
-      throw new IOException(String.format("Failed to copy part %s from %s into %s", filePart.getDescription(), partTargetFile, targetFile), e);
-    }
+    FileUtil.atomicRename(getUnfinishedFilePath(targetFile).toFile(), targetFile.toFile(), 10);
+    LOGGER.debug(String.format("Restored file %s from parts", targetFile));
   }
 
   @Override
@@ -0,0 +1,122 @@
+package jetbrains.buildServer.artifacts.s3.publish;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Thread-safe controller of the multipart upload settings of a bucket, shared by the builds of the agent that upload to it.
+ * Every publishing, a failed one included, reports how fast the parts of its files were uploaded and how many upload requests failed,
+ * the settings of the next uploads are chosen from these measurements: the number of parts uploaded in parallel follows the throughput of a file,
+ * it keeps changing in the same direction while the throughput grows and turns back when it drops, and the part size is chosen so that uploading
+ * a part takes about the target duration with the throughput of a single thread. A high error rate halves both.
+ * The part size never allows more than {@link #MAX_PARTS} parts for the largest file.
+ */
+public final class S3AdaptiveMultipartController {
+  // limits of S3 multipart uploads
+  static final int MAX_PARTS = 10_000;
+  static final long MAX_PART_SIZE = 5L * 1024 * 1024 * 1024;
+  // throughput changes below this ratio are treated as noise
+  private static final double THROUGHPUT_TOLERANCE = 0.05;
+  // publishings with a larger share of failed upload requests than this back off
+  private static final double MAX_ERROR_RATE = 0.1;
+
+  private final int myMaxThreads;
+  private final long myMinPartSize;
+  private final long myMaxPartSize;
+  private final long myTargetPartDurationNanos;
+
+  // state fields, access should be synchronized by this
+  private int myThreads;
+  private long myPartSize;
+  private int myDirection = 1; // +1 while adding threads, -1 while removing them
+  private double myBytesPerNano = -1; // throughput of a file in the previous publishing, negative until it is measured
+
+  public S3AdaptiveMultipartController(int initialThreads, int maxThreads, long minPartSize, long maxPartSize, long targetPartDurationNanos) {
+    if (maxThreads <= 0) throw new IllegalArgumentException(String.format("Maximum number of threads is not positive (%s)", maxThreads));
+    if (minPartSize <= 0) throw new IllegalArgumentException(String.format("Minimum part size is not positive (%s)", minPartSize));
+    if (maxPartSize < minPartSize) throw new IllegalArgumentException(String.format("Maximum part size (%s) is less than minimum part size (%s)", maxPartSize, minPartSize));
+    if (targetPartDurationNanos <= 0) throw new IllegalArgumentException(String.format("Target part duration is not positive (%s)", targetPartDurationNanos));
+
+    myMaxThreads = maxThreads;
+    myMinPartSize = minPartSize;
+    myMaxPartSize = Math.min(maxPartSize, MAX_PART_SIZE);
+    myTargetPartDurationNanos = targetPartDurationNanos;
+    myThreads = clampThreads(initialThreads);
+    myPartSize = myMinPartSize;
+  }
+
+  /**
+   * @param largestFileSize size of the largest file of the next upload
+   * @return settings for the next upload
+   */
+  @NotNull
+  public synchronized Settings getSettings(long largestFileSize) {
+    long minPartSizeForFile = (largestFileSize + MAX_PARTS - 1) / MAX_PARTS;
+    return new Settings(myThreads, Math.min(MAX_PART_SIZE, Math.max(myPartSize, minPartSizeForFile)));
+  }
+
+  /**
+   * Records the result of a publishing done with the settings returned by {@link #getSettings(long)}.
+   * Only the files uploaded in at least as many parts as there are threads are measured: the smaller ones don't keep all the threads busy.
+   *
+   * @param bytes     size of the measured files
+   * @param partNanos time from the start of the first part to the end of the last part of the measured files, summed over the files
+   * @param parts     number of parts of all the files, a file uploaded by a single request is one part
+   * @param errors    number of failed upload requests of all the files
+   */
+  public synchronized void uploaded(long bytes, long partNanos, int parts, int errors) {
+    if (parts + errors <= 0) return;
+
+    if ((double)errors / (parts + errors) > MAX_ERROR_RATE) {
+      // smaller parts are cheaper to retry and fewer requests are less likely to be throttled
+      myThreads = clampThreads(myThreads / 2);
+      myPartSize = clampPartSize(myPartSize / 2);
+      myDirection = 1;
+      myBytesPerNano = -1;
+      return;
+    }
+    if (bytes <= 0 || partNanos <= 0) return;
+
+    double bytesPerNano = (double)bytes / partNanos;
+    myPartSize = clampPartSize((long)(bytesPerNano / myThreads * myTargetPartDurationNanos));
+
+    if (myBytesPerNano >= 0) {
+      if (bytesPerNano < myBytesPerNano * (1 - THROUGHPUT_TOLERANCE)) {
+        myDirection = -myDirection;
+      } else if (bytesPerNano <= myBytesPerNano * (1 + THROUGHPUT_TOLERANCE)) {
+        myBytesPerNano = bytesPerNano;
+        return; // the number of threads doesn't matter here, keep it
+      }
+    }
+    myBytesPerNano = bytesPerNano;
+    myThreads = clampThreads(myThreads + myDirection * Math.max(1, myThreads / 4));
+  }
+
+  private int clampThreads(int threads) {
+    return Math.max(1, Math.min(myMaxThreads, threads));
+  }
+
+  private long clampPartSize(long partSize) {
+    return Math.max(myMinPartSize, Math.min(myMaxPartSize, partSize));
+  }
+
+  public static final class Settings {
+    private final int myThreads;
+    private final long myPartSize;
+
+    Settings(int threads, long partSize) {
+      myThreads = threads;
+      myPartSize = partSize;
+    }
+
+    /**
+     * @return number of parts of a file uploaded in parallel
+     */
+    public int getThreads() {
+      return myThreads;
+    }
+
+    public long getPartSize() {
+      return myPartSize;
+    }
+  }
+}
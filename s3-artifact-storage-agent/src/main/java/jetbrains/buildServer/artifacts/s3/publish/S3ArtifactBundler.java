@@ -0,0 +1,211 @@
+package jetbrains.buildServer.artifacts.s3.publish;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.function.Consumer;
+import jetbrains.buildServer.artifacts.s3.FileUploadInfo;
+import jetbrains.buildServer.artifacts.s3.S3ArtifactBundles;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Packs small artifacts into bundles, so that they are uploaded with a few requests instead of one request per artifact.
+ * The server serves the bundled artifacts by reading their byte ranges from the bundles, see {@link S3ArtifactBundles}.
+ */
+public class S3ArtifactBundler {
+  private static final Logger LOG = Logger.getInstance(S3ArtifactBundler.class.getName());
+  private static final String BUNDLE_FILE_PREFIX = "bundle-";
+  private static final String BUNDLE_FILE_SUFFIX = ".bin";
+
+  private final long myMaxFileSize;
+  private final long myBundleSize;
+  private final int myMinFiles;
+
+  /**
+   * @param maxFileSize larger artifacts are uploaded as separate objects
+   * @param bundleSize  a new bundle is started when the current one reaches this size
+   * @param minFiles    fewer small artifacts are uploaded as separate objects, bundling them doesn't pay off
+   */
+  public S3ArtifactBundler(long maxFileSize, long bundleSize, int minFiles) {
+    myMaxFileSize = maxFileSize;
+    myBundleSize = bundleSize;
+    myMinFiles = minFiles;
+  }
+
+  /**
+   * @param files            artifacts to publish by their target directories
+   * @param bundleDirectory  empty directory to write the bundles to, the caller deletes it after the upload
+   * @param bundlesPath      target directory of the bundles of this publishing
+   * @param republishedPaths paths of the artifacts of this publishing, including the ones that are not in the files, that were bundled by the earlier publishings
+   * @return artifacts with the bundles to upload, or null if there is not enough small artifacts to bundle and no republished artifacts to supersede
+   */
+  @Nullable
+  public Bundles bundle(@NotNull Map<File, String> files,
+                        @NotNull File bundleDirectory,
+                        @NotNull String bundlesPath,
+                        @NotNull Collection<String> republishedPaths) throws IOException {
+    final List<Map.Entry<File, String>> smallFiles = new ArrayList<>();
+    for (Map.Entry<File, String> entry : files.entrySet()) {
+      if (entry.getKey().isFile() && entry.getKey().length() <= myMaxFileSize) smallFiles.add(entry);
+    }
+    // the index of this publishing has to supersede the entries of the republished artifacts in the earlier indexes
+    if (smallFiles.size() < myMinFiles && republishedPaths.isEmpty()) return null;
+
+    final Map<File, String> filesToUpload = new LinkedHashMap<>(files);
+    final Map<File, List<BundledFile>> bundledFiles = new LinkedHashMap<>();
+    final List<S3ArtifactBundles.Entry> indexEntries = new ArrayList<>();
+    Files.createDirectories(bundleDirectory.toPath());
+
+    OutputStream output = null;
+    File bundle = null;
+    long offset = 0;
+    try {
+      for (Map.Entry<File, String> entry : smallFiles) {
+        if (bundle == null || offset >= myBundleSize) {
+          if (output != null) output.close();
+          bundle = new File(bundleDirectory, BUNDLE_FILE_PREFIX + bundledFiles.size() + BUNDLE_FILE_SUFFIX);
+          output = Files.newOutputStream(bundle.toPath());
+          bundledFiles.put(bundle, new ArrayList<>());
+          offset = 0;
+        }
+
+        final File file = entry.getKey();
+        final long size = Files.copy(file.toPath(), output);
+        final String artifactPath = S3ArtifactDeduplicator.getArtifactPath(entry.getValue(), file.getName());
+        bundledFiles.get(bundle).add(new BundledFile(artifactPath, file.getAbsolutePath(), size));
+        indexEntries.add(new S3ArtifactBundles.Entry(artifactPath, bundlesPath + "/" + bundle.getName(), offset, size));
+        filesToUpload.remove(file);
+        offset += size;
+      }
+    } finally {
+      if (output != null) output.close();
+    }
+
+    final Set<String> bundledPaths = new HashSet<>();
+    for (S3ArtifactBundles.Entry entry : indexEntries) {
+      bundledPaths.add(entry.getArtifactPath());
+    }
+    for (String republishedPath : new LinkedHashSet<>(republishedPaths)) {
+      if (!bundledPaths.contains(republishedPath)) indexEntries.add(S3ArtifactBundles.Entry.superseded(republishedPath));
+    }
+
+    final File index = new File(bundleDirectory, S3ArtifactBundles.INDEX_FILE_NAME);
+    Files.write(index.toPath(), S3ArtifactBundles.serializeIndex(indexEntries).getBytes(StandardCharsets.UTF_8));
+    for (File bundleFile : bundledFiles.keySet()) {
+      filesToUpload.put(bundleFile, bundlesPath);
+    }
+    filesToUpload.put(index, bundlesPath);
+    LOG.debug("Packed " + bundledPaths.size() + " artifacts into " + bundledFiles.size() + " bundles in " + bundlesPath);
+    return new Bundles(filesToUpload, bundledFiles, normalize(index), bundlesPath + "/" + S3ArtifactBundles.INDEX_FILE_NAME, bundledPaths);
+  }
+
+  @NotNull
+  private static File normalize(@NotNull File file) {
+    return file.toPath().toAbsolutePath().normalize().toFile();
+  }
+
+  public static final class Bundles {
+    @NotNull
+    private final Map<File, String> myFilesToUpload;
+    @NotNull
+    private final Map<File, List<BundledFile>> myBundledFiles;
+    @NotNull
+    private final File myIndex;
+    @NotNull
+    private final String myIndexPath;
+    @NotNull
+    private final Set<String> myBundledPaths;
+
+    private Bundles(@NotNull Map<File, String> filesToUpload,
+                    @NotNull Map<File, List<BundledFile>> bundledFiles,
+                    @NotNull File index,
+                    @NotNull String indexPath,
+                    @NotNull Set<String> bundledPaths) {
+      myFilesToUpload = filesToUpload;
+      myBundledFiles = new HashMap<>();
+      bundledFiles.forEach((bundle, files) -> myBundledFiles.put(normalize(bundle), files));
+      myIndex = index;
+      myIndexPath = indexPath;
+      myBundledPaths = bundledPaths;
+    }
+
+    /**
+     * @return artifacts that were not bundled, the bundles and their index
+     */
+    @NotNull
+    public Map<File, String> getFilesToUpload() {
+      return myFilesToUpload;
+    }
+
+    /**
+     * @return path of the index relative to the path prefix of the build
+     */
+    @NotNull
+    public String getIndexPath() {
+      return myIndexPath;
+    }
+
+    /**
+     * @return paths of the bundled artifacts
+     */
+    @NotNull
+    public Set<String> getBundledPaths() {
+      return myBundledPaths;
+    }
+
+    /**
+     * @return size of the largest bundled artifact
+     */
+    public long getMaxFileSize() {
+      long result = 0;
+      for (List<BundledFile> files : myBundledFiles.values()) {
+        for (BundledFile file : files) {
+          result = Math.max(result, file.mySize);
+        }
+      }
+      return result;
+    }
+
+    /**
+     * @param artifactConsumer       receives the uploaded artifacts, including the ones packed into the uploaded bundles
+     * @param bundleArtifactConsumer receives the uploaded bundles and their index
+     * @return consumer of the uploaded files
+     */
+    @NotNull
+    public Consumer<FileUploadInfo> unbundling(@NotNull Consumer<FileUploadInfo> artifactConsumer, @NotNull Consumer<FileUploadInfo> bundleArtifactConsumer) {
+      return uploadInfo -> {
+        final File uploadedFile = normalize(new File(uploadInfo.getAbsolutePath()));
+        final List<BundledFile> bundledFiles = myBundledFiles.get(uploadedFile);
+        if (bundledFiles != null) {
+          bundleArtifactConsumer.accept(uploadInfo);
+          for (BundledFile bundledFile : bundledFiles) {
+            artifactConsumer.accept(new FileUploadInfo(bundledFile.myArtifactPath, bundledFile.myAbsolutePath, bundledFile.mySize, null));
+          }
+        } else if (uploadedFile.equals(myIndex)) {
+          bundleArtifactConsumer.accept(uploadInfo);
+        } else {
+          artifactConsumer.accept(uploadInfo);
+        }
+      };
+    }
+  }
+
+  private static final class BundledFile {
+    @NotNull
+    private final String myArtifactPath;
+    @NotNull
+    private final String myAbsolutePath;
+    private final long mySize;
+
+    private BundledFile(@NotNull String artifactPath, @NotNull String absolutePath, long size) {
+      myArtifactPath = artifactPath;
+      myAbsolutePath = absolutePath;
+      mySize = size;
+    }
+  }
+}
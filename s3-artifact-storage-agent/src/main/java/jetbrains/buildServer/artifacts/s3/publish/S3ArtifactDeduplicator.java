@@ -0,0 +1,185 @@
+package jetbrains.buildServer.artifacts.s3.publish;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import jetbrains.buildServer.artifacts.s3.FileUploadInfo;
+import jetbrains.buildServer.artifacts.s3.S3ArtifactDeduplication;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Asks the server to copy the artifacts it has already stored with the same SHA-256 digest instead of uploading them again.
+ * The server can only copy the objects it was told about by {@link #indexUploaded()} once their upload succeeded.
+ * <p>
+ * Any failure of the deduplication is not fatal, the artifacts that were not copied are uploaded as usual.
+ */
+public class S3ArtifactDeduplicator {
+  private static final Logger LOG = Logger.getInstance(S3ArtifactDeduplicator.class);
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  @NotNull
+  private final String myPathPrefix;
+  private final long myMinFileSize;
+  @NotNull
+  private final Server myServer;
+  @NotNull
+  private final Map<String, S3ArtifactDeduplication.Request> myNotCopiedRequests = new ConcurrentHashMap<>(); // by object keys
+  @NotNull
+  private final Queue<S3ArtifactDeduplication.Request> myUploadedRequests = new ConcurrentLinkedQueue<>();
+
+  /**
+   * @param pathPrefix  prefix of the object keys of the build artifacts
+   * @param minFileSize smaller files are uploaded without deduplication, it doesn't pay off to digest them
+   */
+  public S3ArtifactDeduplicator(@NotNull String pathPrefix, long minFileSize, @NotNull Server server) {
+    myPathPrefix = pathPrefix;
+    myMinFileSize = minFileSize;
+    myServer = server;
+  }
+
+  /**
+   * @param files              artifacts to publish by their target directories
+   * @param uploadInfoConsumer receives the artifacts copied by the server
+   * @return artifacts that still have to be uploaded
+   */
+  @NotNull
+  public Map<File, String> deduplicate(@NotNull Map<File, String> files, @NotNull Consumer<FileUploadInfo> uploadInfoConsumer) {
+    final List<S3ArtifactDeduplication.Request> requests = new ArrayList<>();
+    final Map<String, Map.Entry<File, String>> filesByObjectKey = new HashMap<>();
+    for (Map.Entry<File, String> entry : files.entrySet()) {
+      final File file = entry.getKey();
+      final long size = file.length();
+      if (size < myMinFileSize || !file.isFile()) continue;
+
+      final String objectKey = myPathPrefix + getArtifactPath(entry.getValue(), file.getName());
+      try {
+        requests.add(new S3ArtifactDeduplication.Request(sha256(file), size, objectKey));
+        filesByObjectKey.put(objectKey, entry);
+      } catch (IOException e) {
+        LOG.warnAndDebugDetails("Failed to compute the digest of " + file + ", uploading it without deduplication", e);
+      }
+    }
+    if (requests.isEmpty()) return files;
+
+    // the server copies the artifacts while the request waits, the batches keep it within the socket timeout
+    final Map<String, String> copies = new HashMap<>();
+    for (int from = 0; from < requests.size(); from += S3ArtifactDeduplication.MAX_REQUESTS) {
+      final List<S3ArtifactDeduplication.Request> batch = requests.subList(from, Math.min(from + S3ArtifactDeduplication.MAX_REQUESTS, requests.size()));
+      try {
+        copies.putAll(S3ArtifactDeduplication.deserializeCopies(myServer.send(S3ArtifactDeduplication.DEDUPLICATE_ARTIFACTS, S3ArtifactDeduplication.serializeRequests(batch))));
+      } catch (IOException | IllegalArgumentException e) {
+        LOG.warnAndDebugDetails("Failed to deduplicate " + (requests.size() - from) + " artifacts, uploading them", e);
+        break;
+      }
+    }
+
+    final Map<File, String> filesToUpload = new LinkedHashMap<>(files);
+    for (S3ArtifactDeduplication.Request request : requests) {
+      final String eTag = copies.get(request.getObjectKey());
+      if (eTag == null) {
+        myNotCopiedRequests.put(request.getObjectKey(), request);
+        continue;
+      }
+
+      final Map.Entry<File, String> entry = filesByObjectKey.get(request.getObjectKey());
+      final File file = entry.getKey();
+      filesToUpload.remove(file);
+      uploadInfoConsumer.accept(new FileUploadInfo(getArtifactPath(entry.getValue(), file.getName()), file.getAbsolutePath(), request.getSize(), unquote(eTag)));
+    }
+    LOG.debug("Server copied " + (files.size() - filesToUpload.size()) + " of " + requests.size() + " artifacts requested for deduplication");
+    return filesToUpload;
+  }
+
+  /**
+   * @param uploadInfoConsumer receives the uploaded artifacts
+   * @return consumer that also remembers the ETags of the uploaded artifacts the server didn't copy
+   */
+  @NotNull
+  public Consumer<FileUploadInfo> indexing(@NotNull Consumer<FileUploadInfo> uploadInfoConsumer) {
+    return uploadInfo -> {
+      final S3ArtifactDeduplication.Request request = myNotCopiedRequests.remove(myPathPrefix + uploadInfo.getArtifactPath());
+      if (request != null && uploadInfo.getDigest() != null) {
+        myUploadedRequests.add(new S3ArtifactDeduplication.Request(request.getSha256(), request.getSize(), request.getObjectKey(), uploadInfo.getDigest()));
+      }
+      uploadInfoConsumer.accept(uploadInfo);
+    };
+  }
+
+  /**
+   * Tells the server about the artifacts uploaded since the previous call, it should be called only when the upload has succeeded
+   */
+  public void indexUploaded() {
+    final List<S3ArtifactDeduplication.Request> requests = new ArrayList<>();
+    S3ArtifactDeduplication.Request request;
+    while ((request = myUploadedRequests.poll()) != null) {
+      requests.add(request);
+    }
+    if (requests.isEmpty()) return;
+
+    try {
+      myServer.send(S3ArtifactDeduplication.INDEX_ARTIFACTS, S3ArtifactDeduplication.serializeRequests(requests));
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Failed to send " + requests.size() + " uploaded artifacts for deduplication, the later builds will upload them again", e);
+    }
+  }
+
+  @NotNull
+  static String getArtifactPath(@NotNull String targetDirectory, @NotNull String fileName) {
+    final String directory = StringUtil.removeLeadingAndTailingSlash(targetDirectory.replace('\\', '/'));
+    return directory.isEmpty() ? fileName : directory + "/" + fileName;
+  }
+
+  @NotNull
+  private static String unquote(@NotNull String eTag) {
+    return eTag.length() > 1 && eTag.startsWith("\"") && eTag.endsWith("\"") ? eTag.substring(1, eTag.length() - 1) : eTag;
+  }
+
+  @NotNull
+  private static String sha256(@NotNull File file) throws IOException {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+    final byte[] buffer = new byte[BUFFER_SIZE];
+    try (InputStream input = Files.newInputStream(file.toPath())) {
+      int read;
+      while ((read = input.read(buffer)) >= 0) {
+        digest.update(buffer, 0, read);
+      }
+    }
+    final StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest()) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * Endpoint of the server that copies the artifacts
+   */
+  public interface Server {
+    /**
+     * @param requestParameter {@link S3ArtifactDeduplication#DEDUPLICATE_ARTIFACTS} or {@link S3ArtifactDeduplication#INDEX_ARTIFACTS}
+     * @param requestBody      serialized {@link S3ArtifactDeduplication.Request}s
+     * @return serialized keys and ETags of the copied objects
+     */
+    @NotNull
+    String send(@NotNull String requestParameter, @NotNull String requestBody) throws IOException;
+  }
+}
@@ -5,15 +5,24 @@ package jetbrains.buildServer.artifacts.s3.publish;
 import com.intellij.openapi.diagnostic.Logger;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.text.MessageFormat;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import jetbrains.buildServer.ExtensionHolder;
 import jetbrains.buildServer.agent.AgentLifeCycleAdapter;
@@ -21,6 +30,7 @@ import jetbrains.buildServer.agent.AgentLifeCycleListener;
 import jetbrains.buildServer.agent.AgentRunningBuild;
 import jetbrains.buildServer.agent.ArtifactPublishingFailedException;
 import jetbrains.buildServer.agent.BuildAgentConfiguration;
+import jetbrains.buildServer.agent.BuildFinishedStatus;
 import jetbrains.buildServer.agent.BuildInterruptReason;
 import jetbrains.buildServer.agent.CurrentBuildTracker;
 import jetbrains.buildServer.agent.DigestProducingArtifactsPublisher;
@@ -30,9 +40,12 @@ import jetbrains.buildServer.agent.artifacts.AgentArtifactHelper;
 import jetbrains.buildServer.agent.artifacts.ArtifactDigestInfo;
 import jetbrains.buildServer.artifacts.ArtifactDataInstance;
 import jetbrains.buildServer.artifacts.ArtifactTransportAdditionalHeadersProvider;
+import jetbrains.buildServer.artifacts.s3.FileUploadInfo;
+import jetbrains.buildServer.artifacts.s3.S3ArtifactBundles;
 import jetbrains.buildServer.artifacts.s3.S3ArtifactUtil;
 import jetbrains.buildServer.artifacts.s3.S3Configuration;
 import jetbrains.buildServer.artifacts.s3.S3Constants;
+import jetbrains.buildServer.artifacts.s3.S3Util;
 import jetbrains.buildServer.artifacts.s3.lens.integration.LensIntegrationService;
 import jetbrains.buildServer.artifacts.s3.publish.logger.BuildLoggerS3Logger;
 import jetbrains.buildServer.artifacts.s3.publish.logger.CompositeS3UploadLogger;
@@ -40,12 +53,22 @@ import jetbrains.buildServer.artifacts.s3.publish.logger.S3Log4jUploadLogger;
 import jetbrains.buildServer.artifacts.s3.publish.logger.StatisticsLogger;
 import jetbrains.buildServer.artifacts.s3.publish.presigned.upload.PresignedUrlsProviderClientFactory;
 import jetbrains.buildServer.artifacts.s3.publish.presigned.upload.TeamCityConnectionConfiguration;
+import jetbrains.buildServer.http.HttpUtil;
 import jetbrains.buildServer.log.LogUtil;
 import jetbrains.buildServer.serverSide.BuildTypeOptions;
 import jetbrains.buildServer.serverSide.PublishArtifactCondition;
 import jetbrains.buildServer.util.CollectionsUtil;
 import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.util.retry.RecoverableException;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.NameValuePair;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -53,12 +76,14 @@ import org.springframework.beans.factory.annotation.Autowired;
 import static jetbrains.buildServer.artifacts.s3.S3Constants.ARTEFACTS_S3_UPLOAD_PRESIGN_URLS_HTML;
 import static jetbrains.buildServer.artifacts.s3.S3Constants.S3_PATH_PREFIX_ATTR;
 import static jetbrains.buildServer.artifacts.s3.S3Constants.S3_STORAGE_TYPE;
+import static jetbrains.buildServer.artifacts.s3.S3Constants.TEAMCITY_STORAGE_TYPE_KEY;
 
 public class S3ArtifactsPublisher implements DigestProducingArtifactsPublisher {
 
   private static final Logger LOG = Logger.getInstance(S3ArtifactsPublisher.class.getName());
   private static final String ERROR_PUBLISHING_ARTIFACTS_LIST = "Error publishing artifacts list";
   public static final int MAX_UPLOAD_LOG_MESSAGES = 10;
+  private static final String BUNDLES_TEMP_DIRECTORY = "s3-artifact-bundles";
 
   public static final String MILLIS_FORMAT = "{0,choice, 0#zero milliseconds|1#one millisecond|2#{0,number} milliseconds}";
   public static final String SECONDS_FORMAT = "{0,choice, 0#zero seconds|1#one second|2#{0,number} seconds}";
@@ -71,6 +96,16 @@ public class S3ArtifactsPublisher implements DigestProducingArtifactsPublisher {
   private final LensIntegrationService myLensIntegrationService;
 
   private volatile S3FileUploader myFileUploader;
+  private volatile S3FileUploader myStreamingFileUploader; // used only by the background thread of the streaming upload
+  private final Map<Integer, S3FileUploader> myPipelineFileUploaders = new ConcurrentHashMap<>(); // uploaders of the lanes of the pipelined upload
+  private final List<String> myBundleIndexPaths = new CopyOnWriteArrayList<>(); // indexes of the bundles of small artifacts uploaded by the build
+  private final AtomicInteger myBundlingsCount = new AtomicInteger();
+  private final Set<String> myBundledArtifactPaths = ConcurrentHashMap.newKeySet(); // artifacts of the build that are served from the bundles
+  private final AtomicLong myBundledFileMaxSize = new AtomicLong(); // size of the largest bundled artifact, lets the server skip the indexes for larger ones
+  // tune the multipart uploads by storage type and bucket, kept across builds so that every build starts with the settings learned by the previous ones
+  private final Map<String, S3AdaptiveMultipartController> myMultipartControllers = new ConcurrentHashMap<>();
+  @Nullable
+  private volatile S3StreamingArtifactsUploader myStreamingUploader; // uploads the artifacts while the build runs, null if disabled
   @NotNull
   private final PresignedUrlsProviderClientFactory myPresignedUrlsProviderClientFactory;
   private final S3FileUploaderFactory myUploaderFactory;
@@ -96,8 +131,24 @@ public class S3ArtifactsPublisher implements DigestProducingArtifactsPublisher {
     dispatcher.addListener(new AgentLifeCycleAdapter() {
       @Override
       public void buildStarted(@NotNull final AgentRunningBuild runningBuild) {
+        stopStreamingUpload();
         myFileUploader = null;
+        myStreamingFileUploader = null;
+        myPipelineFileUploaders.clear();
+        myBundleIndexPaths.clear();
+        myBundledArtifactPaths.clear();
+        myBundlingsCount.set(0);
+        myBundledFileMaxSize.set(0);
         myArtifacts.clear();
+        startStreamingUpload(runningBuild);
+      }
+
+      @Override
+      public void buildFinished(@NotNull AgentRunningBuild build, @NotNull BuildFinishedStatus buildStatus) {
+        final S3StreamingArtifactsUploader streamingUploader = stopStreamingUpload();
+        if (streamingUploader != null) {
+          reportUnpublishedStreamedArtifacts(build, streamingUploader);
+        }
       }
     });
   }
@@ -114,29 +165,62 @@ public class S3ArtifactsPublisher implements DigestProducingArtifactsPublisher {
 
     if (!filteredMap.isEmpty()) {
       final AgentRunningBuild build = myTracker.getCurrentBuild();
-      final S3FileUploader fileUploader = getFileUploader(build, logger);
-      Collection<UploadStatistics> statistics;
+      final Consumer<FileUploadInfo> uploadInfoConsumer = fileUploadInfo -> {
+        myArtifacts.add(ArtifactDataInstance.create(fileUploadInfo.getArtifactPath(), fileUploadInfo.getSize()));
+        if (digestConsumer != null) {
+          File uploadFile = new File(fileUploadInfo.getAbsolutePath());
+          try {
+            digestConsumer.accept(new ArtifactDigestInfo(uploadFile, filteredMap.get(uploadFile), fileUploadInfo.getDigest()));
+          } catch (Throwable t) {
+            LOG.warn("Failed to send artifact upload information to digest consumer", t);
+          }
+        }
+      };
+      final S3StreamingArtifactsUploader streamingUploader = myStreamingUploader;
+      final Map<File, String> notStreamedFiles = streamingUploader != null ? streamingUploader.startPublishing(filteredMap, uploadInfoConsumer) : filteredMap;
+      Collection<UploadStatistics> statistics = null;
+      S3ArtifactBundler.Bundles bundles = null;
+      final File bundleDirectory = new File(build.getBuildTempDirectory(), BUNDLES_TEMP_DIRECTORY + "/" + myBundlingsCount.incrementAndGet());
 
       try {
-        statistics = fileUploader.upload(filteredMap, () -> {
+        final S3PublishConfiguration configuration = new S3PublishConfiguration(build.getSharedConfigParameters());
+        final S3ArtifactDeduplicator deduplicator = createDeduplicator(build, configuration, notStreamedFiles);
+        final Map<File, String> deduplicatedFiles = deduplicator != null ? deduplicator.deduplicate(notStreamedFiles, uploadInfoConsumer) : notStreamedFiles;
+        final Consumer<FileUploadInfo> uploadedFileConsumer = deduplicator != null ? deduplicator.indexing(uploadInfoConsumer) : uploadInfoConsumer;
+        final List<String> republishedPaths = getRepublishedBundledPaths(filteredMap);
+        bundles = bundle(build, configuration, deduplicatedFiles, bundleDirectory, republishedPaths);
+        final Map<File, String> filesToUpload = bundles != null ? bundles.getFilesToUpload() : deduplicatedFiles;
+        final Consumer<FileUploadInfo> artifactsConsumer = bundles != null
+                                                           ? bundles.unbundling(uploadedFileConsumer, bundle -> myArtifacts.add(ArtifactDataInstance.create(bundle.getArtifactPath(), bundle.getSize())))
+                                                           : uploadedFileConsumer;
+        final Supplier<String> interrupter = () -> {
           if (isPublishingStopped(build) && build.getInterruptReason() != null) {
             return build.getInterruptReason().getUserDescription();
           } else {
             return null;
           }
-        }, fileUploadInfo -> {
-          myArtifacts.add(ArtifactDataInstance.create(fileUploadInfo.getArtifactPath(), fileUploadInfo.getSize()));
-          if (digestConsumer != null) {
-            File uploadFile = new File(fileUploadInfo.getAbsolutePath());
-            try {
-              digestConsumer.accept(new ArtifactDigestInfo(uploadFile, filteredMap.get(uploadFile), fileUploadInfo.getDigest()));
-            } catch (Throwable t) {
-              LOG.warn("Failed to send artifact upload information to digest consumer", t);
-            }
-          }
-        });
+        };
+        if (configuration.isPipelineEnabled() && filesToUpload.size() > configuration.getPipelineBatchSize()) {
+          statistics = new S3PipelinedArtifactsUploader<UploadStatistics>(configuration.getPipelineBatchSize(), configuration.getPipelineLanes())
+            .upload(filesToUpload, (batch, lane) -> getPipelineFileUploader(build, logger, lane).upload(batch, interrupter, artifactsConsumer));
+        } else if (configuration.isAdaptiveMultipartEnabled() && !filesToUpload.isEmpty()) {
+          statistics = uploadAdaptively(build, logger, configuration, filesToUpload, interrupter, artifactsConsumer);
+        } else if (!filesToUpload.isEmpty()) {
+          final S3FileUploader fileUploader = getFileUploader(build, logger);
+          statistics = fileUploader.upload(filesToUpload, interrupter, artifactsConsumer);
+        }
+        if (bundles != null) {
+          myBundleIndexPaths.add(bundles.getIndexPath());
+          myBundledArtifactPaths.removeAll(republishedPaths);
+          myBundledArtifactPaths.addAll(bundles.getBundledPaths());
+          myBundledFileMaxSize.accumulateAndGet(bundles.getMaxFileSize(), Math::max);
+        }
+        if (deduplicator != null) deduplicator.indexUploaded();
       } catch (RecoverableException e) {
         throw new ArtifactPublishingFailedException(e.getMessage(), e.isRecoverable(), e);
+      } finally {
+        if (streamingUploader != null) streamingUploader.publishingFinished();
+        if (bundles != null) FileUtil.delete(bundleDirectory);
       }
 
       publishArtifactsList(build);
@@ -164,6 +248,199 @@ public class S3ArtifactsPublisher implements DigestProducingArtifactsPublisher {
     return filteredMap.size();
   }
 
+  private void startStreamingUpload(@NotNull final AgentRunningBuild build) {
+    if (!StringUtil.areEqual(build.getArtifactStorageSettings().get(TEAMCITY_STORAGE_TYPE_KEY), getType())) return;
+    final S3PublishConfiguration configuration = new S3PublishConfiguration(build.getSharedConfigParameters());
+    if (!configuration.isStreamingEnabled()) return;
+
+    final S3StreamingArtifactsUploader streamingUploader = S3StreamingArtifactsUploader.create(
+      build.getArtifactsPaths(), build.getCheckoutDirectory(),
+      (files, interrupter, uploadInfoConsumer) -> {
+        final Map<File, String> enabledFiles = CollectionsUtil.filterMapByValues(files, s -> myHelper.isEnabled(this, s));
+        if (!enabledFiles.isEmpty()) {
+          if (myStreamingFileUploader == null) {
+            myStreamingFileUploader = createFileUploader(build, build.getBuildLogger().getFlowLogger(""));
+          }
+          myStreamingFileUploader.upload(enabledFiles, interrupter, uploadInfoConsumer);
+        }
+      },
+      configuration.getStreamingPollIntervalMs(), configuration.getStreamingQuietPeriodMs());
+    if (streamingUploader == null) {
+      LOG.debug("None of the artifact paths of build " + LogUtil.describe(build) + " can be uploaded while the build runs");
+      return;
+    }
+    myStreamingUploader = streamingUploader;
+    streamingUploader.start();
+  }
+
+  @Nullable
+  private S3StreamingArtifactsUploader stopStreamingUpload() {
+    final S3StreamingArtifactsUploader streamingUploader = myStreamingUploader;
+    if (streamingUploader != null) {
+      myStreamingUploader = null;
+      streamingUploader.stop();
+    }
+    return streamingUploader;
+  }
+
+  /**
+   * Objects uploaded while the build ran that didn't make it to the artifacts list are not deleted by the build cleanup, so they are reported to be removed manually
+   */
+  private void reportUnpublishedStreamedArtifacts(@NotNull final AgentRunningBuild build, @NotNull final S3StreamingArtifactsUploader streamingUploader) {
+    final Set<String> publishedPaths;
+    synchronized (myArtifacts) {
+      publishedPaths = myArtifacts.stream().map(ArtifactDataInstance::getArtifactPath).collect(Collectors.toSet());
+    }
+    final List<String> unpublishedPaths = streamingUploader.getUploadedArtifactPaths().stream()
+                                                          .filter(path -> !publishedPaths.contains(path))
+                                                          .collect(Collectors.toList());
+    if (unpublishedPaths.isEmpty()) return;
+
+    final String message = String.format("%d objects uploaded while the build ran were not published as artifacts and are not deleted by the build cleanup, " +
+                                         "remove them from path %s of the bucket manually: %s%s",
+                                         unpublishedPaths.size(), getPathPrefix(build),
+                                         String.join(", ", unpublishedPaths.subList(0, Math.min(unpublishedPaths.size(), MAX_UPLOAD_LOG_MESSAGES))),
+                                         unpublishedPaths.size() > MAX_UPLOAD_LOG_MESSAGES ? ", ..." : "");
+    build.getBuildLogger().warning(message);
+    LOG.warn(message + " (build " + LogUtil.describe(build) + ")");
+  }
+
+  /**
+   * @return deduplicator of the files, or null if the deduplication is disabled
+   */
+  @Nullable
+  private S3ArtifactDeduplicator createDeduplicator(@NotNull final AgentRunningBuild build,
+                                                    @NotNull final S3PublishConfiguration configuration,
+                                                    @NotNull final Map<File, String> files) {
+    if (files.isEmpty() || !configuration.isDeduplicationEnabled()) return null;
+
+    final String urlsProviderPath = build.getArtifactStorageSettings().getOrDefault(S3Constants.S3_URLS_PROVIDER_PATH, ARTEFACTS_S3_UPLOAD_PRESIGN_URLS_HTML);
+    final String url = StringUtil.removeTailingSlash(build.getAgentConfiguration().getServerUrl()) + "/" + StringUtil.removeLeadingAndTailingSlash(urlsProviderPath);
+    return new S3ArtifactDeduplicator(getPathPrefix(build), configuration.getDeduplicationMinFileSizeBytes(), (requestParameter, requestBody) -> {
+      final HttpClient httpClient = HttpUtil.createHttpClient(build.getAgentConfiguration().getServerConnectionTimeout());
+      httpClient.getParams().setAuthenticationPreemptive(true);
+      httpClient.getState().setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(build.getAccessUser(), build.getAccessCode()));
+      final PostMethod post = new PostMethod(url);
+      try {
+        post.setQueryString(new NameValuePair[]{new NameValuePair(requestParameter, "true")});
+        post.setRequestEntity(new StringRequestEntity(requestBody, "text/plain", StandardCharsets.UTF_8.name()));
+        final int status = httpClient.executeMethod(post);
+        if (status != HttpStatus.SC_OK) {
+          throw new IOException("Server responded with HTTP " + status + " to the artifacts deduplication request");
+        }
+        return post.getResponseBodyAsString();
+      } finally {
+        post.releaseConnection();
+      }
+    });
+  }
+
+  /**
+   * Uploads the files with the multipart settings chosen by the controller of the storage and bucket of the build and reports the result back to it.
+   */
+  @Nullable
+  private Collection<UploadStatistics> uploadAdaptively(@NotNull final AgentRunningBuild build,
+                                                        @NotNull final FlowLogger logger,
+                                                        @NotNull final S3PublishConfiguration configuration,
+                                                        @NotNull final Map<File, String> files,
+                                                        @NotNull final Supplier<String> interrupter,
+                                                        @NotNull final Consumer<FileUploadInfo> uploadInfoConsumer) throws RecoverableException {
+    final Map<String, String> storageSettings = build.getArtifactStorageSettings();
+    final String controllerKey = storageSettings.get(TEAMCITY_STORAGE_TYPE_KEY) + "/" + S3Util.getBucketName(storageSettings);
+    final S3AdaptiveMultipartController controller = myMultipartControllers.computeIfAbsent(controllerKey, key -> new S3AdaptiveMultipartController(
+      S3Util.getNumberOfThreadsForFileParts(build.getSharedConfigParameters()),
+      configuration.getAdaptiveMultipartMaxThreads(),
+      configuration.getAdaptiveMultipartMinPartSizeBytes(),
+      configuration.getAdaptiveMultipartMaxPartSizeBytes(),
+      TimeUnit.MILLISECONDS.toNanos(configuration.getAdaptiveMultipartTargetPartDurationMs())));
+
+    long largestFileSize = 0;
+    for (File file : files.keySet()) {
+      largestFileSize = Math.max(largestFileSize, file.length());
+    }
+    final S3AdaptiveMultipartController.Settings settings = controller.getSettings(largestFileSize);
+    LOG.debug(String.format("Uploading %d files of build %s in parts of %d bytes, %d parts in parallel", files.size(), LogUtil.describe(build),
+                            settings.getPartSize(), settings.getThreads()));
+
+    final AtomicInteger uploadedFiles = new AtomicInteger();
+    final Collection<UploadStatistics> statistics;
+    try {
+      statistics = createFileUploader(build, logger, getS3Configuration(build, settings)).upload(files, interrupter, fileUploadInfo -> {
+        uploadedFiles.incrementAndGet();
+        uploadInfoConsumer.accept(fileUploadInfo);
+      });
+    } catch (RecoverableException | RuntimeException e) {
+      if (interrupter.get() == null) {
+        // the statistics of a failed upload are not returned, the files that were not uploaded are counted as failed requests
+        controller.uploaded(0, 0, uploadedFiles.get(), files.size() - uploadedFiles.get());
+      }
+      throw e;
+    }
+    if (statistics != null) {
+      reportUploadStatistics(controller, settings, statistics);
+    } else {
+      controller.uploaded(0, 0, uploadedFiles.get(), files.size() - uploadedFiles.get());
+    }
+    return statistics;
+  }
+
+  /**
+   * Reports the throughput of the parts of the files that kept all the threads busy and the failed requests of all the files
+   */
+  private static void reportUploadStatistics(@NotNull final S3AdaptiveMultipartController controller,
+                                             @NotNull final S3AdaptiveMultipartController.Settings settings,
+                                             @NotNull final Collection<UploadStatistics> statistics) {
+    long bytes = 0;
+    long partNanos = 0;
+    int parts = 0;
+    int errors = 0;
+    for (UploadStatistics stat : statistics) {
+      final int fileParts = Math.max(1, stat.getNumberOfParts());
+      parts += fileParts;
+      errors += stat.getErrors().size();
+      if (stat.isSuccessful() && fileParts >= settings.getThreads()) {
+        bytes += stat.getFileSize();
+        partNanos += stat.getDuration().toNanos();
+      }
+    }
+    controller.uploaded(bytes, partNanos, parts, errors);
+  }
+
+  /**
+   * @return paths of the published files that were bundled by the earlier publishings of the build
+   */
+  @NotNull
+  private List<String> getRepublishedBundledPaths(@NotNull final Map<File, String> files) {
+    if (myBundledArtifactPaths.isEmpty()) return Collections.emptyList();
+    final List<String> result = new ArrayList<>();
+    files.forEach((file, targetDirectory) -> {
+      final String artifactPath = S3ArtifactDeduplicator.getArtifactPath(targetDirectory, file.getName());
+      if (myBundledArtifactPaths.contains(artifactPath)) result.add(artifactPath);
+    });
+    return result;
+  }
+
+  /**
+   * @return bundles of the small files with the rest of the files, or null if the files are uploaded separately
+   */
+  @Nullable
+  private S3ArtifactBundler.Bundles bundle(@NotNull final AgentRunningBuild build,
+                                          @NotNull final S3PublishConfiguration configuration,
+                                          @NotNull final Map<File, String> files,
+                                          @NotNull final File bundleDirectory,
+                                          @NotNull final List<String> republishedPaths) {
+    if (!configuration.isBundlingEnabled() && republishedPaths.isEmpty()) return null;
+
+    final S3ArtifactBundler bundler = new S3ArtifactBundler(configuration.getBundlingMaxFileSizeBytes(), configuration.getBundlingBundleSizeBytes(), configuration.getBundlingMinFiles());
+    try {
+      return bundler.bundle(files, bundleDirectory, S3ArtifactBundles.BUNDLES_DIRECTORY + "/" + bundleDirectory.getName(), republishedPaths);
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Failed to bundle small artifacts of build " + LogUtil.describe(build) + ", uploading them separately", e);
+      FileUtil.delete(bundleDirectory);
+      return null;
+    }
+  }
+
   @NotNull
   public StatisticsLogger.SummaryStatistics getSummaryStatistics(@NotNull Collection<UploadStatistics> statistics) {
     final int fileCount = statistics.size();
@@ -231,7 +508,12 @@ public class S3ArtifactsPublisher implements DigestProducingArtifactsPublisher {
     if (!myArtifacts.isEmpty()) {
       final String pathPrefix = getPathPrefix(build);
       try {
-        myHelper.publishArtifactList(myArtifacts, CollectionsUtil.asMap(S3_PATH_PREFIX_ATTR, pathPrefix));
+        final Map<String, String> commonProperties = new HashMap<>(CollectionsUtil.asMap(S3_PATH_PREFIX_ATTR, pathPrefix));
+        if (!myBundleIndexPaths.isEmpty()) {
+          commonProperties.put(S3ArtifactBundles.BUNDLE_INDEXES_ATTR, S3ArtifactBundles.joinIndexPaths(myBundleIndexPaths));
+          commonProperties.put(S3ArtifactBundles.BUNDLED_FILE_MAX_SIZE_ATTR, String.valueOf(myBundledFileMaxSize.get()));
+        }
+        myHelper.publishArtifactList(myArtifacts, commonProperties);
       } catch (IOException e) {
         build.getBuildLogger().error(ERROR_PUBLISHING_ARTIFACTS_LIST + ": " + e.getMessage());
         LOG.warnAndDebugDetails(ERROR_PUBLISHING_ARTIFACTS_LIST + "for build " + LogUtil.describe(build), e);
@@ -257,21 +539,44 @@ public class S3ArtifactsPublisher implements DigestProducingArtifactsPublisher {
   }
 
   @NotNull
-  private S3FileUploader getFileUploader(@NotNull final AgentRunningBuild build, FlowLogger flowLogger) {
+  private synchronized S3FileUploader getFileUploader(@NotNull final AgentRunningBuild build, FlowLogger flowLogger) {
     if (myFileUploader == null) {
-      Collection<ArtifactTransportAdditionalHeadersProvider> headersProviders = myExtensionHolder.getExtensions(ArtifactTransportAdditionalHeadersProvider.class);
-      final S3Configuration s3Configuration = getS3Configuration(build);
-      myFileUploader = myUploaderFactory.create(s3Configuration,
-                                                CompositeS3UploadLogger.compose(new BuildLoggerS3Logger(flowLogger), new S3Log4jUploadLogger()),
-                                                () -> myPresignedUrlsProviderClientFactory.createClient(teamcityConnectionConfiguration(build), headersProviders));
+      myFileUploader = createFileUploader(build, flowLogger);
     }
     return myFileUploader;
   }
 
+  /**
+   * @return uploader of a lane of the pipelined upload, the first lane shares the uploader with the regular uploads
+   */
+  @NotNull
+  private S3FileUploader getPipelineFileUploader(@NotNull final AgentRunningBuild build, FlowLogger flowLogger, int lane) {
+    if (lane == 0) return getFileUploader(build, flowLogger);
+    return myPipelineFileUploaders.computeIfAbsent(lane, l -> createFileUploader(build, flowLogger));
+  }
+
+  @NotNull
+  private S3FileUploader createFileUploader(@NotNull final AgentRunningBuild build, FlowLogger flowLogger) {
+    return createFileUploader(build, flowLogger, getS3Configuration(build));
+  }
+
+  @NotNull
+  private S3FileUploader createFileUploader(@NotNull final AgentRunningBuild build, FlowLogger flowLogger, @NotNull final S3Configuration s3Configuration) {
+    Collection<ArtifactTransportAdditionalHeadersProvider> headersProviders = myExtensionHolder.getExtensions(ArtifactTransportAdditionalHeadersProvider.class);
+    return myUploaderFactory.create(s3Configuration,
+                                    CompositeS3UploadLogger.compose(new BuildLoggerS3Logger(flowLogger), new S3Log4jUploadLogger()),
+                                    () -> myPresignedUrlsProviderClientFactory.createClient(teamcityConnectionConfiguration(build), headersProviders));
+  }
+
   @NotNull
   private S3Configuration getS3Configuration(@NotNull AgentRunningBuild build) {
+    return getS3Configuration(build, null);
+  }
+
+  @NotNull
+  private S3Configuration getS3Configuration(@NotNull AgentRunningBuild build, @Nullable S3AdaptiveMultipartController.Settings multipartSettings) {
     final SettingsProcessor settingsProcessor = new SettingsProcessor(myBuildAgentConfiguration);
-    final S3Configuration s3Configuration = settingsProcessor.processSettings(build.getSharedConfigParameters(), build.getArtifactStorageSettings());
+    final S3Configuration s3Configuration = settingsProcessor.processSettings(build.getSharedConfigParameters(), build.getArtifactStorageSettings(), multipartSettings);
     s3Configuration.setPathPrefix(getPathPrefix(build));
     return s3Configuration;
   }
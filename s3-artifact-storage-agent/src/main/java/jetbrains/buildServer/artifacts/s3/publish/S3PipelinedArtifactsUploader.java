@@ -0,0 +1,124 @@
+package jetbrains.buildServer.artifacts.s3.publish;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import jetbrains.buildServer.util.executors.ExecutorsFactory;
+import jetbrains.buildServer.util.retry.RecoverableException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Uploads the artifacts in batches, several batches at a time. Each in-flight batch goes through its own lane with its own uploader,
+ * so while one lane waits for the server to generate the pre-signed URLs of its batch, the other lanes read and send the files.
+ * The number of lanes bounds how far the URL requests run ahead of the uploads.
+ *
+ * @param <T> upload statistics of a batch
+ */
+public final class S3PipelinedArtifactsUploader<T> {
+  private static final Logger LOG = Logger.getInstance(S3PipelinedArtifactsUploader.class.getName());
+  private static final String EXECUTOR_NAME = "S3 pipelined artifacts uploader";
+
+  /**
+   * Upload of a batch of files
+   */
+  public interface BatchUpload<T> {
+    /**
+     * @param lane index of the lane that uploads the batch, batches of one lane are never uploaded concurrently
+     */
+    @Nullable
+    Collection<T> upload(@NotNull Map<File, String> batch, int lane) throws RecoverableException;
+  }
+
+  private final int myBatchSize;
+  private final int myLanes;
+
+  public S3PipelinedArtifactsUploader(int batchSize, int lanes) {
+    myBatchSize = batchSize;
+    myLanes = lanes;
+  }
+
+  /**
+   * Uploads all the files, the first failure stops uploading the batches that haven't started yet and is rethrown
+   *
+   * @return statistics of all the batches
+   */
+  @NotNull
+  public Collection<T> upload(@NotNull Map<File, String> filesToUpload, @NotNull BatchUpload<T> batchUpload) throws RecoverableException {
+    final List<Map<File, String>> batches = split(filesToUpload, myBatchSize);
+    final int lanes = Math.min(myLanes, batches.size());
+    final List<T> statistics = Collections.synchronizedList(new ArrayList<>());
+    final AtomicInteger nextBatch = new AtomicInteger();
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    LOG.debug("Uploading " + filesToUpload.size() + " files in " + batches.size() + " batches through " + lanes + " lanes");
+
+    final ExecutorService executor = lanes > 1 ? ExecutorsFactory.newFixedDaemonExecutor(EXECUTOR_NAME, lanes - 1) : null;
+    try {
+      final List<Future<?>> futures = new ArrayList<>();
+      for (int lane = 1; lane < lanes; lane++) {
+        final int laneIndex = lane;
+        futures.add(executor.submit(() -> uploadBatches(laneIndex, batches, nextBatch, batchUpload, statistics, failure)));
+      }
+      uploadBatches(0, batches, nextBatch, batchUpload, statistics, failure);
+      for (Future<?> future : futures) {
+        try {
+          future.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          failure.compareAndSet(null, e);
+        } catch (Exception e) {
+          failure.compareAndSet(null, e);
+        }
+      }
+    } finally {
+      if (executor != null) executor.shutdownNow();
+    }
+
+    rethrow(failure.get());
+    return statistics;
+  }
+
+  private static <T> void uploadBatches(int lane,
+                                        @NotNull List<Map<File, String>> batches,
+                                        @NotNull AtomicInteger nextBatch,
+                                        @NotNull BatchUpload<T> batchUpload,
+                                        @NotNull List<T> statistics,
+                                        @NotNull AtomicReference<Throwable> failure) {
+    int batch;
+    while (failure.get() == null && (batch = nextBatch.getAndIncrement()) < batches.size()) {
+      try {
+        final Collection<T> batchStatistics = batchUpload.upload(batches.get(batch), lane);
+        if (batchStatistics != null) statistics.addAll(batchStatistics);
+      } catch (Throwable t) {
+        failure.compareAndSet(null, t);
+      }
+    }
+  }
+
+  @NotNull
+  static List<Map<File, String>> split(@NotNull Map<File, String> files, int batchSize) {
+    final List<Map<File, String>> batches = new ArrayList<>();
+    Map<File, String> batch = new LinkedHashMap<>();
+    for (Map.Entry<File, String> entry : files.entrySet()) {
+      if (batch.size() == batchSize) {
+        batches.add(batch);
+        batch = new LinkedHashMap<>();
+      }
+      batch.put(entry.getKey(), entry.getValue());
+    }
+    if (!batch.isEmpty()) batches.add(batch);
+    return batches;
+  }
+
+  private static void rethrow(@Nullable Throwable failure) throws RecoverableException {
+    if (failure == null) return;
+    if (failure instanceof RecoverableException) throw (RecoverableException)failure;
+    if (failure instanceof RuntimeException) throw (RuntimeException)failure;
+    if (failure instanceof Error) throw (Error)failure;
+    throw new RuntimeException(failure);
+  }
+}
@@ -0,0 +1,133 @@
+package jetbrains.buildServer.artifacts.s3.publish;
+
+import java.util.Map;
+import java.util.Optional;
+import jetbrains.buildServer.artifacts.s3.IntegerParameterBounds;
+import org.jetbrains.annotations.NotNull;
+
+import static jetbrains.buildServer.artifacts.s3.IntegerParameterBounds.*;
+import static jetbrains.buildServer.artifacts.s3.publish.S3PublishConstants.*;
+
+/**
+ * Agent-side parameters of the S3 artifacts publisher for a build
+ */
+public class S3PublishConfiguration {
+  // parameter defaults
+  private static final boolean DEFAULT_STREAMING_ENABLED = false;
+  private static final int DEFAULT_STREAMING_POLL_INTERVAL_MS = 5000;
+  private static final int DEFAULT_STREAMING_QUIET_PERIOD_MS = 10_000;
+  private static final boolean DEFAULT_DEDUPLICATION_ENABLED = false;
+  private static final int DEFAULT_DEDUPLICATION_MIN_FILE_SIZE_KB = 10 * 1024;
+  private static final boolean DEFAULT_PIPELINE_ENABLED = false;
+  private static final int DEFAULT_PIPELINE_BATCH_SIZE = 100;
+  private static final int DEFAULT_PIPELINE_LANES = 3;
+  private static final boolean DEFAULT_BUNDLING_ENABLED = false;
+  private static final int DEFAULT_BUNDLING_MAX_FILE_SIZE_KB = 64;
+  private static final int DEFAULT_BUNDLING_BUNDLE_SIZE_MB = 64;
+  private static final int DEFAULT_BUNDLING_MIN_FILES = 100;
+  private static final boolean DEFAULT_ADAPTIVE_MULTIPART_ENABLED = false;
+  private static final int DEFAULT_ADAPTIVE_MULTIPART_MIN_PART_SIZE_MB = 5;
+  private static final int DEFAULT_ADAPTIVE_MULTIPART_MAX_PART_SIZE_MB = 512;
+  private static final int DEFAULT_ADAPTIVE_MULTIPART_MAX_THREADS = 16;
+  private static final int DEFAULT_ADAPTIVE_MULTIPART_TARGET_PART_DURATION_MS = 5000;
+
+  // parameter bounds
+  private static final IntegerParameterBounds BOUNDS_STREAMING_POLL_INTERVAL_MS = lowerAndUpper(100, 600_000);
+  private static final IntegerParameterBounds BOUNDS_STREAMING_QUIET_PERIOD_MS = lowerAndUpper(0, 3_600_000);
+  private static final IntegerParameterBounds BOUNDS_DEDUPLICATION_MIN_FILE_SIZE_KB = lower(0);
+  private static final IntegerParameterBounds BOUNDS_PIPELINE_BATCH_SIZE = lowerAndUpper(1, 10_000);
+  private static final IntegerParameterBounds BOUNDS_PIPELINE_LANES = lowerAndUpper(1, 16);
+  private static final IntegerParameterBounds BOUNDS_BUNDLING_MAX_FILE_SIZE_KB = lowerAndUpper(1, 100 * 1024);
+  private static final IntegerParameterBounds BOUNDS_BUNDLING_BUNDLE_SIZE_MB = lowerAndUpper(1, 5 * 1024);
+  private static final IntegerParameterBounds BOUNDS_BUNDLING_MIN_FILES = lowerAndUpper(2, 1_000_000);
+  private static final IntegerParameterBounds BOUNDS_ADAPTIVE_MULTIPART_PART_SIZE_MB = lowerAndUpper(5, 5 * 1024);
+  private static final IntegerParameterBounds BOUNDS_ADAPTIVE_MULTIPART_MAX_THREADS = lowerAndUpper(1, 64);
+  private static final IntegerParameterBounds BOUNDS_ADAPTIVE_MULTIPART_TARGET_PART_DURATION_MS = lowerAndUpper(100, 600_000);
+
+  @NotNull
+  private final Map<String, String> myBuildConfigurationParameters;
+
+  public S3PublishConfiguration(@NotNull Map<String, String> buildConfigurationParameters) {
+    myBuildConfigurationParameters = buildConfigurationParameters;
+  }
+
+  public boolean isStreamingEnabled() {
+    return getBooleanParameterOrDefault(S3_UPLOAD_STREAMING_ENABLED, DEFAULT_STREAMING_ENABLED);
+  }
+
+  public long getStreamingPollIntervalMs() {
+    return getBoundIntegerParameterOrDefault(S3_UPLOAD_STREAMING_POLL_INTERVAL_MS, DEFAULT_STREAMING_POLL_INTERVAL_MS, BOUNDS_STREAMING_POLL_INTERVAL_MS);
+  }
+
+  public long getStreamingQuietPeriodMs() {
+    return getBoundIntegerParameterOrDefault(S3_UPLOAD_STREAMING_QUIET_PERIOD_MS, DEFAULT_STREAMING_QUIET_PERIOD_MS, BOUNDS_STREAMING_QUIET_PERIOD_MS);
+  }
+
+  public boolean isDeduplicationEnabled() {
+    return getBooleanParameterOrDefault(S3_UPLOAD_DEDUPLICATION_ENABLED, DEFAULT_DEDUPLICATION_ENABLED);
+  }
+
+  public long getDeduplicationMinFileSizeBytes() {
+    return getBoundIntegerParameterOrDefault(S3_UPLOAD_DEDUPLICATION_MIN_FILE_SIZE_KB, DEFAULT_DEDUPLICATION_MIN_FILE_SIZE_KB, BOUNDS_DEDUPLICATION_MIN_FILE_SIZE_KB) * 1024L;
+  }
+
+  public boolean isPipelineEnabled() {
+    return getBooleanParameterOrDefault(S3_UPLOAD_PIPELINE_ENABLED, DEFAULT_PIPELINE_ENABLED);
+  }
+
+  public int getPipelineBatchSize() {
+    return getBoundIntegerParameterOrDefault(S3_UPLOAD_PIPELINE_BATCH_SIZE, DEFAULT_PIPELINE_BATCH_SIZE, BOUNDS_PIPELINE_BATCH_SIZE);
+  }
+
+  public int getPipelineLanes() {
+    return getBoundIntegerParameterOrDefault(S3_UPLOAD_PIPELINE_LANES, DEFAULT_PIPELINE_LANES, BOUNDS_PIPELINE_LANES);
+  }
+
+  public boolean isBundlingEnabled() {
+    return getBooleanParameterOrDefault(S3_UPLOAD_BUNDLING_ENABLED, DEFAULT_BUNDLING_ENABLED);
+  }
+
+  public long getBundlingMaxFileSizeBytes() {
+    return getBoundIntegerParameterOrDefault(S3_UPLOAD_BUNDLING_MAX_FILE_SIZE_KB, DEFAULT_BUNDLING_MAX_FILE_SIZE_KB, BOUNDS_BUNDLING_MAX_FILE_SIZE_KB) * 1024L;
+  }
+
+  public long getBundlingBundleSizeBytes() {
+    return getBoundIntegerParameterOrDefault(S3_UPLOAD_BUNDLING_BUNDLE_SIZE_MB, DEFAULT_BUNDLING_BUNDLE_SIZE_MB, BOUNDS_BUNDLING_BUNDLE_SIZE_MB) * 1024L * 1024L;
+  }
+
+  public int getBundlingMinFiles() {
+    return getBoundIntegerParameterOrDefault(S3_UPLOAD_BUNDLING_MIN_FILES, DEFAULT_BUNDLING_MIN_FILES, BOUNDS_BUNDLING_MIN_FILES);
+  }
+
+  public boolean isAdaptiveMultipartEnabled() {
+    return getBooleanParameterOrDefault(S3_UPLOAD_ADAPTIVE_MULTIPART_ENABLED, DEFAULT_ADAPTIVE_MULTIPART_ENABLED);
+  }
+
+  public long getAdaptiveMultipartMinPartSizeBytes() {
+    return getBoundIntegerParameterOrDefault(S3_UPLOAD_ADAPTIVE_MULTIPART_MIN_PART_SIZE_MB, DEFAULT_ADAPTIVE_MULTIPART_MIN_PART_SIZE_MB, BOUNDS_ADAPTIVE_MULTIPART_PART_SIZE_MB) * 1024L * 1024L;
+  }
+
+  public long getAdaptiveMultipartMaxPartSizeBytes() {
+    long maxPartSize = getBoundIntegerParameterOrDefault(S3_UPLOAD_ADAPTIVE_MULTIPART_MAX_PART_SIZE_MB, DEFAULT_ADAPTIVE_MULTIPART_MAX_PART_SIZE_MB, BOUNDS_ADAPTIVE_MULTIPART_PART_SIZE_MB) * 1024L * 1024L;
+    return Math.max(maxPartSize, getAdaptiveMultipartMinPartSizeBytes());
+  }
+
+  public int getAdaptiveMultipartMaxThreads() {
+    return getBoundIntegerParameterOrDefault(S3_UPLOAD_ADAPTIVE_MULTIPART_MAX_THREADS, DEFAULT_ADAPTIVE_MULTIPART_MAX_THREADS, BOUNDS_ADAPTIVE_MULTIPART_MAX_THREADS);
+  }
+
+  public long getAdaptiveMultipartTargetPartDurationMs() {
+    return getBoundIntegerParameterOrDefault(S3_UPLOAD_ADAPTIVE_MULTIPART_TARGET_PART_DURATION_MS, DEFAULT_ADAPTIVE_MULTIPART_TARGET_PART_DURATION_MS,
+                                             BOUNDS_ADAPTIVE_MULTIPART_TARGET_PART_DURATION_MS);
+  }
+
+  private boolean getBooleanParameterOrDefault(@NotNull String paramName, boolean defaultValue) {
+    return Optional.ofNullable(myBuildConfigurationParameters.get(paramName))
+      .map(Boolean::parseBoolean)
+      .orElse(defaultValue);
+  }
+
+  private int getBoundIntegerParameterOrDefault(@NotNull String paramName, int defaultValue, @NotNull IntegerParameterBounds bounds) {
+    return bounds.getValueOrDefault(myBuildConfigurationParameters.get(paramName), paramName, defaultValue);
+  }
+}
@@ -0,0 +1,37 @@
+package jetbrains.buildServer.artifacts.s3.publish;
+
+/**
+ * Configuration parameters of the S3 artifacts publisher that are specific to the agent side of the plugin.
+ */
+public final class S3PublishConstants {
+  // uploading the finished files matching the artifact paths in the background while the build runs, the publishing only uploads the rest.
+  // Disabled by default: the objects of the files changed or removed before they are published stay in the bucket, they are only reported in the build log
+  public static final String S3_UPLOAD_STREAMING_ENABLED = "teamcity.internal.storage.s3.upload.streaming.enabled";
+  public static final String S3_UPLOAD_STREAMING_POLL_INTERVAL_MS = "teamcity.internal.storage.s3.upload.streaming.pollIntervalMs";
+  public static final String S3_UPLOAD_STREAMING_QUIET_PERIOD_MS = "teamcity.internal.storage.s3.upload.streaming.quietPeriodMs";
+
+  // copying the artifacts the server has already stored with the same SHA-256 digest instead of uploading them again
+  public static final String S3_UPLOAD_DEDUPLICATION_ENABLED = "teamcity.internal.storage.s3.upload.deduplication.enabled";
+  public static final String S3_UPLOAD_DEDUPLICATION_MIN_FILE_SIZE_KB = "teamcity.internal.storage.s3.upload.deduplication.minFileSizeKb";
+
+  // uploading the artifacts in batches through several lanes, so that the pre-signed URLs of the next batches are requested while the files of the others are sent
+  public static final String S3_UPLOAD_PIPELINE_ENABLED = "teamcity.internal.storage.s3.upload.pipeline.enabled";
+  public static final String S3_UPLOAD_PIPELINE_BATCH_SIZE = "teamcity.internal.storage.s3.upload.pipeline.batchSize";
+  public static final String S3_UPLOAD_PIPELINE_LANES = "teamcity.internal.storage.s3.upload.pipeline.lanes";
+
+  // packing the small artifacts into bundles uploaded as single objects, the server serves them by reading their byte ranges
+  public static final String S3_UPLOAD_BUNDLING_ENABLED = "teamcity.internal.storage.s3.upload.bundling.enabled";
+  public static final String S3_UPLOAD_BUNDLING_MAX_FILE_SIZE_KB = "teamcity.internal.storage.s3.upload.bundling.maxFileSizeKb";
+  public static final String S3_UPLOAD_BUNDLING_BUNDLE_SIZE_MB = "teamcity.internal.storage.s3.upload.bundling.bundleSizeMb";
+  public static final String S3_UPLOAD_BUNDLING_MIN_FILES = "teamcity.internal.storage.s3.upload.bundling.minFiles";
+
+  // choosing the multipart part size and the number of parts uploaded in parallel from the throughput and the errors of the previous uploads of the build
+  public static final String S3_UPLOAD_ADAPTIVE_MULTIPART_ENABLED = "teamcity.internal.storage.s3.upload.multipart.adaptive.enabled";
+  public static final String S3_UPLOAD_ADAPTIVE_MULTIPART_MIN_PART_SIZE_MB = "teamcity.internal.storage.s3.upload.multipart.adaptive.minPartSizeMb";
+  public static final String S3_UPLOAD_ADAPTIVE_MULTIPART_MAX_PART_SIZE_MB = "teamcity.internal.storage.s3.upload.multipart.adaptive.maxPartSizeMb";
+  public static final String S3_UPLOAD_ADAPTIVE_MULTIPART_MAX_THREADS = "teamcity.internal.storage.s3.upload.multipart.adaptive.maxThreads";
+  public static final String S3_UPLOAD_ADAPTIVE_MULTIPART_TARGET_PART_DURATION_MS = "teamcity.internal.storage.s3.upload.multipart.adaptive.targetPartDurationMs";
+
+  private S3PublishConstants() {
+  }
+}
@@ -0,0 +1,401 @@
+package jetbrains.buildServer.artifacts.s3.publish;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import jetbrains.buildServer.artifacts.s3.FileUploadInfo;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.util.executors.ExecutorsFactory;
+import jetbrains.buildServer.util.retry.RecoverableException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Uploads the artifacts while the build runs: polls the files matching the artifact paths of the build and uploads the ones
+ * that have not changed for the quiet period. When the build publishes the artifacts, the files uploaded with the same target
+ * and unchanged since are not uploaded again, the rest are uploaded as usual.
+ * Only the rules with an explicit target directory are watched: without it, and for archives, the target is decided by the agent
+ * when it publishes, and an object uploaded under a guessed path would not be in the artifacts list.
+ * <p>
+ * An object uploaded for a file that is changed, removed or excluded before it is published is not in the artifacts list,
+ * so it is not deleted by the build cleanup, and the agent can't delete it with the pre-signed URLs either.
+ * Such objects are collected by {@link #getUploadedArtifactPaths()}, so that the publisher reports them when the build finishes.
+ */
+public final class S3StreamingArtifactsUploader {
+  private static final Logger LOG = Logger.getInstance(S3StreamingArtifactsUploader.class.getName());
+  private static final String EXECUTOR_NAME = "S3 streaming artifacts uploader";
+  private static final String STOPPED_REASON = "Streaming artifacts upload is stopped";
+  private static final long STOP_TIMEOUT_SECONDS = 60;
+  private static final Pattern ARCHIVE_TARGET_PATTERN = Pattern.compile(".*(!|\\.(zip|jar|war|ear|tar|tgz|tar\\.gz|gz)$).*");
+
+  /**
+   * Upload of the files through the S3 file uploader of the build
+   */
+  public interface Upload {
+    void upload(@NotNull Map<File, String> filesToUpload, @NotNull Supplier<String> interrupter, @NotNull Consumer<FileUploadInfo> uploadInfoConsumer)
+      throws RecoverableException;
+  }
+
+  @NotNull
+  private final List<Rule> myRules;
+  @NotNull
+  private final Upload myUpload;
+  private final long myPollIntervalMs;
+  private final long myQuietPeriodMs;
+  @NotNull
+  private final Object myUploadLock = new Object(); // background and final uploads don't overlap
+
+  // state fields, access should be synchronized by this
+  @NotNull
+  private final Map<File, UploadedFile> myUploadedFiles = new HashMap<>();
+  @NotNull
+  private final Map<File, FileState> myObservedFiles = new HashMap<>();
+  @NotNull
+  private final Set<String> myUploadedArtifactPaths = new LinkedHashSet<>(); // all objects uploaded in the background, including the replaced ones
+  @Nullable
+  private ExecutorService myExecutor;
+  private int myPublishings = 0; // background uploads wait while the build publishes
+  private boolean myIsStopped = false;
+
+  S3StreamingArtifactsUploader(@NotNull List<Rule> rules, @NotNull Upload upload, long pollIntervalMs, long quietPeriodMs) {
+    myRules = rules;
+    myUpload = upload;
+    myPollIntervalMs = pollIntervalMs;
+    myQuietPeriodMs = quietPeriodMs;
+  }
+
+  /**
+   * @param artifactPaths artifact path rules of the build, relative to the checkout directory
+   * @return the uploader, or null if none of the rules can be watched
+   */
+  @Nullable
+  public static S3StreamingArtifactsUploader create(@NotNull String artifactPaths,
+                                                    @NotNull File checkoutDirectory,
+                                                    @NotNull Upload upload,
+                                                    long pollIntervalMs,
+                                                    long quietPeriodMs) {
+    List<Rule> rules = parseRules(artifactPaths, checkoutDirectory.toPath());
+    if (rules.isEmpty()) return null;
+    return new S3StreamingArtifactsUploader(rules, upload, pollIntervalMs, quietPeriodMs);
+  }
+
+  @NotNull
+  static List<Rule> parseRules(@NotNull String artifactPaths, @NotNull Path checkoutDirectory) {
+    List<Rule> rules = new ArrayList<>();
+    for (String line : artifactPaths.split("[\\r\\n,]+")) {
+      String rule = line.trim();
+      if (rule.isEmpty()) continue;
+      if (rule.startsWith("-:")) {
+        LOG.debug(String.format("Artifact paths have exclusion rule %s, the artifacts are not uploaded while the build runs", rule));
+        return Collections.emptyList(); // an excluded file could be uploaded by another rule
+      }
+      if (rule.startsWith("+:")) rule = rule.substring(2).trim();
+
+      int arrowIndex = rule.indexOf("=>");
+      if (arrowIndex < 0) continue;
+      String source = rule.substring(0, arrowIndex).trim().replace('\\', '/');
+      String target = StringUtil.trimEnd(rule.substring(arrowIndex + 2).trim().replace('\\', '/'), "/");
+      if (source.isEmpty() || target.isEmpty() || ARCHIVE_TARGET_PATTERN.matcher(target).matches()) continue;
+
+      rules.add(Rule.create(checkoutDirectory, source, target));
+    }
+    return rules;
+  }
+
+  public synchronized void start() {
+    if (myExecutor != null || myIsStopped) return;
+
+    ExecutorService executor = ExecutorsFactory.newFixedDaemonExecutor(EXECUTOR_NAME, 1);
+    myExecutor = executor;
+    executor.execute(() -> {
+      while (waitForNextPoll()) {
+        try {
+          uploadFinishedFiles();
+        } catch (RuntimeException e) {
+          LOG.warnAndDebugDetails("Failed to upload artifacts while the build runs", e);
+        }
+      }
+    });
+  }
+
+  private synchronized boolean waitForNextPoll() {
+    if (myIsStopped) return false;
+    try {
+      wait(myPollIntervalMs);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    return !myIsStopped;
+  }
+
+  /**
+   * Uploads the files that have not changed since the previous poll and for the quiet period
+   */
+  void uploadFinishedFiles() {
+    Map<File, String> filesToUpload = new LinkedHashMap<>();
+    Map<File, FileState> fileStates = new HashMap<>();
+    Map<File, String> targetDirsByFile = collectFiles();
+    long nowMs = System.currentTimeMillis();
+    synchronized (this) {
+      Map<File, FileState> observedFiles = new HashMap<>();
+      targetDirsByFile.forEach((file, targetDir) -> {
+        FileState state = FileState.of(file);
+        if (state == null) return;
+
+        UploadedFile uploaded = myUploadedFiles.get(file);
+        if (uploaded != null && uploaded.myTargetDir.equals(targetDir) && uploaded.myState.equals(state)) return;
+
+        observedFiles.put(file, state);
+        if (state.equals(myObservedFiles.get(file)) && nowMs - state.myLastModified >= myQuietPeriodMs) {
+          filesToUpload.put(file, targetDir);
+          fileStates.put(file, state);
+        }
+      });
+      myObservedFiles.clear();
+      myObservedFiles.putAll(observedFiles);
+    }
+    if (filesToUpload.isEmpty()) return;
+
+    synchronized (myUploadLock) {
+      synchronized (this) {
+        if (myIsStopped || myPublishings > 0) return; // the files are uploaded by the publishing or the next poll
+      }
+      LOG.debug(String.format("Uploading %s finished artifacts while the build runs", filesToUpload.size()));
+      try {
+        myUpload.upload(filesToUpload, () -> isStopped() ? STOPPED_REASON : null, uploadInfo -> {
+          File file = normalize(new File(uploadInfo.getAbsolutePath()));
+          String targetDir = filesToUpload.get(file);
+          FileState state = fileStates.get(file);
+          if (targetDir == null || state == null) return;
+          synchronized (this) {
+            myUploadedFiles.put(file, new UploadedFile(targetDir, state, uploadInfo));
+            myUploadedArtifactPaths.add(uploadInfo.getArtifactPath());
+          }
+        });
+      } catch (RecoverableException e) {
+        LOG.warnAndDebugDetails("Failed to upload artifacts while the build runs, they are uploaded when the build publishes them", e);
+      }
+    }
+  }
+
+  @NotNull
+  private Map<File, String> collectFiles() {
+    Map<File, String> targetDirsByFile = new LinkedHashMap<>();
+    for (Rule rule : myRules) {
+      try {
+        rule.collectFiles(targetDirsByFile);
+      } catch (IOException | UncheckedIOException e) {
+        LOG.debug(String.format("Failed to list the files of artifact rule %s: %s", rule, e.getMessage()));
+      }
+    }
+    return targetDirsByFile;
+  }
+
+  /**
+   * Waits for the background upload in progress and takes out the files that are already uploaded to the same target and have not changed since.
+   * Background uploads are paused until {@link #publishingFinished()} is called, so the rest of the files are not uploaded twice at once.
+   *
+   * @param uploadedFileConsumer receives the upload information of the files that are taken out
+   * @return the files to upload
+   */
+  @NotNull
+  public Map<File, String> startPublishing(@NotNull Map<File, String> files, @NotNull Consumer<FileUploadInfo> uploadedFileConsumer) {
+    synchronized (this) {
+      myPublishings++;
+    }
+    synchronized (myUploadLock) {
+      Map<File, String> filesToUpload = new HashMap<>();
+      List<FileUploadInfo> uploadedFiles = new ArrayList<>();
+      synchronized (this) {
+        files.forEach((file, targetDir) -> {
+          UploadedFile uploaded = myUploadedFiles.get(normalize(file));
+          if (uploaded != null && uploaded.myTargetDir.equals(StringUtil.trimEnd(targetDir.replace('\\', '/'), "/")) && uploaded.myState.equals(FileState.of(file))) {
+            uploadedFiles.add(uploaded.myUploadInfo);
+          } else {
+            filesToUpload.put(file, targetDir);
+          }
+        });
+      }
+      if (!uploadedFiles.isEmpty()) {
+        LOG.debug(String.format("%s of %s published artifacts were uploaded while the build ran", uploadedFiles.size(), files.size()));
+      }
+      uploadedFiles.forEach(uploadedFileConsumer);
+      return filesToUpload;
+    }
+  }
+
+  public synchronized void publishingFinished() {
+    myPublishings--;
+  }
+
+  /**
+   * @return artifact paths of all the objects uploaded in the background, the ones not in the artifacts list of the build stay in the bucket
+   */
+  @NotNull
+  public synchronized Set<String> getUploadedArtifactPaths() {
+    return new LinkedHashSet<>(myUploadedArtifactPaths);
+  }
+
+  /**
+   * Stops watching the files, interrupts the background upload in progress and waits for it to finish,
+   * so that {@link #getUploadedArtifactPaths()} includes the objects it has uploaded
+   */
+  public void stop() {
+    ExecutorService executor;
+    synchronized (this) {
+      myIsStopped = true;
+      notifyAll();
+      executor = myExecutor;
+      myExecutor = null;
+    }
+    if (executor == null) return;
+
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        LOG.warn(String.format("Background artifacts upload has not stopped in %s seconds, the objects it uploads may not be reported", STOP_TIMEOUT_SECONDS));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private synchronized boolean isStopped() {
+    return myIsStopped;
+  }
+
+  @NotNull
+  private static File normalize(@NotNull File file) {
+    return file.toPath().toAbsolutePath().normalize().toFile();
+  }
+
+  static final class Rule {
+    @NotNull
+    private final Path myBase;
+    @Nullable
+    private final Pattern myPattern; // relative to the base, null if the rule is a file or a directory
+    @NotNull
+    private final String myTarget;
+
+    private Rule(@NotNull Path base, @Nullable Pattern pattern, @NotNull String target) {
+      myBase = base;
+      myPattern = pattern;
+      myTarget = target;
+    }
+
+    @NotNull
+    static Rule create(@NotNull Path checkoutDirectory, @NotNull String source, @NotNull String target) {
+      String[] segments = StringUtil.trimStart(source, "/").split("/");
+      int wildcardIndex = 0;
+      while (wildcardIndex < segments.length && !segments[wildcardIndex].contains("*") && !segments[wildcardIndex].contains("?")) wildcardIndex++;
+
+      Path base = checkoutDirectory.resolve(String.join("/", Arrays.copyOfRange(segments, 0, wildcardIndex))).normalize();
+      if (wildcardIndex == segments.length) return new Rule(base, null, target);
+      return new Rule(base, toRegex(Arrays.copyOfRange(segments, wildcardIndex, segments.length)), target);
+    }
+
+    /**
+     * Converts the Ant-like pattern, "**" matches any number of directories including none
+     */
+    @NotNull
+    private static Pattern toRegex(@NotNull String[] segments) {
+      StringBuilder regex = new StringBuilder();
+      for (int i = 0; i < segments.length; i++) {
+        String segment = segments[i];
+        boolean last = i == segments.length - 1;
+        if (segment.equals("**")) {
+          regex.append(last ? ".*" : "(?:[^/]+/)*");
+          continue;
+        }
+        for (String part : segment.split("((?<=[*?])|(?=[*?]))")) {
+          if (part.equals("*")) regex.append("[^/]*");
+          else if (part.equals("?")) regex.append("[^/]");
+          else if (!part.isEmpty()) regex.append(Pattern.quote(part));
+        }
+        if (!last) regex.append('/');
+      }
+      return Pattern.compile(regex.toString());
+    }
+
+    void collectFiles(@NotNull Map<File, String> targetDirsByFile) throws IOException {
+      if (Files.isRegularFile(myBase)) {
+        if (myPattern == null) targetDirsByFile.putIfAbsent(normalize(myBase.toFile()), myTarget);
+        return;
+      }
+      if (!Files.isDirectory(myBase)) return;
+
+      try (Stream<Path> files = Files.walk(myBase)) {
+        for (Path file : files.filter(Files::isRegularFile).collect(Collectors.toList())) {
+          String relativePath = myBase.relativize(file).toString().replace('\\', '/');
+          if (myPattern != null && !myPattern.matcher(relativePath).matches()) continue;
+
+          Path relativeParent = myBase.relativize(file.getParent());
+          String targetDir = relativeParent.toString().isEmpty() ? myTarget : myTarget + "/" + relativeParent.toString().replace('\\', '/');
+          targetDirsByFile.putIfAbsent(normalize(file.toFile()), targetDir);
+        }
+      }
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s%s => %s", myBase, myPattern == null ? "" : "/" + myPattern, myTarget);
+    }
+  }
+
+  private static final class FileState {
+    private final long myLength;
+    private final long myLastModified;
+
+    private FileState(long length, long lastModified) {
+      myLength = length;
+      myLastModified = lastModified;
+    }
+
+    @Nullable
+    static FileState of(@NotNull File file) {
+      long lastModified = file.lastModified();
+      if (lastModified == 0) return null; // removed
+      return new FileState(file.length(), lastModified);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      FileState that = (FileState)o;
+      return myLength == that.myLength && myLastModified == that.myLastModified;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(myLength, myLastModified);
+    }
+  }
+
+  private static final class UploadedFile {
+    @NotNull
+    private final String myTargetDir;
+    @NotNull
+    private final FileState myState;
+    @NotNull
+    private final FileUploadInfo myUploadInfo;
+
+    private UploadedFile(@NotNull String targetDir, @NotNull FileState state, @NotNull FileUploadInfo uploadInfo) {
+      myTargetDir = targetDir;
+      myState = state;
+      myUploadInfo = uploadInfo;
+    }
+  }
+}
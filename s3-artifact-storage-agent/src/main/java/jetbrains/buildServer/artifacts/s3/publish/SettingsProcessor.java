@@ -6,9 +6,11 @@ import jetbrains.buildServer.agent.BuildAgentConfiguration;
 import jetbrains.buildServer.agent.ServerProvidedProperties;
 import jetbrains.buildServer.agent.ssl.TrustedCertificatesDirectory;
 import jetbrains.buildServer.artifacts.s3.S3Configuration;
+import jetbrains.buildServer.artifacts.s3.S3Constants;
 import jetbrains.buildServer.artifacts.s3.SSLParamUtil;
 import jetbrains.buildServer.util.amazon.S3Util;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import static jetbrains.buildServer.artifacts.s3.publish.S3FileUploader.configuration;
 
@@ -22,12 +24,27 @@ public class SettingsProcessor {
 
   @NotNull
   public S3Configuration processSettings(@NotNull final Map<String, String> sharedConfigParameters, @NotNull final Map<String, String> artifactStorageSettings) {
+    return processSettings(sharedConfigParameters, artifactStorageSettings, null);
+  }
+
+  /**
+   * @param multipartSettings part size and number of parallel parts overriding the ones of the storage settings and the build parameters
+   */
+  @NotNull
+  public S3Configuration processSettings(@NotNull final Map<String, String> sharedConfigParameters,
+                                         @NotNull final Map<String, String> artifactStorageSettings,
+                                         @Nullable final S3AdaptiveMultipartController.Settings multipartSettings) {
     final String certDirectory = TrustedCertificatesDirectory.getAllCertificatesDirectory(myBuildAgentConfiguration);
     final Map<String, String> storageSettings = new HashMap<>(SSLParamUtil.putSslDirectory(artifactStorageSettings, certDirectory));
+    if (multipartSettings != null) {
+      storageSettings.put(S3Constants.S3_MULTIPART_MINIMUM_UPLOAD_PART_SIZE, (multipartSettings.getPartSize() + 1023) / 1024 + "KB");
+    }
     final S3Util.S3AdvancedConfiguration s3AdvancedConfiguration = configuration(sharedConfigParameters, storageSettings);
 
     String projectId = sharedConfigParameters.get(ServerProvidedProperties.TEAMCITY_PROJECT_ID_PARAM);
-    int nThreadsForFileParts = jetbrains.buildServer.artifacts.s3.S3Util.getNumberOfThreadsForFileParts(sharedConfigParameters);
+    int nThreadsForFileParts = multipartSettings != null
+                               ? multipartSettings.getThreads()
+                               : jetbrains.buildServer.artifacts.s3.S3Util.getNumberOfThreadsForFileParts(sharedConfigParameters);
 
     final S3Configuration s3Configuration = new S3Configuration(s3AdvancedConfiguration, storageSettings, projectId, nThreadsForFileParts);
     s3Configuration.validate();
@@ -0,0 +1,219 @@
+package jetbrains.buildServer.artifacts.s3.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.artifacts.RecoverableIOException;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+@Test
+public class S3ArtifactPrefetcherTest {
+  private static final String DOWNLOAD_URL_PREFIX = "https://i-am-teamcity-server/httpAuth/repository/download/";
+  private File tempDirectory;
+  private ExecutorService executor;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    tempDirectory = Files.createTempDirectory("S3ArtifactPrefetcherTest").toFile();
+    executor = Executors.newSingleThreadExecutor();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    executor.shutdownNow();
+    FileUtil.delete(tempDirectory);
+  }
+
+  public void shouldReturnUrlsInBuildsOfSameChain_whenPreviousBuildDownloadedThem() {
+    // arrange
+    S3ArtifactPrefetcher prefetcher = new S3ArtifactPrefetcher();
+    prefetcher.downloaded(createBuild("Consumer", Collections.emptyMap()), DOWNLOAD_URL_PREFIX + "Producer/100:id/dist/app.zip");
+    prefetcher.downloaded(createBuild("Consumer", Collections.emptyMap()), DOWNLOAD_URL_PREFIX + "Other/50:id/lib.jar");
+
+    // act
+    List<String> urls = prefetcher.getPrefetchUrls(createBuild("Consumer", Collections.singletonMap("dep.Producer.teamcity.build.id", "101")), 100);
+
+    // assert
+    assertEquals(urls, Collections.singletonList(DOWNLOAD_URL_PREFIX + "Producer/101:id/dist/app.zip"));
+  }
+
+  public void shouldReturnNoUrls_whenOtherConfigurationDownloadedThem() {
+    // arrange
+    S3ArtifactPrefetcher prefetcher = new S3ArtifactPrefetcher();
+    prefetcher.downloaded(createBuild("Consumer", Collections.emptyMap()), DOWNLOAD_URL_PREFIX + "Producer/100:id/dist/app.zip");
+
+    // act
+    List<String> urls = prefetcher.getPrefetchUrls(createBuild("OtherConsumer", Collections.singletonMap("dep.Producer.teamcity.build.id", "101")), 100);
+
+    // assert
+    assertTrue(urls.isEmpty());
+  }
+
+  public void shouldIgnoreUrls_whenTheyAreNotArtifactDownloadUrls() {
+    // arrange
+    S3ArtifactPrefetcher prefetcher = new S3ArtifactPrefetcher();
+    prefetcher.downloaded(createBuild("Consumer", Collections.emptyMap()), "https://bucket.s3.amazonaws.com/artifact");
+    prefetcher.downloaded(createBuild("Consumer", Collections.emptyMap()), DOWNLOAD_URL_PREFIX + "Producer/lastSuccessful/app.zip");
+
+    // act
+    List<String> urls = prefetcher.getPrefetchUrls(createBuild("Consumer", Collections.singletonMap("dep.Producer.teamcity.build.id", "101")), 100);
+
+    // assert
+    assertTrue(urls.isEmpty());
+  }
+
+  public void shouldLimitNumberOfUrls() {
+    // arrange
+    S3ArtifactPrefetcher prefetcher = new S3ArtifactPrefetcher();
+    for (int i = 0; i < 5; i++) {
+      prefetcher.downloaded(createBuild("Consumer", Collections.emptyMap()), DOWNLOAD_URL_PREFIX + "Producer/100:id/file" + i);
+    }
+
+    // act
+    List<String> urls = prefetcher.getPrefetchUrls(createBuild("Consumer", Collections.singletonMap("dep.Producer.teamcity.build.id", "101")), 3);
+
+    // assert
+    assertEquals(urls.size(), 3);
+  }
+
+  public void shouldDownloadUrlsAndDeleteFiles_whenStarted() throws Exception {
+    // arrange
+    S3ArtifactPrefetcher prefetcher = new S3ArtifactPrefetcher();
+    S3ArtifactTransport transport = mock(S3ArtifactTransport.class);
+    when(transport.downloadUrlTo(any(String.class), any(File.class))).thenAnswer(invocation -> {
+      File targetFile = invocation.getArgument(1);
+      targetFile.getParentFile().mkdirs();
+      Files.write(targetFile.toPath(), new byte[]{1, 2, 3});
+      return null;
+    });
+    CountDownLatch finished = new CountDownLatch(1);
+    String srcUrl = DOWNLOAD_URL_PREFIX + "Producer/101:id/dist/app.zip";
+
+    // act
+    prefetcher.start(createBuild("Consumer", Collections.emptyMap()), Collections.singletonList(srcUrl), transport, executor, finished::countDown);
+
+    // assert
+    assertTrue(finished.await(10, TimeUnit.SECONDS));
+    verify(transport).downloadUrlTo(eq(srcUrl), any(File.class));
+    assertFalse(new File(tempDirectory, "s3-artifact-prefetch").exists());
+  }
+
+  public void shouldStopWaiting_whenPrefetchIsCancelled() throws Exception {
+    // arrange
+    S3ArtifactPrefetcher prefetcher = new S3ArtifactPrefetcher();
+    S3ArtifactTransport transport = mock(S3ArtifactTransport.class);
+    CountDownLatch downloadStarted = new CountDownLatch(1);
+    CountDownLatch downloadInterrupted = new CountDownLatch(1);
+    when(transport.downloadUrlTo(any(String.class), any(File.class))).thenAnswer(invocation -> {
+      downloadStarted.countDown();
+      downloadInterrupted.await();
+      throw new RecoverableIOException("Download was interrupted");
+    });
+    doAnswer(invocation -> {
+      downloadInterrupted.countDown();
+      return null;
+    }).when(transport).interrupt();
+    String srcUrl = DOWNLOAD_URL_PREFIX + "Producer/101:id/dist/app.zip";
+    prefetcher.start(createBuild("Consumer", Collections.emptyMap()), Collections.singletonList(srcUrl), transport, executor, () -> {});
+    assertTrue(downloadStarted.await(10, TimeUnit.SECONDS));
+
+    // act
+    prefetcher.cancel();
+    prefetcher.awaitPrefetch(srcUrl, () -> {});
+
+    // assert
+    verify(transport).interrupt();
+  }
+
+  public void shouldWaitForPrefetch_whenItIsInProgress() throws Exception {
+    // arrange
+    S3ArtifactPrefetcher prefetcher = new S3ArtifactPrefetcher();
+    S3ArtifactTransport transport = mock(S3ArtifactTransport.class);
+    CountDownLatch downloadStarted = new CountDownLatch(1);
+    CountDownLatch downloadReleased = new CountDownLatch(1);
+    when(transport.downloadUrlTo(any(String.class), any(File.class))).thenAnswer(invocation -> {
+      downloadStarted.countDown();
+      downloadReleased.await();
+      return null;
+    });
+    String srcUrl = DOWNLOAD_URL_PREFIX + "Producer/101:id/dist/app.zip";
+    prefetcher.start(createBuild("Consumer", Collections.emptyMap()), Collections.singletonList(srcUrl), transport, executor, () -> {});
+    assertTrue(downloadStarted.await(10, TimeUnit.SECONDS));
+
+    // act
+    ExecutorService buildExecutor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> awaited = buildExecutor.submit(() -> {
+        prefetcher.awaitPrefetch(srcUrl, () -> {});
+        return null;
+      });
+
+      // assert
+      try {
+        awaited.get(200, TimeUnit.MILLISECONDS);
+        fail("Should wait until the prefetch in progress finishes");
+      } catch (TimeoutException e) {
+        // expected
+      }
+      downloadReleased.countDown();
+      awaited.get(10, TimeUnit.SECONDS);
+    } finally {
+      buildExecutor.shutdownNow();
+    }
+    verify(transport, times(1)).downloadUrlTo(eq(srcUrl), any(File.class));
+  }
+
+  public void shouldRemoveUrlFromQueueWithoutWaiting_whenItsPrefetchDidNotStart() throws Exception {
+    // arrange
+    S3ArtifactPrefetcher prefetcher = new S3ArtifactPrefetcher();
+    S3ArtifactTransport transport = mock(S3ArtifactTransport.class);
+    CountDownLatch downloadStarted = new CountDownLatch(1);
+    CountDownLatch downloadReleased = new CountDownLatch(1);
+    when(transport.downloadUrlTo(any(String.class), any(File.class))).thenAnswer(invocation -> {
+      downloadStarted.countDown();
+      downloadReleased.await();
+      return null;
+    });
+    String inProgressSrcUrl = DOWNLOAD_URL_PREFIX + "Producer/101:id/dist/app.zip";
+    String queuedSrcUrl = DOWNLOAD_URL_PREFIX + "Producer/101:id/dist/lib.zip";
+    CountDownLatch finished = new CountDownLatch(1);
+    prefetcher.start(createBuild("Consumer", Collections.emptyMap()), Arrays.asList(inProgressSrcUrl, queuedSrcUrl), transport, executor, finished::countDown);
+    assertTrue(downloadStarted.await(10, TimeUnit.SECONDS));
+
+    // act
+    prefetcher.awaitPrefetch(queuedSrcUrl, () -> fail("Should not wait"));
+
+    // assert
+    downloadReleased.countDown();
+    assertTrue(finished.await(10, TimeUnit.SECONDS));
+    verify(transport).downloadUrlTo(eq(inProgressSrcUrl), any(File.class));
+    verify(transport, never()).downloadUrlTo(eq(queuedSrcUrl), any(File.class));
+  }
+
+  public void shouldNotWait_whenUrlIsNotPrefetched() throws IOException {
+    // arrange
+    S3ArtifactPrefetcher prefetcher = new S3ArtifactPrefetcher();
+
+    // act
+    prefetcher.awaitPrefetch(DOWNLOAD_URL_PREFIX + "Producer/101:id/dist/app.zip", () -> fail("Should not wait"));
+  }
+
+  private AgentRunningBuild createBuild(String buildTypeId, Map<String, String> parameters) {
+    AgentRunningBuild build = mock(AgentRunningBuild.class);
+    when(build.getBuildTypeExternalId()).thenReturn(buildTypeId);
+    when(build.getSharedConfigParameters()).thenReturn(parameters);
+    when(build.getBuildTempDirectory()).thenReturn(tempDirectory);
+    return build;
+  }
+}
@@ -14,17 +14,21 @@ import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import jetbrains.buildServer.TempFiles;
 import jetbrains.buildServer.agent.AgentRunningBuild;
 import jetbrains.buildServer.artifacts.FileProgress;
 import jetbrains.buildServer.artifacts.ProgressTrackingURLContentRetriever;
 import jetbrains.buildServer.artifacts.URLContentRetriever;
 import jetbrains.buildServer.artifacts.impl.DependencyHttpHelper;
+import jetbrains.buildServer.artifacts.s3.download.parallel.ParallelDownloadContext;
 import jetbrains.buildServer.artifacts.s3.download.parallel.strategy.ParallelDownloadStrategy;
 import jetbrains.buildServer.artifacts.s3.download.parallel.strategy.impl.InplaceParallelDownloadStrategy;
+import jetbrains.buildServer.artifacts.s3.download.parallel.strategy.impl.MappedParallelDownloadStrategy;
 import jetbrains.buildServer.artifacts.s3.download.parallel.strategy.impl.SeparatePartFilesParallelDownloadStrategy;
 import jetbrains.buildServer.http.HttpUtil;
 import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethodBase;
 import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.jetbrains.annotations.NotNull;
 import org.testng.annotations.*;
@@ -38,6 +42,7 @@ import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.presigner.S3Presigner;
 
 import static jetbrains.buildServer.artifacts.s3.S3Constants.*;
+import static jetbrains.buildServer.artifacts.s3.download.S3DownloadConstants.S3_PARALLEL_DOWNLOAD_REUSE_PROBE_REQUEST;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.*;
 import static org.testng.Assert.*;
@@ -61,6 +66,7 @@ public class S3ArtifactTransportTest {
   private AgentRunningBuild runningBuildMock;
   private ParallelDownloadStrategy inplaceStrategySpy;
   private ParallelDownloadStrategy separatePartFIlesStrategySpy;
+  private ParallelDownloadStrategy mappedStrategySpy;
   private Map<String, ParallelDownloadStrategy> parallelDownloadStrategySpies;
   private DependencyHttpHelper dependencyHttpHelperMock;
 
@@ -142,9 +148,12 @@ public class S3ArtifactTransportTest {
     SeparatePartFilesParallelDownloadStrategy separatePartFilesStrategy = new SeparatePartFilesParallelDownloadStrategy();
     inplaceStrategySpy = spy(inplaceStrategy);
     separatePartFIlesStrategySpy = spy(separatePartFilesStrategy);
+    MappedParallelDownloadStrategy mappedStrategy = new MappedParallelDownloadStrategy();
+    mappedStrategySpy = spy(mappedStrategy);
     parallelDownloadStrategySpies = new HashMap<String, ParallelDownloadStrategy>() {{
       put(inplaceStrategy.getName(), inplaceStrategySpy);
       put(separatePartFilesStrategy.getName(), separatePartFIlesStrategySpy);
+      put(mappedStrategy.getName(), mappedStrategySpy);
     }};
 
     dependencyHttpHelperMock = mock(DependencyHttpHelper.class);
@@ -222,6 +231,11 @@ public class S3ArtifactTransportTest {
       {TestFile.FILE_107_231_345_B, 100, 5, 10, SeparatePartFilesParallelDownloadStrategy.NAME},
       {TestFile.FILE_107_231_345_B, 10, 5, 10_000, SeparatePartFilesParallelDownloadStrategy.NAME},
       {TestFile.FILE_107_231_345_B, 10, 500, 10, SeparatePartFilesParallelDownloadStrategy.NAME},
+
+      {TestFile.FILE_2_234_456_B, 1, 5, 1, MappedParallelDownloadStrategy.NAME},
+      {TestFile.FILE_23_001_012_B, 12, 5, 10, MappedParallelDownloadStrategy.NAME},
+      {TestFile.FILE_23_001_012_B, 1, 5, 10_000, MappedParallelDownloadStrategy.NAME},
+      {TestFile.FILE_107_231_345_B, 10, 5, 10_000, MappedParallelDownloadStrategy.NAME},
     };
   }
 
@@ -250,13 +264,52 @@ public class S3ArtifactTransportTest {
     assertFileDownloadedCorrectly(targetFile, sourceFile);
     assertEquals(progress.getTransferred(), Files.size(sourceFile));
     if (parallelStrategy.equals(InplaceParallelDownloadStrategy.NAME)) {
-      verify(inplaceStrategySpy).download(any(), any(), anyLong(), any(), any());
+      verify(inplaceStrategySpy).download(any(), any(), anyLong(), any(), any(), any());
     }
     if (parallelStrategy.equals(SeparatePartFilesParallelDownloadStrategy.NAME)) {
-      verify(separatePartFIlesStrategySpy).download(any(), any(), anyLong(), any(), any());
+      verify(separatePartFIlesStrategySpy).download(any(), any(), anyLong(), any(), any(), any());
+    }
+    if (parallelStrategy.equals(MappedParallelDownloadStrategy.NAME)) {
+      verify(mappedStrategySpy).download(any(), any(), anyLong(), any(), any(), any());
     }
   }
 
+  @DataProvider
+  public Object[][] probeRequestTestData() {
+    return new Object[][]{
+      {TestFile.FILE_23_001_012_B, true, InplaceParallelDownloadStrategy.NAME},
+      {TestFile.FILE_23_001_012_B, false, InplaceParallelDownloadStrategy.NAME},
+      {TestFile.FILE_23_001_012_B, true, SeparatePartFilesParallelDownloadStrategy.NAME},
+      {TestFile.FILE_23_001_012_B, false, SeparatePartFilesParallelDownloadStrategy.NAME},
+    };
+  }
+
+  @Test(dataProvider = "probeRequestTestData")
+  public void shouldDownloadFileInParallelWithOrWithoutProbeRequestReuse(TestFile testFile, boolean reuseProbeRequest, String parallelStrategy) throws IOException {
+    // arrange
+    String fileName = testFile.getName();
+    Path sourceFile = sourceFilesTempDir.resolve(fileName);
+    Path targetFile = targetFilesDir.resolve(fileName);
+    URL presignedUrl = createPresignedUrl(fileName);
+    SimpleFileProgress progress = new SimpleFileProgress();
+
+    when(runningBuildMock.getSharedConfigParameters()).thenReturn(new HashMap<String, String>() {{
+      put(S3_PARALLEL_DOWNLOAD_MIN_PART_SIZE_MB, Integer.toString(5));
+      put(S3_PARALLEL_DOWNLOAD_MAX_THREADS, Integer.toString(5));
+      put(S3_PARALLEL_DOWNLOAD_STRATEGY, parallelStrategy);
+      put(S3_PARALLEL_DOWNLOAD_REUSE_PROBE_REQUEST, Boolean.toString(reuseProbeRequest));
+    }});
+
+    ProgressTrackingURLContentRetriever instance = createInstance(runningBuildMock, parallelDownloadStrategySpies);
+
+    // act
+    instance.downloadUrlTo(presignedUrl.toString(), targetFile.toFile(), progress);
+
+    // assert
+    assertFileDownloadedCorrectly(targetFile, sourceFile);
+    assertEquals(progress.getTransferred(), Files.size(sourceFile));
+  }
+
   @DataProvider
   public Object[][] overwriteFileTestData() {
     return new Object[][]{
@@ -297,10 +350,10 @@ public class S3ArtifactTransportTest {
     assertEquals(progress.getTransferred(), Files.size(sourceFile));
     if (parallelStrategy != null) {
       if (parallelStrategy.equals(InplaceParallelDownloadStrategy.NAME)) {
-        verify(inplaceStrategySpy).download(any(), any(), anyLong(), any(), any());
+        verify(inplaceStrategySpy).download(any(), any(), anyLong(), any(), any(), any());
       }
       if (parallelStrategy.equals(SeparatePartFilesParallelDownloadStrategy.NAME)) {
-        verify(separatePartFIlesStrategySpy).download(any(), any(), anyLong(), any(), any());
+        verify(separatePartFIlesStrategySpy).download(any(), any(), anyLong(), any(), any(), any());
       }
     } else {
       verifyNoInteractions(inplaceStrategySpy);
@@ -341,9 +394,43 @@ public class S3ArtifactTransportTest {
     instance.downloadUrlTo(presignedUrl.toString(), targetFile.toFile());
   }
 
+  public void shouldAbortKeptProbeRequest_whenInterrupted() throws IOException {
+    // arrange
+    String fileName = TestFile.FILE_23_001_012_B.getName();
+    Path targetFile = targetFilesDir.resolve(fileName);
+    URL presignedUrl = createPresignedUrl(fileName);
+
+    when(runningBuildMock.getSharedConfigParameters()).thenReturn(new HashMap<String, String>() {{
+      put(S3_PARALLEL_DOWNLOAD_MIN_PART_SIZE_MB, Integer.toString(5));
+      put(S3_PARALLEL_DOWNLOAD_MAX_THREADS, Integer.toString(5));
+      put(S3_PARALLEL_DOWNLOAD_STRATEGY, InplaceParallelDownloadStrategy.NAME);
+      put(S3_PARALLEL_DOWNLOAD_REUSE_PROBE_REQUEST, Boolean.toString(true));
+    }});
+
+    S3ArtifactTransport instance = createInstance(runningBuildMock, parallelDownloadStrategySpies);
+    AtomicReference<HttpMethodBase> probeRequest = new AtomicReference<>();
+    doAnswer(invocation -> {
+      ParallelDownloadContext downloadContext = invocation.getArgument(5);
+      probeRequest.set((HttpMethodBase)downloadContext.takeProbeRequest());
+      instance.interrupt();
+      throw new IOException("Download was interrupted");
+    }).when(inplaceStrategySpy).download(any(), any(), anyLong(), any(), any(), any());
+
+    // act
+    try {
+      instance.downloadUrlTo(presignedUrl.toString(), targetFile.toFile());
+      fail("Interrupted download should fail");
+    } catch (IOException expected) {
+    }
+
+    // assert
+    assertNotNull(probeRequest.get());
+    assertTrue(probeRequest.get().isAborted());
+  }
+
   private S3ArtifactTransport createInstance(AgentRunningBuild runningBuild, Map<String, ParallelDownloadStrategy> parallelDownloadStrategiesByName) {
     S3DownloadConfiguration configuration = new S3DownloadConfiguration(runningBuild);
-    return new S3ArtifactTransport(
+    return S3ArtifactTransport.builder(
       "https://i-am-teamcity-server",
       httpClient,
       executorService,
@@ -351,7 +438,7 @@ public class S3ArtifactTransportTest {
       configuration,
       runningBuild,
       parallelDownloadStrategiesByName
-    );
+    ).build();
   }
 
   private void assertFileDownloadedCorrectly(Path targetFile, Path sourceFile) throws IOException {
@@ -0,0 +1,105 @@
+package jetbrains.buildServer.artifacts.s3.download;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class S3BandwidthLimiterTest {
+  private static final int BYTES_PER_SECOND = 1024 * 1024;
+
+  public void shouldNotWait_whenBytesFitIntoBurst() throws IOException {
+    // arrange
+    S3BandwidthLimiter limiter = new S3BandwidthLimiter(BYTES_PER_SECOND, BYTES_PER_SECOND, null);
+
+    // act
+    long elapsedMs = measureMs(() -> limiter.acquire(BYTES_PER_SECOND / 2));
+
+    // assert
+    assertTrue(elapsedMs < 200, "Elapsed " + elapsedMs + " ms");
+  }
+
+  public void shouldLimitReadRate_whenStreamIsLimited() throws IOException {
+    // arrange
+    S3BandwidthLimiter limiter = new S3BandwidthLimiter(BYTES_PER_SECOND, BYTES_PER_SECOND / 10, null);
+    InputStream inputStream = limiter.limit(new ByteArrayInputStream(new byte[BYTES_PER_SECOND]));
+
+    // act
+    long elapsedMs = measureMs(() -> readFully(inputStream));
+
+    // assert
+    assertTrue(elapsedMs >= 800, "Elapsed " + elapsedMs + " ms");
+  }
+
+  public void shouldLimitTotalRate_whenParentLimitIsLower() throws IOException {
+    // arrange
+    S3BandwidthLimiter parent = new S3BandwidthLimiter(BYTES_PER_SECOND, BYTES_PER_SECOND / 10, null);
+    S3BandwidthLimiter limiter = new S3BandwidthLimiter(10L * BYTES_PER_SECOND, BYTES_PER_SECOND / 10, parent);
+    InputStream inputStream = limiter.limit(new ByteArrayInputStream(new byte[BYTES_PER_SECOND]));
+
+    // act
+    long elapsedMs = measureMs(() -> readFully(inputStream));
+
+    // assert
+    assertTrue(elapsedMs >= 800, "Elapsed " + elapsedMs + " ms");
+  }
+
+  public void shouldShareRate_whenStreamsAreReadConcurrently() throws Exception {
+    // arrange
+    int streamCount = 4;
+    S3BandwidthLimiter limiter = new S3BandwidthLimiter(BYTES_PER_SECOND, BYTES_PER_SECOND / 10, null);
+    ExecutorService executor = Executors.newFixedThreadPool(streamCount);
+
+    // act
+    List<Future<Long>> futures = new ArrayList<>();
+    long elapsedMs;
+    try {
+      long startNanos = System.nanoTime();
+      for (int i = 0; i < streamCount; i++) {
+        InputStream inputStream = limiter.limit(new ByteArrayInputStream(new byte[BYTES_PER_SECOND / streamCount]));
+        futures.add(executor.submit(() -> measureMs(() -> readFully(inputStream))));
+      }
+      for (Future<Long> future : futures) {
+        future.get(30, TimeUnit.SECONDS);
+      }
+      elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    } finally {
+      executor.shutdownNow();
+    }
+
+    // assert
+    assertTrue(elapsedMs >= 800, "Elapsed " + elapsedMs + " ms");
+    for (Future<Long> future : futures) {
+      assertTrue(future.get() >= 400, "Stream was read in " + future.get() + " ms"); // none of the streams takes the whole rate
+    }
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void shouldThrowException_whenBandwidthIsNotPositive() {
+    new S3BandwidthLimiter(0, 1, null);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void shouldThrowException_whenBurstIsNotPositive() {
+    new S3BandwidthLimiter(1, 0, null);
+  }
+
+  private static void readFully(InputStream inputStream) throws IOException {
+    byte[] buffer = new byte[256 * 1024];
+    while (inputStream.read(buffer) >= 0) {
+      // only the time matters
+    }
+  }
+
+  private static long measureMs(IORunnable action) throws IOException {
+    long startNanos = System.nanoTime();
+    action.run();
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+  }
+}
@@ -242,6 +242,21 @@ public class S3DownloadIOUtilTest {
     S3DownloadIOUtil.reserveFileBytes(targetFile, bytes);
   }
 
+  @Test(expectedExceptions = IOException.class, expectedExceptionsMessageRegExp = "Not enough free disk space.*")
+  public void shouldThrowExceptionWhenCheckingMoreBytesThanFreeSpace() throws IOException {
+    // arrange
+    long freeBytes = Files.getFileStore(tempDir).getUsableSpace();
+
+    // act
+    S3DownloadIOUtil.checkFreeSpace(tempDir, freeBytes + 1024L * 1024 * 1024);
+  }
+
+  @Test
+  public void shouldNotThrowExceptionWhenCheckingFreeSpaceForNoBytes() throws IOException {
+    S3DownloadIOUtil.checkFreeSpace(tempDir, 0);
+    S3DownloadIOUtil.checkFreeSpace(tempDir, -1024);
+  }
+
   @DataProvider
   public Object[][] createFileTestData() {
     return new Object[][]{
@@ -370,6 +385,30 @@ public class S3DownloadIOUtilTest {
     assertEquals(bytesTransferredReported, data.length);
   }
 
+  @Test
+  public void shouldReportProgressInBatchesWhenTransferringExpectedBytes() throws IOException {
+    // arrange
+    int dataSize = 1_000_000;
+    int bufferSize = 1_000;
+    LongConsumer progressTracker = mock(LongConsumer.class);
+    ArgumentCaptor<Long> progressCaptor = ArgumentCaptor.forClass(Long.class);
+    byte[] data = generateData(dataSize);
+
+    // act
+    try (ReadableByteChannel sourceChannel = Channels.newChannel(new ByteArrayInputStream(data));
+         WritableByteChannel targetChannel = Channels.newChannel(new ByteArrayOutputStream())) {
+      S3DownloadIOUtil.transferExpectedBytes(sourceChannel, targetChannel, dataSize, bufferSize, () -> {}, progressTracker);
+    }
+
+    // assert
+    verify(progressTracker, atMost(dataSize / bufferSize / 10)).accept(progressCaptor.capture());
+    long bytesTransferredReported = progressCaptor.getAllValues()
+      .stream()
+      .reduce(0L, (accumulated, current) -> accumulated + current);
+
+    assertEquals(bytesTransferredReported, dataSize);
+  }
+
   @DataProvider
   public Object[][] transferExpectedBytesDifferentFromExpectedTestData() {
     return new Object[][]{
@@ -534,6 +573,68 @@ public class S3DownloadIOUtilTest {
     }
   }
 
+  @DataProvider
+  public Object[][] transferExpectedBytesToMappedFileTestData() {
+    return new Object[][]{
+      {12_876, 0, 1_000_000}, // fewer data than window size
+      {12_876, 1234, 1_000}, // several windows, target position changed
+      {51_123_321, 1234, 1024 * 1024}, // ~50 MB data
+      {0, 1234, 1_000}, // empty channel
+    };
+  }
+
+  @Test(dataProvider = "transferExpectedBytesToMappedFileTestData")
+  public void shouldTransferExpectedBytesToMappedFile(int dataSize, int targetPosition, int windowSize) throws IOException {
+    // arrange
+    LongConsumer progressTracker = mock(LongConsumer.class);
+    ArgumentCaptor<Long> progressCaptor = ArgumentCaptor.forClass(Long.class);
+    byte[] data = generateData(dataSize);
+    Path targetFile = tempDir.resolve("targetFile.txt");
+    S3DownloadIOUtil.reserveFileBytes(targetFile, targetPosition + dataSize + 1);
+
+    // act
+    try (ReadableByteChannel sourceChannel = Channels.newChannel(new ByteArrayInputStream(data));
+         FileChannel targetChannel = FileChannel.open(targetFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      S3DownloadIOUtil.transferExpectedBytesToMappedFile(sourceChannel, targetChannel, targetPosition, dataSize, windowSize, true, () -> {}, progressTracker);
+    }
+
+    // assert
+    byte[] targetContent = Files.readAllBytes(targetFile);
+    assertEquals(Arrays.copyOfRange(targetContent, targetPosition, targetPosition + dataSize), data);
+    verify(progressTracker, atLeast(0)).accept(progressCaptor.capture());
+    long bytesTransferredReported = progressCaptor.getAllValues()
+      .stream()
+      .reduce(0L, (accumulated, current) -> accumulated + current);
+
+    assertEquals(bytesTransferredReported, dataSize);
+  }
+
+  @Test(expectedExceptions = IOException.class, dataProvider = "transferExpectedBytesDifferentFromExpectedTestData")
+  public void shouldThrowExceptionWhenTransferringDifferentNumberOfBytesThanExpectedToMappedFile(int dataSize) throws IOException {
+    // arrange
+    Path targetFile = tempDir.resolve("targetFile.txt");
+    S3DownloadIOUtil.reserveFileBytes(targetFile, 20_000);
+
+    // act
+    try (ReadableByteChannel sourceChannel = Channels.newChannel(new ByteArrayInputStream(generateData(dataSize)));
+         FileChannel targetChannel = FileChannel.open(targetFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      S3DownloadIOUtil.transferExpectedBytesToMappedFile(sourceChannel, targetChannel, 0, 10_000, 1_000, false, () -> {}, l -> {});
+    }
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void shouldThrowExceptionWhenMappedFileIsTooSmall() throws IOException {
+    // arrange
+    Path targetFile = tempDir.resolve("targetFile.txt");
+    S3DownloadIOUtil.reserveFileBytes(targetFile, 9_999);
+
+    // act
+    try (ReadableByteChannel sourceChannel = Channels.newChannel(new ByteArrayInputStream(generateData(10_000)));
+         FileChannel targetChannel = FileChannel.open(targetFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      S3DownloadIOUtil.transferExpectedBytesToMappedFile(sourceChannel, targetChannel, 0, 10_000, 1_000, false, () -> {}, l -> {});
+    }
+  }
+
   @Test(expectedExceptions = IOException.class)
   public void shouldThrowExceptionWhenInterruptedWhenTransferringExpectedBytes() throws IOException {
     // arrange
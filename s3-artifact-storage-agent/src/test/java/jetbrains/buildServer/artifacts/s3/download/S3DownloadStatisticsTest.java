@@ -0,0 +1,125 @@
+package jetbrains.buildServer.artifacts.s3.download;
+
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import jetbrains.buildServer.agent.BuildProgressLogger;
+import jetbrains.buildServer.artifacts.s3.download.S3DownloadStatistics.FileStatistics;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static jetbrains.buildServer.artifacts.s3.download.S3DownloadStatistics.STATISTIC_KEY_PREFIX;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+@Test
+public class S3DownloadStatisticsTest {
+  private AtomicLong clockNanos;
+  private S3DownloadStatistics statistics;
+
+  @BeforeMethod
+  public void setUp() {
+    clockNanos = new AtomicLong(0);
+    statistics = new S3DownloadStatistics(clockNanos::get);
+  }
+
+  public void shouldCollectFileMetrics_whenFileIsDownloadedInParallel() {
+    // arrange
+    FileStatistics file = statistics.startFile("https://i-am-teamcity-server/artifact", Paths.get("artifact.zip"));
+
+    // act
+    advanceMs(100);
+    long requestStartNanos = file.now();
+    advanceMs(50);
+    file.directUrlResponded(requestStartNanos);
+    file.setMethod("INPLACE");
+    long partStartNanos = file.now();
+    advanceMs(500);
+    file.partRetried();
+    file.partDownloaded(1_000_000, partStartNanos);
+    advanceMs(500);
+    file.finished(2_000_000L, false);
+
+    // assert
+    Map<String, Long> values = statistics.getStatisticValues();
+    assertEquals(values.get(STATISTIC_KEY_PREFIX + "files"), Long.valueOf(1));
+    assertEquals(values.get(STATISTIC_KEY_PREFIX + "failedFiles"), Long.valueOf(0));
+    assertEquals(values.get(STATISTIC_KEY_PREFIX + "bytes"), Long.valueOf(2_000_000));
+    assertEquals(values.get(STATISTIC_KEY_PREFIX + "durationMs"), Long.valueOf(1150));
+    assertEquals(values.get(STATISTIC_KEY_PREFIX + "redirectMs"), Long.valueOf(100));
+    assertEquals(values.get(STATISTIC_KEY_PREFIX + "timeToFirstByteMs"), Long.valueOf(50));
+    assertEquals(values.get(STATISTIC_KEY_PREFIX + "parts"), Long.valueOf(1));
+    assertEquals(values.get(STATISTIC_KEY_PREFIX + "partRetries"), Long.valueOf(1));
+    assertEquals(values.get(STATISTIC_KEY_PREFIX + "slowestPartBytesPerSecond"), Long.valueOf(2_000_000));
+    assertEquals(values.get(STATISTIC_KEY_PREFIX + "files.INPLACE"), Long.valueOf(1));
+  }
+
+  public void shouldCountFileOnce_whenFinishedTwice() {
+    // arrange
+    FileStatistics file = statistics.startFile("https://i-am-teamcity-server/artifact", Paths.get("artifact.zip"));
+
+    // act
+    file.finished(null, true);
+    file.finished(null, true);
+
+    // assert
+    Map<String, Long> values = statistics.getStatisticValues();
+    assertEquals(values.get(STATISTIC_KEY_PREFIX + "files"), Long.valueOf(1));
+    assertEquals(values.get(STATISTIC_KEY_PREFIX + "failedFiles"), Long.valueOf(1));
+    assertEquals(values.get(STATISTIC_KEY_PREFIX + "bytes"), Long.valueOf(0));
+  }
+
+  public void shouldMeasureWallTime_whenFilesAreDownloadedConcurrently() {
+    // arrange
+    FileStatistics first = statistics.startFile("https://i-am-teamcity-server/first", Paths.get("first"));
+    FileStatistics second = statistics.startFile("https://i-am-teamcity-server/second", Paths.get("second"));
+
+    // act
+    advanceMs(1000);
+    first.setMethod(S3DownloadStatistics.METHOD_SEQUENTIAL);
+    first.finished(1_000_000L, false);
+    second.setMethod(S3DownloadStatistics.METHOD_SEQUENTIAL);
+    second.finished(1_000_000L, false);
+
+    // assert
+    Map<String, Long> values = statistics.getStatisticValues();
+    assertEquals(values.get(STATISTIC_KEY_PREFIX + "durationMs"), Long.valueOf(1000));
+    assertEquals(values.get(STATISTIC_KEY_PREFIX + "bytesPerSecond"), Long.valueOf(2_000_000));
+    assertEquals(values.get(STATISTIC_KEY_PREFIX + "files.sequential"), Long.valueOf(2));
+    assertNull(values.get(STATISTIC_KEY_PREFIX + "parts"));
+  }
+
+  public void shouldPublishStatisticValues_whenFilesWereDownloaded() {
+    // arrange
+    BuildProgressLogger logger = mock(BuildProgressLogger.class);
+    FileStatistics file = statistics.startFile("https://i-am-teamcity-server/artifact", Paths.get("artifact.zip"));
+    advanceMs(10);
+    file.finished(100L, false);
+
+    // act
+    statistics.publish(logger);
+
+    // assert
+    verify(logger).message("##teamcity[buildStatisticValue key='" + STATISTIC_KEY_PREFIX + "bytes' value='100']");
+    verify(logger).debug(contains("artifact.zip"));
+  }
+
+  public void shouldNotPublishAnything_whenNoFilesWereDownloaded() {
+    // arrange
+    BuildProgressLogger logger = mock(BuildProgressLogger.class);
+
+    // act
+    statistics.publish(logger);
+
+    // assert
+    verify(logger, never()).message(anyString());
+    assertTrue(statistics.getStatisticValues().isEmpty());
+  }
+
+  private void advanceMs(long ms) {
+    clockNanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(ms));
+  }
+}
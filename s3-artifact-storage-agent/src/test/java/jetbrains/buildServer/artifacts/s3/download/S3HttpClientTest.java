@@ -0,0 +1,67 @@
+package jetbrains.buildServer.artifacts.s3.download;
+
+import java.io.IOException;
+import jetbrains.buildServer.artifacts.impl.DependencyHttpHelper;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpState;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.*;
+
+@Test
+public class S3HttpClientTest {
+  private static final String SERVER_URL = "https://i-am-teamcity-server";
+  private HttpClient serverClientMock;
+  private HttpClient storageClientMock;
+  private DependencyHttpHelper dependencyHttpHelperMock;
+
+  @BeforeMethod
+  public void setUp() {
+    serverClientMock = mock(HttpClient.class);
+    storageClientMock = mock(HttpClient.class);
+    dependencyHttpHelperMock = mock(DependencyHttpHelper.class);
+  }
+
+  public void shouldExecuteStorageRequestWithStorageClient_whenStorageClientIsGiven() throws IOException {
+    // arrange
+    S3HttpClient client = new S3HttpClient(serverClientMock, storageClientMock, dependencyHttpHelperMock, SERVER_URL);
+    GetMethod request = new GetMethod("https://bucket.s3.amazonaws.com/artifact");
+
+    // act
+    client.execute(request);
+
+    // assert
+    verify(storageClientMock).executeMethod(isNull(), eq(request), any(HttpState.class));
+    verifyNoInteractions(serverClientMock);
+  }
+
+  public void shouldExecuteServerRequestWithServerClient_whenStorageClientIsGiven() throws IOException {
+    // arrange
+    S3HttpClient client = new S3HttpClient(serverClientMock, storageClientMock, dependencyHttpHelperMock, SERVER_URL);
+    GetMethod request = new GetMethod(SERVER_URL + "/httpAuth/repository/download/bt1/1:id/artifact");
+
+    // act
+    client.execute(request);
+
+    // assert
+    verify(serverClientMock).executeMethod(request);
+    verifyNoInteractions(storageClientMock);
+  }
+
+  public void shouldExecuteStorageRequestWithServerClient_whenStorageClientIsNotGiven() throws IOException {
+    // arrange
+    S3HttpClient client = new S3HttpClient(serverClientMock, dependencyHttpHelperMock, SERVER_URL);
+    GetMethod request = new GetMethod("https://bucket.s3.amazonaws.com/artifact");
+
+    // act
+    client.execute(request);
+
+    // assert
+    verify(serverClientMock).executeMethod(isNull(), eq(request), any(HttpState.class));
+  }
+}
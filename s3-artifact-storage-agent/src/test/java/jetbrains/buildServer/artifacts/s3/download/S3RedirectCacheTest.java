@@ -0,0 +1,135 @@
+package jetbrains.buildServer.artifacts.s3.download;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class S3RedirectCacheTest {
+  private static final String SRC_URL = "https://teamcity/artifact/file.bin";
+  private static final String DIRECT_URL = "https://bucket.s3.amazonaws.com/file.bin?X-Amz-Signature=abc";
+
+  private AtomicLong clockMs;
+
+  @BeforeMethod
+  public void setUp() {
+    clockMs = new AtomicLong(1_000_000);
+  }
+
+  public void shouldReturnDirectUrl_whenNotExpired() {
+    // arrange
+    S3RedirectCache cache = new S3RedirectCache(10, 60_000, clockMs::get);
+    cache.put(SRC_URL, DIRECT_URL, 300);
+
+    // act
+    clockMs.addAndGet(239_000);
+
+    // assert
+    assertEquals(cache.get(SRC_URL), DIRECT_URL);
+  }
+
+  public void shouldNotReturnDirectUrl_whenExpiresWithinSafetyMargin() {
+    // arrange
+    S3RedirectCache cache = new S3RedirectCache(10, 60_000, clockMs::get);
+    cache.put(SRC_URL, DIRECT_URL, 300);
+
+    // act
+    clockMs.addAndGet(240_000);
+
+    // assert
+    assertNull(cache.get(SRC_URL));
+  }
+
+  public void shouldNotCache_whenMaxAgeIsShorterThanSafetyMargin() {
+    // arrange
+    S3RedirectCache cache = new S3RedirectCache(10, 60_000, clockMs::get);
+
+    // act
+    cache.put(SRC_URL, DIRECT_URL, 60);
+
+    // assert
+    assertNull(cache.get(SRC_URL));
+  }
+
+  public void shouldEvictLeastRecentlyUsedEntry_whenFull() {
+    // arrange
+    S3RedirectCache cache = new S3RedirectCache(2, 0, clockMs::get);
+    cache.put("a", "direct-a", 300);
+    cache.put("b", "direct-b", 300);
+    cache.get("a");
+
+    // act
+    cache.put("c", "direct-c", 300);
+
+    // assert
+    assertEquals(cache.get("a"), "direct-a");
+    assertNull(cache.get("b"));
+    assertEquals(cache.get("c"), "direct-c");
+  }
+
+  public void shouldNotReturnDirectUrl_whenInvalidated() {
+    // arrange
+    S3RedirectCache cache = new S3RedirectCache(10, 0, clockMs::get);
+    cache.put(SRC_URL, DIRECT_URL, 300);
+
+    // act
+    cache.invalidate(SRC_URL);
+
+    // assert
+    assertNull(cache.get(SRC_URL));
+  }
+
+  public void shouldReturnContent_whenRememberedForCachedRedirect() {
+    // arrange
+    S3RedirectCache cache = new S3RedirectCache(10, 0, clockMs::get);
+    cache.put(SRC_URL, DIRECT_URL, 300);
+
+    // act
+    cache.putContent(SRC_URL, "digest", 1_024);
+
+    // assert
+    S3RedirectCache.CachedContent content = cache.getContent(SRC_URL);
+    assertNotNull(content);
+    assertEquals(content.getDigest(), "digest");
+    assertEquals(content.getContentLength(), 1_024);
+  }
+
+  public void shouldNotRememberContent_whenRedirectIsNotCached() {
+    // arrange
+    S3RedirectCache cache = new S3RedirectCache(10, 0, clockMs::get);
+
+    // act
+    cache.putContent(SRC_URL, "digest", 1_024);
+
+    // assert
+    assertNull(cache.getContent(SRC_URL));
+  }
+
+  public void shouldForgetContent_whenRedirectIsReplaced() {
+    // arrange
+    S3RedirectCache cache = new S3RedirectCache(10, 0, clockMs::get);
+    cache.put(SRC_URL, DIRECT_URL, 300);
+    cache.putContent(SRC_URL, "digest", 1_024);
+
+    // act
+    cache.put(SRC_URL, DIRECT_URL + "&renewed", 300);
+
+    // assert
+    assertNull(cache.getContent(SRC_URL));
+  }
+
+  public void shouldNotReturnContent_whenRedirectExpires() {
+    // arrange
+    S3RedirectCache cache = new S3RedirectCache(10, 0, clockMs::get);
+    cache.put(SRC_URL, DIRECT_URL, 300);
+    cache.putContent(SRC_URL, "digest", 1_024);
+
+    // act
+    clockMs.addAndGet(300_000);
+
+    // assert
+    assertNull(cache.getContent(SRC_URL));
+  }
+}
@@ -0,0 +1,119 @@
+package jetbrains.buildServer.artifacts.s3.download;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class S3VirtualThreadExecutorTest {
+  private static final String EXECUTOR_NAME = "test virtual thread executor";
+
+  public void shouldNotCreateExecutor_whenVirtualThreadsAreNotSupported() {
+    if (S3VirtualThreadExecutor.isSupported()) throw new SkipException("Virtual threads are supported");
+
+    assertNull(S3VirtualThreadExecutor.create(EXECUTOR_NAME, 10));
+    assertFalse(S3VirtualThreadExecutor.isCurrentThreadVirtual());
+  }
+
+  public void shouldRunTasksInVirtualThreads_whenVirtualThreadsAreSupported() throws Exception {
+    S3VirtualThreadExecutor executor = createExecutor(10);
+    try {
+      assertTrue(executor.submit(S3VirtualThreadExecutor::isCurrentThreadVirtual).get(30, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  public void shouldNotRunMoreTasksThanMaxConcurrency_whenManyTasksAreSubmitted() throws Exception {
+    // arrange
+    S3VirtualThreadExecutor executor = createExecutor(3);
+    AtomicInteger runningTasks = new AtomicInteger();
+    AtomicInteger maxRunningTasks = new AtomicInteger();
+
+    // act
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < 30; i++) {
+        futures.add(executor.submit(() -> {
+          maxRunningTasks.accumulateAndGet(runningTasks.incrementAndGet(), Math::max);
+          Thread.sleep(10);
+          runningTasks.decrementAndGet();
+          return null;
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get(30, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    // assert
+    assertEquals(maxRunningTasks.get(), 3);
+  }
+
+  public void shouldStartQueuedTasks_whenMaxConcurrencyIsIncreased() throws Exception {
+    // arrange
+    S3VirtualThreadExecutor executor = createExecutor(1);
+    CountDownLatch bothStarted = new CountDownLatch(2);
+    try {
+      for (int i = 0; i < 2; i++) {
+        executor.execute(() -> {
+          bothStarted.countDown();
+          try {
+            bothStarted.await(30, TimeUnit.SECONDS);
+          } catch (InterruptedException ignored) {
+          }
+        });
+      }
+
+      // act
+      executor.setMaxConcurrency(2);
+
+      // assert
+      assertTrue(bothStarted.await(30, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  public void shouldRunQueuedTasksAndTerminate_whenShutDown() throws Exception {
+    // arrange
+    S3VirtualThreadExecutor executor = createExecutor(1);
+    AtomicInteger finishedTasks = new AtomicInteger();
+    for (int i = 0; i < 5; i++) {
+      executor.execute(() -> {
+        try {
+          Thread.sleep(10);
+        } catch (InterruptedException ignored) {
+        }
+        finishedTasks.incrementAndGet();
+      });
+    }
+
+    // act
+    executor.shutdown();
+
+    // assert
+    assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+    assertEquals(finishedTasks.get(), 5);
+    try {
+      executor.execute(() -> {});
+      fail("Task was accepted by shut down executor");
+    } catch (RejectedExecutionException ignored) {
+    }
+  }
+
+  private static S3VirtualThreadExecutor createExecutor(int maxConcurrency) {
+    if (!S3VirtualThreadExecutor.isSupported()) throw new SkipException("Virtual threads are not supported");
+
+    S3VirtualThreadExecutor executor = S3VirtualThreadExecutor.create(EXECUTOR_NAME, maxConcurrency);
+    assertNotNull(executor);
+    return executor;
+  }
+}
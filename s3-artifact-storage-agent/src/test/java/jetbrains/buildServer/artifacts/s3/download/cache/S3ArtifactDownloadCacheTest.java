@@ -0,0 +1,173 @@
+package jetbrains.buildServer.artifacts.s3.download.cache;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import jetbrains.buildServer.TempFiles;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class S3ArtifactDownloadCacheTest {
+  private final TempFiles tempFiles = new TempFiles();
+  private Path workDir;
+  private S3ArtifactDownloadCache cache;
+  private List<Runnable> backgroundStores;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    workDir = tempFiles.createTempDir().toPath();
+    backgroundStores = new ArrayList<>();
+    cache = new S3ArtifactDownloadCache(workDir.resolve("cache"), backgroundStores::add);
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    tempFiles.cleanup();
+  }
+
+  public void shouldRetrieveStoredFile_whenDigestAndSizeMatch() throws IOException {
+    // arrange
+    Path sourceFile = createFile("source", 100);
+    cache.store("digest", 100, sourceFile, 1_000, false);
+    Path targetFile = workDir.resolve("target/dir/file");
+
+    // act
+    boolean retrieved = cache.retrieve("digest", 100, targetFile, false);
+
+    // assert
+    assertTrue(retrieved);
+    assertEquals(Files.readAllBytes(targetFile), Files.readAllBytes(sourceFile));
+    assertEquals(cache.getHits(), 1);
+    assertEquals(cache.getMisses(), 0);
+    assertEquals(cache.getStores(), 1);
+  }
+
+  public void shouldMiss_whenDigestOrSizeDiffers() throws IOException {
+    // arrange
+    cache.store("digest", 100, createFile("source", 100), 1_000, false);
+    Path targetFile = workDir.resolve("target");
+
+    // act
+    boolean retrievedByOtherDigest = cache.retrieve("other digest", 100, targetFile, false);
+    boolean retrievedByOtherSize = cache.retrieve("digest", 101, targetFile, false);
+
+    // assert
+    assertFalse(retrievedByOtherDigest);
+    assertFalse(retrievedByOtherSize);
+    assertFalse(Files.exists(targetFile));
+    assertEquals(cache.getMisses(), 2);
+  }
+
+  public void shouldEvictLeastRecentlyUsedEntries_whenMaxSizeExceeded() throws IOException {
+    // arrange
+    cache.store("first", 400, createFile("first", 400), 1_000, false);
+    cache.store("second", 400, createFile("second", 400), 1_000, false);
+    makeEntriesOlder();
+    assertTrue(cache.retrieve("first", 400, workDir.resolve("target"), false)); // first becomes recently used
+
+    // act
+    cache.store("third", 400, createFile("third", 400), 1_000, false);
+
+    // assert
+    assertEquals(cache.getEvictions(), 1);
+    assertTrue(cache.retrieve("first", 400, workDir.resolve("target"), false));
+    assertTrue(cache.retrieve("third", 400, workDir.resolve("target"), false));
+    assertFalse(cache.retrieve("second", 400, workDir.resolve("target"), false));
+  }
+
+  public void shouldNotStoreFile_whenLargerThanMaxSize() throws IOException {
+    // act
+    cache.store("digest", 100, createFile("source", 100), 99, false);
+
+    // assert
+    assertEquals(cache.getStores(), 0);
+    assertFalse(cache.retrieve("digest", 100, workDir.resolve("target"), false));
+  }
+
+  public void shouldKeepTargetFileIndependent_whenHardLinksDisabled() throws IOException {
+    // arrange
+    cache.store("digest", 100, createFile("source", 100), 1_000, false);
+    Path targetFile = workDir.resolve("target");
+    assertTrue(cache.retrieve("digest", 100, targetFile, false));
+
+    // act
+    Files.write(targetFile, new byte[]{1, 2, 3});
+
+    // assert
+    assertTrue(cache.retrieve("digest", 100, workDir.resolve("other target"), false));
+  }
+
+  public void shouldEvictEntry_whenContentDoesNotMatchChecksum() throws IOException {
+    // arrange
+    cache.store("digest", 100, createFile("source", 100), 1_000, false);
+    try (Stream<Path> entries = Files.list(cache.getCacheDirectory().resolve("entries"))) {
+      for (Path entry : (Iterable<Path>)entries::iterator) {
+        if (!entry.getFileName().toString().endsWith(".sha256")) Files.write(entry, new byte[100]); // same size, other content
+      }
+    }
+    Path targetFile = workDir.resolve("target");
+
+    // act
+    boolean retrieved = cache.retrieve("digest", 100, targetFile, false);
+
+    // assert
+    assertFalse(retrieved);
+    assertFalse(Files.exists(targetFile));
+    try (Stream<Path> entries = Files.list(cache.getCacheDirectory().resolve("entries"))) {
+      assertEquals(entries.count(), 0);
+    }
+  }
+
+  public void shouldStoreFileOnStoreExecutor_whenStoredInBackground() throws IOException {
+    // arrange
+    Path sourceFile = createFile("source", 100);
+    cache.storeInBackground("digest", 100, sourceFile, 1_000, false);
+    assertFalse(cache.retrieve("digest", 100, workDir.resolve("target"), false));
+
+    // act
+    backgroundStores.forEach(Runnable::run);
+
+    // assert
+    assertEquals(cache.getStores(), 1);
+    assertTrue(cache.retrieve("digest", 100, workDir.resolve("target"), false));
+  }
+
+  public void shouldNotStoreFileInBackground_whenChangedAfterDownload() throws IOException {
+    // arrange
+    Path sourceFile = createFile("source", 100);
+    cache.storeInBackground("digest", 100, sourceFile, 1_000, false);
+    Files.setLastModifiedTime(sourceFile, FileTime.fromMillis(System.currentTimeMillis() - 60_000)); // e.g. overwritten by the build
+
+    // act
+    backgroundStores.forEach(Runnable::run);
+
+    // assert
+    assertEquals(cache.getStores(), 0);
+    assertFalse(cache.retrieve("digest", 100, workDir.resolve("target"), false));
+  }
+
+  private Path createFile(String name, int size) throws IOException {
+    byte[] content = new byte[size];
+    for (int i = 0; i < size; i++) {
+      content[i] = (byte)(name.hashCode() + i);
+    }
+    return Files.write(workDir.resolve(name), content);
+  }
+
+  private void makeEntriesOlder() throws IOException {
+    FileTime oldTime = FileTime.fromMillis(System.currentTimeMillis() - 60_000);
+    try (Stream<Path> entries = Files.list(cache.getCacheDirectory().resolve("entries"))) {
+      for (Path entry : (Iterable<Path>)entries::iterator) {
+        Files.setLastModifiedTime(entry, oldTime);
+      }
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package jetbrains.buildServer.artifacts.s3.download.parallel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class AdaptiveFilePartQueueTest {
+
+  @DataProvider
+  public static Object[][] wholeFileTestData() {
+    return new Object[][]{
+      // file smaller than minimum part size
+      {999, 1, 1_000, 10_000},
+      // file of exactly minimum part size
+      {1_000, 4, 1_000, 10_000},
+      // residual bytes less than minimum part size
+      {1_000_003, 4, 1_000, 100_000},
+      // many parts of maximum size
+      {123_456_789, 16, 1_000, 100_000},
+      // minimum part size equals maximum part size
+      {1_234_567, 5, 10_000, 10_000},
+    };
+  }
+
+  @Test(dataProvider = "wholeFileTestData")
+  public void shouldCoverFileWithoutGaps_whenQueueIsDrained(long fileSize, int workers, long minPartSize, long maxPartSize) {
+    // arrange
+    AdaptiveFilePartQueue queue = new AdaptiveFilePartQueue(Collections.singletonList(new FilePart(0, 0, fileSize - 1)), workers, minPartSize, maxPartSize, 1_000_000);
+
+    // act
+    List<FilePart> parts = drain(queue);
+
+    // assert
+    long expectedStartByte = 0;
+    for (int partIndex = 0; partIndex < parts.size(); partIndex++) {
+      FilePart part = parts.get(partIndex);
+      assertEquals(part.getPartNumber(), partIndex);
+      assertEquals(part.getStartByte(), expectedStartByte);
+      assertTrue(part.getSizeBytes() >= Math.min(minPartSize, fileSize));
+      assertTrue(part.getSizeBytes() < maxPartSize + minPartSize);
+      expectedStartByte = part.getEndByte() + 1;
+    }
+    assertEquals(expectedStartByte, fileSize);
+    assertEquals(queue.getRemainingBytes(), 0);
+  }
+
+  public void shouldTakePartsOnlyFromRegions() {
+    // arrange
+    List<FilePart> regions = Arrays.asList(new FilePart(0, 0, 9_999), new FilePart(1, 50_000, 50_499), new FilePart(2, 70_000, 89_999));
+    AdaptiveFilePartQueue queue = new AdaptiveFilePartQueue(regions, 3, 1_000, 4_000, 1_000_000);
+
+    // act
+    List<FilePart> parts = drain(queue);
+
+    // assert
+    long takenBytes = 0;
+    for (FilePart part : parts) {
+      boolean insideRegion = regions.stream().anyMatch(region -> region.getStartByte() <= part.getStartByte() && part.getEndByte() <= region.getEndByte());
+      assertTrue(insideRegion, "Part " + part.getDescription() + " is outside of regions");
+      takenBytes += part.getSizeBytes();
+    }
+    assertEquals(takenBytes, 10_000 + 500 + 20_000);
+  }
+
+  public void shouldSizePartsByMeasuredThroughput() {
+    // arrange
+    AdaptiveFilePartQueue queue = new AdaptiveFilePartQueue(Collections.singletonList(new FilePart(0, 0, 99_999_999)), 2, 1_000, 1_000_000, 50_000);
+    assertEquals(queue.getNextPartSize(), 1_000_000);
+
+    // act
+    queue.partDownloaded(1_000, 1_000); // 1 byte per nanosecond
+
+    // assert
+    assertEquals(queue.getNextPartSize(), 50_000);
+  }
+
+  public void shouldShrinkParts_whenFileTailIsReached() {
+    // arrange
+    int workers = 4;
+    AdaptiveFilePartQueue queue = new AdaptiveFilePartQueue(Collections.singletonList(new FilePart(0, 0, 99_999)), workers, 100, 10_000, 1_000_000_000);
+    queue.partDownloaded(1_000_000, 1); // very fast connection, so that parts have the maximum size
+
+    // act & assert
+    while (queue.getRemainingBytes() > 0) {
+      long remainingBytes = queue.getRemainingBytes();
+      FilePart part = queue.next();
+      assertNotNull(part);
+      long fairShare = (remainingBytes + workers - 1) / workers;
+      assertTrue(part.getSizeBytes() <= Math.max(fairShare, 100) + 100, "Part " + part.getDescription() + " is too large for the tail of size " + remainingBytes);
+    }
+    assertNull(queue.next());
+  }
+
+  @NotNull
+  private static List<FilePart> drain(@NotNull AdaptiveFilePartQueue queue) {
+    List<FilePart> parts = new ArrayList<>();
+    FilePart part;
+    while ((part = queue.next()) != null) {
+      parts.add(part);
+    }
+    return parts;
+  }
+}
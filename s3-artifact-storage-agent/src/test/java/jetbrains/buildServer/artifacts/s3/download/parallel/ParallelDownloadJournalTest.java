@@ -0,0 +1,170 @@
+package jetbrains.buildServer.artifacts.s3.download.parallel;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import jetbrains.buildServer.TempFiles;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class ParallelDownloadJournalTest {
+  private final TempFiles tempFiles = new TempFiles();
+  private Path journalFile;
+  private Path dataFile;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    Path directory = tempFiles.createTempDir().toPath();
+    dataFile = Files.createFile(directory.resolve("file.unfinished"));
+    journalFile = directory.resolve("file.unfinished.journal");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    tempFiles.cleanup();
+  }
+
+  public void shouldRestoreCompletedRanges_whenLoaded() throws IOException {
+    // arrange
+    ParallelDownloadJournal journal = ParallelDownloadJournal.create(journalFile, dataFile, 1_000, "etag:\"abc\"", Runnable::run);
+    FilePart firstPart = new FilePart(0, 0, 99);
+    FilePart secondPart = new FilePart(1, 100, 199);
+    FilePart lastPart = new FilePart(5, 900, 999);
+    journal.partBytesTransferred(firstPart, 100);
+    journal.partDownloaded(firstPart);
+    journal.partDownloaded(secondPart);
+    journal.partDownloaded(lastPart);
+
+    // act
+    ParallelDownloadJournal loadedJournal = ParallelDownloadJournal.load(journalFile, dataFile, Runnable::run);
+
+    // assert
+    assertNotNull(loadedJournal);
+    assertTrue(loadedJournal.matches(1_000, "etag:\"abc\""));
+    assertEquals(loadedJournal.getCompletedBytes(), 300);
+    List<FilePart> missingParts = loadedJournal.getMissingParts(Collections.singletonList(new FilePart(0, 0, 999)));
+    assertEquals(missingParts.size(), 1);
+    assertEquals(missingParts.get(0).getStartByte(), 200);
+    assertEquals(missingParts.get(0).getEndByte(), 899);
+  }
+
+  public void shouldReturnMissingPartsKeepingPartNumbers() throws IOException {
+    // arrange
+    ParallelDownloadJournal journal = ParallelDownloadJournal.create(journalFile, dataFile, 1_000, "digest:123", Runnable::run);
+    journal.partDownloaded(new FilePart(0, 50, 149));
+    journal.partDownloaded(new FilePart(1, 400, 499));
+    List<FilePart> fileParts = Arrays.asList(new FilePart(0, 0, 299), new FilePart(1, 300, 599), new FilePart(2, 600, 999));
+
+    // act
+    List<FilePart> missingParts = journal.getMissingParts(fileParts);
+
+    // assert
+    assertEquals(missingParts.size(), 5);
+    assertPart(missingParts.get(0), 0, 0, 49);
+    assertPart(missingParts.get(1), 0, 150, 299);
+    assertPart(missingParts.get(2), 1, 300, 399);
+    assertPart(missingParts.get(3), 1, 500, 599);
+    assertPart(missingParts.get(4), 2, 600, 999);
+  }
+
+  public void shouldRecordRanges_onlyWhenFlusherRuns() throws IOException {
+    // arrange
+    List<Runnable> flushes = new ArrayList<>();
+    ParallelDownloadJournal journal = ParallelDownloadJournal.create(journalFile, dataFile, 1_000, "etag:\"abc\"", flushes::add);
+    FilePart firstPart = new FilePart(0, 0, 499);
+    FilePart secondPart = new FilePart(1, 500, 999);
+    journal.partDownloaded(firstPart);
+    journal.partBytesTransferred(secondPart, 100);
+
+    // act
+    long completedBytesBeforeFlush = journal.getCompletedBytes();
+    flushes.forEach(Runnable::run);
+
+    // assert
+    assertEquals(completedBytesBeforeFlush, 0);
+    assertEquals(flushes.size(), 1); // the transferred bytes of the second part don't schedule another flush
+    assertEquals(journal.getCompletedBytes(), 600);
+    ParallelDownloadJournal loadedJournal = ParallelDownloadJournal.load(journalFile, dataFile, Runnable::run);
+    assertNotNull(loadedJournal);
+    assertEquals(loadedJournal.getCompletedBytes(), 600);
+  }
+
+  public void shouldNotRecordRanges_whenClosed() throws IOException {
+    // arrange
+    List<Runnable> flushes = new ArrayList<>();
+    ParallelDownloadJournal journal = ParallelDownloadJournal.create(journalFile, dataFile, 1_000, "etag:\"abc\"", flushes::add);
+    journal.partDownloaded(new FilePart(0, 0, 99));
+
+    // act
+    journal.close();
+    flushes.forEach(Runnable::run);
+
+    // assert
+    assertEquals(journal.getCompletedBytes(), 0);
+  }
+
+  public void shouldNotMatch_whenFileSizeOrFingerprintDiffers() throws IOException {
+    // arrange
+    ParallelDownloadJournal.create(journalFile, dataFile, 1_000, "etag:\"abc\"", Runnable::run);
+
+    // act
+    ParallelDownloadJournal journal = ParallelDownloadJournal.load(journalFile, dataFile, Runnable::run);
+
+    // assert
+    assertNotNull(journal);
+    assertFalse(journal.matches(1_001, "etag:\"abc\""));
+    assertFalse(journal.matches(1_000, "etag:\"abd\""));
+  }
+
+  public void shouldIgnoreTruncatedRange_whenLoaded() throws IOException {
+    // arrange
+    ParallelDownloadJournal journal = ParallelDownloadJournal.create(journalFile, dataFile, 1_000, "etag:\"abc\"", Runnable::run);
+    journal.partDownloaded(new FilePart(0, 0, 99));
+    Files.write(journalFile, "range 100 1".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND); // line without end, e.g. after a crash
+
+    // act
+    ParallelDownloadJournal loadedJournal = ParallelDownloadJournal.load(journalFile, dataFile, Runnable::run);
+
+    // assert
+    assertNotNull(loadedJournal);
+    assertEquals(loadedJournal.getCompletedBytes(), 100);
+  }
+
+  public void shouldReturnNull_whenJournalIsMissingOrCorrupted() throws IOException {
+    assertNull(ParallelDownloadJournal.load(journalFile, dataFile, Runnable::run));
+
+    Files.write(journalFile, "garbage".getBytes(StandardCharsets.UTF_8));
+    assertNull(ParallelDownloadJournal.load(journalFile, dataFile, Runnable::run));
+  }
+
+  public void shouldNotRecordRange_whenDataFileCannotBeForced() throws IOException {
+    // arrange
+    ParallelDownloadJournal journal = ParallelDownloadJournal.create(journalFile, dataFile, 1_000, "etag:\"abc\"", Runnable::run);
+    Files.delete(dataFile);
+
+    // act
+    journal.partDownloaded(new FilePart(0, 0, 99));
+
+    // assert
+    assertEquals(journal.getCompletedBytes(), 0);
+    ParallelDownloadJournal loadedJournal = ParallelDownloadJournal.load(journalFile, dataFile, Runnable::run);
+    assertNotNull(loadedJournal);
+    assertEquals(loadedJournal.getCompletedBytes(), 0);
+  }
+
+  private static void assertPart(FilePart part, int expectedPartNumber, long expectedStartByte, long expectedEndByte) {
+    assertEquals(part.getPartNumber(), expectedPartNumber);
+    assertEquals(part.getStartByte(), expectedStartByte);
+    assertEquals(part.getEndByte(), expectedEndByte);
+  }
+}
@@ -0,0 +1,112 @@
+package jetbrains.buildServer.artifacts.s3.download.parallel;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import jetbrains.buildServer.artifacts.FileProgress;
+import org.apache.commons.httpclient.HttpMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+@Test
+public class ParallelDownloadStateTest {
+  private AtomicLong reportedBytes;
+  private ParallelDownloadState downloadState;
+
+  @BeforeMethod
+  public void setUp() {
+    reportedBytes = new AtomicLong();
+    FileProgress downloadProgress = new FileProgress.Adapter() {
+      @Override
+      public void transferred(long count) {
+        reportedBytes.addAndGet(count);
+      }
+    };
+    downloadState = new ParallelDownloadState(downloadProgress, new AtomicBoolean(false), null);
+  }
+
+  public void shouldAbortSlowRequestAndReportEachByteOnce_whenHedgedRequestFinishesFirst() {
+    // arrange
+    FilePart filePart = new FilePart(0, 0, 999);
+    HttpMethod slowRequest = mock(HttpMethod.class);
+    PartDownloadAttempt attempt = downloadState.partAttemptStarted(filePart, slowRequest);
+    downloadState.addDownloadedBytes(filePart, 100);
+    PartHedge hedge = downloadState.hedge(attempt, 1);
+    assertNotNull(hedge);
+    FilePart hedgedPart = hedge.getHedgedPart();
+    assertEquals(hedgedPart.getStartByte(), 100);
+    downloadState.partAttemptStarted(hedgedPart, mock(HttpMethod.class));
+
+    // act
+    downloadState.addDownloadedBytes(filePart, 50);
+    downloadState.addDownloadedBytes(hedgedPart, 900);
+    downloadState.partDownloaded(hedgedPart);
+    long writtenBytes = downloadState.partAttemptFailed(filePart);
+
+    // assert
+    verify(slowRequest).abort();
+    assertEquals(writtenBytes, 1000);
+    assertEquals(reportedBytes.get(), 1000);
+    assertEquals(downloadState.getHedgedRequests(), 1);
+    assertEquals(downloadState.getHedgeWins(), 1);
+    assertEquals(downloadState.getHedgeWastedBytes(), 50);
+  }
+
+  public void shouldAbortHedgedRequest_whenSlowRequestFinishesFirst() {
+    // arrange
+    FilePart filePart = new FilePart(0, 0, 999);
+    PartDownloadAttempt attempt = downloadState.partAttemptStarted(filePart, mock(HttpMethod.class));
+    PartHedge hedge = downloadState.hedge(attempt, 1);
+    assertNotNull(hedge);
+    HttpMethod hedgedRequest = mock(HttpMethod.class);
+    downloadState.partAttemptStarted(hedge.getHedgedPart(), hedgedRequest);
+    downloadState.addDownloadedBytes(hedge.getHedgedPart(), 300);
+
+    // act
+    downloadState.addDownloadedBytes(filePart, 1000);
+    downloadState.partDownloaded(filePart);
+
+    // assert
+    verify(hedgedRequest).abort();
+    assertFalse(hedge.isWonByHedge());
+    assertEquals(reportedBytes.get(), 1000);
+    assertEquals(downloadState.getHedgeWins(), 0);
+  }
+
+  public void shouldResumeAfterBytesWrittenByHedgedRequest_whenSlowRequestFails() {
+    // arrange
+    FilePart filePart = new FilePart(0, 0, 999);
+    PartDownloadAttempt attempt = downloadState.partAttemptStarted(filePart, mock(HttpMethod.class));
+    downloadState.addDownloadedBytes(filePart, 100);
+    PartHedge hedge = downloadState.hedge(attempt, 1);
+    assertNotNull(hedge);
+    HttpMethod hedgedRequest = mock(HttpMethod.class);
+    downloadState.partAttemptStarted(hedge.getHedgedPart(), hedgedRequest);
+    downloadState.addDownloadedBytes(hedge.getHedgedPart(), 400);
+
+    // act
+    long writtenBytes = downloadState.partAttemptFailed(filePart);
+    downloadState.addDownloadedBytes(hedge.getHedgedPart(), 100); // written after the abort, will be downloaded again
+
+    // assert
+    verify(hedgedRequest).abort();
+    assertEquals(writtenBytes, 500);
+    assertEquals(reportedBytes.get(), 500);
+  }
+
+  public void shouldNotHedge_whenLessThanMinBytesLeft() {
+    // arrange
+    FilePart filePart = new FilePart(0, 0, 999);
+    PartDownloadAttempt attempt = downloadState.partAttemptStarted(filePart, mock(HttpMethod.class));
+    downloadState.addDownloadedBytes(filePart, 950);
+
+    // act
+    PartHedge hedge = downloadState.hedge(attempt, 100);
+
+    // assert
+    assertNull(hedge);
+    assertEquals(downloadState.getHedgedRequests(), 0);
+  }
+}
@@ -0,0 +1,125 @@
+package jetbrains.buildServer.artifacts.s3.download.parallel;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import jetbrains.buildServer.TempFiles;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class PipelinedPartMergerTest {
+  private final TempFiles tempFiles = new TempFiles();
+  private Path tempDir;
+  private Path targetFile;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    tempDir = tempFiles.createTempDir().toPath();
+    targetFile = tempDir.resolve("file.unfinished");
+    Files.createFile(targetFile);
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    tempFiles.cleanup();
+  }
+
+  public void shouldMergePart_onlyWhenAllPreviousPartsAreDownloaded() throws IOException {
+    // arrange
+    byte[] content = createContent(300);
+    List<FilePart> fileParts = Arrays.asList(new FilePart(0, 0, 99), new FilePart(1, 100, 199), new FilePart(2, 200, 299));
+    writePartFiles(content, fileParts);
+    PipelinedPartMerger merger = new PipelinedPartMerger(targetFile, fileParts, this::getPartFile);
+
+    // act & assert
+    merger.partDownloaded(fileParts.get(1), () -> {});
+    assertEquals(merger.getMergedBytes(), 0);
+    assertTrue(Files.exists(getPartFile(fileParts.get(1))));
+
+    merger.partDownloaded(fileParts.get(0), () -> {});
+    assertEquals(merger.getMergedBytes(), 200);
+    assertFalse(Files.exists(getPartFile(fileParts.get(0))));
+    assertFalse(Files.exists(getPartFile(fileParts.get(1))));
+    assertTrue(Files.exists(getPartFile(fileParts.get(2))));
+
+    merger.partDownloaded(fileParts.get(2), () -> {});
+    assertEquals(merger.getMergedBytes(), 300);
+    assertFalse(Files.exists(getPartFile(fileParts.get(2))));
+    assertEquals(Files.readAllBytes(targetFile), content);
+  }
+
+  public void shouldMergeAllParts_whenPartsAreDownloadedConcurrently() throws Exception {
+    // arrange
+    int partCount = 50;
+    int partSize = 1000;
+    byte[] content = createContent(partCount * partSize);
+    List<FilePart> fileParts = new ArrayList<>();
+    for (int i = 0; i < partCount; i++) {
+      fileParts.add(new FilePart(i, (long)i * partSize, (long)(i + 1) * partSize - 1));
+    }
+    writePartFiles(content, fileParts);
+    PipelinedPartMerger merger = new PipelinedPartMerger(targetFile, fileParts, this::getPartFile);
+    List<FilePart> shuffledParts = new ArrayList<>(fileParts);
+    Collections.shuffle(shuffledParts);
+
+    // act
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (FilePart filePart : shuffledParts) {
+        futures.add(executor.submit(() -> {
+          merger.partDownloaded(filePart, () -> {});
+          return null;
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get(30, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    // assert
+    assertEquals(merger.getMergedBytes(), content.length);
+    assertEquals(Files.readAllBytes(targetFile), content);
+    for (FilePart filePart : fileParts) {
+      assertFalse(Files.exists(getPartFile(filePart)));
+    }
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void shouldThrowException_whenPartFileIsShorterThanPart() throws IOException {
+    // arrange
+    FilePart filePart = new FilePart(0, 0, 99);
+    Files.write(getPartFile(filePart), new byte[50]);
+    PipelinedPartMerger merger = new PipelinedPartMerger(targetFile, Collections.singletonList(filePart), this::getPartFile);
+
+    // act
+    merger.partDownloaded(filePart, () -> {});
+  }
+
+  private void writePartFiles(byte[] content, List<FilePart> fileParts) throws IOException {
+    for (FilePart filePart : fileParts) {
+      Files.write(getPartFile(filePart), Arrays.copyOfRange(content, (int)filePart.getStartByte(), (int)filePart.getEndByte() + 1));
+    }
+  }
+
+  private Path getPartFile(FilePart filePart) {
+    return tempDir.resolve("file.part" + filePart.getPartNumber());
+  }
+
+  private static byte[] createContent(int size) {
+    byte[] content = new byte[size];
+    ThreadLocalRandom.current().nextBytes(content);
+    return content;
+  }
+}
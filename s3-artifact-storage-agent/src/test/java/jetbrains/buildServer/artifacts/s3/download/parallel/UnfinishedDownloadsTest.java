@@ -0,0 +1,59 @@
+package jetbrains.buildServer.artifacts.s3.download.parallel;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.artifacts.s3.download.S3DownloadIOUtil;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class UnfinishedDownloadsTest {
+  private final TempFiles tempFiles = new TempFiles();
+  private Path directory;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    directory = tempFiles.createTempDir().toPath();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    tempFiles.cleanup();
+  }
+
+  public void shouldDeleteKeptUnfinishedFileAndJournal() throws IOException {
+    // arrange
+    Path targetFile = directory.resolve("file");
+    Path unfinishedFile = Files.createFile(S3DownloadIOUtil.getUnfinishedFilePath(targetFile));
+    Path journalFile = Files.createFile(S3DownloadIOUtil.getJournalFilePath(targetFile));
+    UnfinishedDownloads unfinishedDownloads = new UnfinishedDownloads(Runnable::run);
+    unfinishedDownloads.kept(targetFile);
+
+    // act
+    unfinishedDownloads.deleteAll();
+
+    // assert
+    assertFalse(Files.exists(unfinishedFile));
+    assertFalse(Files.exists(journalFile));
+  }
+
+  public void shouldNotDeleteFiles_whenDownloadWasRemoved() throws IOException {
+    // arrange
+    Path targetFile = directory.resolve("file");
+    UnfinishedDownloads unfinishedDownloads = new UnfinishedDownloads(Runnable::run);
+    unfinishedDownloads.kept(targetFile);
+    unfinishedDownloads.removed(targetFile);
+    Path unfinishedFile = Files.createFile(S3DownloadIOUtil.getUnfinishedFilePath(targetFile)); // e.g. a download of the same file in progress
+
+    // act
+    unfinishedDownloads.deleteAll();
+
+    // assert
+    assertTrue(Files.exists(unfinishedFile));
+  }
+}
@@ -0,0 +1,249 @@
+package jetbrains.buildServer.artifacts.s3.download.parallel.strategy.impl;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.artifacts.FileProgress;
+import jetbrains.buildServer.artifacts.RecoverableIOException;
+import jetbrains.buildServer.artifacts.impl.DependencyHttpHelper;
+import jetbrains.buildServer.artifacts.s3.download.S3DownloadConfiguration;
+import jetbrains.buildServer.artifacts.s3.download.S3HttpClient;
+import jetbrains.buildServer.artifacts.s3.download.parallel.FilePart;
+import jetbrains.buildServer.artifacts.s3.download.parallel.ParallelDownloadContext;
+import jetbrains.buildServer.artifacts.s3.download.parallel.ParallelDownloadState;
+import jetbrains.buildServer.artifacts.s3.download.parallel.splitter.impl.FileSplitterImpl;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpStatus;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static jetbrains.buildServer.artifacts.s3.download.S3DownloadConstants.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+@Test
+public class AbstractParallelDownloadStrategyTest {
+  private static final String SRC_URL = "https://i-am-storage/bucket/file";
+  private static final Path TARGET_FILE = Paths.get("file");
+  private static final FilePart FILE_PART = new FilePart(1, 100, 199);
+
+  private ExecutorService executor;
+  private AtomicBoolean interruptedFlag;
+  private Map<String, String> parameters;
+
+  @BeforeMethod
+  public void setUp() {
+    executor = Executors.newSingleThreadExecutor();
+    interruptedFlag = new AtomicBoolean(false);
+    parameters = new HashMap<>();
+    parameters.put(S3_PARALLEL_DOWNLOAD_PART_MAX_RETRIES, "3");
+    parameters.put(S3_PARALLEL_DOWNLOAD_PART_RETRY_INITIAL_DELAY_MS, "0");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  public void shouldRetryPart_whenFailureIsTransient() throws Exception {
+    // arrange
+    ScriptedStrategy strategy = new ScriptedStrategy(new SocketException("Connection reset"));
+    ParallelDownloadContext downloadContext = createContext();
+
+    // act
+    strategy.downloadPart(SRC_URL, FILE_PART, TARGET_FILE, createState(), downloadContext);
+
+    // assert
+    assertEquals(strategy.getAttempts(), 2);
+  }
+
+  public void shouldNotRetryPart_whenFailureIsNotTransient() throws Exception {
+    // arrange
+    IOException failure = new IOException("Expected status 206, received 404");
+    ScriptedStrategy strategy = new ScriptedStrategy(failure);
+    ParallelDownloadContext downloadContext = createContext();
+
+    // act
+    IOException thrown = null;
+    try {
+      strategy.downloadPart(SRC_URL, FILE_PART, TARGET_FILE, createState(), downloadContext);
+    } catch (IOException e) {
+      thrown = e;
+    }
+
+    // assert
+    assertSame(thrown, failure);
+    assertEquals(strategy.getAttempts(), 1);
+  }
+
+  public void shouldGiveUp_whenRetriesAreExhausted() throws Exception {
+    // arrange
+    ScriptedStrategy strategy = new ScriptedStrategy(new SocketException("1"), new SocketException("2"), new SocketException("3"), new SocketException("4"));
+    ParallelDownloadContext downloadContext = createContext();
+
+    // act
+    IOException thrown = null;
+    try {
+      strategy.downloadPart(SRC_URL, FILE_PART, TARGET_FILE, createState(), downloadContext);
+    } catch (IOException e) {
+      thrown = e;
+    }
+
+    // assert
+    assertNotNull(thrown);
+    assertEquals(thrown.getMessage(), "4");
+    assertEquals(strategy.getAttempts(), 4, "first attempt and 3 retries");
+  }
+
+  public void shouldKeepRetryDelayWithinBounds() {
+    // arrange
+    parameters.put(S3_PARALLEL_DOWNLOAD_PART_RETRY_INITIAL_DELAY_MS, "100");
+    parameters.put(S3_PARALLEL_DOWNLOAD_PART_RETRY_MAX_DELAY_MS, "1000");
+    S3DownloadConfiguration configuration = createConfiguration();
+
+    for (int retry = 1; retry <= 40; retry++) {
+      long exponentialDelayMs = Math.min(1000, 100L << Math.min(retry - 1, 30));
+      for (int i = 0; i < 100; i++) {
+        // act
+        long delayMs = AbstractParallelDownloadStrategy.getRetryDelayMs(retry, configuration);
+
+        // assert
+        assertTrue(delayMs >= exponentialDelayMs / 2 && delayMs <= exponentialDelayMs,
+                   String.format("Delay %s of retry %s is out of [%s, %s]", delayMs, retry, exponentialDelayMs / 2, exponentialDelayMs));
+      }
+    }
+  }
+
+  public void shouldStopWaitingForRetry_whenDownloadIsInterrupted() throws Exception {
+    // arrange
+    parameters.put(S3_PARALLEL_DOWNLOAD_PART_RETRY_INITIAL_DELAY_MS, "60000");
+    parameters.put(S3_PARALLEL_DOWNLOAD_PART_RETRY_MAX_DELAY_MS, "60000");
+    ScriptedStrategy strategy = new ScriptedStrategy(new SocketException("Connection reset"));
+    ParallelDownloadContext downloadContext = createContext();
+    ParallelDownloadState downloadState = createState();
+    Future<?> download = executor.submit(() -> {
+      strategy.downloadPart(SRC_URL, FILE_PART, TARGET_FILE, downloadState, downloadContext);
+      return null;
+    });
+    strategy.awaitAttempts(1);
+
+    // act
+    interruptedFlag.set(true);
+
+    // assert
+    try {
+      download.get(10, TimeUnit.SECONDS);
+      fail("Interrupted download should fail");
+    } catch (ExecutionException e) {
+      // the failure of the attempt is thrown instead when the flag is set before the backoff starts
+      assertTrue(e.getCause() instanceof IOException, String.valueOf(e.getCause()));
+    }
+    assertEquals(strategy.getAttempts(), 1);
+  }
+
+  public void shouldStopWaitingForRetry_whenThreadIsInterrupted() throws Exception {
+    // arrange
+    parameters.put(S3_PARALLEL_DOWNLOAD_PART_RETRY_INITIAL_DELAY_MS, "60000");
+    parameters.put(S3_PARALLEL_DOWNLOAD_PART_RETRY_MAX_DELAY_MS, "60000");
+    ScriptedStrategy strategy = new ScriptedStrategy(new SocketException("Connection reset"));
+    ParallelDownloadContext downloadContext = createContext();
+    ParallelDownloadState downloadState = createState();
+    Future<?> download = executor.submit(() -> {
+      strategy.downloadPart(SRC_URL, FILE_PART, TARGET_FILE, downloadState, downloadContext);
+      return null;
+    });
+    strategy.awaitAttempts(1);
+
+    // act
+    executor.shutdownNow();
+
+    // assert
+    try {
+      download.get(10, TimeUnit.SECONDS);
+      fail("Interrupted download should fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof RecoverableIOException, String.valueOf(e.getCause()));
+    }
+    assertEquals(strategy.getAttempts(), 1);
+  }
+
+  @NotNull
+  private S3DownloadConfiguration createConfiguration() {
+    AgentRunningBuild runningBuild = mock(AgentRunningBuild.class);
+    when(runningBuild.getSharedConfigParameters()).thenReturn(parameters);
+    return new S3DownloadConfiguration(runningBuild);
+  }
+
+  @NotNull
+  private ParallelDownloadContext createContext() throws IOException {
+    S3DownloadConfiguration configuration = createConfiguration();
+    HttpClient httpClient = mock(HttpClient.class);
+    when(httpClient.executeMethod(any(), any(HttpMethod.class), any())).thenReturn(HttpStatus.SC_PARTIAL_CONTENT);
+    S3HttpClient s3HttpClient = new S3HttpClient(httpClient, mock(DependencyHttpHelper.class), "https://i-am-teamcity-server");
+    return ParallelDownloadContext.builder(configuration, mock(AgentRunningBuild.class), new FileSplitterImpl(configuration), s3HttpClient, executor, interruptedFlag)
+      .build();
+  }
+
+  @NotNull
+  private ParallelDownloadState createState() {
+    return new ParallelDownloadState(new FileProgress.Adapter(), interruptedFlag, null);
+  }
+
+  /**
+   * Fails the part attempts with the given failures one by one, the attempts after them succeed.
+   */
+  private static final class ScriptedStrategy extends AbstractParallelDownloadStrategy {
+    private final Deque<IOException> myFailures;
+    private int myAttempts;
+
+    private ScriptedStrategy(@NotNull IOException... failures) {
+      myFailures = new ArrayDeque<>(Arrays.asList(failures));
+    }
+
+    @Override
+    protected synchronized void writePart(@NotNull HttpMethod ongoingRequest,
+                                          @NotNull FilePart filePart,
+                                          @NotNull Path targetFile,
+                                          @NotNull ParallelDownloadState downloadState,
+                                          @NotNull ParallelDownloadContext downloadContext) throws IOException {
+      myAttempts++;
+      notifyAll();
+      IOException failure = myFailures.poll();
+      if (failure != null) throw failure;
+    }
+
+    @Override
+    protected void cleanupUnfinishedDownload(@NotNull Path targetFile,
+                                             @NotNull List<FilePart> fileParts,
+                                             @NotNull ParallelDownloadState downloadState,
+                                             @NotNull ParallelDownloadContext downloadContext) {
+    }
+
+    private synchronized int getAttempts() {
+      return myAttempts;
+    }
+
+    private synchronized void awaitAttempts(int attempts) throws InterruptedException {
+      while (myAttempts < attempts) wait();
+    }
+
+    @NotNull
+    @Override
+    public String getName() {
+      return "SCRIPTED";
+    }
+  }
+}
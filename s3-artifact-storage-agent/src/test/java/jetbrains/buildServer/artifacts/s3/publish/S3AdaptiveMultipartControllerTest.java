@@ -0,0 +1,115 @@
+package jetbrains.buildServer.artifacts.s3.publish;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class S3AdaptiveMultipartControllerTest {
+  private static final long MB = 1024 * 1024;
+  private static final long ELAPSED_NANOS = 1L << 30;
+  private static final long TARGET_PART_DURATION_NANOS = 1L << 29;
+
+  public void shouldKeepNumberOfPartsWithinS3Limit_whenFileIsLarge() {
+    // arrange
+    S3AdaptiveMultipartController controller = new S3AdaptiveMultipartController(4, 16, 5 * MB, 512 * MB, TARGET_PART_DURATION_NANOS);
+    long fileSize = 100 * 1024 * MB + 1;
+
+    // act
+    S3AdaptiveMultipartController.Settings settings = controller.getSettings(fileSize);
+
+    // assert
+    assertTrue(settings.getPartSize() > 5 * MB);
+    assertTrue((fileSize + settings.getPartSize() - 1) / settings.getPartSize() <= S3AdaptiveMultipartController.MAX_PARTS);
+  }
+
+  public void shouldChoosePartSizeFromThroughputPerThread() {
+    // arrange
+    S3AdaptiveMultipartController controller = new S3AdaptiveMultipartController(4, 16, 5 * MB, 512 * MB, TARGET_PART_DURATION_NANOS);
+
+    // act
+    controller.uploaded(400 * MB, ELAPSED_NANOS, 80, 0);
+
+    // assert
+    assertEquals(controller.getSettings(0).getPartSize(), 50 * MB, "100MB per thread in the measured time, half of it in the target duration");
+  }
+
+  public void shouldAddThreads_whileThroughputGrows() {
+    // arrange
+    S3AdaptiveMultipartController controller = new S3AdaptiveMultipartController(4, 16, 5 * MB, 512 * MB, TARGET_PART_DURATION_NANOS);
+
+    // act
+    controller.uploaded(400 * MB, ELAPSED_NANOS, 80, 0);
+    controller.uploaded(500 * MB, ELAPSED_NANOS, 80, 0);
+
+    // assert
+    assertEquals(controller.getSettings(0).getThreads(), 6);
+  }
+
+  public void shouldRemoveThreads_whenThroughputDrops() {
+    // arrange
+    S3AdaptiveMultipartController controller = new S3AdaptiveMultipartController(4, 16, 5 * MB, 512 * MB, TARGET_PART_DURATION_NANOS);
+
+    // act
+    controller.uploaded(400 * MB, ELAPSED_NANOS, 80, 0);
+    controller.uploaded(300 * MB, ELAPSED_NANOS, 80, 0);
+
+    // assert
+    assertEquals(controller.getSettings(0).getThreads(), 4);
+  }
+
+  public void shouldKeepThreads_whenThroughputIsTheSame() {
+    // arrange
+    S3AdaptiveMultipartController controller = new S3AdaptiveMultipartController(4, 16, 5 * MB, 512 * MB, TARGET_PART_DURATION_NANOS);
+
+    // act
+    controller.uploaded(400 * MB, ELAPSED_NANOS, 80, 0);
+    controller.uploaded(404 * MB, ELAPSED_NANOS, 80, 0);
+
+    // assert
+    assertEquals(controller.getSettings(0).getThreads(), 5);
+  }
+
+  public void shouldBackOff_whenErrorRateIsHigh() {
+    // arrange
+    S3AdaptiveMultipartController controller = new S3AdaptiveMultipartController(8, 16, 5 * MB, 512 * MB, TARGET_PART_DURATION_NANOS);
+    controller.uploaded(1600 * MB, ELAPSED_NANOS, 80, 0);
+    S3AdaptiveMultipartController.Settings before = controller.getSettings(0);
+
+    // act
+    controller.uploaded(1600 * MB, ELAPSED_NANOS, 80, 10);
+
+    // assert
+    S3AdaptiveMultipartController.Settings after = controller.getSettings(0);
+    assertEquals(after.getThreads(), before.getThreads() / 2);
+    assertEquals(after.getPartSize(), before.getPartSize() / 2);
+  }
+
+  public void shouldIgnoreThroughput_whenNoFileKeptAllThreadsBusy() {
+    // arrange
+    S3AdaptiveMultipartController controller = new S3AdaptiveMultipartController(4, 16, 5 * MB, 512 * MB, TARGET_PART_DURATION_NANOS);
+
+    // act
+    controller.uploaded(0, 0, 100, 0);
+
+    // assert
+    S3AdaptiveMultipartController.Settings settings = controller.getSettings(0);
+    assertEquals(settings.getThreads(), 4);
+    assertEquals(settings.getPartSize(), 5 * MB);
+  }
+
+  public void shouldBackOff_whenPublishingFailed() {
+    // arrange
+    S3AdaptiveMultipartController controller = new S3AdaptiveMultipartController(8, 16, 5 * MB, 512 * MB, TARGET_PART_DURATION_NANOS);
+    controller.uploaded(1600 * MB, ELAPSED_NANOS, 80, 0);
+    S3AdaptiveMultipartController.Settings before = controller.getSettings(0);
+
+    // act
+    controller.uploaded(0, 0, 3, 7);
+
+    // assert
+    S3AdaptiveMultipartController.Settings after = controller.getSettings(0);
+    assertEquals(after.getThreads(), before.getThreads() / 2);
+    assertEquals(after.getPartSize(), before.getPartSize() / 2);
+  }
+}
@@ -0,0 +1,145 @@
+package jetbrains.buildServer.artifacts.s3.publish;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Consumer;
+import jetbrains.buildServer.artifacts.s3.FileUploadInfo;
+import jetbrains.buildServer.artifacts.s3.S3ArtifactBundles;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class S3ArtifactBundlerTest {
+  private static final String BUNDLES_PATH = ".teamcity/s3-bundles/1";
+  private Path tempDirectory;
+  private File bundleDirectory;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    tempDirectory = Files.createTempDirectory("S3ArtifactBundlerTest");
+    bundleDirectory = tempDirectory.resolve("bundles").toFile();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    FileUtil.delete(tempDirectory.toFile());
+  }
+
+  public void shouldPackSmallFilesIntoBundlesWithIndex() throws IOException {
+    // arrange
+    File first = createFile("a.html", "aaa");
+    File second = createFile("b.html", "bb");
+    File large = createFile("large.zip", "large file");
+    Map<File, String> files = new LinkedHashMap<>();
+    files.put(first, "reports");
+    files.put(second, "reports/");
+    files.put(large, "dist");
+
+    // act
+    S3ArtifactBundler.Bundles bundles = new S3ArtifactBundler(5, 1024, 2).bundle(files, bundleDirectory, BUNDLES_PATH, Collections.emptyList());
+
+    // assert
+    assertNotNull(bundles);
+    File bundle = new File(bundleDirectory, "bundle-0.bin");
+    File index = new File(bundleDirectory, S3ArtifactBundles.INDEX_FILE_NAME);
+    Map<File, String> expectedFilesToUpload = new HashMap<>();
+    expectedFilesToUpload.put(large, "dist");
+    expectedFilesToUpload.put(bundle, BUNDLES_PATH);
+    expectedFilesToUpload.put(index, BUNDLES_PATH);
+    assertEquals(bundles.getFilesToUpload(), expectedFilesToUpload);
+    assertEquals(new String(Files.readAllBytes(bundle.toPath()), StandardCharsets.UTF_8), "aaabb");
+    assertEquals(bundles.getIndexPath(), BUNDLES_PATH + "/" + S3ArtifactBundles.INDEX_FILE_NAME);
+    assertEquals(bundles.getMaxFileSize(), 3);
+
+    Map<String, S3ArtifactBundles.Entry> entries = S3ArtifactBundles.deserializeIndex(new String(Files.readAllBytes(index.toPath()), StandardCharsets.UTF_8));
+    assertEquals(entries.keySet(), new HashSet<>(Arrays.asList("reports/a.html", "reports/b.html")));
+    assertEquals(entries.get("reports/b.html").getBundlePath(), BUNDLES_PATH + "/bundle-0.bin");
+    assertEquals(entries.get("reports/b.html").getOffset(), 3);
+    assertEquals(entries.get("reports/b.html").getSize(), 2);
+  }
+
+  public void shouldStartNewBundle_whenCurrentOneIsFull() throws IOException {
+    // arrange
+    Map<File, String> files = new LinkedHashMap<>();
+    for (int i = 0; i < 3; i++) {
+      files.put(createFile("file" + i, "12345"), "");
+    }
+
+    // act
+    S3ArtifactBundler.Bundles bundles = new S3ArtifactBundler(5, 10, 2).bundle(files, bundleDirectory, BUNDLES_PATH, Collections.emptyList());
+
+    // assert
+    assertNotNull(bundles);
+    assertEquals(bundles.getFilesToUpload().size(), 3, "Two bundles and the index");
+    assertEquals(new File(bundleDirectory, "bundle-1.bin").length(), 5);
+  }
+
+  public void shouldNotBundle_whenThereAreFewSmallFiles() throws IOException {
+    // arrange
+    Map<File, String> files = Collections.singletonMap(createFile("a.html", "aaa"), "");
+
+    // act
+    S3ArtifactBundler.Bundles bundles = new S3ArtifactBundler(5, 1024, 2).bundle(files, bundleDirectory, BUNDLES_PATH, Collections.emptyList());
+
+    // assert
+    assertNull(bundles);
+  }
+
+  public void shouldSupersedeRepublishedFiles_whenTheyAreNotBundledAgain() throws IOException {
+    // arrange
+    File small = createFile("a.html", "aaa");
+    File large = createFile("b.html", "large file");
+    Map<File, String> files = new LinkedHashMap<>();
+    files.put(small, "reports");
+    files.put(large, "reports");
+
+    // act
+    S3ArtifactBundler.Bundles bundles = new S3ArtifactBundler(5, 1024, 2).bundle(files, bundleDirectory, BUNDLES_PATH, Arrays.asList("reports/a.html", "reports/b.html"));
+
+    // assert
+    assertNotNull(bundles);
+    assertEquals(bundles.getBundledPaths(), Collections.singleton("reports/a.html"));
+    assertTrue(bundles.getFilesToUpload().containsKey(large));
+    File index = new File(bundleDirectory, S3ArtifactBundles.INDEX_FILE_NAME);
+    Map<String, S3ArtifactBundles.Entry> entries = S3ArtifactBundles.deserializeIndex(new String(Files.readAllBytes(index.toPath()), StandardCharsets.UTF_8));
+    assertFalse(entries.get("reports/a.html").isSuperseded());
+    assertTrue(entries.get("reports/b.html").isSuperseded());
+  }
+
+  public void shouldReportBundledFiles_whenBundleIsUploaded() throws IOException {
+    // arrange
+    File first = createFile("a.html", "aaa");
+    File second = createFile("b.html", "bb");
+    Map<File, String> files = new LinkedHashMap<>();
+    files.put(first, "reports");
+    files.put(second, "reports");
+    S3ArtifactBundler.Bundles bundles = new S3ArtifactBundler(5, 1024, 2).bundle(files, bundleDirectory, BUNDLES_PATH, Collections.emptyList());
+    assertNotNull(bundles);
+    List<String> artifacts = new ArrayList<>();
+    List<String> bundleArtifacts = new ArrayList<>();
+    Consumer<FileUploadInfo> consumer = bundles.unbundling(info -> artifacts.add(info.getArtifactPath()), info -> bundleArtifacts.add(info.getArtifactPath()));
+
+    // act
+    for (File file : bundles.getFilesToUpload().keySet()) {
+      consumer.accept(new FileUploadInfo(BUNDLES_PATH + "/" + file.getName(), file.getAbsolutePath(), file.length(), null));
+    }
+
+    // assert
+    assertEquals(artifacts, Arrays.asList("reports/a.html", "reports/b.html"));
+    assertEquals(bundleArtifacts, Arrays.asList(BUNDLES_PATH + "/bundle-0.bin", BUNDLES_PATH + "/" + S3ArtifactBundles.INDEX_FILE_NAME));
+  }
+
+  private File createFile(String name, String content) throws IOException {
+    Path file = tempDirectory.resolve(name);
+    Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    return file.toFile();
+  }
+}
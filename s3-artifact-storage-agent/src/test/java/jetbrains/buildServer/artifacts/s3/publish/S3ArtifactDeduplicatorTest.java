@@ -0,0 +1,171 @@
+package jetbrains.buildServer.artifacts.s3.publish;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import jetbrains.buildServer.artifacts.s3.FileUploadInfo;
+import jetbrains.buildServer.artifacts.s3.S3ArtifactDeduplication;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class S3ArtifactDeduplicatorTest {
+  private static final String PATH_PREFIX = "Project/Build/1/";
+  private Path tempDirectory;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    tempDirectory = Files.createTempDirectory("S3ArtifactDeduplicatorTest");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    FileUtil.delete(tempDirectory.toFile());
+  }
+
+  public void shouldNotUploadFiles_whenServerCopiedThem() throws IOException {
+    // arrange
+    File copiedFile = createFile("sdk.zip", "sdk");
+    File uploadedFile = createFile("app.zip", "app");
+    Map<File, String> files = new HashMap<>();
+    files.put(copiedFile, "dist\\sdk/");
+    files.put(uploadedFile, "");
+    List<S3ArtifactDeduplication.Request> requests = new ArrayList<>();
+    List<FileUploadInfo> uploadInfos = new ArrayList<>();
+    S3ArtifactDeduplicator deduplicator = new S3ArtifactDeduplicator(PATH_PREFIX, 0, (requestParameter, requestBody) -> {
+      requests.addAll(S3ArtifactDeduplication.deserializeRequests(requestBody));
+      return S3ArtifactDeduplication.serializeCopies(Collections.singletonMap(PATH_PREFIX + "dist/sdk/sdk.zip", "\"etag\""));
+    });
+
+    // act
+    Map<File, String> filesToUpload = deduplicator.deduplicate(files, uploadInfos::add);
+
+    // assert
+    assertEquals(requests.size(), 2);
+    assertEquals(filesToUpload, Collections.singletonMap(uploadedFile, ""));
+    assertEquals(uploadInfos.size(), 1);
+    assertEquals(uploadInfos.get(0).getArtifactPath(), "dist/sdk/sdk.zip");
+    assertEquals(uploadInfos.get(0).getSize(), 3);
+    assertEquals(uploadInfos.get(0).getDigest(), "etag");
+  }
+
+  public void shouldSendDigestsOfFiles() throws IOException {
+    // arrange
+    File file = createFile("app.zip", "abc");
+    List<S3ArtifactDeduplication.Request> requests = new ArrayList<>();
+    S3ArtifactDeduplicator deduplicator = new S3ArtifactDeduplicator(PATH_PREFIX, 0, (requestParameter, requestBody) -> {
+      requests.addAll(S3ArtifactDeduplication.deserializeRequests(requestBody));
+      return "";
+    });
+
+    // act
+    deduplicator.deduplicate(Collections.singletonMap(file, "dist"), info -> fail("Nothing is copied"));
+
+    // assert
+    assertEquals(requests.size(), 1);
+    assertEquals(requests.get(0).getObjectKey(), PATH_PREFIX + "dist/app.zip");
+    assertEquals(requests.get(0).getSha256(), "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad");
+  }
+
+  public void shouldSendRequestsInBatches() throws IOException {
+    // arrange
+    Map<File, String> files = new HashMap<>();
+    for (int i = 0; i <= S3ArtifactDeduplication.MAX_REQUESTS; i++) {
+      files.put(createFile("file" + i, "content" + i), "");
+    }
+    List<Integer> batchSizes = new ArrayList<>();
+    S3ArtifactDeduplicator deduplicator = new S3ArtifactDeduplicator(PATH_PREFIX, 0, (requestParameter, requestBody) -> {
+      batchSizes.add(S3ArtifactDeduplication.deserializeRequests(requestBody).size());
+      return "";
+    });
+
+    // act
+    deduplicator.deduplicate(files, info -> fail("Nothing is copied"));
+
+    // assert
+    assertEquals(batchSizes, Arrays.asList(S3ArtifactDeduplication.MAX_REQUESTS, 1));
+  }
+
+  public void shouldNotAskServer_whenFilesAreSmall() throws IOException {
+    // arrange
+    Map<File, String> files = Collections.singletonMap(createFile("app.zip", "app"), "");
+    S3ArtifactDeduplicator deduplicator = new S3ArtifactDeduplicator(PATH_PREFIX, 1024, (requestParameter, requestBody) -> {
+      fail("Small files are not deduplicated");
+      return "";
+    });
+
+    // act
+    Map<File, String> filesToUpload = deduplicator.deduplicate(files, info -> fail("Nothing is copied"));
+
+    // assert
+    assertEquals(filesToUpload, files);
+  }
+
+  public void shouldUploadAllFiles_whenServerFails() throws IOException {
+    // arrange
+    Map<File, String> files = Collections.singletonMap(createFile("app.zip", "app"), "");
+    S3ArtifactDeduplicator deduplicator = new S3ArtifactDeduplicator(PATH_PREFIX, 0, (requestParameter, requestBody) -> {
+      throw new IOException("Server responded with HTTP 500");
+    });
+
+    // act
+    Map<File, String> filesToUpload = deduplicator.deduplicate(files, info -> fail("Nothing is copied"));
+
+    // assert
+    assertEquals(filesToUpload, files);
+  }
+
+  public void shouldIndexOnlyUploadedFiles_whenUploadIsConfirmed() throws IOException {
+    // arrange
+    File uploadedFile = createFile("app.zip", "app");
+    File failedFile = createFile("sdk.zip", "sdk");
+    Map<File, String> files = new HashMap<>();
+    files.put(uploadedFile, "dist");
+    files.put(failedFile, "dist");
+    Map<String, String> requestBodies = new HashMap<>();
+    S3ArtifactDeduplicator deduplicator = new S3ArtifactDeduplicator(PATH_PREFIX, 0, (requestParameter, requestBody) -> {
+      requestBodies.put(requestParameter, requestBody);
+      return "";
+    });
+    deduplicator.deduplicate(files, info -> fail("Nothing is copied"));
+    List<FileUploadInfo> uploadInfos = new ArrayList<>();
+    deduplicator.indexing(uploadInfos::add).accept(new FileUploadInfo("dist/app.zip", uploadedFile.getAbsolutePath(), 3, "etag"));
+    assertNull(requestBodies.get(S3ArtifactDeduplication.INDEX_ARTIFACTS), "Nothing is indexed before the upload is confirmed");
+
+    // act
+    deduplicator.indexUploaded();
+
+    // assert
+    assertEquals(uploadInfos.size(), 1);
+    List<S3ArtifactDeduplication.Request> indexed = S3ArtifactDeduplication.deserializeRequests(requestBodies.get(S3ArtifactDeduplication.INDEX_ARTIFACTS));
+    assertEquals(indexed.size(), 1);
+    assertEquals(indexed.get(0).getObjectKey(), PATH_PREFIX + "dist/app.zip");
+    assertEquals(indexed.get(0).getETag(), "etag");
+  }
+
+  public void shouldNotIndex_whenUploadedFileHasNoETag() throws IOException {
+    // arrange
+    File file = createFile("app.zip", "app");
+    S3ArtifactDeduplicator deduplicator = new S3ArtifactDeduplicator(PATH_PREFIX, 0, (requestParameter, requestBody) -> {
+      assertEquals(requestParameter, S3ArtifactDeduplication.DEDUPLICATE_ARTIFACTS, "Bundled files are not indexed");
+      return "";
+    });
+    deduplicator.deduplicate(Collections.singletonMap(file, "dist"), info -> fail("Nothing is copied"));
+    deduplicator.indexing(info -> {}).accept(new FileUploadInfo("dist/app.zip", file.getAbsolutePath(), 3, null));
+
+    // act
+    deduplicator.indexUploaded();
+  }
+
+  private File createFile(String name, String content) throws IOException {
+    Path file = tempDirectory.resolve(name);
+    Files.write(file, content.getBytes());
+    return file.toFile();
+  }
+}
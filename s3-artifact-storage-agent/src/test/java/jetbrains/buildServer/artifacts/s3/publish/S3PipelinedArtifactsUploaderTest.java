@@ -0,0 +1,86 @@
+package jetbrains.buildServer.artifacts.s3.publish;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.util.retry.RecoverableException;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class S3PipelinedArtifactsUploaderTest {
+
+  public void shouldSplitFilesIntoBatches() {
+    // act
+    List<Map<File, String>> batches = S3PipelinedArtifactsUploader.split(createFiles(5), 2);
+
+    // assert
+    assertEquals(batches.size(), 3);
+    assertEquals(batches.get(0).size(), 2);
+    assertEquals(batches.get(2).size(), 1);
+  }
+
+  public void shouldUploadAllBatches() {
+    // arrange
+    Map<File, String> files = createFiles(10);
+    Map<File, String> uploadedFiles = new ConcurrentHashMap<>();
+    S3PipelinedArtifactsUploader<String> uploader = new S3PipelinedArtifactsUploader<>(3, 2);
+
+    // act
+    Collection<String> statistics = uploader.upload(files, (batch, lane) -> {
+      uploadedFiles.putAll(batch);
+      return Collections.singletonList("lane " + lane);
+    });
+
+    // assert
+    assertEquals(uploadedFiles, files);
+    assertEquals(statistics.size(), 4);
+  }
+
+  public void shouldUploadBatchesConcurrently() {
+    // arrange
+    CountDownLatch bothLanesStarted = new CountDownLatch(2);
+    S3PipelinedArtifactsUploader<String> uploader = new S3PipelinedArtifactsUploader<>(1, 2);
+
+    // act
+    uploader.upload(createFiles(2), (batch, lane) -> {
+      bothLanesStarted.countDown();
+      try {
+        assertTrue(bothLanesStarted.await(10, TimeUnit.SECONDS), "The second batch should start before the first one is uploaded");
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      return null;
+    });
+  }
+
+  public void shouldNotStartMoreBatches_whenBatchFails() {
+    // arrange
+    List<Map<File, String>> uploadedBatches = Collections.synchronizedList(new ArrayList<>());
+    S3PipelinedArtifactsUploader<String> uploader = new S3PipelinedArtifactsUploader<>(1, 1);
+
+    // act
+    try {
+      uploader.upload(createFiles(3), (batch, lane) -> {
+        uploadedBatches.add(batch);
+        throw new RecoverableException("Upload failed");
+      });
+      fail("The failure should be rethrown");
+    } catch (RecoverableException e) {
+      // assert
+      assertEquals(e.getMessage(), "Upload failed");
+    }
+    assertEquals(uploadedBatches.size(), 1);
+  }
+
+  private static Map<File, String> createFiles(int count) {
+    Map<File, String> files = new LinkedHashMap<>();
+    for (int i = 0; i < count; i++) {
+      files.put(new File("file" + i), "dist");
+    }
+    return files;
+  }
+}
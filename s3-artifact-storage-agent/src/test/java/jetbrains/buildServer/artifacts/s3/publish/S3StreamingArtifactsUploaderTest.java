@@ -0,0 +1,186 @@
+package jetbrains.buildServer.artifacts.s3.publish;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.artifacts.s3.FileUploadInfo;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class S3StreamingArtifactsUploaderTest {
+  private Path checkoutDirectory;
+  private List<Map<File, String>> uploads;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    checkoutDirectory = Files.createTempDirectory("S3StreamingArtifactsUploaderTest");
+    uploads = new ArrayList<>();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    FileUtil.delete(checkoutDirectory.toFile());
+  }
+
+  public void shouldWatchOnlyRulesWithTargetDirectory() {
+    // act
+    List<S3StreamingArtifactsUploader.Rule> rules = S3StreamingArtifactsUploader.parseRules(
+      "build/libs/*.jar => libs\nreports\nout/** => dist.zip\n+:logs => logs/", checkoutDirectory);
+
+    // assert
+    assertEquals(rules.size(), 2);
+  }
+
+  public void shouldWatchNothing_whenRulesHaveExclusions() {
+    // act
+    List<S3StreamingArtifactsUploader.Rule> rules = S3StreamingArtifactsUploader.parseRules("out/** => dist\n-:out/tmp/**", checkoutDirectory);
+
+    // assert
+    assertTrue(rules.isEmpty());
+  }
+
+  public void shouldUploadFile_whenItHasNotChangedSinceThePreviousPoll() throws IOException {
+    // arrange
+    File file = createFile("build/libs/app.jar", "app");
+    createFile("build/libs/app.txt", "not matched");
+    S3StreamingArtifactsUploader uploader = createUploader("build/libs/*.jar => libs");
+
+    // act
+    uploader.uploadFinishedFiles();
+    assertTrue(uploads.isEmpty(), "The file is uploaded once it is unchanged between polls");
+    uploader.uploadFinishedFiles();
+
+    // assert
+    assertEquals(uploads, Collections.singletonList(Collections.singletonMap(file, "libs")));
+  }
+
+  public void shouldKeepRelativeDirectories_whenRuleHasWildcards() throws IOException {
+    // arrange
+    File file = createFile("out/a/b/report.html", "report");
+    S3StreamingArtifactsUploader uploader = createUploader("out/**/*.html => reports");
+
+    // act
+    uploader.uploadFinishedFiles();
+    uploader.uploadFinishedFiles();
+
+    // assert
+    assertEquals(uploads, Collections.singletonList(Collections.singletonMap(file, "reports/a/b")));
+  }
+
+  public void shouldNotUploadAgain_whenPublishedFileIsUnchanged() throws IOException {
+    // arrange
+    File file = createFile("out/app.jar", "app");
+    S3StreamingArtifactsUploader uploader = createUploader("out => dist");
+    uploader.uploadFinishedFiles();
+    uploader.uploadFinishedFiles();
+    List<FileUploadInfo> uploadedFiles = new ArrayList<>();
+
+    // act
+    Map<File, String> filesToUpload = uploader.startPublishing(Collections.singletonMap(file, "dist"), uploadedFiles::add);
+    uploader.publishingFinished();
+
+    // assert
+    assertTrue(filesToUpload.isEmpty());
+    assertEquals(uploadedFiles.size(), 1);
+    assertEquals(uploadedFiles.get(0).getArtifactPath(), "dist/app.jar");
+  }
+
+  public void shouldUploadAgain_whenPublishedFileHasChangedOrOtherTarget() throws IOException {
+    // arrange
+    File changedFile = createFile("out/app.jar", "app");
+    File otherTargetFile = createFile("out/lib.jar", "lib");
+    S3StreamingArtifactsUploader uploader = createUploader("out => dist");
+    uploader.uploadFinishedFiles();
+    uploader.uploadFinishedFiles();
+    Files.write(changedFile.toPath(), "changed app".getBytes());
+    Map<File, String> files = new HashMap<>();
+    files.put(changedFile, "dist");
+    files.put(otherTargetFile, "other");
+
+    // act
+    Map<File, String> filesToUpload = uploader.startPublishing(files, info -> fail("Should upload all the files"));
+    uploader.publishingFinished();
+
+    // assert
+    assertEquals(filesToUpload, files);
+  }
+
+  public void shouldRememberUploadedArtifactPaths_whenFileIsRemovedAfterUpload() throws IOException {
+    // arrange
+    createFile("out/app.jar", "app");
+    createFile("build/app.jar", "app");
+    S3StreamingArtifactsUploader uploader = createUploader("out => dist\nbuild => libs");
+    uploader.uploadFinishedFiles();
+    uploader.uploadFinishedFiles();
+    FileUtil.delete(checkoutDirectory.resolve("out").toFile());
+    uploader.uploadFinishedFiles();
+
+    // act
+    Set<String> uploadedArtifactPaths = uploader.getUploadedArtifactPaths();
+
+    // assert
+    assertEquals(uploadedArtifactPaths, new HashSet<>(Arrays.asList("dist/app.jar", "libs/app.jar")));
+  }
+
+  public void shouldNotUploadInBackground_whileBuildPublishes() throws IOException {
+    // arrange
+    createFile("out/app.jar", "app");
+    S3StreamingArtifactsUploader uploader = createUploader("out => dist");
+    uploader.uploadFinishedFiles();
+
+    // act
+    uploader.startPublishing(Collections.emptyMap(), info -> {});
+    uploader.uploadFinishedFiles();
+
+    // assert
+    assertTrue(uploads.isEmpty());
+  }
+
+  public void shouldWaitForUploadInProgress_whenStopped() throws Exception {
+    // arrange
+    File file = createFile("out/app.jar", "app");
+    CountDownLatch uploadStarted = new CountDownLatch(1);
+    S3StreamingArtifactsUploader uploader = S3StreamingArtifactsUploader.create("out => dist", checkoutDirectory.toFile(), (files, interrupter, uploadInfoConsumer) -> {
+      uploadStarted.countDown();
+      while (interrupter.get() == null) {
+        Thread.yield();
+      }
+      uploadInfoConsumer.accept(new FileUploadInfo("dist/app.jar", file.getAbsolutePath(), file.length(), null));
+    }, 10, 0);
+    assertNotNull(uploader);
+    uploader.start();
+    assertTrue(uploadStarted.await(10, TimeUnit.SECONDS));
+
+    // act
+    uploader.stop();
+
+    // assert
+    assertEquals(uploader.getUploadedArtifactPaths(), Collections.singleton("dist/app.jar"));
+  }
+
+  private S3StreamingArtifactsUploader createUploader(String artifactPaths) {
+    S3StreamingArtifactsUploader uploader = S3StreamingArtifactsUploader.create(artifactPaths, checkoutDirectory.toFile(), (files, interrupter, uploadInfoConsumer) -> {
+      uploads.add(new HashMap<>(files));
+      files.forEach((file, targetDir) -> uploadInfoConsumer.accept(new FileUploadInfo(targetDir + "/" + file.getName(), file.getAbsolutePath(), file.length(), null)));
+    }, 1000, 0);
+    assertNotNull(uploader);
+    return uploader;
+  }
+
+  private File createFile(String path, String content) throws IOException {
+    Path file = checkoutDirectory.resolve(path).toAbsolutePath().normalize();
+    Files.createDirectories(file.getParent());
+    Files.write(file, content.getBytes());
+    file.toFile().setLastModified(System.currentTimeMillis() - 60_000);
+    return file.toFile();
+  }
+}
@@ -0,0 +1,158 @@
+package jetbrains.buildServer.artifacts.s3;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Layout of the bundles of small artifacts.
+ * <p>
+ * A bundle is an object with the contents of several artifacts written one after another. Each publishing that bundles artifacts uploads
+ * its bundles and their index under its own directory in {@link #BUNDLES_DIRECTORY}. The paths of the indexes, relative to the path prefix of the build,
+ * are listed in the {@link #BUNDLE_INDEXES_ATTR} property of the artifacts list. An index has one line per bundled artifact with its path,
+ * the bundle and the byte range of its content in the bundle. Artifact paths are Base64-encoded, so they can contain any characters.
+ * The size of the largest bundled artifact is in the {@link #BUNDLED_FILE_MAX_SIZE_ATTR} property, so that the larger artifacts are served
+ * without reading the indexes.
+ * <p>
+ * An artifact republished by a later publishing of the build is looked up in the indexes from the newest one. When the artifact is no longer bundled,
+ * the index of the later publishing has a {@linkplain Entry#superseded(String) superseding entry} without a bundle for it.
+ */
+public final class S3ArtifactBundles {
+  public static final String BUNDLES_DIRECTORY = ".teamcity/s3-bundles";
+  public static final String INDEX_FILE_NAME = "index.txt";
+  public static final String BUNDLE_INDEXES_ATTR = "s3_bundle_indexes";
+  public static final String BUNDLED_FILE_MAX_SIZE_ATTR = "s3_bundled_file_max_size";
+
+  private static final String SEPARATOR = "\t";
+  private static final String INDEX_PATHS_SEPARATOR = ",";
+
+  private S3ArtifactBundles() {
+  }
+
+  @NotNull
+  public static String serializeIndex(@NotNull Collection<Entry> entries) {
+    StringBuilder result = new StringBuilder();
+    for (Entry entry : entries) {
+      result.append(encode(entry.getArtifactPath())).append(SEPARATOR)
+            .append(encode(entry.getBundlePath())).append(SEPARATOR)
+            .append(entry.getOffset()).append(SEPARATOR)
+            .append(entry.getSize()).append('\n');
+    }
+    return result.toString();
+  }
+
+  /**
+   * @return entries by their artifact paths
+   * @throws IllegalArgumentException if a line is malformed
+   */
+  @NotNull
+  public static Map<String, Entry> deserializeIndex(@NotNull String text) {
+    Map<String, Entry> entries = new HashMap<>();
+    for (String line : text.split("\n")) {
+      if (line.trim().isEmpty()) continue;
+      String[] fields = line.trim().split(SEPARATOR);
+      if (fields.length != 4) throw new IllegalArgumentException("Malformed bundle index line: " + line);
+      Entry entry = new Entry(decode(fields[0]), decode(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+      entries.put(entry.getArtifactPath(), entry);
+    }
+    return entries;
+  }
+
+  @NotNull
+  public static String joinIndexPaths(@NotNull Collection<String> indexPaths) {
+    return String.join(INDEX_PATHS_SEPARATOR, indexPaths);
+  }
+
+  /**
+   * @param commonProperties common properties of the artifacts list
+   * @return paths of the bundle indexes relative to the path prefix of the build
+   */
+  @NotNull
+  public static List<String> getIndexPaths(@NotNull Map<String, String> commonProperties) {
+    String indexPaths = commonProperties.get(BUNDLE_INDEXES_ATTR);
+    if (StringUtil.isEmptyOrSpaces(indexPaths)) return Collections.emptyList();
+
+    List<String> result = new ArrayList<>();
+    for (String indexPath : indexPaths.split(INDEX_PATHS_SEPARATOR)) {
+      if (!indexPath.trim().isEmpty()) result.add(indexPath.trim());
+    }
+    return result;
+  }
+
+  /**
+   * @param commonProperties common properties of the artifacts list
+   * @return size of the largest bundled artifact, or {@link Long#MAX_VALUE} if it is unknown
+   */
+  public static long getBundledFileMaxSize(@NotNull Map<String, String> commonProperties) {
+    String maxSize = commonProperties.get(BUNDLED_FILE_MAX_SIZE_ATTR);
+    if (StringUtil.isEmptyOrSpaces(maxSize)) return Long.MAX_VALUE;
+    try {
+      return Long.parseLong(maxSize.trim());
+    } catch (NumberFormatException e) {
+      return Long.MAX_VALUE;
+    }
+  }
+
+  @NotNull
+  private static String encode(@NotNull String path) {
+    return Base64.getEncoder().encodeToString(path.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @NotNull
+  private static String decode(@NotNull String encodedPath) {
+    return new String(Base64.getDecoder().decode(encodedPath), StandardCharsets.UTF_8);
+  }
+
+  public static final class Entry {
+    @NotNull
+    private final String myArtifactPath;
+    @NotNull
+    private final String myBundlePath;
+    private final long myOffset;
+    private final long mySize;
+
+    /**
+     * @return entry of an artifact that was bundled by an earlier publishing and is now stored in its own object
+     */
+    @NotNull
+    public static Entry superseded(@NotNull String artifactPath) {
+      return new Entry(artifactPath, "", 0, 0);
+    }
+
+    /**
+     * @param bundlePath path of the bundle relative to the path prefix of the build
+     */
+    public Entry(@NotNull String artifactPath, @NotNull String bundlePath, long offset, long size) {
+      myArtifactPath = artifactPath;
+      myBundlePath = bundlePath;
+      myOffset = offset;
+      mySize = size;
+    }
+
+    @NotNull
+    public String getArtifactPath() {
+      return myArtifactPath;
+    }
+
+    @NotNull
+    public String getBundlePath() {
+      return myBundlePath;
+    }
+
+    public long getOffset() {
+      return myOffset;
+    }
+
+    public long getSize() {
+      return mySize;
+    }
+
+    /**
+     * @return true if the artifact is not in a bundle, see {@link #superseded(String)}
+     */
+    public boolean isSuperseded() {
+      return myBundlePath.isEmpty();
+    }
+  }
+}
@@ -0,0 +1,142 @@
+package jetbrains.buildServer.artifacts.s3;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Format of the artifact deduplication requests sent by the agent to the pre-signed URLs controller.
+ * <p>
+ * The agent sends one line per artifact with its SHA-256 digest, size and object key,
+ * the server answers with one line per artifact it has copied from an object with the same digest, with the key and the ETag of the copy.
+ * Once the rest of the artifacts are uploaded, the agent sends their lines again with the ETags of the uploaded objects, so that the server
+ * can copy them for the later builds. Object keys are Base64-encoded, so they can contain any characters.
+ */
+public final class S3ArtifactDeduplication {
+  /**
+   * Request parameter that tells the pre-signed URLs controller to deduplicate the artifacts of the request body
+   */
+  public static final String DEDUPLICATE_ARTIFACTS = "DEDUPLICATE_ARTIFACTS";
+  /**
+   * Request parameter that tells the pre-signed URLs controller to remember the uploaded artifacts of the request body for the deduplication
+   */
+  public static final String INDEX_ARTIFACTS = "INDEX_ARTIFACTS";
+  /**
+   * Maximum number of artifacts in one request, the server copies them while the agent waits for the response
+   */
+  public static final int MAX_REQUESTS = 100;
+
+  private static final String SEPARATOR = "\t";
+
+  private S3ArtifactDeduplication() {
+  }
+
+  @NotNull
+  public static String serializeRequests(@NotNull List<Request> requests) {
+    StringBuilder result = new StringBuilder();
+    for (Request request : requests) {
+      result.append(request.getSha256()).append(SEPARATOR).append(request.getSize()).append(SEPARATOR).append(encode(request.getObjectKey()));
+      if (request.getETag() != null) result.append(SEPARATOR).append(request.getETag());
+      result.append('\n');
+    }
+    return result.toString();
+  }
+
+  /**
+   * @throws IllegalArgumentException if a line is malformed
+   */
+  @NotNull
+  public static List<Request> deserializeRequests(@NotNull String text) {
+    List<Request> requests = new ArrayList<>();
+    for (String line : text.split("\n")) {
+      if (line.trim().isEmpty()) continue;
+      String[] fields = line.trim().split(SEPARATOR);
+      if (fields.length != 3 && fields.length != 4) throw new IllegalArgumentException("Malformed deduplication request line: " + line);
+      requests.add(new Request(fields[0], Long.parseLong(fields[1]), decode(fields[2]), fields.length == 4 ? fields[3] : null));
+    }
+    return requests;
+  }
+
+  /**
+   * @param copies ETags of the copied objects by their keys
+   */
+  @NotNull
+  public static String serializeCopies(@NotNull Map<String, String> copies) {
+    StringBuilder result = new StringBuilder();
+    copies.forEach((objectKey, eTag) -> result.append(encode(objectKey)).append(SEPARATOR).append(eTag).append('\n'));
+    return result.toString();
+  }
+
+  /**
+   * @throws IllegalArgumentException if a line is malformed
+   */
+  @NotNull
+  public static Map<String, String> deserializeCopies(@NotNull String text) {
+    Map<String, String> copies = new LinkedHashMap<>();
+    for (String line : text.split("\n")) {
+      if (line.trim().isEmpty()) continue;
+      String[] fields = line.trim().split(SEPARATOR);
+      if (fields.length != 2) throw new IllegalArgumentException("Malformed deduplication response line: " + line);
+      copies.put(decode(fields[0]), fields[1]);
+    }
+    return copies;
+  }
+
+  @NotNull
+  private static String encode(@NotNull String objectKey) {
+    return Base64.getEncoder().encodeToString(objectKey.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @NotNull
+  private static String decode(@NotNull String encodedObjectKey) {
+    return new String(Base64.getDecoder().decode(encodedObjectKey), StandardCharsets.UTF_8);
+  }
+
+  public static final class Request {
+    @NotNull
+    private final String mySha256;
+    private final long mySize;
+    @NotNull
+    private final String myObjectKey;
+    @Nullable
+    private final String myETag;
+
+    public Request(@NotNull String sha256, long size, @NotNull String objectKey) {
+      this(sha256, size, objectKey, null);
+    }
+
+    /**
+     * @param eTag ETag of the uploaded object, set only in the requests that index the uploaded artifacts
+     */
+    public Request(@NotNull String sha256, long size, @NotNull String objectKey, @Nullable String eTag) {
+      mySha256 = sha256;
+      mySize = size;
+      myObjectKey = objectKey;
+      myETag = eTag;
+    }
+
+    @NotNull
+    public String getSha256() {
+      return mySha256;
+    }
+
+    public long getSize() {
+      return mySize;
+    }
+
+    @NotNull
+    public String getObjectKey() {
+      return myObjectKey;
+    }
+
+    @Nullable
+    public String getETag() {
+      return myETag;
+    }
+  }
+}
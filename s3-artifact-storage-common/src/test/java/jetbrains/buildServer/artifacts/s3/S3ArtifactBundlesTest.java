@@ -0,0 +1,58 @@
+package jetbrains.buildServer.artifacts.s3;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+@Test
+public class S3ArtifactBundlesTest {
+
+  public void shouldDeserializeSerializedIndex() {
+    String index = S3ArtifactBundles.serializeIndex(Arrays.asList(new S3ArtifactBundles.Entry("reports/index.html", ".teamcity/s3-bundles/1/bundle-0.bin", 0, 10),
+                                                                  new S3ArtifactBundles.Entry("reports/with\ttab.html", ".teamcity/s3-bundles/1/bundle-0.bin", 10, 0)));
+
+    Map<String, S3ArtifactBundles.Entry> entries = S3ArtifactBundles.deserializeIndex(index);
+
+    then(entries).containsOnlyKeys("reports/index.html", "reports/with\ttab.html");
+    S3ArtifactBundles.Entry entry = entries.get("reports/with\ttab.html");
+    then(entry.getBundlePath()).isEqualTo(".teamcity/s3-bundles/1/bundle-0.bin");
+    then(entry.getOffset()).isEqualTo(10);
+    then(entry.getSize()).isEqualTo(0);
+  }
+
+  public void shouldDeserializeSupersededEntry() {
+    String index = S3ArtifactBundles.serializeIndex(Collections.singletonList(S3ArtifactBundles.Entry.superseded("reports/index.html")));
+
+    S3ArtifactBundles.Entry entry = S3ArtifactBundles.deserializeIndex(index).get("reports/index.html");
+
+    then(entry.isSuperseded()).isTrue();
+  }
+
+  public void shouldReturnIndexPaths_whenTheyAreListedInCommonProperties() {
+    String indexPaths = S3ArtifactBundles.joinIndexPaths(Arrays.asList(".teamcity/s3-bundles/1/index.txt", ".teamcity/s3-bundles/2/index.txt"));
+
+    then(S3ArtifactBundles.getIndexPaths(Collections.singletonMap(S3ArtifactBundles.BUNDLE_INDEXES_ATTR, indexPaths)))
+      .containsExactly(".teamcity/s3-bundles/1/index.txt", ".teamcity/s3-bundles/2/index.txt");
+  }
+
+  public void shouldReturnNoIndexPaths_whenNothingIsBundled() {
+    then(S3ArtifactBundles.getIndexPaths(Collections.emptyMap())).isEmpty();
+  }
+
+  public void shouldReturnBundledFileMaxSize_whenItIsInCommonProperties() {
+    then(S3ArtifactBundles.getBundledFileMaxSize(Collections.singletonMap(S3ArtifactBundles.BUNDLED_FILE_MAX_SIZE_ATTR, "65536"))).isEqualTo(65536);
+  }
+
+  public void shouldReturnUnlimitedBundledFileMaxSize_whenItIsUnknown() {
+    then(S3ArtifactBundles.getBundledFileMaxSize(Collections.emptyMap())).isEqualTo(Long.MAX_VALUE);
+    then(S3ArtifactBundles.getBundledFileMaxSize(Collections.singletonMap(S3ArtifactBundles.BUNDLED_FILE_MAX_SIZE_ATTR, "64K"))).isEqualTo(Long.MAX_VALUE);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void shouldFail_whenIndexIsMalformed() {
+    S3ArtifactBundles.deserializeIndex("YQ==\t0\t10");
+  }
+}
@@ -0,0 +1,53 @@
+package jetbrains.buildServer.artifacts.s3;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+@Test
+public class S3ArtifactDeduplicationTest {
+
+  public void shouldDeserializeSerializedRequests() {
+    List<S3ArtifactDeduplication.Request> requests = Arrays.asList(new S3ArtifactDeduplication.Request("abc", 10, "Project/Build/1/dist/app.zip"),
+                                                                   new S3ArtifactDeduplication.Request("def", 20, "Project/Build/1/with\ttab and\nnewline.txt"));
+
+    List<S3ArtifactDeduplication.Request> result = S3ArtifactDeduplication.deserializeRequests(S3ArtifactDeduplication.serializeRequests(requests));
+
+    then(result).hasSize(2);
+    then(result.get(0).getSha256()).isEqualTo("abc");
+    then(result.get(0).getSize()).isEqualTo(10);
+    then(result.get(0).getObjectKey()).isEqualTo("Project/Build/1/dist/app.zip");
+    then(result.get(1).getObjectKey()).isEqualTo("Project/Build/1/with\ttab and\nnewline.txt");
+  }
+
+  public void shouldDeserializeSerializedUploadedArtifacts() {
+    List<S3ArtifactDeduplication.Request> requests = Arrays.asList(new S3ArtifactDeduplication.Request("abc", 10, "Project/Build/1/dist/app.zip", "\"etag\""),
+                                                                   new S3ArtifactDeduplication.Request("def", 20, "Project/Build/1/dist/sdk.zip"));
+
+    List<S3ArtifactDeduplication.Request> result = S3ArtifactDeduplication.deserializeRequests(S3ArtifactDeduplication.serializeRequests(requests));
+
+    then(result).hasSize(2);
+    then(result.get(0).getETag()).isEqualTo("\"etag\"");
+    then(result.get(1).getETag()).isNull();
+  }
+
+  public void shouldDeserializeSerializedCopies() {
+    Map<String, String> copies = new LinkedHashMap<>();
+    copies.put("Project/Build/1/dist/app.zip", "\"etag\"");
+
+    then(S3ArtifactDeduplication.deserializeCopies(S3ArtifactDeduplication.serializeCopies(copies))).isEqualTo(copies);
+  }
+
+  public void shouldReturnNothing_whenResponseIsEmpty() {
+    then(S3ArtifactDeduplication.deserializeCopies("")).isEmpty();
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void shouldFail_whenRequestIsMalformed() {
+    S3ArtifactDeduplication.deserializeRequests("abc\t10");
+  }
+}
@@ -5,6 +5,7 @@ package jetbrains.buildServer.artifacts.s3;
 import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.artifacts.ArtifactData;
 import jetbrains.buildServer.artifacts.s3.amazonClient.AmazonS3Provider;
+import jetbrains.buildServer.artifacts.s3.bundles.S3ArtifactBundlesService;
 import jetbrains.buildServer.artifacts.s3.util.ParamUtil;
 import jetbrains.buildServer.serverSide.ServerPaths;
 import jetbrains.buildServer.serverSide.artifacts.ArtifactContentProvider;
@@ -26,11 +27,14 @@ public class S3ArtifactContentProvider implements ArtifactContentProvider {
   private final static Logger LOG = Logger.getInstance(S3ArtifactContentProvider.class.getName());
   private final ServerPaths myServerPaths;
   private final AmazonS3Provider myAmazonS3Provider;
+  private final S3ArtifactBundlesService myBundlesService;
 
   public S3ArtifactContentProvider(@NotNull ServerPaths serverPaths,
-                                   @NotNull AmazonS3Provider amazonS3Provider) {
+                                   @NotNull AmazonS3Provider amazonS3Provider,
+                                   @NotNull S3ArtifactBundlesService bundlesService) {
     myServerPaths = serverPaths;
     myAmazonS3Provider = amazonS3Provider;
+    myBundlesService = bundlesService;
   }
 
   @NotNull
@@ -48,6 +52,11 @@ public class S3ArtifactContentProvider implements ArtifactContentProvider {
       throw new IOException("Invalid artifact data: S3 object path property is not set");
     }
 
+    final InputStream bundledContent = myBundlesService.getBundledContent(storedBuildArtifactInfo);
+    if (bundledContent != null) {
+      return bundledContent;
+    }
+
     final String artifactPath = artifactData.getPath();
     try {
       params = S3Util.validateParameters(storedBuildArtifactInfo.getStorageSettings());
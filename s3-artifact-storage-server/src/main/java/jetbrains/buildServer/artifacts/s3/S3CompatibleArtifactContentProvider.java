@@ -1,13 +1,15 @@
 package jetbrains.buildServer.artifacts.s3;
 
 import jetbrains.buildServer.artifacts.s3.amazonClient.AmazonS3Provider;
+import jetbrains.buildServer.artifacts.s3.bundles.S3ArtifactBundlesService;
 import jetbrains.buildServer.serverSide.ServerPaths;
 import org.jetbrains.annotations.NotNull;
 
 public class S3CompatibleArtifactContentProvider extends S3ArtifactContentProvider {
   public S3CompatibleArtifactContentProvider(@NotNull ServerPaths serverPaths,
-                                             @NotNull AmazonS3Provider amazonS3Provider) {
-    super(serverPaths, amazonS3Provider);
+                                             @NotNull AmazonS3Provider amazonS3Provider,
+                                             @NotNull S3ArtifactBundlesService bundlesService) {
+    super(serverPaths, amazonS3Provider, bundlesService);
   }
 
   @NotNull
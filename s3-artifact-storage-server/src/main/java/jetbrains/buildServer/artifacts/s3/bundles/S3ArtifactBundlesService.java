@@ -0,0 +1,157 @@
+package jetbrains.buildServer.artifacts.s3.bundles;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.artifacts.ArtifactData;
+import jetbrains.buildServer.artifacts.s3.S3ArtifactBundles;
+import jetbrains.buildServer.artifacts.s3.S3Util;
+import jetbrains.buildServer.artifacts.s3.amazonClient.AmazonS3Provider;
+import jetbrains.buildServer.artifacts.s3.util.ParamUtil;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.artifacts.StoredBuildArtifactInfo;
+import jetbrains.buildServer.serverSide.connections.credentials.ConnectionCredentialsException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+
+/**
+ * Serves the small artifacts the agents have packed into bundles, see {@link S3ArtifactBundles}.
+ * The indexes of the bundles are read once and kept in memory, the bundled artifacts are read from the bundles by ranged requests.
+ * Artifacts larger than the largest bundled one are never looked up in the indexes, and a missing index is remembered as an empty one.
+ * The indexes are searched from the latest one, and an entry is served only if its size matches the published artifact.
+ */
+public class S3ArtifactBundlesService {
+  private static final Logger LOG = Logger.getInstance(S3ArtifactBundlesService.class.getName());
+  public static final String INDEX_CACHE_MAX_ENTRIES_PROPERTY = "teamcity.internal.storage.s3.bundles.indexCacheMaxEntries";
+  private static final int DEFAULT_INDEX_CACHE_MAX_ENTRIES = 1_000_000;
+
+  @NotNull
+  private final ServerPaths myServerPaths;
+  @NotNull
+  private final AmazonS3Provider myAmazonS3Provider;
+  // index entries by artifact paths, by bucket and index object key, bounded by the total number of the entries
+  @NotNull
+  private final Cache<String, Map<String, S3ArtifactBundles.Entry>> myIndexes = CacheBuilder.newBuilder()
+                                                                                           .maximumWeight(TeamCityProperties.getInteger(INDEX_CACHE_MAX_ENTRIES_PROPERTY,
+                                                                                                                                        DEFAULT_INDEX_CACHE_MAX_ENTRIES))
+                                                                                           .<String, Map<String, S3ArtifactBundles.Entry>>weigher((key, index) -> index.size() + 1)
+                                                                                           .expireAfterAccess(1, TimeUnit.HOURS)
+                                                                                           .build();
+
+  public S3ArtifactBundlesService(@NotNull ServerPaths serverPaths, @NotNull AmazonS3Provider amazonS3Provider) {
+    myServerPaths = serverPaths;
+    myAmazonS3Provider = amazonS3Provider;
+  }
+
+  /**
+   * @return true if the artifact content is in a bundle rather than in its own object
+   */
+  public boolean isBundled(@NotNull StoredBuildArtifactInfo storedBuildArtifactInfo) throws IOException {
+    if (!mayBeBundled(storedBuildArtifactInfo)) return false;
+    return findEntry(storedBuildArtifactInfo) != null;
+  }
+
+  /**
+   * @return content of the artifact read from its bundle, or null if the artifact is not bundled
+   */
+  @Nullable
+  public InputStream getBundledContent(@NotNull StoredBuildArtifactInfo storedBuildArtifactInfo) throws IOException {
+    if (!mayBeBundled(storedBuildArtifactInfo)) return null;
+
+    final S3ArtifactBundles.Entry entry = findEntry(storedBuildArtifactInfo);
+    if (entry == null) return null;
+    if (entry.getSize() == 0) return new ByteArrayInputStream(new byte[0]);
+
+    final String range = "bytes=" + entry.getOffset() + "-" + (entry.getOffset() + entry.getSize() - 1);
+    final String bundleKey = S3Util.getPathPrefix(storedBuildArtifactInfo.getCommonProperties()) + entry.getBundlePath();
+    return withClient(storedBuildArtifactInfo, (client, bucketName) -> client.getObject(b -> b.bucket(bucketName).key(bundleKey).range(range)));
+  }
+
+  private static boolean mayBeBundled(@NotNull StoredBuildArtifactInfo storedBuildArtifactInfo) {
+    final ArtifactData artifactData = storedBuildArtifactInfo.getArtifactData();
+    if (artifactData == null) return false;
+    final Map<String, String> commonProperties = storedBuildArtifactInfo.getCommonProperties();
+    return !S3ArtifactBundles.getIndexPaths(commonProperties).isEmpty() && artifactData.getSize() <= S3ArtifactBundles.getBundledFileMaxSize(commonProperties);
+  }
+
+  @Nullable
+  private S3ArtifactBundles.Entry findEntry(@NotNull StoredBuildArtifactInfo storedBuildArtifactInfo) throws IOException {
+    final ArtifactData artifactData = storedBuildArtifactInfo.getArtifactData();
+    if (artifactData == null) return null;
+
+    final Map<String, String> commonProperties = storedBuildArtifactInfo.getCommonProperties();
+    final String pathPrefix = S3Util.getPathPrefix(commonProperties);
+    final List<String> indexPaths = S3ArtifactBundles.getIndexPaths(commonProperties);
+    final String bucketName = S3Util.getBucketName(storedBuildArtifactInfo.getStorageSettings());
+    // a republished artifact is described by the index of the latest publishing
+    for (int i = indexPaths.size() - 1; i >= 0; i--) {
+      final String indexPath = indexPaths.get(i);
+      final String indexKey = pathPrefix + indexPath;
+      final Map<String, S3ArtifactBundles.Entry> index;
+      try {
+        index = myIndexes.get(bucketName + "/" + indexKey, () -> readIndex(storedBuildArtifactInfo, indexKey));
+      } catch (ExecutionException | UncheckedExecutionException e) {
+        throw new IOException("Failed to read the artifact bundle index " + indexKey + " in bucket " + bucketName + ": " + e.getCause().getMessage(), e.getCause());
+      }
+      final S3ArtifactBundles.Entry entry = index.get(artifactData.getPath());
+      if (entry == null) continue;
+      if (entry.isSuperseded()) return null;
+      if (entry.getSize() != artifactData.getSize()) {
+        LOG.warn("Artifact " + artifactData.getPath() + " has size " + artifactData.getSize() + ", but its entry in the bundle index " + indexKey + " has size " +
+                 entry.getSize() + ", serving the artifact object");
+        return null;
+      }
+      return entry;
+    }
+    return null;
+  }
+
+  @NotNull
+  private Map<String, S3ArtifactBundles.Entry> readIndex(@NotNull StoredBuildArtifactInfo storedBuildArtifactInfo, @NotNull String indexKey) throws IOException {
+    try {
+      return S3ArtifactBundles.deserializeIndex(withClient(storedBuildArtifactInfo, (client, bucket) -> client.getObjectAsBytes(b -> b.bucket(bucket).key(indexKey)).asUtf8String()));
+    } catch (NoSuchKeyException e) {
+      LOG.warn("Artifact bundle index " + indexKey + " is missing, the artifacts of the build are served as separate objects");
+      return Collections.emptyMap();
+    }
+  }
+
+  @NotNull
+  private <T> T withClient(@NotNull StoredBuildArtifactInfo storedBuildArtifactInfo, @NotNull BundleRequest<T> request) throws IOException {
+    final Map<String, String> params;
+    try {
+      params = S3Util.validateParameters(storedBuildArtifactInfo.getStorageSettings());
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Invalid storage settings " + e.getMessage(), e);
+    }
+    final String bucketName = S3Util.getBucketName(params);
+    final String projectId = storedBuildArtifactInfo.getBuildPromotion().getProjectId();
+    if (projectId == null) {
+      throw new IOException("There is no project information in the build : " + storedBuildArtifactInfo.getBuildPromotion().getBuildTypeExternalId() + " S3 bucket: " + bucketName);
+    }
+
+    try {
+      return myAmazonS3Provider.withCorrectingRegionAndAcceleration(ParamUtil.putSslValues(myServerPaths, params), projectId,
+                                                                    client -> request.execute(client, bucketName), false);
+    } catch (ConnectionCredentialsException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+  private interface BundleRequest<T> {
+    @NotNull
+    T execute(@NotNull S3Client client, @NotNull String bucketName);
+  }
+}
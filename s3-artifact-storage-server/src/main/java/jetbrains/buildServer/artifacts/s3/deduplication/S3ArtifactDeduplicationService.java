@@ -0,0 +1,187 @@
+package jetbrains.buildServer.artifacts.s3.deduplication;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.artifacts.s3.S3ArtifactDeduplication;
+import jetbrains.buildServer.artifacts.s3.S3Util;
+import jetbrains.buildServer.artifacts.s3.amazonClient.AmazonS3Provider;
+import jetbrains.buildServer.artifacts.s3.util.ParamUtil;
+import jetbrains.buildServer.serverSide.Branch;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.connections.credentials.ConnectionCredentialsException;
+import jetbrains.buildServer.serverSide.impl.LogUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CopyObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+/**
+ * Copies the artifacts published by the agents from the objects with the same SHA-256 digest that are already stored in the bucket.
+ * <p>
+ * S3 can't look objects up by their content, so the service remembers the digests of the artifacts the agents have uploaded for each build configuration.
+ * An object is remembered only after the agent has confirmed its upload, together with the ETag of the uploaded content.
+ * The remembered objects may be overwritten or removed by the cleanup at any moment, so they are copied only if their ETag still matches.
+ * The server can't check the digests the agents send, so only the artifacts of the non-personal builds of the default branch are remembered:
+ * a personal or a feature branch build could otherwise make the later builds copy the content that doesn't match their digests.
+ * <p>
+ * The copies are made while the agent waits for the response, so they stop after {@link #COPY_TIMEOUT_PROPERTY} and the agent uploads the rest.
+ */
+public class S3ArtifactDeduplicationService {
+  private static final Logger LOG = Logger.getInstance(S3ArtifactDeduplicationService.class.getName());
+
+  public static final String INDEX_SIZE_PROPERTY = "teamcity.internal.storage.s3.upload.deduplication.indexSize";
+  private static final int DEFAULT_INDEX_SIZE = 100_000;
+  public static final String COPY_TIMEOUT_PROPERTY = "teamcity.internal.storage.s3.upload.deduplication.copyTimeoutSeconds";
+  private static final int DEFAULT_COPY_TIMEOUT_SECONDS = 20;
+  // larger objects can't be copied by a single CopyObject request
+  private static final long MAX_COPY_OBJECT_SIZE = 5L * 1024 * 1024 * 1024;
+
+  @NotNull
+  private final ServerPaths myServerPaths;
+  @NotNull
+  private final AmazonS3Provider myAmazonS3Provider;
+  // guarded by itself
+  private final Map<String, IndexedObject> myIndex = new LinkedHashMap<String, IndexedObject>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, IndexedObject> eldest) {
+      return size() > TeamCityProperties.getInteger(INDEX_SIZE_PROPERTY, DEFAULT_INDEX_SIZE);
+    }
+  };
+
+  public S3ArtifactDeduplicationService(@NotNull ServerPaths serverPaths, @NotNull AmazonS3Provider amazonS3Provider) {
+    myServerPaths = serverPaths;
+    myAmazonS3Provider = amazonS3Provider;
+  }
+
+  /**
+   * Copies the requested objects from the remembered objects with the same digest.
+   *
+   * @return ETags of the copied objects by their keys
+   */
+  @NotNull
+  public Map<String, String> deduplicate(@NotNull SBuild build,
+                                         @NotNull Map<String, String> storageSettings,
+                                         @NotNull List<S3ArtifactDeduplication.Request> requests) throws ConnectionCredentialsException {
+    final String bucketName = getBucketName(build, storageSettings);
+
+    final Map<S3ArtifactDeduplication.Request, IndexedObject> sources = new LinkedHashMap<>();
+    synchronized (myIndex) {
+      for (S3ArtifactDeduplication.Request request : requests) {
+        if (sources.size() >= S3ArtifactDeduplication.MAX_REQUESTS) break;
+        final IndexedObject indexedObject = myIndex.get(getIndexKey(build, bucketName, request.getSha256()));
+        if (indexedObject != null && indexedObject.mySize == request.getSize() && !indexedObject.myObjectKey.equals(request.getObjectKey())) {
+          sources.put(request, indexedObject);
+        }
+      }
+    }
+    if (sources.isEmpty()) return new HashMap<>();
+
+    final Map<String, String> settings = ParamUtil.putSslValues(myServerPaths, new HashMap<>(storageSettings));
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TeamCityProperties.getInteger(COPY_TIMEOUT_PROPERTY, DEFAULT_COPY_TIMEOUT_SECONDS));
+    return myAmazonS3Provider.withCorrectingRegionAndAcceleration(settings, build.getProjectId(), client -> {
+      final Map<String, String> copies = new LinkedHashMap<>();
+      for (Map.Entry<S3ArtifactDeduplication.Request, IndexedObject> entry : sources.entrySet()) {
+        if (System.nanoTime() - deadline > 0) {
+          LOG.info("Stopped copying the artifacts of the build " + LogUtil.describe(build) + " after " + copies.size() + " copies, the rest will be uploaded");
+          break;
+        }
+        final S3ArtifactDeduplication.Request request = entry.getKey();
+        final IndexedObject source = entry.getValue();
+        final String eTag = copy(client, bucketName, source, request);
+        if (eTag != null) {
+          copies.put(request.getObjectKey(), eTag);
+        } else {
+          synchronized (myIndex) {
+            myIndex.remove(getIndexKey(build, bucketName, request.getSha256()), source);
+          }
+        }
+      }
+      LOG.debug("Copied " + copies.size() + " of " + requests.size() + " artifacts requested for deduplication by the build " + LogUtil.describe(build));
+      return copies;
+    });
+  }
+
+  /**
+   * Remembers the artifacts the agent has uploaded, so that the later builds can copy them.
+   * The artifacts of the personal builds and of the builds of the other branches than the default one are not remembered.
+   *
+   * @param uploads requests with the ETags of the uploaded objects, the ones without ETags are ignored
+   */
+  public void index(@NotNull SBuild build, @NotNull Map<String, String> storageSettings, @NotNull List<S3ArtifactDeduplication.Request> uploads) {
+    if (!isTrusted(build)) {
+      LOG.debug("Not remembering " + uploads.size() + " artifacts of the personal or non-default branch build " + LogUtil.describe(build) + " for deduplication");
+      return;
+    }
+    final String bucketName = getBucketName(build, storageSettings);
+    synchronized (myIndex) {
+      for (S3ArtifactDeduplication.Request upload : uploads) {
+        if (upload.getETag() == null || upload.getSize() > MAX_COPY_OBJECT_SIZE) continue;
+        myIndex.put(getIndexKey(build, bucketName, upload.getSha256()), new IndexedObject(upload.getObjectKey(), upload.getSize(), upload.getETag()));
+      }
+    }
+  }
+
+  private static boolean isTrusted(@NotNull SBuild build) {
+    if (build.isPersonal()) return false;
+    final Branch branch = build.getBranch();
+    return branch == null || branch.isDefaultBranch();
+  }
+
+  @NotNull
+  private static String getBucketName(@NotNull SBuild build, @NotNull Map<String, String> storageSettings) {
+    final String bucketName = S3Util.getBucketName(storageSettings);
+    if (bucketName == null) {
+      throw new IllegalArgumentException("No bucket is configured in the artifact storage settings of the build " + LogUtil.describe(build));
+    }
+    return bucketName;
+  }
+
+  /**
+   * The copy is conditional on the ETag the agent has uploaded, so an object that was overwritten since then is not copied
+   *
+   * @return ETag of the copy or null if the source object is no longer suitable
+   */
+  @Nullable
+  private static String copy(@NotNull S3Client client, @NotNull String bucketName, @NotNull IndexedObject source, @NotNull S3ArtifactDeduplication.Request request) {
+    try {
+      final CopyObjectResponse response = client.copyObject(b -> b.sourceBucket(bucketName).sourceKey(source.myObjectKey)
+                                                                  .copySourceIfMatch(quote(source.myETag))
+                                                                  .destinationBucket(bucketName).destinationKey(request.getObjectKey()));
+      return response.copyObjectResult().eTag();
+    } catch (S3Exception e) {
+      LOG.infoAndDebugDetails("Failed to copy " + source.myObjectKey + " to " + request.getObjectKey() + " in bucket " + bucketName + ", the artifact will be uploaded", e);
+      return null;
+    }
+  }
+
+  @NotNull
+  private static String quote(@NotNull String eTag) {
+    return eTag.startsWith("\"") ? eTag : "\"" + eTag + "\"";
+  }
+
+  @NotNull
+  private static String getIndexKey(@NotNull SBuild build, @NotNull String bucketName, @NotNull String sha256) {
+    return build.getBuildTypeId() + "/" + bucketName + "/" + sha256;
+  }
+
+  private static final class IndexedObject {
+    @NotNull
+    private final String myObjectKey;
+    private final long mySize;
+    @NotNull
+    private final String myETag;
+
+    private IndexedObject(@NotNull String objectKey, long size, @NotNull String eTag) {
+      myObjectKey = objectKey;
+      mySize = size;
+      myETag = eTag;
+    }
+  }
+}
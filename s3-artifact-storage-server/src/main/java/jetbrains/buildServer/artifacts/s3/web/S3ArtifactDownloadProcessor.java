@@ -16,6 +16,7 @@ import jetbrains.buildServer.artifacts.ArtifactData;
 import jetbrains.buildServer.artifacts.s3.PresignedUrlWithTtl;
 import jetbrains.buildServer.artifacts.s3.S3Constants;
 import jetbrains.buildServer.artifacts.s3.S3Util;
+import jetbrains.buildServer.artifacts.s3.bundles.S3ArtifactBundlesService;
 import jetbrains.buildServer.artifacts.s3.cloudfront.CloudFrontEnabledPresignedUrlProvider;
 import jetbrains.buildServer.artifacts.s3.cloudfront.CloudFrontSettings;
 import jetbrains.buildServer.artifacts.s3.cloudfront.RequestMetadata;
@@ -46,15 +47,18 @@ public class S3ArtifactDownloadProcessor implements ArtifactDownloadProcessor {
   private final ExtensionsProvider myExtensionsProvider;
   private final ContentSecurityPolicyConfig myContentSecurityPolicyConfig;
   private final ProjectManagerEx myProjectManager;
+  private final S3ArtifactBundlesService myBundlesService;
 
   public S3ArtifactDownloadProcessor(@NotNull CloudFrontEnabledPresignedUrlProvider preSignedUrlProvider,
                                      @NotNull ExtensionsProvider extensionsProvider,
                                      @NotNull ContentSecurityPolicyConfig contentSecurityPolicyConfig,
-                                     @NotNull ProjectManagerEx projectManager) {
+                                     @NotNull ProjectManagerEx projectManager,
+                                     @NotNull S3ArtifactBundlesService bundlesService) {
     myPreSignedUrlProvider = preSignedUrlProvider;
     myExtensionsProvider = extensionsProvider;
     myContentSecurityPolicyConfig = contentSecurityPolicyConfig;
     myProjectManager = projectManager;
+    myBundlesService = bundlesService;
   }
 
   @NotNull
@@ -70,6 +74,8 @@ public class S3ArtifactDownloadProcessor implements ArtifactDownloadProcessor {
                                  @NotNull HttpServletResponse httpServletResponse) throws IOException {
     final ArtifactData artifactData = storedBuildArtifactInfo.getArtifactData();
     if (artifactData == null) throw new IOException("Can not process artifact download request for a folder");
+    // a bundled artifact has no object of its own to redirect to, the content provider reads it from the bundle
+    if (myBundlesService.isBundled(storedBuildArtifactInfo)) return false;
 
     final String pathPrefix = S3Util.getPathPrefix(storedBuildArtifactInfo.getCommonProperties());
 
@@ -2,6 +2,7 @@ package jetbrains.buildServer.artifacts.s3.web;
 
 import jetbrains.buildServer.ExtensionsProvider;
 import jetbrains.buildServer.artifacts.s3.S3Constants;
+import jetbrains.buildServer.artifacts.s3.bundles.S3ArtifactBundlesService;
 import jetbrains.buildServer.artifacts.s3.cloudfront.CloudFrontEnabledPresignedUrlProvider;
 import jetbrains.buildServer.serverSide.ProjectManagerEx;
 import jetbrains.buildServer.web.ContentSecurityPolicyConfig;
@@ -12,8 +13,9 @@ public class S3CompatibleArtifactDownloadProcessor extends S3ArtifactDownloadPro
   public S3CompatibleArtifactDownloadProcessor(@NotNull CloudFrontEnabledPresignedUrlProvider preSignedUrlProvider,
                                                @NotNull ExtensionsProvider extensionsProvider,
                                                @NotNull ContentSecurityPolicyConfig contentSecurityPolicyConfig,
-                                               @NotNull ProjectManagerEx projectManager) {
-    super(preSignedUrlProvider, extensionsProvider, contentSecurityPolicyConfig, projectManager);
+                                               @NotNull ProjectManagerEx projectManager,
+                                               @NotNull S3ArtifactBundlesService bundlesService) {
+    super(preSignedUrlProvider, extensionsProvider, contentSecurityPolicyConfig, projectManager, bundlesService);
   }
 
   @NotNull
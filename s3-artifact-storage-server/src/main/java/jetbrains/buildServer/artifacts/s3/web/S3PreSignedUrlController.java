@@ -18,12 +18,14 @@ import javax.servlet.http.HttpServletResponse;
 import jetbrains.buildServer.BuildAuthUtil;
 import jetbrains.buildServer.artifacts.ServerArtifactStorageSettingsProvider;
 import jetbrains.buildServer.artifacts.s3.PresignedUrlWithTtl;
+import jetbrains.buildServer.artifacts.s3.S3ArtifactDeduplication;
 import jetbrains.buildServer.artifacts.s3.S3ArtifactUtil;
 import jetbrains.buildServer.artifacts.s3.S3Constants;
 import jetbrains.buildServer.artifacts.s3.S3Util;
 import jetbrains.buildServer.artifacts.s3.cloudfront.CloudFrontEnabledPresignedUrlProvider;
 import jetbrains.buildServer.artifacts.s3.cloudfront.CloudFrontSettings;
 import jetbrains.buildServer.artifacts.s3.cloudfront.RequestMetadata;
+import jetbrains.buildServer.artifacts.s3.deduplication.S3ArtifactDeduplicationService;
 import jetbrains.buildServer.artifacts.s3.exceptions.InvalidSettingsException;
 import jetbrains.buildServer.artifacts.s3.serialization.S3XmlSerializerFactory;
 import jetbrains.buildServer.artifacts.s3.transport.*;
@@ -68,16 +70,20 @@ public class S3PreSignedUrlController extends BaseController {
   private final ServerArtifactStorageSettingsProvider myStorageSettingsProvider;
   @NotNull
   private final ProjectManagerEx myProjectManager;
+  @NotNull
+  private final S3ArtifactDeduplicationService myDeduplicationService;
 
   public S3PreSignedUrlController(@NotNull WebControllerManager web,
                                   @NotNull RunningBuildsManagerEx runningBuildsManager,
                                   @NotNull CloudFrontEnabledPresignedUrlProvider preSignedManager,
                                   @NotNull ServerArtifactStorageSettingsProvider storageSettingsProvider,
-                                  @NotNull ProjectManagerEx projectManager) {
+                                  @NotNull ProjectManagerEx projectManager,
+                                  @NotNull S3ArtifactDeduplicationService deduplicationService) {
     myRunningBuildsManager = runningBuildsManager;
     myPreSignedManager = preSignedManager;
     myStorageSettingsProvider = storageSettingsProvider;
     myProjectManager = projectManager;
+    myDeduplicationService = deduplicationService;
     web.registerController(ARTEFACTS_S3_UPLOAD_PRESIGN_URLS_HTML, this);
   }
 
@@ -117,6 +123,15 @@ public class S3PreSignedUrlController extends BaseController {
       if (request.getFirst() == RequestType.FINISH_MULTIPART_UPLOAD) {
         finishMultipartUpload(httpServletRequest, request.getSecond());
         httpServletResponse.setStatus(HttpServletResponse.SC_OK);
+      } else if (request.getFirst() == RequestType.DEDUPLICATE_ARTIFACTS) {
+        final String response = deduplicateArtifacts(httpServletRequest, runningBuild);
+        httpServletResponse.setContentType("text/plain; charset=" + StandardCharsets.UTF_8.name());
+        httpServletResponse.getWriter().append(response);
+        httpServletResponse.setStatus(HttpServletResponse.SC_OK);
+      } else if (request.getFirst() == RequestType.INDEX_ARTIFACTS) {
+        indexArtifacts(httpServletRequest, runningBuild);
+        httpServletResponse.setContentType("text/plain; charset=" + StandardCharsets.UTF_8.name());
+        httpServletResponse.setStatus(HttpServletResponse.SC_OK);
       } else {
         final CloudFrontSettings settings = request.getSecond();
         final PresignedUrlListRequestDto urlsRequest = PresignedUrlRequestSerializer.deserializeRequest(StreamUtil.readTextFrom(httpServletRequest.getReader()));
@@ -172,6 +187,51 @@ public class S3PreSignedUrlController extends BaseController {
     }
   }
 
+  @NotNull
+  private String deduplicateArtifacts(@NotNull final HttpServletRequest httpServletRequest, @NotNull final RunningBuildEx runningBuild) throws Exception {
+    final List<S3ArtifactDeduplication.Request> requests = readDeduplicationRequests(httpServletRequest);
+    final Map<String, String> storageSettings = myStorageSettingsProvider.getStorageSettings(runningBuild);
+    validateDeduplicationRequests(requests, storageSettings, runningBuild);
+
+    Disposable threadName = NamedDaemonThreadFactory.patchThreadName("Deduplicating " + requests.size() + " artifacts"
+                                                                     + " for a running build with id: " + runningBuild.getBuildId());
+    try {
+      return S3ArtifactDeduplication.serializeCopies(myDeduplicationService.deduplicate(runningBuild, storageSettings, requests));
+    } finally {
+      threadName.dispose();
+    }
+  }
+
+  private void indexArtifacts(@NotNull final HttpServletRequest httpServletRequest, @NotNull final RunningBuildEx runningBuild) throws Exception {
+    final List<S3ArtifactDeduplication.Request> uploads = readDeduplicationRequests(httpServletRequest);
+    final Map<String, String> storageSettings = myStorageSettingsProvider.getStorageSettings(runningBuild);
+    validateDeduplicationRequests(uploads, storageSettings, runningBuild);
+    myDeduplicationService.index(runningBuild, storageSettings, uploads);
+  }
+
+  @NotNull
+  private static List<S3ArtifactDeduplication.Request> readDeduplicationRequests(@NotNull final HttpServletRequest httpServletRequest) throws IOException {
+    try {
+      return S3ArtifactDeduplication.deserializeRequests(StreamUtil.readTextFrom(httpServletRequest.getReader()));
+    } catch (IllegalArgumentException e) {
+      throw new HttpServerErrorException(HttpStatus.BAD_REQUEST, "Invalid deduplication request: " + e.getMessage());
+    }
+  }
+
+  private static void validateDeduplicationRequests(@NotNull final List<S3ArtifactDeduplication.Request> requests,
+                                                    @NotNull final Map<String, String> storageSettings,
+                                                    @NotNull final RunningBuildEx runningBuild) {
+    if (TeamCityProperties.getBooleanOrTrue(S3_VALIDATE_KEYS)) {
+      final String customPrefix = storageSettings.getOrDefault(S3_PATH_PREFIX_SETTING, "");
+      for (S3ArtifactDeduplication.Request request : requests) {
+        if (!S3ArtifactUtil.matchBuildId(customPrefix, request.getObjectKey(), runningBuild.getBuildId())) {
+          throw new HttpServerErrorException(HttpStatus.BAD_REQUEST,
+                                             "Invalid deduplication request: object key '" + request.getObjectKey() + "' does not contain build id " + runningBuild.getBuildId());
+        }
+      }
+    }
+  }
+
   private void handleException(@NotNull final HttpServletResponse httpServletResponse, @NotNull final Exception e) throws IOException {
     final Exception cause = getMostInformativeRootException(e);
     setErrorHeader(httpServletResponse, cause);
@@ -343,11 +403,16 @@ public class S3PreSignedUrlController extends BaseController {
 
   private enum RequestType {
     FINISH_MULTIPART_UPLOAD,
+    DEDUPLICATE_ARTIFACTS,
+    INDEX_ARTIFACTS,
     GENERATE_PRESIGNED_URLS;
 
     @NotNull
     public static RequestType fromRequest(@NotNull final HttpServletRequest request) {
-      return StringUtil.isNotEmpty(request.getParameter(FINISH_UPLOAD)) ? FINISH_MULTIPART_UPLOAD : GENERATE_PRESIGNED_URLS;
+      if (StringUtil.isNotEmpty(request.getParameter(FINISH_UPLOAD))) return FINISH_MULTIPART_UPLOAD;
+      if (StringUtil.isNotEmpty(request.getParameter(S3ArtifactDeduplication.DEDUPLICATE_ARTIFACTS))) return DEDUPLICATE_ARTIFACTS;
+      if (StringUtil.isNotEmpty(request.getParameter(S3ArtifactDeduplication.INDEX_ARTIFACTS))) return INDEX_ARTIFACTS;
+      return GENERATE_PRESIGNED_URLS;
     }
   }
 }
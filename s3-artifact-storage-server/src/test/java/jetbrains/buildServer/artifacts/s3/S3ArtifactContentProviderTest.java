@@ -0,0 +1,35 @@
+package jetbrains.buildServer.artifacts.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.artifacts.ArtifactData;
+import jetbrains.buildServer.artifacts.s3.amazonClient.AmazonS3Provider;
+import jetbrains.buildServer.artifacts.s3.bundles.S3ArtifactBundlesService;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.artifacts.StoredBuildArtifactInfo;
+import org.mockito.Mockito;
+import org.testng.annotations.Test;
+
+import static org.mockito.Mockito.*;
+
+@Test
+public class S3ArtifactContentProviderTest extends BaseTestCase {
+
+  public void readsBundledArtifactFromBundle() throws Exception {
+    final StoredBuildArtifactInfo artifactInfo = Mockito.mock(StoredBuildArtifactInfo.class);
+    when(artifactInfo.getArtifactData()).thenReturn(Mockito.mock(ArtifactData.class));
+    final InputStream bundledContent = new ByteArrayInputStream(new byte[]{1, 2});
+    final S3ArtifactBundlesService bundlesService = Mockito.mock(S3ArtifactBundlesService.class);
+    when(bundlesService.getBundledContent(artifactInfo)).thenReturn(bundledContent);
+    final AmazonS3Provider amazonS3Provider = Mockito.mock(AmazonS3Provider.class);
+    final S3ArtifactContentProvider contentProvider =
+      new S3ArtifactContentProvider(new ServerPaths(Files.createTempDirectory("S3ArtifactContentProviderTest").toFile()), amazonS3Provider, bundlesService);
+
+    final InputStream content = contentProvider.getContent(artifactInfo);
+
+    assertSame(bundledContent, content);
+    verifyNoInteractions(amazonS3Provider);
+  }
+}
@@ -0,0 +1,203 @@
+package jetbrains.buildServer.artifacts.s3.bundles;
+
+import com.intellij.openapi.util.io.StreamUtil;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.artifacts.ArtifactData;
+import jetbrains.buildServer.artifacts.s3.S3ArtifactBundles;
+import jetbrains.buildServer.artifacts.s3.S3Constants;
+import jetbrains.buildServer.artifacts.s3.amazonClient.AmazonS3Provider;
+import jetbrains.buildServer.artifacts.s3.amazonClient.WithS3Client;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.artifacts.StoredBuildArtifactInfo;
+import org.jetbrains.annotations.NotNull;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+@Test
+public class S3ArtifactBundlesServiceTest extends BaseTestCase {
+  private static final String PATH_PREFIX = "Project/Build/1/";
+  private static final String INDEX_PATH = S3ArtifactBundles.BUNDLES_DIRECTORY + "/1/" + S3ArtifactBundles.INDEX_FILE_NAME;
+  private static final String BUNDLE_PATH = S3ArtifactBundles.BUNDLES_DIRECTORY + "/1/bundle-0.bin";
+  private static final String LATEST_INDEX_PATH = S3ArtifactBundles.BUNDLES_DIRECTORY + "/2/" + S3ArtifactBundles.INDEX_FILE_NAME;
+  private static final String LATEST_BUNDLE_PATH = S3ArtifactBundles.BUNDLES_DIRECTORY + "/2/bundle-0.bin";
+
+  private S3Client myS3Client;
+  private S3ArtifactBundlesService myService;
+  private Map<String, String> myStorageSettings;
+  private Map<String, String> myCommonProperties;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myS3Client = Mockito.mock(S3Client.class);
+    final AmazonS3Provider amazonS3Provider = Mockito.mock(AmazonS3Provider.class);
+    when(amazonS3Provider.withCorrectingRegionAndAcceleration(anyMap(), anyString(), any(), anyBoolean()))
+      .thenAnswer(invocation -> ((WithS3Client<?, ?>)invocation.getArgument(2)).execute(myS3Client));
+    myService = new S3ArtifactBundlesService(new ServerPaths(Files.createTempDirectory("S3ArtifactBundlesServiceTest").toFile()), amazonS3Provider);
+
+    myStorageSettings = new HashMap<>();
+    myStorageSettings.put("aws.region.name", "test");
+    myStorageSettings.put("secure:aws.secret.access.key", "test");
+    myStorageSettings.put("aws.access.key.id", "test");
+    myStorageSettings.put("aws.credentials.type", "aws.access.keys");
+    myStorageSettings.put("storage.s3.bucket.name", "bucket");
+    myStorageSettings.put("aws.environment", "custom");
+    myStorageSettings.put("aws.service.endpoint", "http://localhost");
+
+    myCommonProperties = new HashMap<>();
+    myCommonProperties.put(S3Constants.S3_PATH_PREFIX_ATTR, PATH_PREFIX);
+    myCommonProperties.put(S3ArtifactBundles.BUNDLE_INDEXES_ATTR, INDEX_PATH);
+    myCommonProperties.put(S3ArtifactBundles.BUNDLED_FILE_MAX_SIZE_ATTR, "10");
+  }
+
+  public void notBundled_whenBuildHasNoBundles() throws Exception {
+    myCommonProperties.remove(S3ArtifactBundles.BUNDLE_INDEXES_ATTR);
+
+    assertFalse(myService.isBundled(artifact("reports/a.html", 3)));
+    assertNull(myService.getBundledContent(artifact("reports/a.html", 3)));
+    verifyNoInteractions(myS3Client);
+  }
+
+  public void notBundled_whenArtifactIsLargerThanBundledOnes() throws Exception {
+    assertFalse(myService.isBundled(artifact("dist/app.zip", 11)));
+    assertNull(myService.getBundledContent(artifact("dist/app.zip", 11)));
+    verifyNoInteractions(myS3Client);
+  }
+
+  public void bundled_whenArtifactIsInIndex() throws Exception {
+    mockIndex();
+
+    assertTrue(myService.isBundled(artifact("reports/b.html", 2)));
+    assertFalse(myService.isBundled(artifact("reports/c.html", 2)));
+  }
+
+  public void notBundled_whenEntrySizeDiffersFromArtifact() throws Exception {
+    mockIndex();
+
+    assertFalse(myService.isBundled(artifact("reports/b.html", 5)));
+  }
+
+  public void usesLatestIndex_whenArtifactIsRepublished() throws Exception {
+    myCommonProperties.put(S3ArtifactBundles.BUNDLE_INDEXES_ATTR, S3ArtifactBundles.joinIndexPaths(Arrays.asList(INDEX_PATH, LATEST_INDEX_PATH)));
+    final Map<String, String> indexes = new HashMap<>();
+    indexes.put(PATH_PREFIX + INDEX_PATH, S3ArtifactBundles.serializeIndex(Arrays.asList(new S3ArtifactBundles.Entry("reports/a.html", BUNDLE_PATH, 0, 3),
+                                                                                         new S3ArtifactBundles.Entry("reports/b.html", BUNDLE_PATH, 3, 2))));
+    indexes.put(PATH_PREFIX + LATEST_INDEX_PATH, S3ArtifactBundles.serializeIndex(Arrays.asList(new S3ArtifactBundles.Entry("reports/a.html", LATEST_BUNDLE_PATH, 0, 3),
+                                                                                                S3ArtifactBundles.Entry.superseded("reports/b.html"))));
+    mockIndexes(indexes);
+    final ArgumentCaptor<Consumer<GetObjectRequest.Builder>> getRequest = mockGetObject("aaa");
+
+    myService.getBundledContent(artifact("reports/a.html", 3)).close();
+
+    assertEquals(PATH_PREFIX + LATEST_BUNDLE_PATH, getKey(getRequest.getValue()));
+    assertFalse(myService.isBundled(artifact("reports/b.html", 2)));
+  }
+
+  public void readsIndexOnce() throws Exception {
+    mockIndex();
+
+    myService.isBundled(artifact("reports/a.html", 3));
+    myService.isBundled(artifact("reports/b.html", 2));
+    myService.isBundled(artifact("reports/c.html", 2));
+
+    verify(myS3Client, times(1)).getObjectAsBytes(Mockito.<Consumer<GetObjectRequest.Builder>>any());
+  }
+
+  public void remembersMissingIndex() throws Exception {
+    when(myS3Client.getObjectAsBytes(Mockito.<Consumer<GetObjectRequest.Builder>>any())).thenThrow(NoSuchKeyException.builder().message("The specified key does not exist").build());
+
+    assertFalse(myService.isBundled(artifact("reports/a.html", 3)));
+    assertFalse(myService.isBundled(artifact("reports/b.html", 2)));
+
+    verify(myS3Client, times(1)).getObjectAsBytes(Mockito.<Consumer<GetObjectRequest.Builder>>any());
+  }
+
+  public void readsBundledContentByRange() throws Exception {
+    mockIndex();
+    final ArgumentCaptor<Consumer<GetObjectRequest.Builder>> getRequest = mockGetObject("bb");
+
+    try (InputStream content = myService.getBundledContent(artifact("reports/b.html", 2))) {
+      assertNotNull(content);
+      assertEquals("bb", StreamUtil.readTextFrom(new InputStreamReader(content, StandardCharsets.UTF_8)));
+    }
+
+    final GetObjectRequest.Builder builder = GetObjectRequest.builder();
+    getRequest.getValue().accept(builder);
+    final GetObjectRequest request = builder.build();
+    assertEquals("bucket", request.bucket());
+    assertEquals(PATH_PREFIX + BUNDLE_PATH, request.key());
+    assertEquals("bytes=3-4", request.range());
+  }
+
+  private void mockIndex() {
+    final String index = S3ArtifactBundles.serializeIndex(Arrays.asList(new S3ArtifactBundles.Entry("reports/a.html", BUNDLE_PATH, 0, 3),
+                                                                        new S3ArtifactBundles.Entry("reports/b.html", BUNDLE_PATH, 3, 2)));
+    when(myS3Client.getObjectAsBytes(Mockito.<Consumer<GetObjectRequest.Builder>>any()))
+      .thenReturn(ResponseBytes.fromByteArray(GetObjectResponse.builder().build(), index.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private void mockIndexes(@NotNull Map<String, String> indexesByKeys) {
+    when(myS3Client.getObjectAsBytes(Mockito.<Consumer<GetObjectRequest.Builder>>any())).thenAnswer(invocation -> {
+      final String index = indexesByKeys.get(getKey(invocation.getArgument(0)));
+      if (index == null) throw NoSuchKeyException.builder().message("The specified key does not exist").build();
+      return ResponseBytes.fromByteArray(GetObjectResponse.builder().build(), index.getBytes(StandardCharsets.UTF_8));
+    });
+  }
+
+  @NotNull
+  @SuppressWarnings("unchecked")
+  private ArgumentCaptor<Consumer<GetObjectRequest.Builder>> mockGetObject(@NotNull String content) {
+    final ArgumentCaptor<Consumer<GetObjectRequest.Builder>> getRequest = ArgumentCaptor.forClass(Consumer.class);
+    when(myS3Client.getObject(getRequest.capture()))
+      .thenReturn(new ResponseInputStream<>(GetObjectResponse.builder().build(), AbortableInputStream.create(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)))));
+    return getRequest;
+  }
+
+  @NotNull
+  private static String getKey(@NotNull Consumer<GetObjectRequest.Builder> request) {
+    final GetObjectRequest.Builder builder = GetObjectRequest.builder();
+    request.accept(builder);
+    return builder.build().key();
+  }
+
+  @NotNull
+  private StoredBuildArtifactInfo artifact(@NotNull String path, long size) {
+    final ArtifactData artifactData = Mockito.mock(ArtifactData.class);
+    when(artifactData.getPath()).thenReturn(path);
+    when(artifactData.getSize()).thenReturn(size);
+    final BuildPromotion buildPromotion = Mockito.mock(BuildPromotion.class);
+    when(buildPromotion.getProjectId()).thenReturn("project");
+    final StoredBuildArtifactInfo artifactInfo = Mockito.mock(StoredBuildArtifactInfo.class);
+    when(artifactInfo.getArtifactData()).thenReturn(artifactData);
+    when(artifactInfo.getCommonProperties()).thenReturn(myCommonProperties);
+    when(artifactInfo.getStorageSettings()).thenReturn(myStorageSettings);
+    when(artifactInfo.getBuildPromotion()).thenReturn(buildPromotion);
+    return artifactInfo;
+  }
+}
@@ -0,0 +1,168 @@
+package jetbrains.buildServer.artifacts.s3.deduplication;
+
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.artifacts.s3.S3ArtifactDeduplication;
+import jetbrains.buildServer.artifacts.s3.amazonClient.AmazonS3Provider;
+import jetbrains.buildServer.artifacts.s3.amazonClient.WithS3Client;
+import jetbrains.buildServer.serverSide.Branch;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.connections.credentials.ConnectionCredentialsException;
+import org.jetbrains.annotations.NotNull;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.CopyObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+@Test
+public class S3ArtifactDeduplicationServiceTest extends BaseTestCase {
+  private static final String BUCKET_NAME = "bucket";
+  private static final String SHA256 = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+  private static final String FIRST_KEY = "Project/Build/1/dist/app.zip";
+  private static final String SECOND_KEY = "Project/Build/2/dist/app.zip";
+
+  private S3Client myS3Client;
+  private S3ArtifactDeduplicationService myService;
+  private Map<String, String> myStorageSettings;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myS3Client = Mockito.mock(S3Client.class);
+    final AmazonS3Provider amazonS3Provider = Mockito.mock(AmazonS3Provider.class);
+    when(amazonS3Provider.withCorrectingRegionAndAcceleration(anyMap(), anyString(), any()))
+      .thenAnswer(invocation -> ((WithS3Client<?, ?>)invocation.getArgument(2)).execute(myS3Client));
+    myService = new S3ArtifactDeduplicationService(new ServerPaths(Files.createTempDirectory("S3ArtifactDeduplicationServiceTest").toFile()), amazonS3Provider);
+    myStorageSettings = new HashMap<>();
+    myStorageSettings.put("storage.s3.bucket.name", BUCKET_NAME);
+  }
+
+  public void copiesUploadedObjectWithTheSameDigest() throws ConnectionCredentialsException {
+    myService.index(build("Build"), myStorageSettings, Collections.singletonList(new S3ArtifactDeduplication.Request(SHA256, 3, FIRST_KEY, "etag")));
+    final ArgumentCaptor<Consumer<CopyObjectRequest.Builder>> copyRequest = mockCopy();
+
+    final Map<String, String> copies =
+      myService.deduplicate(build("Build"), myStorageSettings, Collections.singletonList(new S3ArtifactDeduplication.Request(SHA256, 3, SECOND_KEY)));
+
+    assertEquals(Collections.singletonMap(SECOND_KEY, "\"copy\""), copies);
+    final CopyObjectRequest.Builder builder = CopyObjectRequest.builder();
+    copyRequest.getValue().accept(builder);
+    final CopyObjectRequest request = builder.build();
+    assertEquals(FIRST_KEY, request.sourceKey());
+    assertEquals(SECOND_KEY, request.destinationKey());
+    assertEquals("\"etag\"", request.copySourceIfMatch());
+  }
+
+  public void doesNotCopyObjectsThatWereOnlyRequested() throws ConnectionCredentialsException {
+    myService.deduplicate(build("Build"), myStorageSettings, Collections.singletonList(new S3ArtifactDeduplication.Request(SHA256, 3, FIRST_KEY)));
+
+    final Map<String, String> copies =
+      myService.deduplicate(build("Build"), myStorageSettings, Collections.singletonList(new S3ArtifactDeduplication.Request(SHA256, 3, SECOND_KEY)));
+
+    assertTrue(copies.isEmpty());
+    verify(myS3Client, never()).copyObject(Mockito.<Consumer<CopyObjectRequest.Builder>>any());
+  }
+
+  public void doesNotIndexUploadsWithoutETag() throws ConnectionCredentialsException {
+    myService.index(build("Build"), myStorageSettings, Collections.singletonList(new S3ArtifactDeduplication.Request(SHA256, 3, FIRST_KEY)));
+
+    final Map<String, String> copies =
+      myService.deduplicate(build("Build"), myStorageSettings, Collections.singletonList(new S3ArtifactDeduplication.Request(SHA256, 3, SECOND_KEY)));
+
+    assertTrue(copies.isEmpty());
+    verify(myS3Client, never()).copyObject(Mockito.<Consumer<CopyObjectRequest.Builder>>any());
+  }
+
+  public void doesNotCopyObjectsOfOtherBuildConfigurations() throws ConnectionCredentialsException {
+    myService.index(build("Build"), myStorageSettings, Collections.singletonList(new S3ArtifactDeduplication.Request(SHA256, 3, FIRST_KEY, "etag")));
+
+    final Map<String, String> copies =
+      myService.deduplicate(build("OtherBuild"), myStorageSettings, Collections.singletonList(new S3ArtifactDeduplication.Request(SHA256, 3, SECOND_KEY)));
+
+    assertTrue(copies.isEmpty());
+    verify(myS3Client, never()).copyObject(Mockito.<Consumer<CopyObjectRequest.Builder>>any());
+  }
+
+  public void doesNotIndexUploadsOfPersonalBuilds() throws ConnectionCredentialsException {
+    final SBuild personalBuild = build("Build");
+    when(personalBuild.isPersonal()).thenReturn(true);
+    myService.index(personalBuild, myStorageSettings, Collections.singletonList(new S3ArtifactDeduplication.Request(SHA256, 3, FIRST_KEY, "etag")));
+
+    final Map<String, String> copies =
+      myService.deduplicate(build("Build"), myStorageSettings, Collections.singletonList(new S3ArtifactDeduplication.Request(SHA256, 3, SECOND_KEY)));
+
+    assertTrue(copies.isEmpty());
+    verify(myS3Client, never()).copyObject(Mockito.<Consumer<CopyObjectRequest.Builder>>any());
+  }
+
+  public void doesNotIndexUploadsOfNonDefaultBranchBuilds() throws ConnectionCredentialsException {
+    final Branch branch = Mockito.mock(Branch.class);
+    when(branch.isDefaultBranch()).thenReturn(false);
+    final SBuild branchBuild = build("Build");
+    when(branchBuild.getBranch()).thenReturn(branch);
+    myService.index(branchBuild, myStorageSettings, Collections.singletonList(new S3ArtifactDeduplication.Request(SHA256, 3, FIRST_KEY, "etag")));
+
+    final Map<String, String> copies =
+      myService.deduplicate(build("Build"), myStorageSettings, Collections.singletonList(new S3ArtifactDeduplication.Request(SHA256, 3, SECOND_KEY)));
+
+    assertTrue(copies.isEmpty());
+    verify(myS3Client, never()).copyObject(Mockito.<Consumer<CopyObjectRequest.Builder>>any());
+  }
+
+  public void forgetsObject_whenItHasChangedSinceUpload() throws ConnectionCredentialsException {
+    myService.index(build("Build"), myStorageSettings, Collections.singletonList(new S3ArtifactDeduplication.Request(SHA256, 3, FIRST_KEY, "etag")));
+    when(myS3Client.copyObject(Mockito.<Consumer<CopyObjectRequest.Builder>>any()))
+      .thenThrow(S3Exception.builder().statusCode(412).message("At least one of the pre-conditions you specified did not hold").build());
+
+    final Map<String, String> firstCopies =
+      myService.deduplicate(build("Build"), myStorageSettings, Collections.singletonList(new S3ArtifactDeduplication.Request(SHA256, 3, SECOND_KEY)));
+    final Map<String, String> secondCopies =
+      myService.deduplicate(build("Build"), myStorageSettings, Collections.singletonList(new S3ArtifactDeduplication.Request(SHA256, 3, SECOND_KEY)));
+
+    assertTrue(firstCopies.isEmpty());
+    assertTrue(secondCopies.isEmpty());
+    verify(myS3Client, times(1)).copyObject(Mockito.<Consumer<CopyObjectRequest.Builder>>any());
+  }
+
+  public void doesNotCopyObjectOfAnotherSize() throws ConnectionCredentialsException {
+    myService.index(build("Build"), myStorageSettings, Collections.singletonList(new S3ArtifactDeduplication.Request(SHA256, 3, FIRST_KEY, "etag")));
+
+    final Map<String, String> copies =
+      myService.deduplicate(build("Build"), myStorageSettings, Collections.singletonList(new S3ArtifactDeduplication.Request(SHA256, 4, SECOND_KEY)));
+
+    assertTrue(copies.isEmpty());
+    verify(myS3Client, never()).copyObject(Mockito.<Consumer<CopyObjectRequest.Builder>>any());
+  }
+
+  @NotNull
+  @SuppressWarnings("unchecked")
+  private ArgumentCaptor<Consumer<CopyObjectRequest.Builder>> mockCopy() {
+    final ArgumentCaptor<Consumer<CopyObjectRequest.Builder>> copyRequest = ArgumentCaptor.forClass(Consumer.class);
+    when(myS3Client.copyObject(copyRequest.capture()))
+      .thenReturn(CopyObjectResponse.builder().copyObjectResult(result -> result.eTag("\"copy\"")).build());
+    return copyRequest;
+  }
+
+  @NotNull
+  private static SBuild build(@NotNull String buildTypeId) {
+    final SBuild build = Mockito.mock(SBuild.class);
+    when(build.getBuildTypeId()).thenReturn(buildTypeId);
+    when(build.getProjectId()).thenReturn("project");
+    return build;
+  }
+}
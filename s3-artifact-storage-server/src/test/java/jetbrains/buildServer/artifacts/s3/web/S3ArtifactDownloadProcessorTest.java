@@ -0,0 +1,38 @@
+package jetbrains.buildServer.artifacts.s3.web;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.ExtensionsProvider;
+import jetbrains.buildServer.artifacts.ArtifactData;
+import jetbrains.buildServer.artifacts.s3.bundles.S3ArtifactBundlesService;
+import jetbrains.buildServer.artifacts.s3.cloudfront.CloudFrontEnabledPresignedUrlProvider;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.ProjectManagerEx;
+import jetbrains.buildServer.serverSide.artifacts.StoredBuildArtifactInfo;
+import jetbrains.buildServer.web.ContentSecurityPolicyConfig;
+import org.mockito.Mockito;
+import org.testng.annotations.Test;
+
+import static org.mockito.Mockito.*;
+
+@Test
+public class S3ArtifactDownloadProcessorTest extends BaseTestCase {
+
+  public void leavesBundledArtifactToContentProvider() throws Exception {
+    final StoredBuildArtifactInfo artifactInfo = Mockito.mock(StoredBuildArtifactInfo.class);
+    when(artifactInfo.getArtifactData()).thenReturn(Mockito.mock(ArtifactData.class));
+    final S3ArtifactBundlesService bundlesService = Mockito.mock(S3ArtifactBundlesService.class);
+    when(bundlesService.isBundled(artifactInfo)).thenReturn(true);
+    final CloudFrontEnabledPresignedUrlProvider preSignedUrlProvider = Mockito.mock(CloudFrontEnabledPresignedUrlProvider.class);
+    final HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+    final S3ArtifactDownloadProcessor processor = new S3ArtifactDownloadProcessor(preSignedUrlProvider, Mockito.mock(ExtensionsProvider.class),
+                                                                                  Mockito.mock(ContentSecurityPolicyConfig.class), Mockito.mock(ProjectManagerEx.class),
+                                                                                  bundlesService);
+
+    final boolean processed = processor.processDownload(artifactInfo, Mockito.mock(BuildPromotion.class), Mockito.mock(HttpServletRequest.class), response);
+
+    assertFalse(processed);
+    verifyNoInteractions(preSignedUrlProvider, response);
+  }
+}
@@ -0,0 +1,133 @@
+package jetbrains.buildServer.artifacts.s3.web;
+
+import java.io.BufferedReader;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.BuildAuthUtil;
+import jetbrains.buildServer.artifacts.ServerArtifactStorageSettingsProvider;
+import jetbrains.buildServer.artifacts.s3.S3ArtifactDeduplication;
+import jetbrains.buildServer.artifacts.s3.cloudfront.CloudFrontEnabledPresignedUrlProvider;
+import jetbrains.buildServer.artifacts.s3.deduplication.S3ArtifactDeduplicationService;
+import jetbrains.buildServer.serverSide.ProjectManagerEx;
+import jetbrains.buildServer.serverSide.RunningBuildEx;
+import jetbrains.buildServer.serverSide.impl.RunningBuildsManagerEx;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import org.jetbrains.annotations.NotNull;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@Test
+public class S3PreSignedUrlControllerDeduplicationTest extends BaseTestCase {
+  private static final long BUILD_ID = 1;
+  private static final String ACCESS_CODE = "accessCode";
+  private static final String OBJECT_KEY = "Project/Build/1/dist/app.zip";
+
+  private RunningBuildEx myRunningBuild;
+  private Map<String, String> myStorageSettings;
+  private S3ArtifactDeduplicationService myDeduplicationService;
+  private S3PreSignedUrlController myController;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myRunningBuild = Mockito.mock(RunningBuildEx.class);
+    when(myRunningBuild.getBuildId()).thenReturn(BUILD_ID);
+    when(myRunningBuild.getAgentAccessCode()).thenReturn(ACCESS_CODE);
+    when(myRunningBuild.getProjectId()).thenReturn("project");
+    final RunningBuildsManagerEx runningBuildsManager = Mockito.mock(RunningBuildsManagerEx.class);
+    when(runningBuildsManager.findRunningBuildById(BUILD_ID)).thenReturn(myRunningBuild);
+
+    myStorageSettings = new HashMap<>();
+    myStorageSettings.put("aws.region.name", "test");
+    myStorageSettings.put("secure:aws.secret.access.key", "test");
+    myStorageSettings.put("aws.access.key.id", "test");
+    myStorageSettings.put("aws.credentials.type", "aws.access.keys");
+    myStorageSettings.put("storage.s3.bucket.name", "bucket");
+    myStorageSettings.put("aws.environment", "custom");
+    myStorageSettings.put("aws.service.endpoint", "http://localhost");
+    final ServerArtifactStorageSettingsProvider storageSettingsProvider = Mockito.mock(ServerArtifactStorageSettingsProvider.class);
+    when(storageSettingsProvider.getStorageSettings(myRunningBuild)).thenReturn(myStorageSettings);
+
+    myDeduplicationService = Mockito.mock(S3ArtifactDeduplicationService.class);
+    myController = new S3PreSignedUrlController(Mockito.mock(WebControllerManager.class), runningBuildsManager, Mockito.mock(CloudFrontEnabledPresignedUrlProvider.class),
+                                                storageSettingsProvider, Mockito.mock(ProjectManagerEx.class), myDeduplicationService);
+  }
+
+  public void returnsCopiesOfDeduplicatedArtifacts() throws Exception {
+    when(myDeduplicationService.deduplicate(eq(myRunningBuild), eq(myStorageSettings), anyList())).thenReturn(Collections.singletonMap(OBJECT_KEY, "\"etag\""));
+    final StringWriter responseBody = new StringWriter();
+
+    myController.doHandle(request(S3ArtifactDeduplication.DEDUPLICATE_ARTIFACTS, new S3ArtifactDeduplication.Request("abc", 3, OBJECT_KEY)), response(responseBody));
+
+    assertEquals(Collections.singletonMap(OBJECT_KEY, "\"etag\""), S3ArtifactDeduplication.deserializeCopies(responseBody.toString()));
+    final List<S3ArtifactDeduplication.Request> requests = captureRequests(false);
+    assertEquals(1, requests.size());
+    assertEquals("abc", requests.get(0).getSha256());
+    assertEquals(OBJECT_KEY, requests.get(0).getObjectKey());
+    verify(myDeduplicationService, never()).index(any(), any(), anyList());
+  }
+
+  public void indexesUploadedArtifacts() throws Exception {
+    myController.doHandle(request(S3ArtifactDeduplication.INDEX_ARTIFACTS, new S3ArtifactDeduplication.Request("abc", 3, OBJECT_KEY, "etag")), response(new StringWriter()));
+
+    final List<S3ArtifactDeduplication.Request> uploads = captureRequests(true);
+    assertEquals(1, uploads.size());
+    assertEquals("etag", uploads.get(0).getETag());
+    verify(myDeduplicationService, never()).deduplicate(any(), any(), anyList());
+  }
+
+  public void rejectsArtifactsOfOtherBuilds() throws Exception {
+    final HttpServletResponse response = response(new StringWriter());
+
+    myController.doHandle(request(S3ArtifactDeduplication.DEDUPLICATE_ARTIFACTS, new S3ArtifactDeduplication.Request("abc", 3, "Project/Build/2/dist/app.zip")), response);
+    myController.doHandle(request(S3ArtifactDeduplication.INDEX_ARTIFACTS, new S3ArtifactDeduplication.Request("abc", 3, "Project/Build/2/dist/app.zip", "etag")), response);
+
+    verify(myDeduplicationService, never()).deduplicate(any(), any(), anyList());
+    verify(myDeduplicationService, never()).index(any(), any(), anyList());
+    verify(response, never()).setStatus(HttpServletResponse.SC_OK);
+  }
+
+  @NotNull
+  @SuppressWarnings("unchecked")
+  private List<S3ArtifactDeduplication.Request> captureRequests(boolean index) throws Exception {
+    final ArgumentCaptor<List<S3ArtifactDeduplication.Request>> requests = ArgumentCaptor.forClass(List.class);
+    if (index) {
+      verify(myDeduplicationService).index(eq(myRunningBuild), eq(myStorageSettings), requests.capture());
+    } else {
+      verify(myDeduplicationService).deduplicate(eq(myRunningBuild), eq(myStorageSettings), requests.capture());
+    }
+    return requests.getValue();
+  }
+
+  @NotNull
+  private static HttpServletRequest request(@NotNull String requestParameter, @NotNull S3ArtifactDeduplication.Request... requests) throws Exception {
+    final HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+    when(request.getMethod()).thenReturn("POST");
+    final String credentials = BuildAuthUtil.makeUserId(BUILD_ID) + ":" + ACCESS_CODE;
+    when(request.getHeader("Authorization")).thenReturn("Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8)));
+    when(request.getParameter(requestParameter)).thenReturn("true");
+    when(request.getReader()).thenReturn(new BufferedReader(new StringReader(S3ArtifactDeduplication.serializeRequests(Arrays.asList(requests)))));
+    return request;
+  }
+
+  @NotNull
+  private static HttpServletResponse response(@NotNull StringWriter body) throws Exception {
+    final HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+    when(response.getWriter()).thenReturn(new PrintWriter(body, true));
+    return response;
+  }
+}